@@ -118,6 +118,13 @@ static jstring bdaddr2newjstr(JNIEnv* env, bt_bdaddr_t* bda) {
   return env->NewStringUTF(c_address);
 }
 
+/* Packs an address into the low 48 bits, address[0] most significant */
+static jlong bdaddr2long(bt_bdaddr_t* bda) {
+  jlong packed = 0;
+  for (int i = 0; i < 6; i++) packed = (packed << 8) | bda->address[i];
+  return packed;
+}
+
 static std::vector<uint8_t> toVector(JNIEnv* env, jbyteArray ba) {
   jbyte* data_data = env->GetByteArrayElements(ba, NULL);
   uint16_t data_len = (uint16_t)env->GetArrayLength(ba);
@@ -144,6 +151,8 @@ static jmethodID method_onSearchCompleted;
 static jmethodID method_onReadDescriptor;
 static jmethodID method_onWriteDescriptor;
 static jmethodID method_onNotify;
+static jmethodID method_onScanResultRecord;
+static jmethodID method_onNotifyRecord;
 static jmethodID method_onRegisterForNotifications;
 static jmethodID method_onReadRemoteRssi;
 static jmethodID method_onConfigureMTU;
@@ -215,6 +224,30 @@ static jobject mCallbacksObj = NULL;
 static jobject mAdvertiseCallbacksObj = NULL;
 static jobject mPeriodicScanCallbacksObj = NULL;
 
+/**
+ * Event ring shared with JniEventRing. Scan results and notifications are
+ * written into it and passed to Java as an offset, so that no address string
+ * or byte array is created in the JNI for them. Written and read on the
+ * callback thread only; Java decodes a record before the callback returns.
+ */
+#define EVENT_RING_HEADER_LEN 20
+
+static jobject sEventRingObj = NULL;
+static uint8_t* sEventRing = NULL;
+static size_t sEventRingSize = 0;
+static size_t sEventRingPos = 0;
+
+/* Returns the offset for a record with |data_len| bytes of data, or -1 */
+static int event_ring_reserve(size_t data_len) {
+  if (sEventRing == NULL) return -1;
+  size_t len = (EVENT_RING_HEADER_LEN + data_len + 7) & ~((size_t)7);
+  if (len > sEventRingSize) return -1;
+  if (sEventRingPos + len > sEventRingSize) sEventRingPos = 0;
+  size_t offset = sEventRingPos;
+  sEventRingPos += len;
+  return (int)offset;
+}
+
 /**
  * BTA client callbacks
  */
@@ -235,6 +268,27 @@ void btgattc_scan_result_cb(uint16_t event_type, uint8_t addr_type,
   CallbackEnv sCallbackEnv(__func__);
   if (!sCallbackEnv.valid()) return;
 
+  int offset = event_ring_reserve(adv_data.size());
+  if (offset >= 0) {
+    uint8_t* rec = sEventRing + offset;
+    jlong packed = bdaddr2long(bda);
+    uint16_t data_len = adv_data.size();
+    memcpy(rec, &packed, sizeof(packed));
+    memcpy(rec + 8, &event_type, sizeof(event_type));
+    memcpy(rec + 10, &periodic_adv_int, sizeof(periodic_adv_int));
+    memcpy(rec + 12, &data_len, sizeof(data_len));
+    rec[14] = addr_type;
+    rec[15] = primary_phy;
+    rec[16] = secondary_phy;
+    rec[17] = advertising_sid;
+    rec[18] = (uint8_t)tx_power;
+    rec[19] = (uint8_t)rssi;
+    memcpy(rec + EVENT_RING_HEADER_LEN, adv_data.data(), data_len);
+    sCallbackEnv->CallVoidMethod(mCallbacksObj, method_onScanResultRecord,
+                                 offset);
+    return;
+  }
+
   ScopedLocalRef<jstring> address(sCallbackEnv.get(),
                                   bdaddr2newjstr(sCallbackEnv.get(), bda));
   ScopedLocalRef<jbyteArray> jb(sCallbackEnv.get(),
@@ -289,6 +343,23 @@ void btgattc_notify_cb(int conn_id, btgatt_notify_params_t* p_data) {
   CallbackEnv sCallbackEnv(__func__);
   if (!sCallbackEnv.valid()) return;
 
+  int offset = event_ring_reserve(p_data->len);
+  if (offset >= 0) {
+    uint8_t* rec = sEventRing + offset;
+    jlong packed = bdaddr2long(&p_data->bda);
+    int32_t id = conn_id;
+    uint16_t handle = p_data->handle;
+    uint16_t data_len = p_data->len;
+    memcpy(rec, &packed, sizeof(packed));
+    memcpy(rec + 8, &id, sizeof(id));
+    memcpy(rec + 12, &handle, sizeof(handle));
+    memcpy(rec + 14, &data_len, sizeof(data_len));
+    rec[16] = p_data->is_notify ? 1 : 0;
+    memcpy(rec + EVENT_RING_HEADER_LEN, p_data->value, data_len);
+    sCallbackEnv->CallVoidMethod(mCallbacksObj, method_onNotifyRecord, offset);
+    return;
+  }
+
   ScopedLocalRef<jstring> address(
       sCallbackEnv.get(), bdaddr2newjstr(sCallbackEnv.get(), &p_data->bda));
   ScopedLocalRef<jbyteArray> jb(sCallbackEnv.get(),
@@ -812,6 +883,9 @@ static void classInitNative(JNIEnv* env, jclass clazz) {
       env->GetMethodID(clazz, "onWriteDescriptor", "(III)V");
   method_onNotify =
       env->GetMethodID(clazz, "onNotify", "(ILjava/lang/String;IZ[B)V");
+  method_onScanResultRecord =
+      env->GetMethodID(clazz, "onScanResultRecord", "(I)V");
+  method_onNotifyRecord = env->GetMethodID(clazz, "onNotifyRecord", "(I)V");
   method_onRegisterForNotifications =
       env->GetMethodID(clazz, "onRegisterForNotifications", "(IIII)V");
   method_onReadRemoteRssi =
@@ -933,6 +1007,32 @@ static void initializeNative(JNIEnv* env, jobject object) {
   mCallbacksObj = env->NewGlobalRef(object);
 }
 
+static void releaseEventRing(JNIEnv* env) {
+  sEventRing = NULL;
+  sEventRingSize = 0;
+  sEventRingPos = 0;
+  if (sEventRingObj != NULL) {
+    env->DeleteGlobalRef(sEventRingObj);
+    sEventRingObj = NULL;
+  }
+}
+
+static void setEventRingNative(JNIEnv* env, jobject object, jobject buffer) {
+  releaseEventRing(env);
+  if (buffer == NULL) return;
+
+  uint8_t* ring = (uint8_t*)env->GetDirectBufferAddress(buffer);
+  jlong size = env->GetDirectBufferCapacity(buffer);
+  if (ring == NULL || size < EVENT_RING_HEADER_LEN) {
+    ALOGE("%s: not a direct buffer, events are not passed through a ring",
+          __func__);
+    return;
+  }
+  sEventRingObj = env->NewGlobalRef(buffer);
+  sEventRingSize = (size_t)size;
+  sEventRing = ring;
+}
+
 static void cleanupNative(JNIEnv* env, jobject object) {
   if (!btIf) return;
 
@@ -941,6 +1041,8 @@ static void cleanupNative(JNIEnv* env, jobject object) {
     sGattIf = NULL;
   }
 
+  releaseEventRing(env);
+
   if (mCallbacksObj != NULL) {
     env->DeleteGlobalRef(mCallbacksObj);
     mCallbacksObj = NULL;
@@ -2174,6 +2276,8 @@ static JNINativeMethod sMethods[] = {
     {"classInitNative", "()V", (void*)classInitNative},
     {"initializeNative", "()V", (void*)initializeNative},
     {"cleanupNative", "()V", (void*)cleanupNative},
+    {"setEventRingNative", "(Ljava/nio/ByteBuffer;)V",
+     (void*)setEventRingNative},
     {"gattClientGetDeviceTypeNative", "(Ljava/lang/String;)I",
      (void*)gattClientGetDeviceTypeNative},
     {"gattClientRegisterAppNative", "(JJ)V",
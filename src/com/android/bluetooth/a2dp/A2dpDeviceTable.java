@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Sinks connected to the A2DP source, in connection order.
+ *
+ * The state machine picks the device to drop and the next current device by position in the
+ * list; the index next to it keeps the membership checks done for every stack event from
+ * scanning the list, which matters once more than two sinks can be connected.
+ *
+ * Not thread safe, callers synchronize on the state machine like they did for the list.
+ */
+class A2dpDeviceTable {
+    /** State kept for one connected sink. */
+    static class Record {
+        final BluetoothDevice mDevice;
+        final long mConnectedSince;
+
+        Record(BluetoothDevice device) {
+            mDevice = device;
+            mConnectedSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private final ArrayList<BluetoothDevice> mConnected = new ArrayList<BluetoothDevice>();
+    private final List<BluetoothDevice> mConnectedView = Collections.unmodifiableList(mConnected);
+    private final HashMap<BluetoothDevice, Record> mRecords =
+            new HashMap<BluetoothDevice, Record>();
+
+    boolean contains(BluetoothDevice device) {
+        return device != null && mRecords.containsKey(device);
+    }
+
+    /* Appends |device| to the connected list, no-op if it is already there */
+    boolean add(BluetoothDevice device) {
+        if (mRecords.containsKey(device)) return false;
+        mRecords.put(device, new Record(device));
+        mConnected.add(device);
+        return true;
+    }
+
+    boolean remove(BluetoothDevice device) {
+        if (mRecords.remove(device) == null) return false;
+        mConnected.remove(device);
+        return true;
+    }
+
+    void clear() {
+        mConnected.clear();
+        mRecords.clear();
+    }
+
+    int size() {
+        return mConnected.size();
+    }
+
+    /* Returns the |index|th connected device, in connection order */
+    BluetoothDevice get(int index) {
+        return mConnected.get(index);
+    }
+
+    /* Read-only view of the connected devices, in connection order */
+    List<BluetoothDevice> getConnectedDevices() {
+        return mConnectedView;
+    }
+
+    Record getRecord(BluetoothDevice device) {
+        return mRecords.get(device);
+    }
+
+    void dump(StringBuilder sb) {
+        long now = SystemClock.elapsedRealtime();
+        ProfileService.println(sb, "Connected sinks: " + mConnected.size());
+        for (BluetoothDevice device : mConnected) {
+            ProfileService.println(sb, "  " + device + ": connected "
+                    + (now - mRecords.get(device).mConnectedSince) / 1000 + "s");
+        }
+    }
+}
@@ -52,6 +52,7 @@ public class A2dpService extends ProfileService {
     private static final String TAG="A2dpService";
 
     private A2dpStateMachine mStateMachine;
+    private A2dpStreamArbiter mArbiter;
     private Avrcp mAvrcp;
 
     private BroadcastReceiver mConnectionStateChangedReceiver = new BroadcastReceiver() {
@@ -130,17 +131,19 @@ public class A2dpService extends ProfileService {
         if (DBG) Log.d(TAG, "START of A2dpService");
         if (a2dpMultiCastState == 1)
                 multiCastState = a2dpMultiCastState;
-        if (maxA2dpConnection == 2)
-                maxConnections = maxA2dpConnection;
+        if (maxA2dpConnection >= 2)
+                maxConnections = Math.min(maxA2dpConnection,
+                        A2dpStreamArbiter.MAX_CONNECTIONS_LIMIT);
         // enable soft hands-off also when multicast is enabled.
-        if (multiCastState == 1 && maxConnections != 2) {
+        if (multiCastState == 1 && maxConnections < 2) {
             Log.i(TAG,"Enable soft handsoff as multicast is enabled");
             maxConnections = 2;
         }
         log( "maxA2dpConnections = " + maxConnections);
         log( "multiCastState = " + multiCastState);
+        mArbiter = new A2dpStreamArbiter(maxConnections);
         mStateMachine = A2dpStateMachine.make(this, this,
-                maxConnections, multiCastState, isSplitA2dpEnabled);
+                mArbiter, multiCastState, isSplitA2dpEnabled);
         setA2dpService(this);
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothA2dp.ACTION_CONNECTION_STATE_CHANGED);
@@ -172,6 +175,9 @@ public class A2dpService extends ProfileService {
         if (mStateMachine!= null) {
             mStateMachine.cleanup();
         }
+        if (mArbiter != null) {
+            mArbiter.clear();
+        }
         if (mAvrcp != null) {
             mAvrcp.cleanup();
             mAvrcp = null;
@@ -314,7 +320,7 @@ public class A2dpService extends ProfileService {
     }
 
     public List<BluetoothDevice> getA2dpPlayingDevice() {
-        return mStateMachine.getPlayingDevice();
+        return mArbiter.getStreamingDevices();
     }
 
     public boolean isMulticastEnabled() {
@@ -328,24 +334,11 @@ public class A2dpService extends ProfileService {
     // return status of multicast,needed for blocking outgoing connections
     public boolean isMulticastOngoing(BluetoothDevice device) {
 
-        Log.i(TAG,"audio isMusicActive is " + mAudioManager.isMusicActive());
-        // we should never land is case where playing device size is bigger
-        // than 2 still have safe check.
-        if (device == null) {
-            if ((getA2dpPlayingDevice().size() >= 2) &&
-                    (mAudioManager.isMusicActive())) {
-                return true;
-            } else {
-                return false;
-            }
-        }
-        if ((getA2dpPlayingDevice().size() >= 2) &&
-                mAudioManager.isMusicActive() &&
-                !(getA2dpPlayingDevice().contains(device))) {
-            return true;
-        } else {
+        if (mArbiter == null || !mArbiter.isMulticastExcluding(device)) {
             return false;
         }
+        Log.i(TAG,"audio isMusicActive is " + mAudioManager.isMusicActive());
+        return mAudioManager.isMusicActive();
     }
 
     public void resetAvrcpBlacklist(BluetoothDevice device) {
@@ -568,6 +561,9 @@ public class A2dpService extends ProfileService {
         if (mStateMachine != null) {
             mStateMachine.dump(sb);
         }
+        if (mArbiter != null) {
+            mArbiter.dump(sb);
+        }
         if (mAvrcp != null) {
             mAvrcp.dump(sb);
         }
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Merges the state transitions of a device that are announced in quick succession.
+ *
+ * A transition offered while the previous one for the same device is still waiting to be
+ * broadcast is folded into it: CONNECTING then CONNECTED goes out as a single
+ * DISCONNECTED -> CONNECTED, and a transition that ends where the waiting one started cancels
+ * it. Transitions that do not change the state, or repeat the last state announced for the
+ * device, are dropped.
+ *
+ * Offered from the state machine thread and polled from the broadcast handler, hence
+ * synchronized.
+ */
+class A2dpStateCoalescer {
+    /* A transition waiting to be broadcast, or one returned by poll() */
+    static class Transition {
+        final int mPrevState;
+        final int mState;
+        final long mDueTime;
+
+        Transition(int prevState, int state, long dueTime) {
+            mPrevState = prevState;
+            mState = state;
+            mDueTime = dueTime;
+        }
+    }
+
+    private final String mName;
+    private final HashMap<BluetoothDevice, Transition> mPending =
+            new HashMap<BluetoothDevice, Transition>();
+    private final HashMap<BluetoothDevice, Integer> mAnnounced =
+            new HashMap<BluetoothDevice, Integer>();
+
+    private int mBroadcast;
+    private int mUnchanged;
+    private int mRepeated;
+    private int mMerged;
+    private int mCancelled;
+
+    A2dpStateCoalescer(String name) {
+        mName = name;
+    }
+
+    /*
+     * Offers the transition |prevState| -> |state| of |device|, to be broadcast at |dueTime|
+     * (uptime) or later.
+     * @return true if the caller has to post a message for |device| that calls poll() at
+     * |dueTime|, false if the transition was dropped or merged into a waiting one
+     */
+    synchronized boolean offer(BluetoothDevice device, int prevState, int state, long dueTime) {
+        if (prevState == state) {
+            mUnchanged++;
+            return false;
+        }
+        Transition pending = mPending.get(device);
+        if (pending != null) {
+            // Keep the later due time, it may be a delay requested by the audio framework
+            mPending.put(device, new Transition(pending.mPrevState, state,
+                    Math.max(pending.mDueTime, dueTime)));
+            mMerged++;
+            return false;
+        }
+        Integer announced = mAnnounced.get(device);
+        if (announced != null && announced == state) {
+            mRepeated++;
+            return false;
+        }
+        mPending.put(device, new Transition(prevState, state, dueTime));
+        return true;
+    }
+
+    /*
+     * Takes the transition of |device| once the message posted for it is handled.
+     * @return null if there is nothing to broadcast; a transition due after |now| if the message
+     * has to be posted again at its due time; otherwise the transition to broadcast
+     */
+    synchronized Transition poll(BluetoothDevice device, long now) {
+        Transition pending = mPending.get(device);
+        if (pending == null) return null;
+        if (pending.mDueTime > now) return pending;
+        mPending.remove(device);
+        if (pending.mPrevState == pending.mState) {
+            mCancelled++;
+            return null;
+        }
+        mAnnounced.put(device, pending.mState);
+        mBroadcast++;
+        return pending;
+    }
+
+    /*
+     * Forgets everything, e.g. when the profile is stopped.
+     * @return the transitions that were still waiting to be broadcast, by device
+     */
+    synchronized Map<BluetoothDevice, Transition> clear() {
+        HashMap<BluetoothDevice, Transition> waiting =
+                new HashMap<BluetoothDevice, Transition>(mPending);
+        mPending.clear();
+        mAnnounced.clear();
+        return waiting;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, mName + ": broadcast " + mBroadcast + ", suppressed "
+                + (mUnchanged + mRepeated + mMerged + mCancelled) + " (unchanged " + mUnchanged
+                + ", repeated " + mRepeated + ", merged " + mMerged + ", cancelled "
+                + mCancelled + "), waiting " + mPending.size());
+    }
+}
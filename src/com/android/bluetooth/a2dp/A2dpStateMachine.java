@@ -54,6 +54,7 @@ import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.R;
@@ -65,7 +66,9 @@ import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 final class A2dpStateMachine extends StateMachine {
@@ -109,6 +112,15 @@ final class A2dpStateMachine extends StateMachine {
     private boolean mCodecNotifPending = false; // is codec change notification to audio pending ?
     private static boolean isSplitA2dpEnabled = false;
     private static final int MSG_CONNECTION_STATE_CHANGED = 0;
+    private static final int MSG_AUDIO_STATE_CHANGED = 1;
+
+    // Drop repeated announcements and merge the ones that follow each other closely
+    private final A2dpStateCoalescer mConnectionCoalescer =
+            new A2dpStateCoalescer("Connection state broadcasts");
+    private final A2dpStateCoalescer mAudioCoalescer =
+            new A2dpStateCoalescer("Playing state broadcasts");
+    private int mCodecStatusBroadcasts = 0;
+    private int mCodecStatusSuppressed = 0;
 
     // mCurrentDevice is the device connected before the state changes
     // mTargetDevice is the device to be connected
@@ -144,10 +156,9 @@ final class A2dpStateMachine extends StateMachine {
     private BluetoothDevice mMultiDisconnectDevice = null;
     private BluetoothDevice mDummyDevice = null;
     // Multi A2dp: Connected devices list holds all currently connected headsets
-    private ArrayList<BluetoothDevice> mConnectedDevicesList =
-            new ArrayList<BluetoothDevice>();
-    private ArrayList<BluetoothDevice> mPlayingA2dpDevice =
-            new ArrayList<BluetoothDevice>();
+    private final A2dpDeviceTable mConnectedDevicesList = new A2dpDeviceTable();
+    // Streaming devices, shared with A2dpService
+    private final A2dpStreamArbiter mArbiter;
 
     private BluetoothCodecStatus mCodecStatus = null;
     private int mA2dpSourceCodecPrioritySbc = BluetoothCodecConfig.CODEC_PRIORITY_DEFAULT;
@@ -160,14 +171,15 @@ final class A2dpStateMachine extends StateMachine {
         classInitNative();
     }
 
-    private A2dpStateMachine(A2dpService svc, Context context, int
-            maxConnections, int multiCastState) {
+    private A2dpStateMachine(A2dpService svc, Context context,
+            A2dpStreamArbiter arbiter, int multiCastState) {
         super("A2dpStateMachine");
         mService = svc;
         mContext = context;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
         mCodecConfigPriorities = assignCodecConfigPriorities();
-        maxA2dpConnections = maxConnections;
+        mArbiter = arbiter;
+        maxA2dpConnections = arbiter.getMaxConnections();
         // By default isMultiCastEnabled is set to false, value changes based on stack update
         isMultiCastEnabled = false;
         mLastDelay = 0;
@@ -201,10 +213,10 @@ final class A2dpStateMachine extends StateMachine {
     }
 
     static A2dpStateMachine make(A2dpService svc, Context context,
-             int maxConnections, int multiCastState, boolean splitA2dpEnabled) {
+             A2dpStreamArbiter arbiter, int multiCastState, boolean splitA2dpEnabled) {
         Log.d("A2dpStateMachine", "make");
         A2dpStateMachine a2dpSm = new A2dpStateMachine(svc, context,
-                 maxConnections, multiCastState);
+                 arbiter, multiCastState);
         a2dpSm.start();
         if (splitA2dpEnabled) {
             isSplitA2dpEnabled = true;
@@ -341,6 +353,18 @@ final class A2dpStateMachine extends StateMachine {
              broadcastConnectionStateImmediate(device, BluetoothProfile.STATE_DISCONNECTED,
                                       BluetoothProfile.STATE_CONNECTED);
         }
+        // The broadcast handler would find nothing to poll from now on, so announce what
+        // doQuit() left waiting for the devices that were not connected.
+        for (Map.Entry<BluetoothDevice, A2dpStateCoalescer.Transition> e :
+                mConnectionCoalescer.clear().entrySet()) {
+            A2dpStateCoalescer.Transition transition = e.getValue();
+            if (transition.mPrevState != transition.mState
+                    && !mConnectedDevicesList.contains(e.getKey())) {
+                broadcastConnectionStateImmediate(e.getKey(), transition.mState,
+                        transition.mPrevState);
+            }
+        }
+        mAudioCoalescer.clear();
         log("Exit cleanup()");
     }
 
@@ -558,28 +582,7 @@ final class A2dpStateMachine extends StateMachine {
             switch (state) {
                 case CONNECTION_STATE_DISCONNECTED:
                     // remove this device from playing device list
-                    if (mPlayingA2dpDevice.size() != 0 &&
-                            mPlayingA2dpDevice.contains(device)) {
-                        log ("Playing A2dp Device is disconnected, setting it to null");
-                        broadcastAudioState(device,
-                                BluetoothA2dp.STATE_NOT_PLAYING,
-                                BluetoothA2dp.STATE_PLAYING);
-                        mPlayingA2dpDevice.remove(device);
-                    }
-                    // Reset scan mode if it set due to multicast
-                    Log.i(TAG,"getScanMode " + mAdapter.getScanMode() +
-                        " isScanDisabled: " + isScanDisabled);
-                    if (mPlayingA2dpDevice.size() <= 1 &&
-                            (mAdapter.getScanMode() ==
-                            BluetoothAdapter.SCAN_MODE_NONE) &&
-                            isScanDisabled) {
-                        isScanDisabled = false;
-                        AdapterService adapterService =
-                                AdapterService.getAdapterService();
-                        if (adapterService != null) {
-                            adapterService.restoreScanMode();
-                        }
-                    }
+                    stopStream(device, false);
                     if (mConnectedDevicesList.contains(device)) {
                         synchronized (A2dpStateMachine.this) {
                             mConnectedDevicesList.remove(device);
@@ -780,24 +783,6 @@ final class A2dpStateMachine extends StateMachine {
             }
             log("Exit Pending processConnectionEvent() ");
         }
-
-        private void processMultiA2dpDisconnected(BluetoothDevice device) {
-            log("Pending state: processMultiA2dpDisconnected");
-            /* Assign the current activedevice again if the disconnected
-            device equals to the current active device*/
-            if (mCurrentDevice != null && mCurrentDevice.equals(device)) {
-                int deviceSize = mConnectedDevicesList.size();
-                mCurrentDevice = mConnectedDevicesList.get(deviceSize-1);
-            }
-            transitionTo(mConnected);
-            log("processMultiA2dpDisconnected , the latest mCurrentDevice is:"
-                    + mCurrentDevice);
-            log("Pending state: processMultiA2dpDisconnected ," +
-                    "fake broadcasting for new mCurrentDevice");
-            broadcastConnectionState(mCurrentDevice, BluetoothProfile.STATE_CONNECTED,
-                    BluetoothProfile.STATE_DISCONNECTED);
-            log("Exit Pending processMultiA2dpDisconnected() ");
-        }
     }
 
     private class Connected extends State {
@@ -806,7 +791,7 @@ final class A2dpStateMachine extends StateMachine {
             log("Enter Connected: " + getCurrentMessage().what +
                     ", size: " + mConnectedDevicesList.size());
             // remove timeout for connected device only.
-            if (getDeviceForMessage(CONNECT_TIMEOUT) == null) {
+            if (mTargetDevice == null) {
                 removeMessages(CONNECT_TIMEOUT);
             }
             //Dont remove all deferred messages as only Unique connect
@@ -842,7 +827,8 @@ final class A2dpStateMachine extends StateMachine {
                     if (mConnectedDevicesList.size() >= maxA2dpConnections) {
                         BluetoothDevice disconnectConnectedDevice = null;
                         log( "Reach to max size, disconnect one of them first");
-                        disconnectConnectedDevice = mConnectedDevicesList.get(0);
+                        disconnectConnectedDevice = mArbiter.pickDeviceToDrop(
+                                mConnectedDevicesList.getConnectedDevices());
                         broadcastConnectionState(device, BluetoothProfile.STATE_CONNECTING,
                                 BluetoothProfile.STATE_DISCONNECTED);
                         if (!disconnectA2dpNative(getByteAddress(disconnectConnectedDevice))) {
@@ -930,7 +916,7 @@ final class A2dpStateMachine extends StateMachine {
                     }
                     break;
                 case CONNECT_TIMEOUT:
-                    BluetoothDevice timedOutDevice = getDeviceForMessage(CONNECT_TIMEOUT);
+                    BluetoothDevice timedOutDevice = (BluetoothDevice) message.obj;
                     if ((mTargetDevice == null) || (timedOutDevice == null)) {
                         loge("CONNECT_TIMEOUT received : targetDevice : " +
                             mTargetDevice + " : timedout device : " + timedOutDevice);
@@ -967,28 +953,7 @@ final class A2dpStateMachine extends StateMachine {
                     if (mConnectedDevicesList.contains(device)) {
                         // if device is playing then remove it from playing
                         // device list.
-                        if (mPlayingA2dpDevice.size() != 0 &&
-                                mPlayingA2dpDevice.contains(device)) {
-                            log ("Playing A2dp Device is disconnected, setting it to null");
-                            broadcastAudioState(device,
-                                    BluetoothA2dp.STATE_NOT_PLAYING,
-                                    BluetoothA2dp.STATE_PLAYING);
-                            mPlayingA2dpDevice.remove(device);
-                        }
-                        // Reset scan mode if it set due to multicast
-                        Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
-                            " isScanDisabled: " + isScanDisabled);
-                        if (mPlayingA2dpDevice.size() <= 1 &&
-                                (mAdapter.getScanMode() ==
-                                BluetoothAdapter.SCAN_MODE_NONE) &&
-                                isScanDisabled) {
-                            isScanDisabled = false;
-                            AdapterService adapterService =
-                                    AdapterService.getAdapterService();
-                            if (adapterService != null) {
-                                adapterService.restoreScanMode();
-                            }
-                        }
+                        stopStream(device, false);
                         synchronized (A2dpStateMachine.this) {
                             mConnectedDevicesList.remove(device);
                             log( "device " + device.getAddress() +
@@ -1104,106 +1069,8 @@ final class A2dpStateMachine extends StateMachine {
             }
             log("Exit Connected processConnectionEvent() ");
         }
-        private void processMultiA2dpDisconnected(BluetoothDevice device) {
-            log("Connect state: processMultiA2dpDisconnected");
-            /* Assign the current activedevice again if the disconnected
-            device equals to the current active device */
-            if (mCurrentDevice != null && mCurrentDevice.equals(device)) {
-                int deviceSize = mConnectedDevicesList.size();
-                mCurrentDevice = mConnectedDevicesList.get(deviceSize-1);
-            }
-            log("processMultiA2dpDisconnected, the latest mCurrentDevice is:" +
-                    mCurrentDevice);
-            log("Connect state: processMultiA2dpDisconnected ," +
-                    "fake broadcasting for mCurrentDevice");
-            broadcastConnectionState(mCurrentDevice, BluetoothProfile.STATE_CONNECTED,
-                   BluetoothProfile.STATE_DISCONNECTED);
-            log("Exit Connected processMultiA2dpDisconnected() ");
-        }
-
-        private void processAudioStateEvent(int state, BluetoothDevice device) {
-            log("Enter Connected processAudioStateEvent() ");
-            if (!mConnectedDevicesList.contains(device)) {
-                loge("Audio State Device:" + device + "is not in mConnectedDevicesList" +
-                        mCurrentDevice);
-                return;
-            }
-            log("connectedState: processAudioStateEvent state: " + state + " device "
-                    + device);
-            log("mPlayingA2dpDevice size is " + mPlayingA2dpDevice.size());
-            log("Is device present in mConnectedDevicesList: " +
-                    mConnectedDevicesList.contains(device));
-            switch (state) {
-                case AUDIO_STATE_STARTED:
-                    synchronized (A2dpStateMachine.this) {
-                        if (mConnectedDevicesList.contains(device) &&
-                                !(mPlayingA2dpDevice.size() != 0 &&
-                                mPlayingA2dpDevice.contains(device))) {
-                            /* set scan mode before adding device to mPlayingA2dpDevice
-                             * so that scan mode is set to last set mode after multicast
-                             * is stopped. */
-                            if (mPlayingA2dpDevice.size() == 1) {
-                                Log.i(TAG,"setScanMode:SCAN_MODE_NONE");
-                                isScanDisabled = true;
-                                mAdapter.setScanMode(BluetoothAdapter.SCAN_MODE_NONE);
-                            }
-                            mPlayingA2dpDevice.add(device);
-                            mService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, device);
-                            broadcastAudioState(device, BluetoothA2dp.STATE_PLAYING,
-                                    BluetoothA2dp.STATE_NOT_PLAYING);
-                        }
-                        /* cancel any discovery if in progress and scan mode to
-                         * none when multicast is active.Set flag to reset
-                         * scan mode if changed due to multicast.*/
-                        if (mPlayingA2dpDevice.size() == 2) {
-                            if (mAdapter.isDiscovering()) {
-                                mAdapter.cancelDiscovery();
-                            }
-                        }
-                    }
-                    break;
-                case AUDIO_STATE_STOPPED:
-                case AUDIO_STATE_REMOTE_SUSPEND:
-                    synchronized (A2dpStateMachine.this) {
-                        if (mPlayingA2dpDevice.size() != 0 &&
-                                mPlayingA2dpDevice.contains(device)) {
-                            mPlayingA2dpDevice.remove(device);
-                            mService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, device);
-                            broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
-                                     BluetoothA2dp.STATE_PLAYING);
-                        }
-                        // Reset scan mode if it set due to multicast
-                        Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
-                            " isScanDisabled: " + isScanDisabled);
-                        if (mPlayingA2dpDevice.size() <= 1 &&
-                                (mAdapter.getScanMode() == BluetoothAdapter.SCAN_MODE_NONE) &&
-                                isScanDisabled) {
-                            isScanDisabled = false;
-                            AdapterService adapterService = AdapterService.getAdapterService();
-                            if (adapterService != null) {
-                                adapterService.restoreScanMode();
-                            }
-                        }
-                    }
-                    break;
-                default:
-                  loge("Audio State Device: " + device + " bad state: " + state);
-                  break;
-            }
-            log("Exit Connected processAudioStateEvent() ");
-        }
-        private void processReconfigA2dp(int state, BluetoothDevice device){
-            log("processReconfigA2dp state" + state);
-            switch (state) {
-                case SOFT_HANDOFF:
-                    broadcastReconfigureA2dp(device);
-                    break;
-                default:
-                    loge("Unknown reconfigure state");
-                    break;
-            }
-        }
     }
+
     /* Add MultiConnectionPending state when atleast 1 HS is connected
         and disconnect/connect is initiated for new HS */
     private class MultiConnectionPending extends State {
@@ -1288,27 +1155,7 @@ final class A2dpStateMachine extends StateMachine {
             switch (state) {
                 case CONNECTION_STATE_DISCONNECTED:
                     if (mConnectedDevicesList.contains(device)) {
-                        if (mPlayingA2dpDevice.size() != 0 &&
-                                mPlayingA2dpDevice.contains(device)) {
-                            log ("mPlayingA2dpDevice is disconnected, setting it to null");
-                            broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
-                                    BluetoothA2dp.STATE_PLAYING);
-                            mPlayingA2dpDevice.remove(device);
-                        }
-                        // Reset scan mode if it set due to multicast
-                        Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
-                            " isScanDisabled: " + isScanDisabled);
-                        if (mPlayingA2dpDevice.size() <= 1 &&
-                                (mAdapter.getScanMode() ==
-                                BluetoothAdapter.SCAN_MODE_NONE) &&
-                                isScanDisabled) {
-                            isScanDisabled = false;
-                            AdapterService adapterService =
-                                    AdapterService.getAdapterService();
-                            if (adapterService != null) {
-                                adapterService.restoreScanMode();
-                            }
-                        }
+                        stopStream(device, false);
                         if (mMultiDisconnectDevice != null &&
                                 mMultiDisconnectDevice.equals(device)) {
                             mMultiDisconnectDevice = null;
@@ -1523,107 +1370,107 @@ final class A2dpStateMachine extends StateMachine {
             log("Exit MultiConnectionPending processConnectionEvent() ");
 
         }
+    }
 
-        private void processAudioStateEvent(int state, BluetoothDevice device) {
-            log("Enter MultiConnectionPending processAudioStateEvent() ");
-            if (!mConnectedDevicesList.contains(device)) {
-                loge("Audio State Device:" + device + "is not in mConnectedDevicesList" +
-                        mCurrentDevice);
-                return;
+    // Shared by the Connected and MultiConnectionPending states
+    private void processAudioStateEvent(int state, BluetoothDevice device) {
+        log("Enter processAudioStateEvent() ");
+        if (!mConnectedDevicesList.contains(device)) {
+            loge("Audio State Device:" + device + "is not in mConnectedDevicesList" +
+                    mCurrentDevice);
+            return;
+        }
+        log("processAudioStateEvent state: " + state + " device " + device
+                + " streaming: " + mArbiter.getStreamCount());
+        switch (state) {
+            case AUDIO_STATE_STARTED:
+                startStream(device);
+                break;
+            case AUDIO_STATE_STOPPED:
+            case AUDIO_STATE_REMOTE_SUSPEND:
+                stopStream(device, true);
+                break;
+            default:
+              loge("Audio State Device: " + device + " bad state: " + state);
+              break;
+        }
+        log("Exit processAudioStateEvent() ");
+    }
+
+    private void startStream(BluetoothDevice device) {
+        synchronized (A2dpStateMachine.this) {
+            /* set scan mode before the second stream is added so that scan mode is
+             * set to last set mode after multicast is stopped. */
+            if (mArbiter.getStreamCount() == 1 && !mArbiter.isStreaming(device)) {
+                Log.i(TAG,"setScanMode:SCAN_MODE_NONE");
+                isScanDisabled = true;
+                mAdapter.setScanMode(BluetoothAdapter.SCAN_MODE_NONE);
             }
-            log("MultiPendingState: processAudioStateEvent state: " + state + " device "
-                    + device.getName());
-            log("mPlayingA2dpDevice size is " + mPlayingA2dpDevice.size());
-            log("mConnectedDevicesList size is " + mConnectedDevicesList.size());
-            switch (state) {
-                case AUDIO_STATE_STARTED:
-                    synchronized (A2dpStateMachine.this) {
-                        if (mConnectedDevicesList.contains(device) &&
-                                !(mPlayingA2dpDevice.size()!= 0 &&
-                                mPlayingA2dpDevice.contains(device))) {
-                            /* set scan mode before adding device to mPlayingA2dpDevice
-                             * so that scan mode is set to last set mode after multicast
-                             * is stopped. */
-                            if (mPlayingA2dpDevice.size() == 1) {
-                                Log.i(TAG,"setScanMode:SCAN_MODE_NONE");
-                                isScanDisabled = true;
-                                mAdapter.setScanMode(BluetoothAdapter.SCAN_MODE_NONE);
-                            }
-                            mPlayingA2dpDevice.add(device);
-                            mService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, device);
-                            broadcastAudioState(device, BluetoothA2dp.STATE_PLAYING,
-                                    BluetoothA2dp.STATE_NOT_PLAYING);
-                        }
-                        /* cancel any discovery if in progress and scan mode to
-                         * none when multicast is active.Set flag to reset
-                         * scan mode if changed due to multicast.*/
-                        if (mPlayingA2dpDevice.size() == 2) {
-                            if (mAdapter.isDiscovering()) {
-                                mAdapter.cancelDiscovery();
-                            }
-                        }
-                    }
-                    break;
-                case AUDIO_STATE_REMOTE_SUSPEND:
-                case AUDIO_STATE_STOPPED:
-                    synchronized (A2dpStateMachine.this) {
-                        if (mPlayingA2dpDevice.size() != 0 &&
-                                mPlayingA2dpDevice.contains(device)) {
-                            mPlayingA2dpDevice.remove(device);
-                            mService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, device);
-                            broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
-                                    BluetoothA2dp.STATE_PLAYING);
-                     }
-                        // Reset scan mode if it set due to multicast
-                        Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
-                            " isScanDisabled: " + isScanDisabled);
-                        if (mPlayingA2dpDevice.size() <= 1 &&
-                                (mAdapter.getScanMode() == BluetoothAdapter.SCAN_MODE_NONE) &&
-                                isScanDisabled) {
-                            isScanDisabled = false;
-                            AdapterService adapterService = AdapterService.getAdapterService();
-                            if (adapterService != null) {
-                                adapterService.restoreScanMode();
-                            }
-                        }
-                    }
-                    break;
-                default:
-                  loge("Audio State Device: " + device + " bad state: " + state);
-                  break;
+            if (mArbiter.onStreamStarted(device)) {
+                mService.setAvrcpAudioState(BluetoothA2dp.STATE_PLAYING, device);
+                broadcastAudioState(device, BluetoothA2dp.STATE_PLAYING,
+                        BluetoothA2dp.STATE_NOT_PLAYING);
+            }
+            /* cancel any discovery if in progress when multicast is active. */
+            if (mArbiter.getStreamCount() >= 2 && mAdapter.isDiscovering()) {
+                mAdapter.cancelDiscovery();
             }
-            log("Exit MultiConnectionPending processAudioStateEvent() ");
         }
+    }
 
-        private void processReconfigA2dp(int state, BluetoothDevice device){
-            log("processReconfigA2dp state" + state);
-            switch (state) {
-                case SOFT_HANDOFF:
-                    broadcastReconfigureA2dp(device);
-                    break;
-                default:
-                    loge("Unknown reconfigure state");
-                    break;
+    /* |notifyAvrcp| is false when the stream ends because the device disconnected */
+    private void stopStream(BluetoothDevice device, boolean notifyAvrcp) {
+        synchronized (A2dpStateMachine.this) {
+            if (mArbiter.onStreamStopped(device)) {
+                if (notifyAvrcp) {
+                    mService.setAvrcpAudioState(BluetoothA2dp.STATE_NOT_PLAYING, device);
+                }
+                broadcastAudioState(device, BluetoothA2dp.STATE_NOT_PLAYING,
+                        BluetoothA2dp.STATE_PLAYING);
+            }
+            // Reset scan mode if it set due to multicast
+            Log.i(TAG,"getScanMode: " + mAdapter.getScanMode() +
+                " isScanDisabled: " + isScanDisabled);
+            if (mArbiter.getStreamCount() <= 1 &&
+                    (mAdapter.getScanMode() == BluetoothAdapter.SCAN_MODE_NONE) &&
+                    isScanDisabled) {
+                isScanDisabled = false;
+                AdapterService adapterService = AdapterService.getAdapterService();
+                if (adapterService != null) {
+                    adapterService.restoreScanMode();
+                }
             }
         }
+    }
 
-        private void processMultiA2dpDisconnected(BluetoothDevice device) {
-            log("Enter MultiConnectionPending processMultiA2dpDisconnected() ");
-            log("processMultiA2dpDisconnected state: processMultiA2dpDisconnected");
+    private void processReconfigA2dp(int state, BluetoothDevice device) {
+        log("processReconfigA2dp state" + state);
+        switch (state) {
+            case SOFT_HANDOFF:
+                broadcastReconfigureA2dp(device);
+                break;
+            default:
+                loge("Unknown reconfigure state");
+                break;
+        }
+    }
 
-            if (mCurrentDevice != null && mCurrentDevice.equals(device)) {
-                int deviceSize = mConnectedDevicesList.size();
-                mCurrentDevice = mConnectedDevicesList.get(deviceSize-1);
-            }
+    /* |device| went away while others stay connected; picks the new current device,
+     * moves to Connected and re-announces the current device. */
+    private void processMultiA2dpDisconnected(BluetoothDevice device) {
+        log("Enter processMultiA2dpDisconnected() in " + getCurrentState().getName());
+        if (mCurrentDevice != null && mCurrentDevice.equals(device)) {
+            int deviceSize = mConnectedDevicesList.size();
+            mCurrentDevice = mConnectedDevicesList.get(deviceSize-1);
+        }
+        if (getCurrentState() != mConnected) {
             transitionTo(mConnected);
-            log("processMultiA2dpDisconnected , the latest mCurrentDevice is:"
-                    + mCurrentDevice);
-            log("MultiA2dpPending state: processMultiA2dpDisconnected ," +
-                    "fake broadcasting for mCurrentDevice");
-            broadcastConnectionState(mCurrentDevice, BluetoothProfile.STATE_CONNECTED,
-                    BluetoothProfile.STATE_DISCONNECTED);
-            log("Exit MultiConnectionPending processMultiA2dpDisconnected() ");
         }
+        log("processMultiA2dpDisconnected, the latest mCurrentDevice is:" +
+                mCurrentDevice + ", fake broadcasting for it");
+        broadcastConnectionState(mCurrentDevice, BluetoothProfile.STATE_CONNECTED,
+                BluetoothProfile.STATE_DISCONNECTED);
+        log("Exit processMultiA2dpDisconnected() ");
     }
 
     int getConnectionState(BluetoothDevice device) {
@@ -1685,26 +1532,14 @@ final class A2dpStateMachine extends StateMachine {
         Log.i(TAG,"mConnectedDevicesList size is " +
                 mConnectedDevicesList.size());
         synchronized(this) {
-            /* If connected and mCurrentDevice is not null*/
-            for (int i = 0; i < mConnectedDevicesList.size(); i++) {
-                devices.add(mConnectedDevicesList.get(i));
-            }
+            devices.addAll(mConnectedDevicesList.getConnectedDevices());
         }
         log("Exit getConnectedDevices() ");
         return devices;
     }
 
     boolean isPlaying(BluetoothDevice device) {
-        synchronized(this) {
-            if (mPlayingA2dpDevice.contains(device)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    public List<BluetoothDevice> getPlayingDevice() {
-        return mPlayingA2dpDevice;
+        return mArbiter.isStreaming(device);
     }
 
     public boolean isMulticastEnabled() {
@@ -1726,13 +1561,26 @@ final class A2dpStateMachine extends StateMachine {
             BluetoothCodecConfig[] codecsSelectableCapabilities,
             byte[] address) {
         BluetoothCodecConfig prevCodecConfig = null;
+        boolean capabilitiesChanged = true;
         synchronized (this) {
             if (mCodecStatus != null) {
                 prevCodecConfig = mCodecStatus.getCodecConfig();
+                capabilitiesChanged = !Arrays.equals(codecsLocalCapabilities,
+                        mCodecStatus.getCodecsLocalCapabilities())
+                        || !Arrays.equals(codecsSelectableCapabilities,
+                                mCodecStatus.getCodecsSelectableCapabilities());
+                if (!capabilitiesChanged && newCodecConfig.equals(prevCodecConfig)) {
+                    // The stack reports the same status again, e.g. for every device of a
+                    // multicast session; there is nothing new to announce.
+                    mCodecStatusSuppressed++;
+                    log("A2DP Codec Config unchanged: " + newCodecConfig);
+                    return;
+                }
                 mCodecStatus = null;
             }
             mCodecStatus = new BluetoothCodecStatus(
                     newCodecConfig, codecsLocalCapabilities, codecsSelectableCapabilities);
+            mCodecStatusBroadcasts++;
         }
 
         Intent intent = new Intent(BluetoothA2dp.ACTION_CODEC_CONFIG_CHANGED);
@@ -1742,11 +1590,13 @@ final class A2dpStateMachine extends StateMachine {
         intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
 
         log("A2DP Codec Config: " + prevCodecConfig + "->" + newCodecConfig);
-        for (BluetoothCodecConfig codecConfig : codecsLocalCapabilities) {
-            log("A2DP Codec Local Capability: " + codecConfig);
-        }
-        for (BluetoothCodecConfig codecConfig : codecsSelectableCapabilities) {
-            log("A2DP Codec Selectable Capability: " + codecConfig);
+        if (capabilitiesChanged) {
+            for (BluetoothCodecConfig codecConfig : codecsLocalCapabilities) {
+                log("A2DP Codec Local Capability: " + codecConfig);
+            }
+            for (BluetoothCodecConfig codecConfig : codecsSelectableCapabilities) {
+                log("A2DP Codec Selectable Capability: " + codecConfig);
+            }
         }
 
         if (!newCodecConfig.sameAudioFeedingParameters(prevCodecConfig) && (getCurrentState() == mMultiConnectionPending || getCurrentState() == mPending)) {
@@ -1858,28 +1708,6 @@ final class A2dpStateMachine extends StateMachine {
         return deviceList;
     }
 
-    private BluetoothDevice getDeviceForMessage(int what) {
-        log("Enter getDeviceForMessage() ");
-        if (what == CONNECT_TIMEOUT) {
-            log("getDeviceForMessage: returning mTargetDevice for what=" + what);
-            return mTargetDevice;
-        }
-        if (mConnectedDevicesList.size() == 0) {
-            log("getDeviceForMessage: No connected device. what=" + what);
-            return null;
-        }
-        for (BluetoothDevice device : mConnectedDevicesList){
-            if (getHandler().hasMessages(what, device)) {
-                log("getDeviceForMessage: returning " + device + "for what " +
-                        what);
-                return device;
-            }
-        }
-        log("getDeviceForMessage: No matching device for " + what + ". Returning null");
-        log("Exit getDeviceForMessage() ");
-        return null;
-    }
-
     // This method does not check for error conditon (newState == prevState)
     private void broadcastConnectionState(BluetoothDevice device, int newState, int prevState) {
         log("Enter broadcastConnectionState() ");
@@ -1939,9 +1767,14 @@ final class A2dpStateMachine extends StateMachine {
 
         Log.i(TAG,"connection state change: " + device + " newState: " + newState + " prevState:" + prevState);
 
-        mWakeLock.acquire();
-        mIntentBroadcastHandler.sendMessageDelayed(mIntentBroadcastHandler.obtainMessage(
-            MSG_CONNECTION_STATE_CHANGED, prevState, newState, device), delay);
+        long dueTime = SystemClock.uptimeMillis() + delay;
+        if (mConnectionCoalescer.offer(device, prevState, newState, dueTime)) {
+            mWakeLock.acquire();
+            mIntentBroadcastHandler.sendMessageAtTime(mIntentBroadcastHandler.obtainMessage(
+                MSG_CONNECTION_STATE_CHANGED, device), dueTime);
+        } else {
+            log("Connection state change merged or dropped: " + device);
+        }
         log("Exit broadcastConnectionState() ");
     }
 
@@ -1959,14 +1792,12 @@ final class A2dpStateMachine extends StateMachine {
 
     private void broadcastAudioState(BluetoothDevice device, int state, int prevState) {
         log("Enter broadcastAudioState() ");
-        Intent intent = new Intent(BluetoothA2dp.ACTION_PLAYING_STATE_CHANGED);
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
-        intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
-        intent.putExtra(BluetoothProfile.EXTRA_STATE, state);
-        intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-        mContext.sendBroadcast(intent, A2dpService.BLUETOOTH_PERM);
-
-        log("A2DP Playing state : device: " + device + " State:" + prevState + "->" + state);
+        if (mAudioCoalescer.offer(device, prevState, state, SystemClock.uptimeMillis())) {
+            mIntentBroadcastHandler.sendMessage(mIntentBroadcastHandler.obtainMessage(
+                    MSG_AUDIO_STATE_CHANGED, device));
+        } else {
+            log("Playing state change merged or dropped: " + device);
+        }
         log("Exit broadcastAudioState() ");
     }
 
@@ -2061,14 +1892,44 @@ final class A2dpStateMachine extends StateMachine {
             log("Exit onConnectionStateChanged() ");
         }
 
+        private void onAudioStateChanged(BluetoothDevice device, int prevState, int state) {
+            Intent intent = new Intent(BluetoothA2dp.ACTION_PLAYING_STATE_CHANGED);
+            intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+            intent.putExtra(BluetoothProfile.EXTRA_PREVIOUS_STATE, prevState);
+            intent.putExtra(BluetoothProfile.EXTRA_STATE, state);
+            intent.addFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
+            mContext.sendBroadcast(intent, A2dpService.BLUETOOTH_PERM);
+
+            log("A2DP Playing state : device: " + device + " State:" + prevState + "->" + state);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             log("Enter handleMessage() ");
+            BluetoothDevice device = (BluetoothDevice) msg.obj;
+            long now = SystemClock.uptimeMillis();
+            A2dpStateCoalescer.Transition transition;
             switch (msg.what) {
                 case MSG_CONNECTION_STATE_CHANGED:
-                    onConnectionStateChanged((BluetoothDevice) msg.obj, msg.arg1, msg.arg2);
+                    transition = mConnectionCoalescer.poll(device, now);
+                    if (transition != null && transition.mDueTime > now) {
+                        // A later transition with a longer delay was merged in, keep waiting
+                        sendMessageAtTime(obtainMessage(MSG_CONNECTION_STATE_CHANGED, device),
+                                transition.mDueTime);
+                        break;
+                    }
+                    if (transition != null) {
+                        onConnectionStateChanged(device, transition.mPrevState,
+                                transition.mState);
+                    }
                     mWakeLock.release();
                     break;
+                case MSG_AUDIO_STATE_CHANGED:
+                    transition = mAudioCoalescer.poll(device, now);
+                    if (transition != null) {
+                        onAudioStateChanged(device, transition.mPrevState, transition.mState);
+                    }
+                    break;
             }
             log("Exit handleMessage() ");
         }
@@ -2078,8 +1939,14 @@ final class A2dpStateMachine extends StateMachine {
         ProfileService.println(sb, "mCurrentDevice: " + mCurrentDevice);
         ProfileService.println(sb, "mTargetDevice: " + mTargetDevice);
         ProfileService.println(sb, "mIncomingDevice: " + mIncomingDevice);
-        ProfileService.println(sb, "mPlayingA2dpDevice: " + mPlayingA2dpDevice);
+        synchronized (this) {
+            mConnectedDevicesList.dump(sb);
+        }
         ProfileService.println(sb, "StateMachine: " + this.toString());
+        ProfileService.println(sb, "Codec status broadcasts: " + mCodecStatusBroadcasts
+                + ", suppressed " + mCodecStatusSuppressed);
+        mConnectionCoalescer.dump(sb);
+        mAudioCoalescer.dump(sb);
     }
 
     // Event types for STACK_EVENT message
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothDevice;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Shares the A2DP source between the connected sinks.
+ *
+ * A2dpService owns the arbiter and hands it to the state machine, which reports every stream
+ * start and stop to it. The set of streaming sinks is what the other profiles query, from
+ * their own threads, to find out whether a multicast session is running; it is kept here
+ * under the arbiter's lock instead of in a list the state machine hands out. The arbiter also
+ * chooses which sink makes room when a new one has to be admitted at the connection limit.
+ */
+class A2dpStreamArbiter {
+    private static final String TAG = "A2dpStreamArbiter";
+    private static final boolean DBG = true;
+
+    /* Upper bound for persist.bt.max.a2dp.connections, the stack has to be built for as many */
+    static final int MAX_CONNECTIONS_LIMIT = 5;
+
+    private final int mMaxConnections;
+    private final LinkedHashSet<BluetoothDevice> mStreaming = new LinkedHashSet<BluetoothDevice>();
+
+    private int mStreamStarts;
+    private int mMulticastSessions;
+    private int mPeakStreams;
+    private int mEvictions;
+
+    A2dpStreamArbiter(int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    /*
+     * Records that |device| started streaming.
+     * @return false if it already was
+     */
+    synchronized boolean onStreamStarted(BluetoothDevice device) {
+        if (!mStreaming.add(device)) return false;
+        mStreamStarts++;
+        if (mStreaming.size() == 2) mMulticastSessions++;
+        mPeakStreams = Math.max(mPeakStreams, mStreaming.size());
+        if (DBG) Log.d(TAG, "Stream started: " + device + ", streaming " + mStreaming.size());
+        return true;
+    }
+
+    /*
+     * Records that |device| stopped streaming or went away.
+     * @return false if it was not streaming
+     */
+    synchronized boolean onStreamStopped(BluetoothDevice device) {
+        if (!mStreaming.remove(device)) return false;
+        if (DBG) Log.d(TAG, "Stream stopped: " + device + ", streaming " + mStreaming.size());
+        return true;
+    }
+
+    synchronized int getStreamCount() {
+        return mStreaming.size();
+    }
+
+    synchronized boolean isStreaming(BluetoothDevice device) {
+        return mStreaming.contains(device);
+    }
+
+    /* Copy of the streaming devices, in the order they started */
+    synchronized List<BluetoothDevice> getStreamingDevices() {
+        return new ArrayList<BluetoothDevice>(mStreaming);
+    }
+
+    /*
+     * Returns true if a multicast session is running that |device| is not part of; any device
+     * when |device| is null.
+     */
+    synchronized boolean isMulticastExcluding(BluetoothDevice device) {
+        return mStreaming.size() >= 2 && (device == null || !mStreaming.contains(device));
+    }
+
+    /*
+     * Picks the sink to disconnect so that another one can be admitted: the longest connected
+     * one that is not streaming, or the longest connected one if all of them are.
+     */
+    synchronized BluetoothDevice pickDeviceToDrop(List<BluetoothDevice> connected) {
+        if (connected.isEmpty()) return null;
+        BluetoothDevice drop = connected.get(0);
+        for (BluetoothDevice device : connected) {
+            if (!mStreaming.contains(device)) {
+                drop = device;
+                break;
+            }
+        }
+        mEvictions++;
+        return drop;
+    }
+
+    synchronized void clear() {
+        mStreaming.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Stream arbiter: max connections " + mMaxConnections
+                + ", streaming " + mStreaming);
+        ProfileService.println(sb, "  stream starts " + mStreamStarts + ", multicast sessions "
+                + mMulticastSessions + ", peak streams " + mPeakStreams + ", evictions "
+                + mEvictions);
+    }
+}
@@ -53,7 +53,7 @@ public class AddressedMediaPlayer {
     static private final String UNKNOWN_TITLE = "(unknown)";
 
     private AvrcpMediaRspInterface mMediaInterface;
-    private @NonNull List<MediaSession.QueueItem> mNowPlayingList;
+    private final NowPlayingCache mNowPlayingCache;
 
     private final List<MediaSession.QueueItem> mEmptyNowPlayingList;
 
@@ -62,7 +62,7 @@ public class AddressedMediaPlayer {
 
     public AddressedMediaPlayer(AvrcpMediaRspInterface mediaInterface) {
         mEmptyNowPlayingList = new ArrayList<MediaSession.QueueItem>();
-        mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingCache = new NowPlayingCache();
         mMediaInterface = mediaInterface;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
         mNowPlayingListUpdated = false;
@@ -70,7 +70,7 @@ public class AddressedMediaPlayer {
 
     void cleanup() {
         if (DEBUG) Log.v(TAG, "cleanup");
-        mNowPlayingList = mEmptyNowPlayingList;
+        mNowPlayingCache.clear();
         mMediaInterface = null;
         mLastTrackIdSent = MediaSession.QueueItem.UNKNOWN_ID;
         mNowPlayingListUpdated = false;
@@ -95,7 +95,7 @@ public class AddressedMediaPlayer {
             @Nullable MediaController mediaController) {
         int status = AvrcpConstants.RSP_NO_ERROR;
         long mediaId = ByteBuffer.wrap(itemAttr.mUid).getLong();
-        List<MediaSession.QueueItem> items = getNowPlayingList(mediaController);
+        getNowPlayingList(mediaController);
 
         // NOTE: this is out-of-spec (AVRCP 1.6.1 sec 6.10.4.3, p90) but we answer it anyway
         // because some CTs ask for it.
@@ -109,11 +109,10 @@ public class AddressedMediaPlayer {
         }
 
         if (DEBUG) Log.d(TAG, "getItemAttr-UID: 0x" + Utils.byteArrayToString(itemAttr.mUid));
-        for (MediaSession.QueueItem item : items) {
-            if (item.getQueueId() == mediaId) {
-                getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
-                return;
-            }
+        MediaSession.QueueItem item = mNowPlayingCache.getItem(mediaId);
+        if (item != null) {
+            getItemAttrFilterAttr(bdaddr, itemAttr, item, mediaController);
+            return;
         }
 
         // Couldn't find it, so the id is invalid
@@ -121,15 +120,23 @@ public class AddressedMediaPlayer {
     }
 
     /* Refresh and get the queue of now playing.
+     * The queue is only fetched from the player when the cached snapshot is stale.
      */
     private @NonNull List<MediaSession.QueueItem> getNowPlayingList(
             @Nullable MediaController mediaController) {
-        if (mediaController == null) return mEmptyNowPlayingList;
+        if (mediaController == null) {
+            mNowPlayingCache.clear();
+            return mEmptyNowPlayingList;
+        }
+        if (!mNowPlayingListUpdated && mNowPlayingCache.isValidFor(mediaController)) {
+            return mNowPlayingCache.getItems();
+        }
         List<MediaSession.QueueItem> items = mediaController.getQueue();
         if (items != null && !mNowPlayingListUpdated) {
-            mNowPlayingList = items;
-            return mNowPlayingList;
+            mNowPlayingCache.update(mediaController, items, true);
+            return mNowPlayingCache.getItems();
         }
+        boolean cacheable = true;
         if (items == null) {
             Log.i(TAG, "null queue from " + mediaController.getPackageName()
                             + ", constructing single-item list");
@@ -139,13 +146,14 @@ public class AddressedMediaPlayer {
             MediaSession.QueueItem current = getCurrentQueueItem(mediaController, SINGLE_QID);
             items = new ArrayList<MediaSession.QueueItem>();
             items.add(current);
+            cacheable = false;
         }
 
-        mNowPlayingList = items;
+        mNowPlayingCache.update(mediaController, items, cacheable);
 
         if (mNowPlayingListUpdated) sendNowPlayingListChanged();
 
-        return mNowPlayingList;
+        return mNowPlayingCache.getItems();
     }
 
     private void sendNowPlayingListChanged() {
@@ -213,6 +221,7 @@ public class AddressedMediaPlayer {
 
     void updateNowPlayingList(@Nullable MediaController mediaController) {
         mNowPlayingListUpdated = true;
+        mNowPlayingCache.invalidate();
         getNowPlayingList(mediaController);
     }
 
@@ -236,13 +245,11 @@ public class AddressedMediaPlayer {
             return;
         }
 
-        for (MediaSession.QueueItem item : items) {
-            if (qid == item.getQueueId()) {
-                if (DEBUG) Log.d(TAG, "Skipping to ID " + qid);
-                mediaControllerCntrl.skipToQueueItem(qid);
-                mMediaInterface.playItemRsp(bdaddr, AvrcpConstants.RSP_NO_ERROR);
-                return;
-            }
+        if (mNowPlayingCache.getItem(qid) != null) {
+            if (DEBUG) Log.d(TAG, "Skipping to ID " + qid);
+            mediaControllerCntrl.skipToQueueItem(qid);
+            mMediaInterface.playItemRsp(bdaddr, AvrcpConstants.RSP_NO_ERROR);
+            return;
         }
 
         Log.w(TAG, "Invalid now playing Queue ID " + qid);
@@ -309,6 +316,7 @@ public class AddressedMediaPlayer {
         }
 
         FolderItemsData folderDataNative = new FolderItemsData(result_items.size());
+        long activeQid = getActiveQueueItemId(mediaController);
 
         /* variables to accumulate attrs */
         ArrayList<String> attrArray = new ArrayList<String>();
@@ -327,7 +335,7 @@ public class AddressedMediaPlayer {
 
             /* Set display name for current item */
             folderDataNative.mDisplayNames[itemIndex] =
-                    getAttrValue(AvrcpConstants.ATTRID_TITLE, item, mediaController);
+                    getAttrValue(AvrcpConstants.ATTRID_TITLE, item, mediaController, activeQid);
 
             int maxAttributesRequested = 0;
             boolean isAllAttribRequested = false;
@@ -351,7 +359,7 @@ public class AddressedMediaPlayer {
 
                     int attribId =
                             isAllAttribRequested ? (idx + 1) : folderItemsReqObj.mAttrIDs[idx];
-                    value = getAttrValue(attribId, item, mediaController);
+                    value = getAttrValue(attribId, item, mediaController, activeQid);
                     if (value != null) {
                         attrArray.add(value);
                         attrId.add(attribId);
@@ -387,6 +395,16 @@ public class AddressedMediaPlayer {
 
     private String getAttrValue(
             int attr, MediaSession.QueueItem item, @Nullable MediaController mediaController) {
+        if (item == null) {
+            if (DEBUG) Log.d(TAG, "getAttrValue received null item");
+            return null;
+        }
+        return getAttrValue(attr, item, mediaController, getActiveQueueItemId(mediaController));
+    }
+
+    /* Same as above, with the active queue id already looked up by the caller */
+    private String getAttrValue(int attr, MediaSession.QueueItem item,
+            @Nullable MediaController mediaController, long activeQid) {
         String attrValue = null;
         if (item == null) {
             if (DEBUG) Log.d(TAG, "getAttrValue received null item");
@@ -395,7 +413,7 @@ public class AddressedMediaPlayer {
         try {
             MediaDescription desc = item.getDescription();
             Bundle extras = desc.getExtras();
-            boolean isCurrentTrack = item.getQueueId() == getActiveQueueItemId(mediaController);
+            boolean isCurrentTrack = item.getQueueId() == activeQid;
             if (isCurrentTrack) {
                 if (DEBUG) Log.d(TAG, "getAttrValue: item is active, using current data");
                 extras = fillBundle(mediaController.getMetadata(), extras);
@@ -548,9 +566,11 @@ public class AddressedMediaPlayer {
     public void dump(StringBuilder sb, @Nullable MediaController mediaController) {
         ProfileService.println(sb, "AddressedPlayer info:");
         ProfileService.println(sb, "mLastTrackIdSent: " + mLastTrackIdSent);
-        ProfileService.println(sb, "mNowPlayingList: " + mNowPlayingList.size() + " elements");
+        mNowPlayingCache.dump(sb);
+        List<MediaSession.QueueItem> nowPlayingList = mNowPlayingCache.getItems();
+        ProfileService.println(sb, "mNowPlayingList: " + nowPlayingList.size() + " elements");
         long currentQueueId = getActiveQueueItemId(mediaController);
-        for (MediaSession.QueueItem item : mNowPlayingList) {
+        for (MediaSession.QueueItem item : nowPlayingList) {
             long itemId = item.getQueueId();
             ProfileService.println(
                     sb, (itemId == currentQueueId ? "*" : " ") + displayMediaItem(item));
@@ -195,7 +195,6 @@ public final class Avrcp {
     private static final int MSG_NOW_PLAYING_CHANGED_RSP = 19;
     private static final int MSG_UPDATE_MEDIA = 20;
     private static final int MESSAGE_DEVICE_RC_CLEANUP = 21;
-    private static final int MSG_PLAY_INTERVAL_TIMEOUT_2 = 22;
 
     private static final int STACK_CLEANUP = 0;
     private static final int APP_CLEANUP = 1;
@@ -213,6 +212,9 @@ public final class Avrcp {
     /* Addressed player handling */
     private AddressedMediaPlayer mAddressedMediaPlayer;
 
+    /* Decides when play position notifications are due for each device */
+    private PlayPositionScheduler mPlayPosScheduler;
+
     /* List of Media player instances, useful for retrieving MediaPlayerList or MediaPlayerInfo */
     private SortedMap<Integer, MediaPlayerInfo> mMediaPlayerInfoList;
     private boolean mAvailablePlayerViewChanged;
@@ -392,6 +394,7 @@ public final class Avrcp {
         mA2dpService = svc;
         maxAvrcpConnections = maxConnections;
         deviceFeatures = new DeviceDependentFeature[maxAvrcpConnections];
+        mPlayPosScheduler = new PlayPositionScheduler(maxAvrcpConnections);
         for(int i = 0; i < maxAvrcpConnections; i++) {
             deviceFeatures[i] = new DeviceDependentFeature(mContext);
         }
@@ -731,16 +734,16 @@ public final class Avrcp {
                 break;
 
             case MSG_PLAY_INTERVAL_TIMEOUT:
-            case MSG_PLAY_INTERVAL_TIMEOUT_2:
+            {
                 if (DEBUG) Log.v(TAG, "MSG_PLAY_INTERVAL_TIMEOUT");
-                Log.v(TAG, "event for device address " + (BluetoothDevice)msg.obj);
-                deviceIndex = getIndexForDevice((BluetoothDevice) msg.obj);
-                if (deviceIndex == INVALID_DEVICE_INDEX) {
-                    Log.e(TAG,"invalid index for device");
-                    break;
+                long now = mPlayPosScheduler.now();
+                mPlayPosScheduler.onWakeup(now);
+                for (int i = 0; i < maxAvrcpConnections; i++) {
+                    if (mPlayPosScheduler.isDue(i, now)) sendPlayPosNotificationRsp(false, i);
                 }
-                sendPlayPosNotificationRsp(false, deviceIndex);
+                schedulePlayPosWakeup();
                 break;
+            }
 
             case MSG_NATIVE_REQ_VOLUME_CHANGE: {
                 if (!isAbsoluteVolumeSupported()) {
@@ -1836,7 +1839,9 @@ public final class Avrcp {
             if (isPlayingState(deviceFeatures[deviceIndex].mCurrentPlayState)) {
                 long sinceUpdate =
                      SystemClock.elapsedRealtime() - deviceFeatures[deviceIndex].mLastStateUpdate;
-                return sinceUpdate + deviceFeatures[deviceIndex].mCurrentPlayState.getPosition();
+                float speed = getPlaybackSpeed(deviceFeatures[deviceIndex].mCurrentPlayState);
+                return (long) (sinceUpdate * speed)
+                        + deviceFeatures[deviceIndex].mCurrentPlayState.getPosition();
             }
             return deviceFeatures[deviceIndex].mCurrentPlayState.getPosition();
 
@@ -1900,6 +1905,14 @@ public final class Avrcp {
         return (state != null) && (state.getState() == PlaybackState.STATE_PLAYING);
     }
 
+    /* Playback speed of |state|. Players that report 0 while playing are treated as 1x. */
+    private float getPlaybackSpeed(@Nullable PlaybackState state) {
+        if (state == null) return 0f;
+        float speed = state.getPlaybackSpeed();
+        if (speed == 0f && isPlayingState(state)) return 1.0f;
+        return speed;
+    }
+
     /**
      * Sends a play position notification, or schedules one to be
      * sent later at an appropriate time. If |requested| is true,
@@ -1907,20 +1920,20 @@ public final class Avrcp {
      * TG.
      */
     private void sendPlayPosNotificationRsp(boolean requested, int i) {
-        Log.d(TAG, "Enter sendPlayPosNotificationRsp");
+        if (DEBUG) Log.d(TAG, "Enter sendPlayPosNotificationRsp");
         if (!requested && deviceFeatures[i].mPlayPosChangedNT != AvrcpConstants.NOTIFICATION_TYPE_INTERIM) {
             if (DEBUG) Log.d(TAG, "sendPlayPosNotificationRsp: Not registered or requesting.");
+            updatePlayPosScheduler(i);
             return;
         }
         long playPositionMs = getPlayPosition(deviceFeatures[i].mCurrentDevice);
         int currPlayStatus = convertPlayStateToPlayStatus(deviceFeatures[i].mCurrentPlayState);
-        String debugLine = "sendPlayPosNotificationRsp: ";
-        int currMsgPlayIntervalTimeout = (i == 0) ? MSG_PLAY_INTERVAL_TIMEOUT : MSG_PLAY_INTERVAL_TIMEOUT_2;
 
         // Some remote devices are going to bad state when sending play position
         // as ffff for non-playing state
         if (!requested && playPositionMs == -1L && currPlayStatus != PLAYSTATUS_PLAYING) {
            if (DEBUG) Log.d(TAG, " Don't send invalid play position notification for non-playing state");
+           updatePlayPosScheduler(i);
            return;
         }
 
@@ -1930,10 +1943,11 @@ public final class Avrcp {
         // and the old mPrevPosMs is >= 0 so this is true when the new is invalid
         // and the old was valid.
         if (DEBUG) {
-            debugLine += "(" + requested + ") " + deviceFeatures[i].mPrevPosMs + " <=? " + playPositionMs + " <=? "
-                    + deviceFeatures[i].mNextPosMs;
-            if (isPlayingState(deviceFeatures[i].mCurrentPlayState)) debugLine += " Playing";
-            debugLine += " State: " + deviceFeatures[i].mCurrentPlayState.getState();
+            Log.d(TAG, "sendPlayPosNotificationRsp: (" + requested + ") "
+                    + deviceFeatures[i].mPrevPosMs + " <=? " + playPositionMs + " <=? "
+                    + deviceFeatures[i].mNextPosMs
+                    + (isPlayingState(deviceFeatures[i].mCurrentPlayState) ? " Playing" : "")
+                    + " State: " + deviceFeatures[i].mCurrentPlayState.getState());
         }
         if (requested || ((deviceFeatures[i].mLastReportedPosition != playPositionMs) &&
              (playPositionMs >= deviceFeatures[i].mNextPosMs) ||
@@ -1949,22 +1963,36 @@ public final class Avrcp {
                 deviceFeatures[i].mNextPosMs = -1;
                 deviceFeatures[i].mPrevPosMs = -1;
             }
+            updatePlayPosScheduler(i);
+            mPlayPosScheduler.onPositionReported(i, playPositionMs);
+        } else {
+            updatePlayPosScheduler(i);
         }
 
-        mHandler.removeMessages(currMsgPlayIntervalTimeout);
-        if (deviceFeatures[i].mPlayPosChangedNT == AvrcpConstants.NOTIFICATION_TYPE_INTERIM &&
-                 isPlayingState(deviceFeatures[i].mCurrentPlayState)) {
-            Message msg = mHandler.obtainMessage(currMsgPlayIntervalTimeout, 0, 0,
-                                                 deviceFeatures[i].mCurrentDevice);
-            long delay = deviceFeatures[i].mPlaybackIntervalMs;
-            if (deviceFeatures[i].mNextPosMs != -1) {
-                delay = deviceFeatures[i].mNextPosMs - (playPositionMs > 0 ? playPositionMs : 0);
-            }
-            if (DEBUG) debugLine += " Timeout " + delay + "ms";
-            mHandler.sendMessageDelayed(msg, delay);
-        }
-        if (DEBUG) Log.d(TAG, debugLine);
-        Log.d(TAG, "Exit sendPlayPosNotificationRsp");
+        schedulePlayPosWakeup();
+        if (DEBUG) Log.d(TAG, "Exit sendPlayPosNotificationRsp");
+    }
+
+    /* Hands the current playback state of device |i| to the play position scheduler */
+    private void updatePlayPosScheduler(int i) {
+        DeviceDependentFeature feature = deviceFeatures[i];
+        PlaybackState state = feature.mCurrentPlayState;
+        long position = (state == null) ? -1L : state.getPosition();
+        if (position == PlaybackState.PLAYBACK_POSITION_UNKNOWN) position = -1L;
+        mPlayPosScheduler.update(i,
+                feature.mPlayPosChangedNT == AvrcpConstants.NOTIFICATION_TYPE_INTERIM,
+                isPlayingState(state), getPlaybackSpeed(state), position,
+                feature.mLastStateUpdate, feature.mPlaybackIntervalMs);
+    }
+
+    /* Arms a single wakeup for the earliest play position deadline over all devices */
+    private void schedulePlayPosWakeup() {
+        mHandler.removeMessages(MSG_PLAY_INTERVAL_TIMEOUT);
+        long next = mPlayPosScheduler.getNextWakeupMs();
+        if (next == PlayPositionScheduler.NO_WAKEUP) return;
+        long delay = Math.max(0L, next - mPlayPosScheduler.now());
+        if (DEBUG) Log.d(TAG, "schedulePlayPosWakeup: next notification in " + delay + "ms");
+        mHandler.sendEmptyMessageDelayed(MSG_PLAY_INTERVAL_TIMEOUT, delay);
     }
 
     /**
@@ -3306,6 +3334,7 @@ public final class Avrcp {
         deviceFeatures[index].mAvailablePlayersChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
         deviceFeatures[index].isActiveDevice = false;
         deviceFeatures[index].mAddrPlayerChangedNT = AvrcpConstants.NOTIFICATION_TYPE_CHANGED;
+        mPlayPosScheduler.clear(index);
     }
 
     private synchronized void onConnectionStateChanged(
@@ -3372,6 +3401,9 @@ public final class Avrcp {
             }
         }
 
+        ProfileService.println(sb, "");
+        mPlayPosScheduler.dump(sb);
+
         ProfileService.println(sb, "");
         mAddressedMediaPlayer.dump(sb, mMediaController);
 
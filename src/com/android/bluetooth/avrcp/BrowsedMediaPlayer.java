@@ -31,7 +31,9 @@ import android.util.Log;
 import java.math.BigInteger;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Stack;
 
 /*************************************************************************************************
@@ -51,6 +53,9 @@ class BrowsedMediaPlayer {
 
     private static final String[] ROOT_FOLDER = {"root"};
 
+    /* Max number of folders whose children are kept in the browse cache */
+    private static final int MAX_CACHED_FOLDERS = 16;
+
     /*  package and service name of target Media Player which is set for browsing */
     private String mPackageName;
     private String mClassName;
@@ -73,8 +78,24 @@ class BrowsedMediaPlayer {
     /* Number of items in current folder */
     private int mCurrFolderNumItems = 0;
 
-    /* store mapping between uid(Avrcp) and mediaId(Media Player). */
+    /* store mapping between uid(Avrcp) and mediaId(Media Player), indexed both ways. */
     private HashMap<Integer, String> mHmap = new HashMap<Integer, String>();
+    private HashMap<String, Integer> mMediaIdToUid = new HashMap<String, Integer>();
+
+    /* children of recently visited folders, kept until the browsed player changes */
+    private LinkedHashMap<String, List<MediaBrowser.MediaItem>> mFolderCache =
+            new LinkedHashMap<String, List<MediaBrowser.MediaItem>>(
+                    MAX_CACHED_FOLDERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<String, List<MediaBrowser.MediaItem>> eldest) {
+                    return size() > MAX_CACHED_FOLDERS;
+                }
+            };
+
+    /* index of the items in the current folder, keyed by mediaId */
+    private HashMap<String, MediaBrowser.MediaItem> mFolderItemIndex =
+            new HashMap<String, MediaBrowser.MediaItem>();
 
     /* command objects from avrcp handler */
     private AvrcpCmd.FolderItemsCmd mFolderItemsReqObj;
@@ -124,12 +145,11 @@ class BrowsedMediaPlayer {
              */
             if (mFolderItems == null) {
                 if (DEBUG) Log.d(TAG, "sending setbrowsed player rsp");
-                mFolderItems = children;
+                setCurrentFolder(parentId, children);
                 mMediaInterface.setBrowsedPlayerRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR,
                         (byte)0x00, children.size(), ROOT_FOLDER);
             } else {
-                mFolderItems = children;
-                mCurrFolderNumItems = mFolderItems.size();
+                setCurrentFolder(parentId, children);
                 mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR,
                         mCurrFolderNumItems);
             }
@@ -291,6 +311,8 @@ class BrowsedMediaPlayer {
         mClassName = cls;
         /* cleanup variables from previous browsed calls */
         mFolderItems = null;
+        mFolderItemIndex.clear();
+        mFolderCache.clear();
         mMediaId = null;
         mRootFolderUid = null;
         /*
@@ -313,6 +335,9 @@ class BrowsedMediaPlayer {
         }
 
         mHmap = null;
+        mMediaIdToUid = null;
+        mFolderCache.clear();
+        mFolderItemIndex.clear();
         mMediaController = null;
         mMediaBrowser = null;
         mPathStack = null;
@@ -358,9 +383,9 @@ class BrowsedMediaPlayer {
                 Log.e(TAG, "new_folder is same as current folder, Invalid direction!");
                 mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_INV_DIRN, 0);
             } else {
-                mMediaBrowser.subscribe(newPath, folderItemsCb);
                 /* assume that call is success and update stack with new folder path */
                 mPathStack.push(newPath);
+                loadFolder(newPath);
             }
         } else if (direction == AvrcpConstants.DIR_UP) { /* move up */
             if (isBrowsableFolderUp() == false) {
@@ -373,7 +398,7 @@ class BrowsedMediaPlayer {
                 /* move folder up */
                 mPathStack.pop();
                 newPath = mPathStack.peek();
-                mMediaBrowser.subscribe(newPath, folderItemsCb);
+                loadFolder(newPath);
             }
         } else { /* invalid direction */
             Log.w(TAG, "changePath : Invalid direction " + direction);
@@ -406,6 +431,14 @@ class BrowsedMediaPlayer {
             return;
         }
 
+        /* Answer from the current folder if the item is already known */
+        MediaBrowser.MediaItem cachedItem = mFolderItemIndex.get(mediaID);
+        if (cachedItem != null) {
+            if (DEBUG) Log.d(TAG, "getItemAttr: " + mediaID + " found in current folder");
+            new ItemAttribSubscriber(itemAttr, mediaID).getItemAttrFilterAttr(cachedItem);
+            return;
+        }
+
         /* Subscribe to the parent to list items and retrieve the right one */
         mMediaBrowser.subscribe(mPathStack.peek(), new ItemAttribSubscriber(itemAttr, mediaID));
     }
@@ -687,13 +720,36 @@ class BrowsedMediaPlayer {
 
     /* check if item is browsable Down*/
     private boolean isBrowsableFolderDn(String uid) {
-        for (MediaBrowser.MediaItem item : mFolderItems) {
-            if (item.getMediaId().equals(uid) &&
-                ((item.getFlags() & MediaBrowser.MediaItem.FLAG_BROWSABLE) ==
-                    MediaBrowser.MediaItem.FLAG_BROWSABLE))
-                return true;
+        MediaBrowser.MediaItem item = mFolderItemIndex.get(uid);
+        return item != null
+                && ((item.getFlags() & MediaBrowser.MediaItem.FLAG_BROWSABLE)
+                        == MediaBrowser.MediaItem.FLAG_BROWSABLE);
+    }
+
+    /* make |children| of |folderId| the current folder and index them */
+    private void setCurrentFolder(String folderId, List<MediaBrowser.MediaItem> children) {
+        mFolderItems = children;
+        mCurrFolderNumItems = children.size();
+        mFolderItemIndex.clear();
+        for (MediaBrowser.MediaItem item : children) {
+            mFolderItemIndex.put(item.getMediaId(), item);
         }
-        return false;
+        mFolderCache.put(folderId, children);
+    }
+
+    /*
+     * Load the children of |folderId| and send the change path response. Folders visited since
+     * the player was set as browsed are answered from the browse cache.
+     */
+    private void loadFolder(String folderId) {
+        List<MediaBrowser.MediaItem> children = mFolderCache.get(folderId);
+        if (children == null) {
+            mMediaBrowser.subscribe(folderId, folderItemsCb);
+            return;
+        }
+        if (DEBUG) Log.d(TAG, "loadFolder: " + folderId + " served from browse cache");
+        setCurrentFolder(folderId, children);
+        mMediaInterface.changePathRsp(mBDAddr, AvrcpConstants.RSP_NO_ERROR, mCurrFolderNumItems);
     }
 
     /* check if browsable Up*/
@@ -715,19 +771,14 @@ class BrowsedMediaPlayer {
     /* convert mediaId to uid */
     private byte[] stringToByte(String mediaId) {
         /* check if this mediaId already exists in hashmap */
-        if (!mHmap.containsValue(mediaId)) { /* add to hashmap */
+        Integer uid = mMediaIdToUid.get(mediaId);
+        if (uid == null) { /* add to hashmap */
             // Offset by one as uid 0 is reserved
-            int uid = mHmap.size() + 1;
+            uid = mHmap.size() + 1;
             mHmap.put(uid, mediaId);
-            return intToByteArray(uid);
-        } else { /* search key for give mediaId */
-            for (int uid : mHmap.keySet()) {
-                if (mHmap.get(uid).equals(mediaId)) {
-                    return intToByteArray(uid);
-                }
-            }
+            mMediaIdToUid.put(mediaId, uid);
         }
-        return null;
+        return intToByteArray(uid);
     }
 
     /* converts queue item received from getQueue call, to MediaItem used by FilterAttr method */
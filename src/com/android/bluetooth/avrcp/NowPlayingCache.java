@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.media.session.MediaSession;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * UID indexed snapshot of the Now Playing queue of the addressed player.
+ *
+ * The snapshot is tied to the controller it was fetched from. It is invalidated when the queue
+ * changes (onQueueChanged) or when the addressed controller changes, so that GetItemAttributes,
+ * PlayItem and paged GetFolderItems can be answered without asking the player for the whole
+ * queue again.
+ */
+class NowPlayingCache {
+    private static final List<MediaSession.QueueItem> EMPTY_LIST =
+            Collections.<MediaSession.QueueItem>emptyList();
+
+    private @NonNull List<MediaSession.QueueItem> mItems = EMPTY_LIST;
+    private final HashMap<Long, MediaSession.QueueItem> mIndex =
+            new HashMap<Long, MediaSession.QueueItem>();
+
+    /* Controller the current snapshot belongs to */
+    private @Nullable MediaController mController;
+    private boolean mValid;
+
+    /* statistics, reported in dump */
+    private long mHits;
+    private long mMisses;
+
+    /* Returns true if the snapshot can be used to answer requests for |controller| */
+    boolean isValidFor(@Nullable MediaController controller) {
+        boolean valid = mValid && controller != null && controller.equals(mController);
+        if (valid) {
+            mHits++;
+        } else {
+            mMisses++;
+        }
+        return valid;
+    }
+
+    /*
+     * Replaces the snapshot with |items| fetched from |controller|. When |cacheable| is false
+     * the items are still indexed for the current request but will be refetched next time.
+     */
+    void update(@Nullable MediaController controller, @NonNull List<MediaSession.QueueItem> items,
+            boolean cacheable) {
+        mItems = Collections.unmodifiableList(new ArrayList<MediaSession.QueueItem>(items));
+        mIndex.clear();
+        for (MediaSession.QueueItem item : mItems) {
+            mIndex.put(item.getQueueId(), item);
+        }
+        mController = controller;
+        mValid = cacheable && controller != null;
+    }
+
+    /* Drops the snapshot, the next request will refetch the queue */
+    void invalidate() {
+        mValid = false;
+    }
+
+    void clear() {
+        mItems = EMPTY_LIST;
+        mIndex.clear();
+        mController = null;
+        invalidate();
+    }
+
+    @NonNull
+    List<MediaSession.QueueItem> getItems() {
+        return mItems;
+    }
+
+    /* Returns the queue item with queue id |qid|, or null if it is not in the snapshot */
+    @Nullable
+    MediaSession.QueueItem getItem(long qid) {
+        return mIndex.get(qid);
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "NowPlayingCache: valid " + mValid + ", " + mItems.size()
+                + " items, hits " + mHits + ", misses " + mMisses);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcp;
+
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+/**
+ * Works out when the next PLAY_POS_CHANGED notification is due for each registered device.
+ *
+ * Every device slot remembers the playback position it was last given, the time of that
+ * position, the playback speed and the interval requested by the remote. From that the
+ * scheduler derives the time at which the position will leave the reported window
+ * (last reported position +/- interval), so the owner only needs to wake up once, at the
+ * earliest deadline across all slots. Slots that are not registered or not playing have no
+ * deadline, so nothing is scheduled while playback is stopped or paused.
+ */
+class PlayPositionScheduler {
+    /* Returned by getNextWakeupMs() when no slot needs a wakeup */
+    static final long NO_WAKEUP = -1L;
+
+    /** Source of time, replaceable for tests. */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private static class Slot {
+        boolean mRegistered;
+        boolean mPlaying;
+        float mSpeed;
+        long mPositionMs = -1L;
+        long mPositionTimeMs;
+        long mIntervalMs;
+        long mNextPosMs = -1L;
+        long mPrevPosMs = -1L;
+        long mDeadlineMs = NO_WAKEUP;
+        long mReported;
+    }
+
+    private final Clock mClock;
+    private final Slot[] mSlots;
+
+    /* statistics, reported in dump */
+    private long mWakeups;
+    private long mIdleWakeups;
+
+    PlayPositionScheduler(int numSlots) {
+        this(numSlots, SYSTEM_CLOCK);
+    }
+
+    PlayPositionScheduler(int numSlots, Clock clock) {
+        mClock = clock;
+        mSlots = new Slot[numSlots];
+        for (int i = 0; i < numSlots; i++) {
+            mSlots[i] = new Slot();
+        }
+    }
+
+    long now() {
+        return mClock.elapsedRealtime();
+    }
+
+    /**
+     * Updates the playback state of |slot|.
+     *
+     * @param registered whether the remote has an interim PLAY_POS_CHANGED registration
+     * @param playing whether the player is currently playing
+     * @param speed the playback speed, negative when rewinding
+     * @param positionMs the position at |positionTimeMs|, -1 if unknown
+     * @param positionTimeMs the elapsed realtime at which |positionMs| was valid
+     * @param intervalMs the notification interval requested by the remote
+     */
+    void update(int slot, boolean registered, boolean playing, float speed, long positionMs,
+            long positionTimeMs, long intervalMs) {
+        Slot s = mSlots[slot];
+        s.mRegistered = registered;
+        s.mPlaying = playing;
+        s.mSpeed = speed;
+        s.mPositionMs = positionMs;
+        s.mPositionTimeMs = positionTimeMs;
+        s.mIntervalMs = intervalMs;
+        computeDeadline(s);
+    }
+
+    /* Records that |positionMs| was just sent for |slot| and moves its window */
+    void onPositionReported(int slot, long positionMs) {
+        Slot s = mSlots[slot];
+        s.mReported++;
+        if (positionMs < 0) {
+            s.mNextPosMs = -1L;
+            s.mPrevPosMs = -1L;
+        } else {
+            s.mNextPosMs = positionMs + s.mIntervalMs;
+            s.mPrevPosMs = positionMs - s.mIntervalMs;
+        }
+        computeDeadline(s);
+    }
+
+    /* Forgets everything about |slot|, e.g. when the device disconnects */
+    void clear(int slot) {
+        mSlots[slot] = new Slot();
+    }
+
+    /* Returns true if a notification for |slot| is due at |nowMs| */
+    boolean isDue(int slot, long nowMs) {
+        long deadline = mSlots[slot].mDeadlineMs;
+        return deadline != NO_WAKEUP && nowMs >= deadline;
+    }
+
+    /* Returns the earliest deadline over all slots, or NO_WAKEUP if all slots are idle */
+    long getNextWakeupMs() {
+        long next = NO_WAKEUP;
+        for (Slot s : mSlots) {
+            if (s.mDeadlineMs == NO_WAKEUP) continue;
+            if (next == NO_WAKEUP || s.mDeadlineMs < next) next = s.mDeadlineMs;
+        }
+        return next;
+    }
+
+    /* Called by the owner every time it wakes up; counts wakeups that found nothing due */
+    void onWakeup(long nowMs) {
+        mWakeups++;
+        for (int i = 0; i < mSlots.length; i++) {
+            if (isDue(i, nowMs)) return;
+        }
+        mIdleWakeups++;
+    }
+
+    long getWakeupCount() {
+        return mWakeups;
+    }
+
+    long getIdleWakeupCount() {
+        return mIdleWakeups;
+    }
+
+    long getReportedCount(int slot) {
+        return mSlots[slot].mReported;
+    }
+
+    private static void computeDeadline(Slot s) {
+        s.mDeadlineMs = NO_WAKEUP;
+        if (!s.mRegistered || !s.mPlaying || s.mSpeed == 0f || s.mPositionMs < 0
+                || s.mIntervalMs <= 0) {
+            return;
+        }
+        long target;
+        if (s.mSpeed > 0) {
+            target = (s.mNextPosMs != -1L) ? s.mNextPosMs : s.mPositionMs + s.mIntervalMs;
+        } else {
+            target = (s.mPrevPosMs != -1L) ? s.mPrevPosMs : s.mPositionMs - s.mIntervalMs;
+        }
+        long delta = (long) Math.ceil((target - s.mPositionMs) / s.mSpeed);
+        s.mDeadlineMs = s.mPositionTimeMs + Math.max(0L, delta);
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "PlayPositionScheduler: " + mWakeups + " wakeups ("
+                + mIdleWakeups + " idle)");
+        for (int i = 0; i < mSlots.length; i++) {
+            Slot s = mSlots[i];
+            ProfileService.println(sb, "  slot " + i + ": registered " + s.mRegistered
+                    + ", playing " + s.mPlaying + ", speed " + s.mSpeed + ", interval "
+                    + s.mIntervalMs + "ms, deadline " + s.mDeadlineMs + ", reported "
+                    + s.mReported);
+        }
+    }
+}
@@ -32,6 +32,7 @@ import android.media.MediaMetadata;
 import android.media.session.PlaybackState;
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
@@ -39,6 +40,7 @@ import com.android.bluetooth.a2dpsink.A2dpSinkService;
 import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -88,10 +90,14 @@ class AvrcpControllerStateMachine extends StateMachine {
     static final int MESSAGE_INTERNAL_BROWSE_DEPTH_INCREMENT = 401;
     static final int MESSAGE_INTERNAL_MOVE_N_LEVELS_UP = 402;
     static final int MESSAGE_INTERNAL_CMD_TIMEOUT = 403;
+    static final int MESSAGE_INTERNAL_FOLDER_LIST_DONE = 404;
 
     static final int CMD_TIMEOUT_MILLIS = 5000; // 5s
     // Fetch only 5 items at a time.
     static final int GET_FOLDER_ITEMS_PAGINATION_SIZE = 5;
+    // Pages fetched ahead of a listing, and pages kept in the browse cache.
+    static final int BROWSE_PREFETCH_PAGES = 2;
+    static final int BROWSE_CACHE_MAX_PAGES = 64;
 
     /*
      * Base value for absolute volume from JNI
@@ -141,6 +147,36 @@ class AvrcpControllerStateMachine extends StateMachine {
     // Browse tree.
     private BrowseTree mBrowseTree = new BrowseTree();
 
+    // Pages of folder listings, see GetFolderList.
+    private final BrowsePageCache mBrowsePageCache =
+        new BrowsePageCache(GET_FOLDER_ITEMS_PAGINATION_SIZE, BROWSE_CACHE_MAX_PAGES);
+
+    // A GetFolderItems request sent to the remote. The remote answers them in order, but the
+    // responses do not say which node they belong to.
+    private static class PageRequest {
+        final String mFolderId;
+        final int mStart;
+        final long mTime;
+
+        PageRequest(String folderId, int start, long time) {
+            mFolderId = folderId;
+            mStart = start;
+            mTime = time;
+        }
+
+        boolean matches(String folderId, int start) {
+            return mFolderId.equals(folderId) && mStart == start;
+        }
+
+        @Override
+        public String toString() {
+            return mFolderId + "/" + mStart;
+        }
+    }
+
+    // Requests waiting for their response, oldest first.
+    private final ArrayDeque<PageRequest> mPageRequests = new ArrayDeque<PageRequest>();
+
     AvrcpControllerStateMachine(Context context) {
         super(TAG);
         mContext = context;
@@ -325,6 +361,13 @@ class AvrcpControllerStateMachine extends StateMachine {
                         break;
                     }
 
+                    case MESSAGE_PROCESS_GET_FOLDER_ITEMS:
+                    case MESSAGE_PROCESS_GET_FOLDER_ITEMS_OUT_OF_RANGE:
+                        // Nobody is waiting for it any more, e.g. a prefetch that was ended for
+                        // another request.
+                        Log.d(TAG, "Dropping late response to " + mPageRequests.poll());
+                        break;
+
                     case MESSAGE_SET_BROWSED_PLAYER: {
                         AvrcpControllerService.setBrowsedPlayerNative(
                             mRemoteDevice.getBluetoothAddress(), (int) msg.arg1);
@@ -340,6 +383,8 @@ class AvrcpControllerStateMachine extends StateMachine {
                                 mRemoteDevice = null;
                             }
                             mBrowseTree.clear();
+                            mBrowsePageCache.invalidateAll();
+                            mPageRequests.clear();
                             transitionTo(mDisconnected);
                             BluetoothDevice rtDevice = (BluetoothDevice) msg.obj;
                             Intent intent = new Intent(
@@ -373,6 +418,8 @@ class AvrcpControllerStateMachine extends StateMachine {
                             // If browse is disconnected, the next time we connect we should
                             // be at the ROOT.
                             mBrowseDepth = 0;
+                            mBrowsePageCache.invalidateAll();
+                            mPageRequests.clear();
                         } else {
                             Log.w(TAG, "Incorrect browse state " + msg.arg1);
                         }
@@ -424,6 +471,8 @@ class AvrcpControllerStateMachine extends StateMachine {
 
                     case MESSAGE_PROCESS_TRACK_CHANGED:
                         mAddressedPlayer.updateCurrentTrack((TrackInfo) msg.obj);
+                        // The now playing list may have changed along with the track.
+                        mBrowsePageCache.invalidatePrefix(BrowseTree.NOW_PLAYING_PREFIX);
                         if (mBroadcastMetadata) {
                             broadcastMetaDataChanged(mAddressedPlayer.getCurrentTrack().
                                 getMediaMetaData());
@@ -527,8 +576,11 @@ class AvrcpControllerStateMachine extends StateMachine {
     }
 
     // Handle the get folder listing action
-    // a) Fetch the listing of folders
+    // a) Fetch the listing of folders, a page at a time. Pages found in the browse cache are
+    //    used without asking the remote.
     // b) Once completed return the object listing
+    // c) Prefetch the pages that follow the listing into the browse cache, ahead of the next
+    //    request of a scrolling client. Any other request stops the prefetch.
     class GetFolderList extends CmdState {
         private String STATE_TAG = "AVRCPSM.GetFolderList";
 
@@ -539,13 +591,17 @@ class AvrcpControllerStateMachine extends StateMachine {
         int mScope;
         private ArrayList<MediaItem> mFolderList = new ArrayList<>();
 
+        // Set once the listing has been returned and the following pages are being fetched.
+        private boolean mPrefetching;
+        private int mPrefetchEndInd;
+
         @Override
         public void enter() {
-            mCurrInd = 0;
+            super.enter();
+            mCurrInd = mStartInd;
             mFolderList.clear();
-
-            callNativeFunctionForScope(
-                mStartInd, Math.min(mEndInd, mStartInd + GET_FOLDER_ITEMS_PAGINATION_SIZE - 1));
+            mPrefetching = false;
+            fetchNextPage();
         }
 
         public void setScope(int scope) {
@@ -569,15 +625,35 @@ class AvrcpControllerStateMachine extends StateMachine {
         public boolean processMessage(Message msg) {
             Log.d(STATE_TAG, "processMessage " + msg);
             switch (msg.what) {
-                case MESSAGE_PROCESS_GET_FOLDER_ITEMS:
+                case MESSAGE_PROCESS_GET_FOLDER_ITEMS: {
+                    PageRequest request = mPageRequests.poll();
+                    if (request == null || !request.matches(mID, mCurrInd)) {
+                        // The answer to a request given up on before this one was sent.
+                        Log.w(STATE_TAG, "Dropping response to " + request + ", waiting for "
+                                + mID + "/" + mCurrInd);
+                        break;
+                    }
                     ArrayList<MediaItem> folderList = (ArrayList<MediaItem>) msg.obj;
-                    mFolderList.addAll(folderList);
+                    mBrowsePageCache.recordFetch(SystemClock.elapsedRealtime() - request.mTime);
+                    mBrowsePageCache.put(mID, mCurrInd, folderList, mPrefetching);
                     if (DBG) {
                         Log.d(STATE_TAG, "Start " + mStartInd + " End " + mEndInd + " Curr " +
-                            mCurrInd + " received " + folderList.size());
+                            mCurrInd + " received " + folderList.size() + " prefetch " +
+                            mPrefetching);
                     }
                     mCurrInd += folderList.size();
 
+                    if (mPrefetching) {
+                        // Nobody is waiting for these items, they are only kept in the cache.
+                        if (folderList.size() == 0) {
+                            transitionTo(mConnected);
+                        } else {
+                            fetchNextPage();
+                        }
+                        break;
+                    }
+
+                    mFolderList.addAll(folderList);
                     // Always update the node so that the user does not wait forever
                     // for the list to populate.
                     sendFolderBroadcastAndUpdateNode();
@@ -586,40 +662,125 @@ class AvrcpControllerStateMachine extends StateMachine {
                         // If we have fetched all the elements or if the remotes sends us 0 elements
                         // (which can lead us into a loop since mCurrInd does not proceed) we simply
                         // abort.
-                        transitionTo(mConnected);
+                        startPrefetchOrFinish(folderList.size() == 0);
                     } else {
                         // Fetch the next set of items.
-                        callNativeFunctionForScope(
-                            (byte) mCurrInd,
-                            (byte) Math.min(
-                                mEndInd, mCurrInd + GET_FOLDER_ITEMS_PAGINATION_SIZE - 1));
-                        // Reset the timeout message since we are doing a new fetch now.
-                        removeMessages(MESSAGE_INTERNAL_CMD_TIMEOUT);
-                        sendMessageDelayed(MESSAGE_INTERNAL_CMD_TIMEOUT, CMD_TIMEOUT_MILLIS);
+                        fetchNextPage();
                     }
                     break;
+                }
+
+                case MESSAGE_INTERNAL_FOLDER_LIST_DONE:
+                    transitionTo(mConnected);
+                    break;
 
                 case MESSAGE_INTERNAL_CMD_TIMEOUT:
                     // We have timed out to execute the request, we should simply send
                     // whatever listing we have gotten until now.
-                    sendFolderBroadcastAndUpdateNode();
+                    if (!mPrefetching) {
+                        sendFolderBroadcastAndUpdateNode();
+                    }
+                    // Whatever is still outstanding can no longer be matched to its request.
+                    mPageRequests.clear();
                     transitionTo(mConnected);
                     break;
 
-                case MESSAGE_PROCESS_GET_FOLDER_ITEMS_OUT_OF_RANGE:
+                case MESSAGE_PROCESS_GET_FOLDER_ITEMS_OUT_OF_RANGE: {
+                    PageRequest request = mPageRequests.poll();
+                    if (request == null || !request.matches(mID, mCurrInd)) {
+                        Log.w(STATE_TAG, "Dropping out of range for " + request);
+                        break;
+                    }
                     // If we have gotten an error for OUT OF RANGE we have
                     // already sent all the items to the client hence simply
                     // transition to Connected state here.
+                    mBrowsePageCache.setEnd(mID, mCurrInd);
                     transitionTo(mConnected);
                     break;
+                }
 
                 default:
+                    if (mPrefetching) {
+                        // Nobody waits for the prefetch, do not hold back another request for
+                        // it. The response of the pending page is dropped when it arrives.
+                        Log.d(STATE_TAG, "ending prefetch of " + mID + " at " + mCurrInd);
+                        transitionTo(mConnected);
+                    }
                     Log.d(STATE_TAG, "deferring message " + msg + " to connected!");
                     deferMessage(msg);
             }
             return true;
         }
 
+        // Fetch the page at mCurrInd. Pages that are cached are taken as they are until a page
+        // is missing, which is requested from the remote.
+        private void fetchNextPage() {
+            int pageSize = mBrowsePageCache.getPageSize();
+            int endInd = mPrefetching ? mPrefetchEndInd : mEndInd;
+            boolean fromCache = false;
+            while (mCurrInd <= endInd) {
+                if (mBrowsePageCache.isPastEnd(mID, mCurrInd)) {
+                    finishFromCache(fromCache, true);
+                    return;
+                }
+                if (mPrefetching) {
+                    int cached = mBrowsePageCache.peekSize(mID, mCurrInd);
+                    if (cached == 0) {
+                        break;
+                    }
+                    // Already cached, no need to fetch it again.
+                    mCurrInd += cached;
+                    continue;
+                }
+                List<MediaItem> page = mBrowsePageCache.get(mID, mCurrInd);
+                if (page == null) {
+                    break;
+                }
+                int count = Math.min(page.size(), endInd - mCurrInd + 1);
+                mFolderList.addAll(page.subList(0, count));
+                mCurrInd += count;
+                fromCache = true;
+            }
+            if (mCurrInd > endInd) {
+                finishFromCache(fromCache, false);
+                return;
+            }
+
+            int end = Math.min(endInd, mCurrInd + pageSize - 1);
+            mPageRequests.add(new PageRequest(mID, mCurrInd, SystemClock.elapsedRealtime()));
+            callNativeFunctionForScope(mCurrInd, end);
+            // Reset the timeout message since we are doing a new fetch now.
+            removeMessages(MESSAGE_INTERNAL_CMD_TIMEOUT);
+            sendMessageDelayed(MESSAGE_INTERNAL_CMD_TIMEOUT, CMD_TIMEOUT_MILLIS);
+        }
+
+        // The rest of the request was served from the cache.
+        private void finishFromCache(boolean fromCache, boolean folderEnd) {
+            if (mPrefetching) {
+                sendMessage(MESSAGE_INTERNAL_FOLDER_LIST_DONE);
+                return;
+            }
+            if (fromCache || mFolderList.isEmpty()) {
+                sendFolderBroadcastAndUpdateNode();
+            }
+            startPrefetchOrFinish(folderEnd);
+        }
+
+        private void startPrefetchOrFinish(boolean folderEnd) {
+            // Item indexes are a byte wide, there is nothing to prefetch past the last one.
+            if (folderEnd || mEndInd >= 0xff || mCurrInd > 0xff) {
+                sendMessage(MESSAGE_INTERNAL_FOLDER_LIST_DONE);
+                return;
+            }
+            mPrefetching = true;
+            mPrefetchEndInd = Math.min(0xff,
+                mCurrInd + BROWSE_PREFETCH_PAGES * mBrowsePageCache.getPageSize() - 1);
+            if (DBG) {
+                Log.d(STATE_TAG, "prefetch " + mID + " " + mCurrInd + " to " + mPrefetchEndInd);
+            }
+            fetchNextPage();
+        }
+
         private void sendFolderBroadcastAndUpdateNode() {
             BrowseTree.BrowseNode bn = mBrowseTree.findBrowseNodeByID(mID);
             if (bn.isPlayer()) {
@@ -783,6 +944,12 @@ class AvrcpControllerStateMachine extends StateMachine {
                         transitionTo(mMoveToRoot);
                     }
                     mBrowseTree.setCurrentBrowsedFolder(mID);
+                    // The UIDs of the previous player are not valid for this one, we are not
+                    // told its UID counter so drop everything we cached.
+                    BrowseTree.BrowseNode prevPlayer = mBrowseTree.getCurrentBrowsedPlayer();
+                    if (prevPlayer == null || !prevPlayer.getID().equals(mID)) {
+                        mBrowsePageCache.invalidateAll();
+                    }
                     // Also set the browsed player here.
                     mBrowseTree.setCurrentBrowsedPlayer(mID);
                     break;
@@ -819,6 +986,7 @@ class AvrcpControllerStateMachine extends StateMachine {
                 case MESSAGE_PROCESS_SET_ADDRESSED_PLAYER:
                     // Set the new addressed player.
                     mBrowseTree.setCurrentAddressedPlayer(mAddrPlayerId);
+                    mBrowsePageCache.invalidatePrefix(BrowseTree.NOW_PLAYING_PREFIX);
 
                     // And now play the item.
                     AvrcpControllerService.playItemNative(
@@ -878,6 +1046,7 @@ class AvrcpControllerStateMachine extends StateMachine {
 
     void dump(StringBuilder sb) {
         ProfileService.println(sb, "StateMachine: " + this.toString());
+        mBrowsePageCache.dump(sb);
     }
 
     MediaMetadata getCurrentMetaData() {
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcpcontroller;
+
+import android.media.browse.MediaBrowser.MediaItem;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pages of folder items fetched from the remote, keyed by the ID of the browsed node and the
+ * index of the first item of the page.
+ *
+ * A page holds the items the remote returned for one GetFolderItems request, up to
+ * {@link #getPageSize()} items. The remote may return fewer items than asked for, so the next
+ * page starts right after the last item of a page. The end of a folder is only known once the
+ * remote returned no items or an out of range error. The number of pages is bounded, the least
+ * recently used page is evicted first.
+ *
+ * The remote does not tell us about UID counter changes, so the owner has to invalidate the
+ * pages whenever the UIDs may have changed, e.g. when another player is browsed.
+ *
+ * Only accessed from the state machine thread, except for dump.
+ */
+class BrowsePageCache {
+    private static final String TAG = "BrowsePageCache";
+    private static final boolean DBG = true;
+
+    private final int mPageSize;
+    private final int mMaxPages;
+
+    private final LinkedHashMap<String, List<MediaItem>> mPages;
+
+    /* Number of items of a folder, for folders whose end has been seen */
+    private final HashMap<String, Integer> mFolderEnds = new HashMap<String, Integer>();
+
+    /* totals, for dump */
+    private int mHits;
+    private int mMisses;
+    private int mPrefetches;
+    private int mEvictions;
+    private int mInvalidations;
+    private int mFetches;
+    private long mFetchTotalMs;
+    private long mFetchMaxMs;
+    private long mFetchLastMs;
+
+    BrowsePageCache(int pageSize, int maxPages) {
+        mPageSize = pageSize;
+        mMaxPages = maxPages;
+        mPages = new LinkedHashMap<String, List<MediaItem>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<MediaItem>> eldest) {
+                if (size() <= mMaxPages) return false;
+                mEvictions++;
+                return true;
+            }
+        };
+    }
+
+    int getPageSize() {
+        return mPageSize;
+    }
+
+    private static String key(String folderId, int start) {
+        return folderId + "/" + start;
+    }
+
+    /* Returns the page of |folderId| that starts at |start|, or null if it is not cached */
+    synchronized List<MediaItem> get(String folderId, int start) {
+        List<MediaItem> page = mPages.get(key(folderId, start));
+        if (page == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return page;
+    }
+
+    /* Number of items of the cached page, or 0 if it is not cached. Not counted as a lookup */
+    synchronized int peekSize(String folderId, int start) {
+        List<MediaItem> page = mPages.get(key(folderId, start));
+        return (page != null) ? page.size() : 0;
+    }
+
+    /* True if |index| is past the last item of |folderId| */
+    synchronized boolean isPastEnd(String folderId, int index) {
+        Integer end = mFolderEnds.get(folderId);
+        return end != null && index >= end;
+    }
+
+    /**
+     * Store the items the remote returned for a request starting at |start|. No items mark the
+     * end of the folder.
+     *
+     * @param prefetch true if nobody asked for the page yet
+     */
+    synchronized void put(String folderId, int start, List<MediaItem> items, boolean prefetch) {
+        if (items.isEmpty()) {
+            mFolderEnds.put(folderId, start);
+            return;
+        }
+        List<MediaItem> page = new ArrayList<MediaItem>(
+                items.subList(0, Math.min(items.size(), mPageSize)));
+        mPages.put(key(folderId, start), page);
+        if (prefetch) mPrefetches++;
+    }
+
+    /* The folder ends at |end|, e.g. the remote answered a request at |end| with out of range */
+    synchronized void setEnd(String folderId, int end) {
+        mFolderEnds.put(folderId, end);
+    }
+
+    /* Time between a GetFolderItems request and its response */
+    synchronized void recordFetch(long ms) {
+        mFetches++;
+        mFetchTotalMs += ms;
+        mFetchLastMs = ms;
+        if (ms > mFetchMaxMs) mFetchMaxMs = ms;
+    }
+
+    /* Drops the pages of |folderId| */
+    synchronized void invalidate(String folderId) {
+        String prefix = folderId + "/";
+        boolean removed = (mFolderEnds.remove(folderId) != null);
+        Iterator<String> it = mPages.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            if (DBG) Log.d(TAG, "invalidate " + folderId);
+            mInvalidations++;
+        }
+    }
+
+    /* Drops the pages of all folders whose ID starts with |prefix| */
+    synchronized void invalidatePrefix(String prefix) {
+        ArrayList<String> folders = new ArrayList<String>();
+        for (String key : mPages.keySet()) {
+            String folderId = key.substring(0, key.lastIndexOf('/'));
+            if (folderId.startsWith(prefix) && !folders.contains(folderId)) {
+                folders.add(folderId);
+            }
+        }
+        for (String folderId : mFolderEnds.keySet()) {
+            if (folderId.startsWith(prefix) && !folders.contains(folderId)) {
+                folders.add(folderId);
+            }
+        }
+        for (String folderId : folders) {
+            invalidate(folderId);
+        }
+    }
+
+    /* Drops all pages, e.g. when the UIDs of the browsed player are no longer valid */
+    synchronized void invalidateAll() {
+        if (mPages.isEmpty() && mFolderEnds.isEmpty()) return;
+        if (DBG) Log.d(TAG, "invalidateAll " + mPages.size() + " pages");
+        mPages.clear();
+        mFolderEnds.clear();
+        mInvalidations++;
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        int lookups = mHits + mMisses;
+        ProfileService.println(sb, "Browse cache: " + mPages.size() + "/" + mMaxPages
+                + " pages of " + mPageSize + " items, " + mHits + " hits, " + mMisses
+                + " misses, hit rate " + (lookups > 0 ? (mHits * 100 / lookups) : 0) + "%, "
+                + mPrefetches + " prefetched, " + mEvictions + " evicted, " + mInvalidations
+                + " invalidations");
+        ProfileService.println(sb, "  page fetch: " + mFetches + " fetches, avg "
+                + (mFetches > 0 ? (mFetchTotalMs / mFetches) : 0) + "ms, max " + mFetchMaxMs
+                + "ms, last " + mFetchLastMs + "ms");
+    }
+}
@@ -2332,6 +2332,9 @@ public class AdapterService extends Service {
                 profile.dump(sb);
             }
         }
+        if (mSdpManager != null) {
+            mSdpManager.dump(sb);
+        }
 
         writer.write(sb.toString());
         writer.flush();
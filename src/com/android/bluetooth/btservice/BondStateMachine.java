@@ -28,6 +28,7 @@ import com.android.bluetooth.hfp.HeadsetService;
 import com.android.bluetooth.a2dpsink.A2dpSinkService;
 import com.android.bluetooth.hfpclient.HeadsetClientService;
 import com.android.bluetooth.pbapclient.PbapClientService;
+import com.android.bluetooth.sdp.SdpManager;
 
 import android.bluetooth.OobData;
 import android.content.Intent;
@@ -241,6 +242,11 @@ final class BondStateMachine extends StateMachine {
                                     BluetoothDevice.ACCESS_UNKNOWN);
                             // Set the profile Priorities to undefined
                             clearProfilePriority(dev);
+                            // The device may come back with other SDP records
+                            SdpManager sdpManager = SdpManager.getDefaultManager();
+                            if (sdpManager != null) {
+                                sdpManager.invalidateCache(dev);
+                            }
                         }
                     }
                     else if(!mDevices.contains(dev))
@@ -92,6 +92,12 @@ import com.android.bluetooth.btservice.BluetoothProto;
     long stopTime = 0;
     int results = 0;
 
+    /* Regular scan time, radio scan time in it and the share of the radio time of this app,
+     * see ScanDutyCycleScheduler */
+    long dutyScanTime = 0;
+    long dutyRadioOnTime = 0;
+    long dutyPowerShareTime = 0;
+
     public AppScanStats(String name, WorkSource source, ContextMap map, GattService service) {
         appName = name;
         contextMap = map;
@@ -105,6 +111,12 @@ import com.android.bluetooth.btservice.BluetoothProto;
         workSource = source;
     }
 
+    synchronized void addScanDuty(long scanTime, long radioOnTime, long powerShareTime) {
+        dutyScanTime += scanTime;
+        dutyRadioOnTime += radioOnTime;
+        dutyPowerShareTime += powerShareTime;
+    }
+
     synchronized void addResult() {
         if (!lastScans.isEmpty()) {
             int batteryStatsResults = ++lastScans.get(lastScans.size() - 1).results;
@@ -280,6 +292,9 @@ import com.android.bluetooth.btservice.BluetoothProto;
                   totalScanTime + "\n");
         sb.append("  Total number of results            : " +
                   results + "\n");
+        sb.append("  Duty cycle / power share in ms     : " +
+                  (dutyScanTime > 0 ? (dutyRadioOnTime * 100 / dutyScanTime) : 0) + "% / " +
+                  dutyPowerShareTime + "\n");
 
         if (!lastScans.isEmpty()) {
             int lastScansSize = scansStopped < NUM_SCAN_DURATIONS_KEPT ?
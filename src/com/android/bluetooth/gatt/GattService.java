@@ -52,7 +52,6 @@ import android.os.ParcelUuid;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.WorkSource;
-import android.provider.Settings;
 import android.util.Log;
 
 import com.android.bluetooth.R;
@@ -64,6 +63,7 @@ import com.android.bluetooth.btservice.ProfileService;
 import com.android.bluetooth.util.NumberUtils;
 import com.android.internal.annotations.VisibleForTesting;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -167,6 +167,9 @@ public class GattService extends ProfileService {
     private PeriodicScanManager mPeriodicScanManager;
     private ScanManager mScanManager;
     private AppOpsManager mAppOps;
+    private ScanPermissionState mScanPermissionState;
+    private JniEventRing mEventRing;
+    private NotifyRouter mNotifyRouter;
 
     /**
      * Reliable write queue
@@ -187,10 +190,26 @@ public class GattService extends ProfileService {
         return new BluetoothGattBinder(this);
     }
 
+    @VisibleForTesting
+    void setScanManager(ScanManager scanManager) {
+        mScanManager = scanManager;
+    }
+
     protected boolean start() {
         if (DBG) Log.d(TAG, "start()");
         initializeNative();
+        mEventRing = new JniEventRing();
+        setEventRingNative(mEventRing.getBuffer());
         mAppOps = getSystemService(AppOpsManager.class);
+        mNotifyRouter = new NotifyRouter();
+        mScanPermissionState = new ScanPermissionState(this, mAppOps, getMainLooper(),
+                new ScanPermissionState.Callback() {
+                    @Override
+                    public void onScanPermissionChanged(String packageName) {
+                        updateScanPermissions(packageName);
+                    }
+                });
+        mScanPermissionState.start();
         mAdvertiseManager = new AdvertiseManager(this, AdapterService.getAdapterService());
         mAdvertiseManager.start();
 
@@ -210,7 +229,13 @@ public class GattService extends ProfileService {
         mServerMap.clear();
         mHandleMap.clear();
         mReliableQueue.clear();
+        if (mNotifyRouter != null) {
+            mNotifyRouter.invalidateAll();
+        }
 
+        if (mScanPermissionState != null) {
+            mScanPermissionState.stop();
+        }
         if (mAdvertiseManager != null) {
           mAdvertiseManager.cleanup();
           mAdvertiseManager = null;
@@ -758,6 +783,17 @@ public class GattService extends ProfileService {
      * Callback functions - CLIENT
      *************************************************************************/
 
+    /* A scan result the JNI wrote into the event ring at |offset| */
+    void onScanResultRecord(int offset) {
+        JniEventRing ring = mEventRing;
+        String address = ring.getAddressString(ring.getAddress(offset));
+        onScanResult(ring.getScanEventType(offset), ring.getScanAddressType(offset), address,
+                ring.getScanPrimaryPhy(offset), ring.getScanSecondaryPhy(offset),
+                ring.getScanAdvertisingSid(offset), ring.getScanTxPower(offset),
+                ring.getScanRssi(offset), ring.getScanPeriodicAdvInt(offset),
+                ring.getScanData(offset));
+    }
+
     void onScanResult(int event_type, int address_type, String address, int primary_phy,
             int secondary_phy, int advertising_sid, int tx_power, int rssi, int periodic_adv_int,
             byte[] adv_data) {
@@ -794,6 +830,12 @@ public class GattService extends ProfileService {
                 continue;
             }
 
+            // Do no report if location mode is OFF or the client has no location permission
+            // PEERS_MAC_ADDRESS permission holders always get results
+            if (!hasScanResultPermission(client)) {
+                continue;
+            }
+
             BluetoothDevice device = BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address);
 
             ScanSettings settings = client.settings;
@@ -815,9 +857,7 @@ public class GattService extends ProfileService {
                     advertising_sid, tx_power, rssi, periodic_adv_int,
                     ScanRecord.parseFromBytes(scan_record_data),
                     SystemClock.elapsedRealtimeNanos());
-            // Do no report if location mode is OFF or the client has no location permission
-            // PEERS_MAC_ADDRESS permission holders always get results
-            if (!hasScanResultPermission(client) || !matchesFilters(client, result)) {
+            if (!matchesFilters(client, result)) {
                 continue;
             }
 
@@ -900,17 +940,30 @@ public class GattService extends ProfileService {
         }
     }
 
-    /** Determines if the given scan client has the appropriate permissions to receive callbacks. */
+    /**
+     * Determines if the given scan client has the appropriate permissions to receive callbacks.
+     * The outcome is kept in the client by mScanPermissionState, as this is called for every
+     * client on every scan result.
+     */
     private boolean hasScanResultPermission(final ScanClient client) {
-        final boolean requiresLocationEnabled =
-                getResources().getBoolean(R.bool.strict_location_check);
-        final boolean locationEnabledSetting = Settings.Secure.getInt(getContentResolver(),
-                Settings.Secure.LOCATION_MODE, Settings.Secure.LOCATION_MODE_OFF)
-                != Settings.Secure.LOCATION_MODE_OFF;
-        final boolean locationEnabled = !requiresLocationEnabled || locationEnabledSetting
-                || client.legacyForegroundApp;
-        return (client.hasPeersMacAddressPermission
-                || (client.hasLocationPermission && locationEnabled));
+        return client.scanResultPermitted;
+    }
+
+    /* Recompute the scan result permission of the clients of |packageName|, or of all clients
+     * if it is null, after the location mode or the location app ops changed. */
+    private void updateScanPermissions(String packageName) {
+        ScanManager scanManager = mScanManager;
+        if (scanManager == null) return;
+        for (ScanClient client : scanManager.getRegularScanQueue()) {
+            if (packageName == null || packageName.equals(client.callingPackage)) {
+                mScanPermissionState.update(client);
+            }
+        }
+        for (ScanClient client : scanManager.getBatchScanQueue()) {
+            if (packageName == null || packageName.equals(client.callingPackage)) {
+                mScanPermissionState.update(client);
+            }
+        }
     }
 
     // Check if a scan record matches a specific filters.
@@ -948,6 +1001,7 @@ public class GattService extends ProfileService {
             + ", connId=" + connId + ", address=" + address);
 
         if (status == 0) mClientMap.addConnection(clientIf, connId, address);
+        mNotifyRouter.invalidate(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf,
@@ -961,6 +1015,7 @@ public class GattService extends ProfileService {
             + ", connId=" + connId + ", address=" + address);
 
         mClientMap.removeConnection(clientIf, connId);
+        mNotifyRouter.invalidate(connId);
         ClientMap.App app = mClientMap.getById(clientIf);
         if (app != null) {
             app.callback.onClientConnectionState(status, clientIf, false, address);
@@ -1112,6 +1167,7 @@ public class GattService extends ProfileService {
 
         // Search is complete when there was error, or nothing more to process
         gattClientDatabases.put(connId, db_out);
+        mNotifyRouter.invalidate(connId);
         app.callback.onSearchComplete(address, db_out, 0 /* status */);
     }
 
@@ -1123,21 +1179,35 @@ public class GattService extends ProfileService {
             + ", handle=" + handle);
     }
 
+    /* A notification the JNI wrote into the event ring at |offset| */
+    void onNotifyRecord(int offset) throws RemoteException {
+        JniEventRing ring = mEventRing;
+        String address = ring.getAddressString(ring.getAddress(offset));
+        onNotify(ring.getNotifyConnId(offset), address, ring.getNotifyHandle(offset),
+                ring.getNotifyIsNotify(offset), ring.getNotifyData(offset));
+    }
+
     void onNotify(int connId, String address, int handle,
             boolean isNotify, byte[] data) throws RemoteException {
 
         if (VDBG) Log.d(TAG, "onNotify() - address=" + address
             + ", handle=" + handle + ", length=" + data.length);
 
-        if (!permissionCheck(connId, handle)) {
+        NotifyRouter.Route route = mNotifyRouter.get(connId, handle);
+        if (route == null) {
+            int generation = mNotifyRouter.getGeneration();
+            ClientMap.App app = mClientMap.getByConnId(connId);
+            if (app == null) return;
+            route = mNotifyRouter.put(connId, handle, app.callback,
+                    permissionCheck(connId, handle), generation);
+        }
+
+        if (!route.permitted) {
             Log.w(TAG, "onNotify() - permission check failed!");
             return;
         }
 
-        ClientMap.App app = mClientMap.getByConnId(connId);
-        if (app != null) {
-            app.callback.onNotify(address, handle, data);
-        }
+        route.callback.onNotify(address, handle, data);
     }
 
     void onReadCharacteristic(int connId, int status, int handle, byte[] data) throws RemoteException {
@@ -1628,6 +1698,9 @@ public class GattService extends ProfileService {
         scanClient.hasPeersMacAddressPermission = Utils.checkCallerHasPeersMacAddressPermission(
                 this);
         scanClient.legacyForegroundApp = Utils.isLegacyForegroundApp(this, callingPackage);
+        scanClient.callingPackage = callingPackage;
+        scanClient.callingUid = Binder.getCallingUid();
+        mScanPermissionState.update(scanClient);
 
         AppScanStats app = null;
         app = mScannerMap.getAppScanStatsById(scannerId);
@@ -1676,6 +1749,8 @@ public class GattService extends ProfileService {
                 true; // Utils.checkCallerHasPeersMacAddressPermission(
         // this);
         scanClient.legacyForegroundApp = Utils.isLegacyForegroundApp(this, piInfo.callingPackage);
+        scanClient.callingPackage = piInfo.callingPackage;
+        mScanPermissionState.update(scanClient);
 
         AppScanStats app = null;
         app = mScannerMap.getAppScanStatsById(scannerId);
@@ -1838,6 +1913,7 @@ public class GattService extends ProfileService {
 
         if (DBG) Log.d(TAG, "unregisterClient() - clientIf=" + clientIf);
         mClientMap.remove(clientIf);
+        mNotifyRouter.invalidateAll();
         gattClientUnregisterAppNative(clientIf);
     }
 
@@ -2663,6 +2739,18 @@ public class GattService extends ProfileService {
         }
 
         println(sb, "mMaxScanFilters: " + mMaxScanFilters);
+        if (mScanManager != null) {
+            mScanManager.dump(sb);
+        }
+        if (mScanPermissionState != null) {
+            mScanPermissionState.dump(sb);
+        }
+        if (mEventRing != null) {
+            mEventRing.dump(sb);
+        }
+        if (mNotifyRouter != null) {
+            mNotifyRouter.dump(sb);
+        }
 
         sb.append("\nGATT Scanner Map\n");
         mScannerMap.dump(sb);
@@ -2727,6 +2815,7 @@ public class GattService extends ProfileService {
     private native static void classInitNative();
     private native void initializeNative();
     private native void cleanupNative();
+    private native void setEventRingNative(ByteBuffer ring);
 
     private native int gattClientGetDeviceTypeNative(String address);
 
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Ring buffer in native memory that the GATT JNI writes scan results and notifications into,
+ * instead of allocating a String address and a byte[] for every event.
+ *
+ * The JNI writes a record at the next free offset, wrapping to the start when the record does
+ * not fit, and calls back with the offset of the record. The callback runs on the JNI callback
+ * thread and decodes the record before it returns, so the JNI never overwrites a record that
+ * is still in use. Records are 8-byte aligned and use the native byte order.
+ *
+ * Addresses are packed into a long, the first octet of the address in bits 40-47. Address
+ * strings of recently seen devices are kept in a direct mapped table indexed by a hash of the
+ * packed address, so that a device that advertises repeatedly does not cost a new String for
+ * each result. A lookup allocates nothing; a device whose slot is taken replaces the previous
+ * one.
+ *
+ * Only used from the JNI callback thread.
+ */
+class JniEventRing {
+    /** Size of the ring, must match what the JNI expects to be able to write. */
+    static final int SIZE = 64 * 1024;
+
+    /* Record header, see the JNI for the writing side */
+    static final int HEADER_LEN = 20;
+    private static final int OFF_ADDRESS = 0;
+
+    /* Scan result */
+    private static final int OFF_SCAN_EVENT_TYPE = 8;
+    private static final int OFF_SCAN_PERIODIC_ADV_INT = 10;
+    private static final int OFF_SCAN_DATA_LEN = 12;
+    private static final int OFF_SCAN_ADDRESS_TYPE = 14;
+    private static final int OFF_SCAN_PRIMARY_PHY = 15;
+    private static final int OFF_SCAN_SECONDARY_PHY = 16;
+    private static final int OFF_SCAN_ADVERTISING_SID = 17;
+    private static final int OFF_SCAN_TX_POWER = 18;
+    private static final int OFF_SCAN_RSSI = 19;
+
+    /* Notification */
+    private static final int OFF_NOTIFY_CONN_ID = 8;
+    private static final int OFF_NOTIFY_HANDLE = 12;
+    private static final int OFF_NOTIFY_DATA_LEN = 14;
+    private static final int OFF_NOTIFY_IS_NOTIFY = 16;
+
+    /* Power of two */
+    private static final int ADDRESS_CACHE_SIZE = 256;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final ByteBuffer mBuffer;
+
+    /* Address cache, a slot is empty while its string is null */
+    private final long[] mAddressKeys = new long[ADDRESS_CACHE_SIZE];
+    private final String[] mAddressStrings = new String[ADDRESS_CACHE_SIZE];
+    private int mAddressCount;
+
+    /* totals, for dump */
+    private int mRecords;
+    private int mAddressMisses;
+
+    JniEventRing() {
+        this(ByteBuffer.allocateDirect(SIZE));
+    }
+
+    /* |buffer| is shared with the JNI, or filled by a test */
+    JniEventRing(ByteBuffer buffer) {
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+    }
+
+    ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /* Packed address of the record at |offset| */
+    long getAddress(int offset) {
+        mRecords++;
+        return mBuffer.getLong(offset + OFF_ADDRESS);
+    }
+
+    /* Address string of a packed address, formatted like the JNI does */
+    String getAddressString(long address) {
+        int slot = (int) (address ^ (address >>> 16) ^ (address >>> 32)) & (ADDRESS_CACHE_SIZE - 1);
+        String str = mAddressStrings[slot];
+        if (str != null && mAddressKeys[slot] == address) {
+            return str;
+        }
+        if (str == null) mAddressCount++;
+        str = addressToString(address);
+        mAddressKeys[slot] = address;
+        mAddressStrings[slot] = str;
+        mAddressMisses++;
+        return str;
+    }
+
+    static String addressToString(long address) {
+        char[] chars = new char[17];
+        for (int i = 0; i < 6; i++) {
+            int octet = (int) (address >> (8 * (5 - i))) & 0xFF;
+            chars[i * 3] = HEX[octet >> 4];
+            chars[i * 3 + 1] = HEX[octet & 0x0F];
+            if (i < 5) chars[i * 3 + 2] = ':';
+        }
+        return new String(chars);
+    }
+
+    static long stringToAddress(String address) {
+        long packed = 0;
+        for (int i = 0; i < 6; i++) {
+            packed = (packed << 8) | Integer.parseInt(address.substring(i * 3, i * 3 + 2), 16);
+        }
+        return packed;
+    }
+
+    int getScanEventType(int offset) {
+        return mBuffer.getShort(offset + OFF_SCAN_EVENT_TYPE) & 0xFFFF;
+    }
+
+    int getScanPeriodicAdvInt(int offset) {
+        return mBuffer.getShort(offset + OFF_SCAN_PERIODIC_ADV_INT) & 0xFFFF;
+    }
+
+    int getScanAddressType(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_ADDRESS_TYPE) & 0xFF;
+    }
+
+    int getScanPrimaryPhy(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_PRIMARY_PHY) & 0xFF;
+    }
+
+    int getScanSecondaryPhy(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_SECONDARY_PHY) & 0xFF;
+    }
+
+    int getScanAdvertisingSid(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_ADVERTISING_SID) & 0xFF;
+    }
+
+    int getScanTxPower(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_TX_POWER);
+    }
+
+    int getScanRssi(int offset) {
+        return mBuffer.get(offset + OFF_SCAN_RSSI);
+    }
+
+    /* The advertising data, copied as it ends up in a ScanResult */
+    byte[] getScanData(int offset) {
+        return getData(offset, mBuffer.getShort(offset + OFF_SCAN_DATA_LEN) & 0xFFFF);
+    }
+
+    int getNotifyConnId(int offset) {
+        return mBuffer.getInt(offset + OFF_NOTIFY_CONN_ID);
+    }
+
+    int getNotifyHandle(int offset) {
+        return mBuffer.getShort(offset + OFF_NOTIFY_HANDLE) & 0xFFFF;
+    }
+
+    boolean getNotifyIsNotify(int offset) {
+        return mBuffer.get(offset + OFF_NOTIFY_IS_NOTIFY) != 0;
+    }
+
+    byte[] getNotifyData(int offset) {
+        return getData(offset, mBuffer.getShort(offset + OFF_NOTIFY_DATA_LEN) & 0xFFFF);
+    }
+
+    private byte[] getData(int offset, int len) {
+        byte[] data = new byte[len];
+        // The JNI writes at absolute offsets, the position is only used here.
+        mBuffer.position(offset + HEADER_LEN);
+        mBuffer.get(data);
+        return data;
+    }
+
+    /* Writes a scan result record the way the JNI does */
+    @VisibleForTesting
+    int putScanResult(int offset, int eventType, int addressType, long address, int primaryPhy,
+            int secondaryPhy, int advertisingSid, int txPower, int rssi, int periodicAdvInt,
+            byte[] data) {
+        int len = (HEADER_LEN + data.length + 7) & ~7;
+        if (offset + len > mBuffer.capacity()) offset = 0;
+        mBuffer.putLong(offset + OFF_ADDRESS, address);
+        mBuffer.putShort(offset + OFF_SCAN_EVENT_TYPE, (short) eventType);
+        mBuffer.putShort(offset + OFF_SCAN_PERIODIC_ADV_INT, (short) periodicAdvInt);
+        mBuffer.putShort(offset + OFF_SCAN_DATA_LEN, (short) data.length);
+        mBuffer.put(offset + OFF_SCAN_ADDRESS_TYPE, (byte) addressType);
+        mBuffer.put(offset + OFF_SCAN_PRIMARY_PHY, (byte) primaryPhy);
+        mBuffer.put(offset + OFF_SCAN_SECONDARY_PHY, (byte) secondaryPhy);
+        mBuffer.put(offset + OFF_SCAN_ADVERTISING_SID, (byte) advertisingSid);
+        mBuffer.put(offset + OFF_SCAN_TX_POWER, (byte) txPower);
+        mBuffer.put(offset + OFF_SCAN_RSSI, (byte) rssi);
+        mBuffer.position(offset + HEADER_LEN);
+        mBuffer.put(data);
+        return offset;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "JNI event ring: " + mRecords + " records, "
+                + mAddressCount + " cached addresses, " + mAddressMisses + " address misses");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.IBluetoothGattCallback;
+import android.util.LongSparseArray;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+/**
+ * Routes notifications to clients without looking up the app and checking the GATT database
+ * for every notification.
+ *
+ * The route of a (connection ID, handle) pair holds the client callback and the outcome of the
+ * permission check. It is resolved on the first notification and kept until the connection or
+ * its database changes, or a client goes away. Routes are keyed by a primitive long so that
+ * looking one up does not allocate.
+ *
+ * A route is resolved outside of the router lock, so each invalidation bumps a generation
+ * number; a route resolved against an older generation is used once but not kept.
+ */
+class NotifyRouter {
+    static class Route {
+        final int connId;
+        final IBluetoothGattCallback callback;
+        final boolean permitted;
+
+        Route(int connId, IBluetoothGattCallback callback, boolean permitted) {
+            this.connId = connId;
+            this.callback = callback;
+            this.permitted = permitted;
+        }
+    }
+
+    private final LongSparseArray<Route> mRoutes = new LongSparseArray<Route>();
+    private int mGeneration;
+
+    /* totals, for dump */
+    private int mHits;
+    private int mMisses;
+    private int mStale;
+
+    private static long key(int connId, int handle) {
+        return ((long) connId << 32) | (handle & 0xFFFFFFFFL);
+    }
+
+    /* The route of |handle| on |connId|, or null if it has not been resolved yet */
+    synchronized Route get(int connId, int handle) {
+        Route route = mRoutes.get(key(connId, handle));
+        if (route == null) {
+            mMisses++;
+        } else {
+            mHits++;
+        }
+        return route;
+    }
+
+    /* Changes whenever routes are dropped, read it before resolving a route for put() */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns the route of |handle| on |connId|, and keeps it unless routes were dropped since
+     * |generation| was read.
+     */
+    synchronized Route put(int connId, int handle, IBluetoothGattCallback callback,
+            boolean permitted, int generation) {
+        Route route = new Route(connId, callback, permitted);
+        if (generation == mGeneration) {
+            mRoutes.put(key(connId, handle), route);
+        } else {
+            mStale++;
+        }
+        return route;
+    }
+
+    /* Drops the routes of |connId|, e.g. when it was closed or its database changed */
+    synchronized void invalidate(int connId) {
+        mGeneration++;
+        for (int i = mRoutes.size() - 1; i >= 0; i--) {
+            if (mRoutes.valueAt(i).connId == connId) mRoutes.removeAt(i);
+        }
+    }
+
+    /* Drops all routes, e.g. when a client was unregistered */
+    synchronized void invalidateAll() {
+        mGeneration++;
+        mRoutes.clear();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Notify routes: " + mRoutes.size() + ", " + mHits
+                + " hits, " + mMisses + " misses, " + mStale + " not kept");
+    }
+}
@@ -41,6 +41,13 @@ import java.util.UUID;
     boolean hasPeersMacAddressPermission;
     // Pre-M apps are allowed to get scan results even if location is disabled
     boolean legacyForegroundApp;
+    // Package and uid that started the scan, to follow their location app ops. The uid is -1
+    // when it is not known.
+    String callingPackage;
+    int callingUid = -1;
+    boolean locationOpAllowed = true;
+    // Outcome of the checks above and the location mode, kept by ScanPermissionState
+    volatile boolean scanResultPermitted;
 
     AppScanStats stats = null;
 
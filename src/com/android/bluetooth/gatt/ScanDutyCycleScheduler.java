@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides when the regular scan parameters of the controller have to change, and accounts the
+ * resulting duty cycle to the apps that scan.
+ *
+ * The controller runs one scan for all clients, so it is programmed for the scan mode of the
+ * most demanding client. A client that asks for more is served right away. When that client
+ * goes, the lower mode is only programmed after a hold time, so that a client that comes and
+ * goes does not cost two reprogrammings each time. The parameters are not programmed again
+ * when the controller already has them, including when scanning starts again after all clients
+ * stopped.
+ *
+ * Each app is accounted the time it scanned, the time the radio scanned in that time, and its
+ * share of that radio time with the other clients that are not opportunistic, as a power proxy.
+ *
+ * Only used from the scan manager thread.
+ */
+class ScanDutyCycleScheduler {
+    private static final String TAG = GattServiceConfig.TAG_PREFIX + "ScanDutyCycleScheduler";
+    private static final boolean DBG = GattServiceConfig.DBG;
+
+    /* No scan parameters need to be programmed */
+    static final int NO_CHANGE = Integer.MIN_VALUE;
+
+    private final long mDowngradeHoldMs;
+
+    /* What the controller is programmed with */
+    private int mMode = NO_CHANGE;
+    private int mWindowMs;
+    private int mIntervalMs;
+
+    /* Mode demanded at the last schedule(), NO_CHANGE when nobody scanned */
+    private int mDemandedMode = NO_CHANGE;
+    /* When a held back downgrade may be programmed, or 0 */
+    private long mDowngradeAt;
+
+    /* Clients that scan since |mSegmentStart| */
+    private List<ScanClient> mSegmentClients = new ArrayList<ScanClient>();
+    private boolean mSegmentScanning;
+    private long mSegmentStart;
+
+    /* totals, for dump */
+    private int mProgrammed;
+    private int mSkipped;
+    private int mHeld;
+
+    ScanDutyCycleScheduler(long downgradeHoldMs) {
+        mDowngradeHoldMs = downgradeHoldMs;
+    }
+
+    private static boolean isOpportunistic(ScanClient client) {
+        return client.settings.getScanMode() == ScanSettings.SCAN_MODE_OPPORTUNISTIC;
+    }
+
+    /* Mode of the most demanding client that is not opportunistic, or NO_CHANGE */
+    static int getDemandedMode(Collection<ScanClient> clients) {
+        int mode = NO_CHANGE;
+        for (ScanClient client : clients) {
+            // Scan modes increase with the duty cycle.
+            if (!isOpportunistic(client) && client.settings.getScanMode() > mode) {
+                mode = client.settings.getScanMode();
+            }
+        }
+        return mode;
+    }
+
+    /**
+     * Returns the scan mode to program for |clients|, or NO_CHANGE if the controller has the
+     * right parameters already or a downgrade is held back.
+     */
+    int schedule(Collection<ScanClient> clients, long now) {
+        int mode = getDemandedMode(clients);
+        boolean wasIdle = (mDemandedMode == NO_CHANGE);
+        mDemandedMode = mode;
+
+        if (mode == NO_CHANGE || mode == mMode) {
+            // Nothing scans, or the controller has what is needed. Stopped scans keep their
+            // parameters for the next start.
+            if (mode != NO_CHANGE) mSkipped++;
+            mDowngradeAt = 0;
+            return NO_CHANGE;
+        }
+
+        if (mMode != NO_CHANGE && mode < mMode && !wasIdle) {
+            if (mDowngradeAt == 0) {
+                mDowngradeAt = now + mDowngradeHoldMs;
+                mHeld++;
+            }
+            if (now < mDowngradeAt) {
+                if (DBG) Log.d(TAG, "schedule() - downgrade to " + mode + " held");
+                return NO_CHANGE;
+            }
+        }
+
+        mDowngradeAt = 0;
+        return mode;
+    }
+
+    /* Time until a held back downgrade is due, or 0 if there is none */
+    long getDowngradeDelayMs(long now) {
+        if (mDowngradeAt == 0) return 0;
+        return Math.max(1, mDowngradeAt - now);
+    }
+
+    /* The controller has been programmed for |mode| */
+    void onProgrammed(int mode, int windowMs, int intervalMs) {
+        mMode = mode;
+        mWindowMs = windowMs;
+        mIntervalMs = intervalMs;
+        mProgrammed++;
+    }
+
+    /**
+     * Accounts the time since the last call to the clients that scanned in it, and starts
+     * a new period with |clients|. Call before the parameters for |clients| are programmed.
+     */
+    void account(Collection<ScanClient> clients, long now) {
+        long elapsed = now - mSegmentStart;
+        if (elapsed > 0 && mSegmentStart > 0) {
+            long radioOn = 0;
+            if (mSegmentScanning && mIntervalMs > 0) {
+                radioOn = elapsed * mWindowMs / mIntervalMs;
+            }
+            int sharers = 0;
+            for (ScanClient client : mSegmentClients) {
+                if (!isOpportunistic(client)) sharers++;
+            }
+            for (ScanClient client : mSegmentClients) {
+                if (client.stats == null) continue;
+                long share = (sharers > 0 && !isOpportunistic(client)) ? radioOn / sharers : 0;
+                client.stats.addScanDuty(elapsed, radioOn, share);
+            }
+        }
+        mSegmentClients = new ArrayList<ScanClient>(clients);
+        mSegmentScanning = (getDemandedMode(clients) != NO_CHANGE);
+        mSegmentStart = now;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Scan parameters: mode " + mMode + ", window " + mWindowMs
+                + "ms, interval " + mIntervalMs + "ms, " + mProgrammed + " programmed, "
+                + mSkipped + " skipped, " + mHeld + " downgrades held");
+    }
+}
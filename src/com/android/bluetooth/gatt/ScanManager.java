@@ -69,6 +69,7 @@ public class ScanManager {
     private static final int MSG_STOP_BLE_SCAN = 1;
     private static final int MSG_FLUSH_BATCH_RESULTS = 2;
     private static final int MSG_SCAN_TIMEOUT = 3;
+    private static final int MSG_SCAN_PARAMS_DOWNGRADE = 4;
 
     private static final String ACTION_REFRESH_BATCHED_SCAN =
             "com.android.bluetooth.gatt.REFRESH_BATCHED_SCAN";
@@ -76,7 +77,11 @@ public class ScanManager {
     // Timeout for each controller operation.
     private static final int OPERATION_TIME_OUT_MILLIS = 500;
 
-    private int mLastConfiguredScanSetting = Integer.MIN_VALUE;
+    // Time the scan parameters are kept after the most demanding client stopped.
+    private static final long SCAN_PARAMS_DOWNGRADE_HOLD_MILLIS = 5000;
+
+    private final ScanDutyCycleScheduler mDutyCycleScheduler =
+            new ScanDutyCycleScheduler(SCAN_PARAMS_DOWNGRADE_HOLD_MILLIS);
     // Scan parameters for batch scan.
     private BatchScanParams mBatchScanParms;
 
@@ -172,9 +177,14 @@ public class ScanManager {
         sendMessage(MSG_FLUSH_BATCH_RESULTS, client);
     }
 
+    void dump(StringBuilder sb) {
+        mDutyCycleScheduler.dump(sb);
+    }
+
     void callbackDone(int scannerId, int status) {
         if (DBG) Log.d(TAG, "callback done for scannerId - " + scannerId + " status - " + status);
-        if (status == 0) {
+        // No latch when the results were not asked for, e.g. when they are replayed.
+        if (status == 0 && mLatch != null) {
             mLatch.countDown();
         }
         // TODO: add a callback for scan failure.
@@ -215,6 +225,9 @@ public class ScanManager {
                 case MSG_SCAN_TIMEOUT:
                     mScanNative.regularScanTimeout(client);
                     break;
+                case MSG_SCAN_PARAMS_DOWNGRADE:
+                    mScanNative.configureRegularScanParams();
+                    break;
                 default:
                     // Shouldn't happen.
                     Log.e(TAG, "received an unkown message : " + msg.what);
@@ -255,6 +268,8 @@ public class ScanManager {
                         // Only one timeout message should exist at any time
                         mHandler.sendMessageDelayed(msg, AppScanStats.SCAN_TIMEOUT_MS);
                     }
+                } else {
+                    mScanNative.updateScanDuty();
                 }
             }
         }
@@ -290,6 +305,8 @@ public class ScanManager {
 
                 if (!mScanNative.isOpportunisticScanClient(client)) {
                     mScanNative.configureRegularScanParams();
+                } else {
+                    mScanNative.updateScanDuty();
                 }
             } else if (mBatchClients.contains(client)) {
                 mScanNative.stopBatchScan(client);
@@ -468,39 +485,47 @@ public class ScanManager {
             if (DBG) {
                 Log.d(TAG, "configureRegularScanParams() - queue=" + mRegularScanClients.size());
             }
-            int curScanSetting = Integer.MIN_VALUE;
+            long now = SystemClock.elapsedRealtime();
+            mDutyCycleScheduler.account(mRegularScanClients, now);
+            int curScanSetting = mDutyCycleScheduler.schedule(mRegularScanClients, now);
+
+            if (mHandler != null) {
+                mHandler.removeMessages(MSG_SCAN_PARAMS_DOWNGRADE);
+                long downgradeDelay = mDutyCycleScheduler.getDowngradeDelayMs(now);
+                if (downgradeDelay > 0) {
+                    mHandler.sendEmptyMessageDelayed(MSG_SCAN_PARAMS_DOWNGRADE, downgradeDelay);
+                }
+            }
+
+            if (DBG) {
+                Log.d(TAG, "configureRegularScanParams() - ScanSetting Scan mode="
+                                + curScanSetting);
+            }
+
             ScanClient client = getAggressiveClient(mRegularScanClients);
-            if (client != null) {
-                curScanSetting = client.settings.getScanMode();
+            if (curScanSetting == ScanDutyCycleScheduler.NO_CHANGE || client == null) {
+                return;
             }
 
+            int scanWindow = getScanWindowMillis(client.settings);
+            int scanInterval = getScanIntervalMillis(client.settings);
+            mDutyCycleScheduler.onProgrammed(curScanSetting, scanWindow, scanInterval);
+            // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
+            scanWindow = Utils.millsToUnit(scanWindow);
+            scanInterval = Utils.millsToUnit(scanInterval);
+            gattClientScanNative(false);
             if (DBG) {
-                Log.d(TAG, "configureRegularScanParams() - ScanSetting Scan mode=" + curScanSetting
-                                + " mLastConfiguredScanSetting=" + mLastConfiguredScanSetting);
-            }
-
-            if (curScanSetting != Integer.MIN_VALUE &&
-                    curScanSetting != ScanSettings.SCAN_MODE_OPPORTUNISTIC) {
-                if (curScanSetting != mLastConfiguredScanSetting) {
-                    int scanWindow = getScanWindowMillis(client.settings);
-                    int scanInterval = getScanIntervalMillis(client.settings);
-                    // convert scanWindow and scanInterval from ms to LE scan units(0.625ms)
-                    scanWindow = Utils.millsToUnit(scanWindow);
-                    scanInterval = Utils.millsToUnit(scanInterval);
-                    gattClientScanNative(false);
-                    if (DBG) {
-                        Log.d(TAG, "configureRegularScanParams - scanInterval = " + scanInterval
-                                        + "configureRegularScanParams - scanWindow = "
-                                        + scanWindow);
-                    }
-                    gattSetScanParametersNative(client.scannerId, scanInterval, scanWindow);
-                    gattClientScanNative(true);
-                    mLastConfiguredScanSetting = curScanSetting;
-                }
-            } else {
-                mLastConfiguredScanSetting = curScanSetting;
-                if (DBG) Log.d(TAG, "configureRegularScanParams() - queue emtpy, scan stopped");
+                Log.d(TAG, "configureRegularScanParams - scanInterval = " + scanInterval
+                                + "configureRegularScanParams - scanWindow = "
+                                + scanWindow);
             }
+            gattSetScanParametersNative(client.scannerId, scanInterval, scanWindow);
+            gattClientScanNative(true);
+        }
+
+        /* Accounts the scan duty cycle after opportunistic clients came or went */
+        void updateScanDuty() {
+            mDutyCycleScheduler.account(mRegularScanClients, SystemClock.elapsedRealtime());
         }
 
         ScanClient getAggressiveClient(Set<ScanClient> cList) {
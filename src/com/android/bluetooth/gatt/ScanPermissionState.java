@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.app.AppOpsManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.Settings;
+import android.util.Log;
+
+import com.android.bluetooth.R;
+import com.android.bluetooth.btservice.ProfileService;
+
+/**
+ * Snapshot of the state that decides whether a scan client may receive scan results.
+ *
+ * The strict location check is read from the resources once, and the location mode is kept up
+ * to date by a settings observer, so a scan result does not cost a resource lookup and a
+ * settings query per client. The outcome is stored in each client, see {@link #update}, and is
+ * recomputed for all clients when the location mode changes, and for the clients of a package
+ * when its location app ops change. Until then a scan result only reads
+ * {@link ScanClient#scanResultPermitted}.
+ *
+ * The callback passed to the constructor is invoked on the looper given to it.
+ */
+class ScanPermissionState {
+    private static final String TAG = "ScanPermissionState";
+    private static final boolean DBG = GattServiceConfig.DBG;
+
+    /** Asks the owner to update its scan clients. */
+    interface Callback {
+        /* |packageName| is the package whose app ops changed, or null for all clients */
+        void onScanPermissionChanged(String packageName);
+    }
+
+    private final Context mContext;
+    private final AppOpsManager mAppOps;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final ContentObserver mLocationModeObserver;
+    private final AppOpsManager.OnOpChangedListener mOpChangedListener;
+
+    private volatile boolean mStrictLocationCheck;
+    private volatile boolean mLocationEnabled;
+    private boolean mStarted;
+
+    /* totals, for dump */
+    private volatile int mLocationModeChanges;
+    private volatile int mOpChanges;
+
+    ScanPermissionState(Context context, AppOpsManager appOps, Looper looper,
+            Callback callback) {
+        mContext = context;
+        mAppOps = appOps;
+        mHandler = new Handler(looper);
+        mCallback = callback;
+        mLocationModeObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                boolean enabled = readLocationEnabled();
+                if (enabled == mLocationEnabled) return;
+                if (DBG) Log.d(TAG, "location enabled: " + enabled);
+                mLocationEnabled = enabled;
+                mLocationModeChanges++;
+                if (mCallback != null) mCallback.onScanPermissionChanged(null);
+            }
+        };
+        mOpChangedListener = new AppOpsManager.OnOpChangedListener() {
+            @Override
+            public void onOpChanged(String op, final String packageName) {
+                // May be called on a binder thread
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mOpChanges++;
+                        if (mCallback != null) mCallback.onScanPermissionChanged(packageName);
+                    }
+                });
+            }
+        };
+    }
+
+    void start() {
+        if (mStarted) return;
+        mStarted = true;
+        mStrictLocationCheck = mContext.getResources().getBoolean(R.bool.strict_location_check);
+        mContext.getContentResolver().registerContentObserver(
+                Settings.Secure.getUriFor(Settings.Secure.LOCATION_MODE), false,
+                mLocationModeObserver);
+        mLocationEnabled = readLocationEnabled();
+        if (mAppOps != null) {
+            mAppOps.startWatchingMode(AppOpsManager.OP_COARSE_LOCATION, null,
+                    mOpChangedListener);
+            mAppOps.startWatchingMode(AppOpsManager.OP_FINE_LOCATION, null, mOpChangedListener);
+        }
+    }
+
+    void stop() {
+        if (!mStarted) return;
+        mStarted = false;
+        mContext.getContentResolver().unregisterContentObserver(mLocationModeObserver);
+        if (mAppOps != null) {
+            mAppOps.stopWatchingMode(mOpChangedListener);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    private boolean readLocationEnabled() {
+        ContentResolver resolver = mContext.getContentResolver();
+        return Settings.Secure.getInt(resolver, Settings.Secure.LOCATION_MODE,
+                Settings.Secure.LOCATION_MODE_OFF) != Settings.Secure.LOCATION_MODE_OFF;
+    }
+
+    /* True if results may be delivered to clients that rely on location permission */
+    boolean isLocationEnabled() {
+        return !mStrictLocationCheck || mLocationEnabled;
+    }
+
+    /**
+     * Recompute whether |client| may receive scan results. The location app ops of the client
+     * are read again when its package and uid are known.
+     */
+    void update(ScanClient client) {
+        if (mAppOps != null && client.callingPackage != null && client.callingUid >= 0) {
+            client.locationOpAllowed = isOpAllowed(AppOpsManager.OP_FINE_LOCATION, client)
+                    || isOpAllowed(AppOpsManager.OP_COARSE_LOCATION, client);
+        }
+        boolean locationEnabled = isLocationEnabled() || client.legacyForegroundApp;
+        client.scanResultPermitted = client.hasPeersMacAddressPermission
+                || (client.hasLocationPermission && client.locationOpAllowed && locationEnabled);
+    }
+
+    private boolean isOpAllowed(int op, ScanClient client) {
+        return mAppOps.checkOpNoThrow(op, client.callingUid, client.callingPackage)
+                == AppOpsManager.MODE_ALLOWED;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Scan permission: strict location check "
+                + mStrictLocationCheck + ", location enabled " + mLocationEnabled + ", "
+                + mLocationModeChanges + " location mode changes, " + mOpChanges
+                + " app op changes");
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hdp;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHealth;
+import android.bluetooth.BluetoothHealthAppConfiguration;
+
+import com.android.bluetooth.btservice.ProfileService;
+import com.android.bluetooth.hdp.HealthService.HealthChannel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Health channels known to the HealthService, indexed by channel id and by device.
+ *
+ * A gateway can aggregate many health devices with several data channels each, so the lookups
+ * done on every channel callback (by channel id, by device and state, by device and app config
+ * for the data channel fd) go through maps instead of scanning every channel. Each device keeps
+ * a count of its channels per state, which is all the device state broadcast needs to know.
+ * The registered applications are indexed by HAL app id as well.
+ *
+ * Channels are added, removed and change state on the HealthService handler thread; lookups
+ * may come from binder threads.
+ */
+class HealthChannelRegistry {
+    /* BluetoothHealth.STATE_CHANNEL_* values are 0..3 */
+    private static final int CHANNEL_STATE_COUNT = 4;
+
+    /** Channels of one remote device. */
+    private static class DeviceChannels {
+        final ArrayList<HealthChannel> mChannels = new ArrayList<HealthChannel>();
+        /* Most recently added channel per app config, the one whose fd is handed out */
+        final HashMap<BluetoothHealthAppConfiguration, HealthChannel> mMainChannels =
+                new HashMap<BluetoothHealthAppConfiguration, HealthChannel>();
+        final int[] mStateCounts = new int[CHANNEL_STATE_COUNT];
+    }
+
+    private final ConcurrentHashMap<Integer, HealthChannel> mById =
+            new ConcurrentHashMap<Integer, HealthChannel>();
+    private final ConcurrentHashMap<BluetoothDevice, DeviceChannels> mByDevice =
+            new ConcurrentHashMap<BluetoothDevice, DeviceChannels>();
+    private final ConcurrentHashMap<Integer, BluetoothHealthAppConfiguration> mAppConfigs =
+            new ConcurrentHashMap<Integer, BluetoothHealthAppConfiguration>();
+
+    /* Adds |chan|, which must already have its device, config and channel id */
+    void add(HealthChannel chan) {
+        DeviceChannels entry = mByDevice.get(chan.mDevice);
+        if (entry == null) {
+            entry = new DeviceChannels();
+            DeviceChannels previous = mByDevice.putIfAbsent(chan.mDevice, entry);
+            if (previous != null) entry = previous;
+        }
+        synchronized (entry) {
+            entry.mChannels.add(chan);
+            entry.mMainChannels.put(chan.mConfig, chan);
+            entry.mStateCounts[stateIndex(chan.mState)]++;
+        }
+        mById.put(chan.mChannelId, chan);
+    }
+
+    /* Removes |chan|, returns false if it was not in the registry */
+    boolean remove(HealthChannel chan) {
+        mById.remove(chan.mChannelId, chan);
+        DeviceChannels entry = mByDevice.get(chan.mDevice);
+        if (entry == null) return false;
+        synchronized (entry) {
+            if (!entry.mChannels.remove(chan)) return false;
+            entry.mStateCounts[stateIndex(chan.mState)]--;
+            if (entry.mMainChannels.get(chan.mConfig) == chan) {
+                entry.mMainChannels.remove(chan.mConfig);
+                // Fall back to the newest remaining channel of the same config
+                for (int i = entry.mChannels.size() - 1; i >= 0; i--) {
+                    HealthChannel other = entry.mChannels.get(i);
+                    if (other.mConfig.equals(chan.mConfig)) {
+                        entry.mMainChannels.put(other.mConfig, other);
+                        break;
+                    }
+                }
+            }
+            if (entry.mChannels.isEmpty()) {
+                mByDevice.remove(chan.mDevice, entry);
+            }
+        }
+        return true;
+    }
+
+    HealthChannel findById(int channelId) {
+        return mById.get(channelId);
+    }
+
+    /* Moves |chan| to |state|, keeping the per-device state counts in step */
+    void setState(HealthChannel chan, int state) {
+        DeviceChannels entry = mByDevice.get(chan.mDevice);
+        if (entry == null) {
+            chan.mState = state;
+            return;
+        }
+        synchronized (entry) {
+            if (mById.get(chan.mChannelId) == chan) {
+                entry.mStateCounts[stateIndex(chan.mState)]--;
+                entry.mStateCounts[stateIndex(state)]++;
+            }
+            chan.mState = state;
+        }
+    }
+
+    /* Returns true if |device| has a channel in one of |states| */
+    boolean hasChannelInStates(BluetoothDevice device, int[] states) {
+        DeviceChannels entry = mByDevice.get(device);
+        if (entry == null) return false;
+        synchronized (entry) {
+            for (int state : states) {
+                if (entry.mStateCounts[stateIndex(state)] > 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /* Returns the newest channel between |device| and |config|, or null */
+    HealthChannel findMainChannel(BluetoothDevice device, BluetoothHealthAppConfiguration config) {
+        if (device == null || config == null) return null;
+        DeviceChannels entry = mByDevice.get(device);
+        if (entry == null) return null;
+        synchronized (entry) {
+            return entry.mMainChannels.get(config);
+        }
+    }
+
+    /* Returns the number of channels of |device| */
+    int getChannelCount(BluetoothDevice device) {
+        DeviceChannels entry = mByDevice.get(device);
+        if (entry == null) return 0;
+        synchronized (entry) {
+            return entry.mChannels.size();
+        }
+    }
+
+    int size() {
+        return mById.size();
+    }
+
+    void putAppConfig(int appId, BluetoothHealthAppConfiguration config) {
+        mAppConfigs.put(appId, config);
+    }
+
+    void removeAppConfig(int appId) {
+        mAppConfigs.remove(appId);
+    }
+
+    BluetoothHealthAppConfiguration findAppConfig(int appId) {
+        return mAppConfigs.get(appId);
+    }
+
+    void clear() {
+        mById.clear();
+        mByDevice.clear();
+        mAppConfigs.clear();
+    }
+
+    private static int stateIndex(int state) {
+        if (state < 0 || state >= CHANNEL_STATE_COUNT) {
+            return BluetoothHealth.STATE_CHANNEL_DISCONNECTED;
+        }
+        return state;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "mHealthChannels: " + mById.size() + " channels, "
+                + mByDevice.size() + " devices, " + mAppConfigs.size() + " apps");
+        for (HealthChannel chan : mById.values()) {
+            ProfileService.println(sb, "  " + chan);
+        }
+    }
+}
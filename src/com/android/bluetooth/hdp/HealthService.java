@@ -43,8 +43,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -57,7 +57,7 @@ public class HealthService extends ProfileService {
     private static final boolean VDBG = false;
     private static final String TAG="HealthService";
 
-    private List<HealthChannel> mHealthChannels;
+    private HealthChannelRegistry mHealthChannels;
     private Map <BluetoothHealthAppConfiguration, AppInfo> mApps;
     private Map <BluetoothDevice, Integer> mHealthDevices;
     private boolean mNativeAvailable;
@@ -82,10 +82,10 @@ public class HealthService extends ProfileService {
     }
 
     protected boolean start() {
-        mHealthChannels = Collections.synchronizedList(new ArrayList<HealthChannel>());
+        mHealthChannels = new HealthChannelRegistry();
         mApps = Collections.synchronizedMap(new HashMap<BluetoothHealthAppConfiguration,
                                             AppInfo>());
-        mHealthDevices = Collections.synchronizedMap(new HashMap<BluetoothDevice, Integer>());
+        mHealthDevices = new ConcurrentHashMap<BluetoothDevice, Integer>();
 
         HandlerThread thread = new HandlerThread("BluetoothHdpHandler");
         thread.start();
@@ -177,6 +177,7 @@ public class HealthService extends ProfileService {
                             Log.e(TAG,"LinktoDeath Exception:"+e);
                         }
                         appInfo.mAppId = appId;
+                        mHealthChannels.putAppConfig(appId, appConfig);
                         callStatusCallback(appConfig,
                                            BluetoothHealth.APP_CONFIG_REGISTRATION_SUCCESS);
                     }
@@ -254,13 +255,15 @@ public class HealthService extends ProfileService {
                         }
                         appInfo.cleanup();
                         mApps.remove(appConfig);
+                        mHealthChannels.removeAppConfig(msg.arg1);
                     }
                 }
                     break;
                 case MESSAGE_CHANNEL_STATE_CALLBACK:
                 {
                     ChannelStateEvent channelStateEvent = (ChannelStateEvent) msg.obj;
-                    HealthChannel chan = findChannelById(channelStateEvent.mChannelId);
+                    HealthChannel chan =
+                            mHealthChannels.findById(channelStateEvent.mChannelId);
                     BluetoothHealthAppConfiguration appConfig =
                             findAppConfigByAppId(channelStateEvent.mAppId);
                     int newState;
@@ -293,7 +296,7 @@ public class HealthService extends ProfileService {
                     }
                     callHealthChannelCallback(chan.mConfig, chan.mDevice, newState,
                                               chan.mState, chan.mChannelFd, chan.mChannelId);
-                    chan.mState = newState;
+                    mHealthChannels.setState(chan, newState);
                     if (channelStateEvent.mState == CONN_STATE_DESTROYED) {
                         mHealthChannels.remove(chan);
                     }
@@ -470,12 +473,7 @@ public class HealthService extends ProfileService {
     ParcelFileDescriptor getMainChannelFd(BluetoothDevice device,
                                                  BluetoothHealthAppConfiguration config) {
         enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        HealthChannel healthChan = null;
-        for (HealthChannel chan: mHealthChannels) {
-            if (chan.mDevice.equals(device) && chan.mConfig.equals(config)) {
-                healthChan = chan;
-            }
-        }
+        HealthChannel healthChan = mHealthChannels.findMainChannel(device, config);
         if (healthChan == null) {
             Log.e(TAG, "No channel found for device: " + device + " config: " + config);
             return null;
@@ -548,13 +546,7 @@ public class HealthService extends ProfileService {
     }
 
     private BluetoothHealthAppConfiguration findAppConfigByAppId(int appId) {
-        BluetoothHealthAppConfiguration appConfig = null;
-        for (Entry<BluetoothHealthAppConfiguration, AppInfo> e : mApps.entrySet()) {
-            if (appId == (e.getValue()).mAppId) {
-                appConfig = e.getKey();
-                break;
-            }
-        }
+        BluetoothHealthAppConfiguration appConfig = mHealthChannels.findAppConfig(appId);
         if (appConfig == null) {
             Log.e(TAG, "No appConfig found for " + appId);
         }
@@ -675,7 +667,6 @@ public class HealthService extends ProfileService {
         if (currDeviceState == newDeviceState) return;
 
         boolean sendIntent = false;
-        List<HealthChannel> chan;
         switch (currDeviceState) {
             case BluetoothHealth.STATE_DISCONNECTED:
                 // there was no connection or connect/disconnect attemp with the remote device
@@ -689,10 +680,9 @@ public class HealthService extends ProfileService {
                     sendIntent = true;
                 } else {
                     // Channel got disconnected
-                    chan = findChannelByStates(device, new int [] {
+                    if (!mHealthChannels.hasChannelInStates(device, new int [] {
                             BluetoothHealth.STATE_CHANNEL_CONNECTING,
-                            BluetoothHealth.STATE_CHANNEL_DISCONNECTING});
-                    if (chan.isEmpty()) {
+                            BluetoothHealth.STATE_CHANNEL_DISCONNECTING})) {
                         sendIntent = true;
                     }
                 }
@@ -701,10 +691,9 @@ public class HealthService extends ProfileService {
                 // there was at least one connection
 
                 // Channel got disconnected or is in disconnecting state.
-                chan = findChannelByStates(device, new int [] {
+                if (!mHealthChannels.hasChannelInStates(device, new int [] {
                         BluetoothHealth.STATE_CHANNEL_CONNECTING,
-                        BluetoothHealth.STATE_CHANNEL_CONNECTED});
-                if (chan.isEmpty()) {
+                        BluetoothHealth.STATE_CHANNEL_CONNECTED})) {
                     sendIntent = true;
                 }
                 break;
@@ -713,10 +702,9 @@ public class HealthService extends ProfileService {
                 // We were disconnecting all the channels with the remote device
 
                 // Channel got disconnected.
-                chan = findChannelByStates(device, new int [] {
+                if (!mHealthChannels.hasChannelInStates(device, new int [] {
                         BluetoothHealth.STATE_CHANNEL_CONNECTING,
-                        BluetoothHealth.STATE_CHANNEL_DISCONNECTING});
-                if (chan.isEmpty()) {
+                        BluetoothHealth.STATE_CHANNEL_DISCONNECTING})) {
                     updateAndSendIntent(device, newDeviceState, currDeviceState);
                 }
                 break;
@@ -771,42 +759,27 @@ public class HealthService extends ProfileService {
     }
 
     private HealthChannel findChannelById(int id) {
-        for (HealthChannel chan : mHealthChannels) {
-            if (chan.mChannelId == id) return chan;
-        }
-        Log.e(TAG, "No channel found by id: " + id);
-        return null;
-    }
-
-    private List<HealthChannel> findChannelByStates(BluetoothDevice device, int[] states) {
-        List<HealthChannel> channels = new ArrayList<HealthChannel>();
-        for (HealthChannel chan: mHealthChannels) {
-            if (chan.mDevice.equals(device)) {
-                for (int state : states) {
-                    if (chan.mState == state) {
-                        channels.add(chan);
-                    }
-                }
-            }
-        }
-        return channels;
+        HealthChannel chan = mHealthChannels.findById(id);
+        if (chan == null) Log.e(TAG, "No channel found by id: " + id);
+        return chan;
     }
 
     private int getConnectionState(BluetoothDevice device) {
-        if (mHealthDevices.get(device) == null) {
+        Integer state = (device != null) ? mHealthDevices.get(device) : null;
+        if (state == null) {
             return BluetoothHealth.STATE_DISCONNECTED;
         }
-        return mHealthDevices.get(device);
+        return state;
     }
 
     List<BluetoothDevice> lookupHealthDevicesMatchingStates(int[] states) {
         List<BluetoothDevice> healthDevices = new ArrayList<BluetoothDevice>();
 
-        for (BluetoothDevice device: mHealthDevices.keySet()) {
-            int healthDeviceState = getConnectionState(device);
+        for (Map.Entry<BluetoothDevice, Integer> e : mHealthDevices.entrySet()) {
+            int healthDeviceState = e.getValue();
             for (int state : states) {
                 if (state == healthDeviceState) {
-                    healthDevices.add(device);
+                    healthDevices.add(e.getKey());
                     break;
                 }
             }
@@ -817,10 +790,7 @@ public class HealthService extends ProfileService {
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
-        println(sb, "mHealthChannels:");
-        for (HealthChannel channel : mHealthChannels) {
-            println(sb, "  " + channel);
-        }
+        mHealthChannels.dump(sb);
         println(sb, "mApps:");
         for (BluetoothHealthAppConfiguration conf : mApps.keySet()) {
             println(sb, "  " + conf + " : " + mApps.get(conf));
@@ -863,16 +833,16 @@ public class HealthService extends ProfileService {
        }
     }
 
-    private class HealthChannel {
-        private ParcelFileDescriptor mChannelFd;
-        private BluetoothDevice mDevice;
-        private BluetoothHealthAppConfiguration mConfig;
-        // BluetoothHealth channel state
-        private int mState;
-        private int mChannelType;
-        private int mChannelId;
+    static class HealthChannel {
+        ParcelFileDescriptor mChannelFd;
+        final BluetoothDevice mDevice;
+        final BluetoothHealthAppConfiguration mConfig;
+        // BluetoothHealth channel state, changed through HealthChannelRegistry.setState()
+        int mState;
+        int mChannelType;
+        int mChannelId;
 
-        private HealthChannel(BluetoothDevice device, BluetoothHealthAppConfiguration config,
+        HealthChannel(BluetoothDevice device, BluetoothHealthAppConfiguration config,
                       int channelType) {
              mChannelFd = null;
              mDevice = device;
@@ -881,6 +851,12 @@ public class HealthService extends ProfileService {
              mChannelType = channelType;
              mChannelId = -1;
         }
+
+        @Override
+        public String toString() {
+            return "id " + mChannelId + ", " + mDevice + ", " + mConfig.getName() + ", state "
+                    + mState + ", type " + mChannelType + (mChannelFd != null ? ", fd" : "");
+        }
     }
 
     // Channel state event from Hal
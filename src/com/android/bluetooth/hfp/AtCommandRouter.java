@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+
+/**
+ * Routes AT command events of the HFP state machine to their handlers.
+ *
+ * Stack events that are handled the same way in every connected state (AT+CIND, AT+CLCC,
+ * AT+COPS, AT+CHLD, AT+CNUM, AT+BIND, AT+BIEV, key press and unknown AT commands) are looked up
+ * in a table indexed by event type. Unknown AT commands are normalized into a reused buffer and
+ * matched against a prefix table without allocating. Every route keeps a latency histogram that
+ * is reported in dump, except untimed event routes whose handler records its own latency.
+ *
+ * The router is confined to the state machine thread.
+ */
+class AtCommandRouter {
+    private static final String TAG = "HeadsetAtCommandRouter";
+    private static final boolean DBG = false;
+
+    /* Command types of unknown AT commands, same values as AtPhonebook */
+    static final int TYPE_UNKNOWN = -1;
+    static final int TYPE_READ = 0;
+    static final int TYPE_SET = 1;
+    static final int TYPE_TEST = 2;
+
+    /* Offset of the command type for the 5 character commands (+CSCS, +CPBS, ...) */
+    private static final int COMMAND_TYPE_OFFSET = 5;
+
+    /* Upper bounds of the latency histogram buckets, in microseconds */
+    private static final long[] LATENCY_BUCKETS_US =
+            {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000};
+
+    /** Handles a stack event routed by event type. */
+    interface EventHandler {
+        void handle(HeadsetStateMachine.StackEvent event);
+    }
+
+    /** Handles an unknown AT command matched by prefix. */
+    interface CommandHandler {
+        /**
+         * @param args the normalized command without its prefix
+         * @param commandType one of TYPE_READ, TYPE_SET, TYPE_TEST or TYPE_UNKNOWN
+         */
+        void handle(String args, int commandType, BluetoothDevice device);
+    }
+
+    /** Handles unknown AT commands no prefix matched, e.g. vendor specific commands. */
+    interface FallbackHandler {
+        /** @return false if the command is not supported */
+        boolean handle(String atCommand, BluetoothDevice device);
+    }
+
+    private static class LatencyHistogram {
+        final String mName;
+        final long[] mCounts = new long[LATENCY_BUCKETS_US.length + 1];
+        long mTotal;
+        long mTotalUs;
+        long mMaxUs;
+
+        LatencyHistogram(String name) {
+            mName = name;
+        }
+
+        void record(long startNanos) {
+            long us = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS_US.length && us > LATENCY_BUCKETS_US[bucket]) {
+                bucket++;
+            }
+            mCounts[bucket]++;
+            mTotal++;
+            mTotalUs += us;
+            if (us > mMaxUs) mMaxUs = us;
+        }
+
+        void dump(StringBuilder sb) {
+            if (mTotal == 0) return;
+            StringBuilder line = new StringBuilder();
+            line.append("  ").append(mName).append(": ").append(mTotal).append(" calls, avg ")
+                    .append(mTotalUs / mTotal).append("us, max ").append(mMaxUs).append("us [");
+            for (int i = 0; i < mCounts.length; i++) {
+                if (i > 0) line.append(", ");
+                line.append(i < LATENCY_BUCKETS_US.length
+                        ? "<=" + LATENCY_BUCKETS_US[i] : ">" + LATENCY_BUCKETS_US[i - 1]);
+                line.append("us:").append(mCounts[i]);
+            }
+            line.append("]");
+            ProfileService.println(sb, line.toString());
+        }
+    }
+
+    private static class EventRoute {
+        final EventHandler mHandler;
+        final LatencyHistogram mLatency;
+
+        EventRoute(String name, EventHandler handler) {
+            mHandler = handler;
+            mLatency = name != null ? new LatencyHistogram(name) : null;
+        }
+    }
+
+    private static class CommandRoute {
+        final String mPrefix;
+        final CommandHandler mHandler;
+        final LatencyHistogram mLatency;
+
+        CommandRoute(String prefix, CommandHandler handler) {
+            mPrefix = prefix;
+            mHandler = handler;
+            mLatency = new LatencyHistogram(prefix);
+        }
+    }
+
+    private EventRoute[] mEventRoutes = new EventRoute[0];
+    private CommandRoute[] mCommandRoutes = new CommandRoute[0];
+    private FallbackHandler mFallback;
+    private final LatencyHistogram mFallbackLatency = new LatencyHistogram("vendor/unsupported");
+
+    /* Normalized unknown AT command, reused for every command */
+    private final StringBuilder mCommand = new StringBuilder(64);
+
+    /** Routes stack events of |eventType| to |handler|. */
+    void addEventRoute(int eventType, String name, EventHandler handler) {
+        setEventRoute(eventType, new EventRoute(name, handler));
+    }
+
+    /**
+     * Routes stack events of |eventType| to |handler| without timing them, for handlers that
+     * record their own latency, e.g. through dispatchUnknownAt.
+     */
+    void addUntimedEventRoute(int eventType, EventHandler handler) {
+        setEventRoute(eventType, new EventRoute(null, handler));
+    }
+
+    private void setEventRoute(int eventType, EventRoute route) {
+        if (eventType >= mEventRoutes.length) {
+            EventRoute[] routes = new EventRoute[eventType + 1];
+            System.arraycopy(mEventRoutes, 0, routes, 0, mEventRoutes.length);
+            mEventRoutes = routes;
+        }
+        mEventRoutes[eventType] = route;
+    }
+
+    /** Routes unknown AT commands starting with |prefix| (upper case) to |handler|. */
+    void addCommandRoute(String prefix, CommandHandler handler) {
+        ArrayList<CommandRoute> routes = new ArrayList<CommandRoute>(mCommandRoutes.length + 1);
+        CommandRoute route = new CommandRoute(prefix, handler);
+        // keep longer prefixes first so that they win over shorter ones
+        boolean added = false;
+        for (CommandRoute r : mCommandRoutes) {
+            if (!added && prefix.length() > r.mPrefix.length()) {
+                routes.add(route);
+                added = true;
+            }
+            routes.add(r);
+        }
+        if (!added) routes.add(route);
+        mCommandRoutes = routes.toArray(new CommandRoute[routes.size()]);
+    }
+
+    void setFallback(FallbackHandler fallback) {
+        mFallback = fallback;
+    }
+
+    /**
+     * Handles |event| if a route is registered for its type.
+     * @return false if the event type has no route
+     */
+    boolean dispatchEvent(HeadsetStateMachine.StackEvent event) {
+        if (event.type < 0 || event.type >= mEventRoutes.length) return false;
+        EventRoute route = mEventRoutes[event.type];
+        if (route == null) return false;
+        if (route.mLatency == null) {
+            route.mHandler.handle(event);
+            return true;
+        }
+        long start = SystemClock.elapsedRealtimeNanos();
+        route.mHandler.handle(event);
+        route.mLatency.record(start);
+        return true;
+    }
+
+    /**
+     * Normalizes |atString| and hands it to the matching command route, or to the fallback.
+     * @return false if neither a route nor the fallback accepted the command
+     */
+    boolean dispatchUnknownAt(String atString, BluetoothDevice device) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        normalize(atString, mCommand);
+        if (DBG) Log.d(TAG, "dispatchUnknownAt: " + mCommand);
+        for (CommandRoute route : mCommandRoutes) {
+            if (startsWith(mCommand, route.mPrefix)) {
+                route.mHandler.handle(mCommand.substring(route.mPrefix.length()),
+                        getCommandType(mCommand), device);
+                route.mLatency.record(start);
+                return true;
+            }
+        }
+        boolean handled = mFallback != null && mFallback.handle(mCommand.toString(), device);
+        mFallbackLatency.record(start);
+        return handled;
+    }
+
+    /*
+     * Upper cases |atString| and strips spaces outside of quoted sections, inserting a closing
+     * quote if one is missing.
+     */
+    static void normalize(String atString, StringBuilder out) {
+        out.setLength(0);
+        int length = atString.length();
+        for (int i = 0; i < length; i++) {
+            char c = atString.charAt(i);
+            if (c == '"') {
+                int j = atString.indexOf('"', i + 1); // search for closing "
+                if (j == -1) { // unmatched ", insert one.
+                    out.append(atString, i, length);
+                    out.append('"');
+                    break;
+                }
+                out.append(atString, i, j + 1);
+                i = j;
+            } else if (c != ' ') {
+                out.append(Character.toUpperCase(c));
+            }
+        }
+    }
+
+    /* Command type of a normalized 5 character command such as +CPBR=1,10 */
+    static int getCommandType(CharSequence atCommand) {
+        if (atCommand.length() <= COMMAND_TYPE_OFFSET) return TYPE_UNKNOWN;
+        char c = atCommand.charAt(COMMAND_TYPE_OFFSET);
+        if (c == '?') return TYPE_READ;
+        if (c != '=') return TYPE_UNKNOWN;
+        if (atCommand.length() > COMMAND_TYPE_OFFSET + 1
+                && atCommand.charAt(COMMAND_TYPE_OFFSET + 1) == '?') {
+            return TYPE_TEST;
+        }
+        return TYPE_SET;
+    }
+
+    private static boolean startsWith(CharSequence s, String prefix) {
+        int length = prefix.length();
+        if (s.length() < length) return false;
+        for (int i = 0; i < length; i++) {
+            if (s.charAt(i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "AT command latency:");
+        for (EventRoute route : mEventRoutes) {
+            if (route != null && route.mLatency != null) route.mLatency.dump(sb);
+        }
+        for (CommandRoute route : mCommandRoutes) {
+            route.mLatency.dump(sb);
+        }
+        mFallbackLatency.dump(sb);
+    }
+}
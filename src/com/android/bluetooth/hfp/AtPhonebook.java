@@ -17,27 +17,17 @@
 package com.android.bluetooth.hfp;
 
 import com.android.bluetooth.R;
-import com.android.internal.telephony.GsmAlphabet;
 
 import android.bluetooth.BluetoothDevice;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
-import android.net.Uri;
 import android.provider.CallLog.Calls;
-import android.provider.ContactsContract.CommonDataKinds;
-import android.provider.ContactsContract.CommonDataKinds.Phone;
-import android.provider.ContactsContract.PhoneLookup;
-import android.provider.ContactsContract.Contacts;
-import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
 import com.android.bluetooth.R;
 import com.android.bluetooth.Utils;
-import com.android.bluetooth.util.DevicePolicyUtils;
-
-import java.util.HashMap;
 
 /**
  * Helper for managing phonebook presentation over AT commands
@@ -47,55 +37,9 @@ public class AtPhonebook {
     private static final String TAG = "BluetoothAtPhonebook";
     private static final boolean DBG = false;
 
-    /** The projection to use when querying the call log database in response
-     *  to AT+CPBR for the MC, RC, and DC phone books (missed, received, and
-     *   dialed calls respectively)
-     */
-    private static final String[] CALLS_PROJECTION = new String[] {
-        Calls._ID, Calls.NUMBER, Calls.NUMBER_PRESENTATION
-    };
-
-    /** The projection to use when querying the contacts database in response
-     *   to AT+CPBR for the ME phonebook (saved phone numbers).
-     */
-    private static final String[] PHONES_PROJECTION = new String[] {
-        Phone._ID, Phone.DISPLAY_NAME, Phone.NUMBER, Phone.TYPE
-    };
-
-    /** Android supports as many phonebook entries as the flash can hold, but
-     *  BT periphals don't. Limit the number we'll report. */
-    private static final int MAX_PHONEBOOK_SIZE = 16384;
-
-    private final String SIM_URI = "content://icc/adn";
-
-    static final String[] SIM_PROJECTION = new String[] {
-            Contacts.DISPLAY_NAME,
-            CommonDataKinds.Phone.NUMBER,
-            CommonDataKinds.Phone.TYPE,
-            CommonDataKinds.Phone.LABEL
-    };
-
-    private static final int NAME_COLUMN_INDEX = 0;
-    private static final int NUMBER_COLUMN_INDEX = 1;
-    private static final int NUMBERTYPE_COLUMN_INDEX = 2;
-
-    private static final String OUTGOING_CALL_WHERE = Calls.TYPE + "=" + Calls.OUTGOING_TYPE;
-    private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
-    private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
-    private static final String VISIBLE_PHONEBOOK_WHERE = null;
-    private static final String VISIBLE_SIM_PHONEBOOK_WHERE = null;
-
     public static final int OUTGOING_IMS_TYPE = 1001;
     public static final int OUTGOING_WIFI_TYPE = 1004;
 
-    private class PhonebookResult {
-        public Cursor  cursor; // result set of last query
-        public int     numberColumn;
-        public int     numberPresentationColumn;
-        public int     typeColumn;
-        public int     nameColumn;
-    };
-
     private Context mContext;
     private ContentResolver mContentResolver;
     private HeadsetStateMachine mStateMachine;
@@ -109,8 +53,8 @@ public class AtPhonebook {
     private final String mPairingPackage;
     private static final String BLUETOOTH_ADMIN_PERM = android.Manifest.permission.BLUETOOTH_ADMIN;
 
-    private final HashMap<String, PhonebookResult> mPhonebooks =
-            new HashMap<String, PhonebookResult>(5);
+    /* Snapshots of the ME, SM, DC, RC and MC phonebooks */
+    private final AtPhonebookCache mPhonebookCache;
 
     final int TYPE_UNKNOWN = -1;
     final int TYPE_READ = 0;
@@ -122,11 +66,7 @@ public class AtPhonebook {
         mPairingPackage = context.getString(R.string.pairing_ui_package);
         mContentResolver = context.getContentResolver();
         mStateMachine = headsetState;
-        mPhonebooks.put("DC", new PhonebookResult());  // dialled calls
-        mPhonebooks.put("RC", new PhonebookResult());  // received calls
-        mPhonebooks.put("MC", new PhonebookResult());  // missed calls
-        mPhonebooks.put("ME", new PhonebookResult());  // mobile phonebook
-        mPhonebooks.put("SM", new PhonebookResult());  // SIM phonebook
+        mPhonebookCache = new AtPhonebookCache(context);
 
         mCurrentPhonebook = "ME";  // default to mobile phonebook
 
@@ -135,7 +75,7 @@ public class AtPhonebook {
     }
 
     public void cleanup() {
-        mPhonebooks.clear();
+        mPhonebookCache.cleanup();
     }
 
     /** Returns the last dialled number, or null if no numbers have been called */
@@ -233,15 +173,13 @@ public class AtPhonebook {
             case TYPE_READ: // Read
                 log("handleCpbsCommand - read command");
                 // Return current size and max size
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true);
+                AtPhonebookCache.Snapshot pbr = mPhonebookCache.getSnapshot(mCurrentPhonebook);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_SUPPORTED;
                     break;
                 }
-                int size = pbr.cursor.getCount();
+                int size = pbr.size();
                 atCommandResponse = "+CPBS: \"" + mCurrentPhonebook + "\"," + size + "," + getMaxPhoneBookSize(size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_TEST: // Test
@@ -260,12 +198,16 @@ public class AtPhonebook {
                 String pb = args[1].trim();
                 while (pb.endsWith("\"")) pb = pb.substring(0, pb.length() - 1);
                 while (pb.startsWith("\"")) pb = pb.substring(1, pb.length());
-                if (getPhonebookResult(pb, false) == null && !"SM".equals(pb)) {
+                if (!AtPhonebookCache.isKnownPhonebook(pb)) {
                    log("Dont know phonebook: '" + pb + "'");
                    atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                    break;
                 }
                 mCurrentPhonebook = pb;
+                // The SIM phonebook does not notify changes, re-read it on every selection
+                if ("SM".equals(pb)) mPhonebookCache.invalidate(pb);
+                // Most car kits read the phonebook right after selecting it
+                mPhonebookCache.prefetch(pb);
                 atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
                 break;
             case TYPE_UNKNOWN:
@@ -293,17 +235,15 @@ public class AtPhonebook {
                  */
                 log("handleCpbrCommand - test command");
                 int size;
-                PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+                AtPhonebookCache.Snapshot pbr = mPhonebookCache.getSnapshot(mCurrentPhonebook);
                 if (pbr == null) {
                     atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
                     mStateMachine.atResponseCodeNative(atCommandResult,
                        atCommandErrorCode, getByteAddress(remoteDevice));
                     break;
                 }
-                size = pbr.cursor.getCount();
+                size = pbr.size();
                 log("handleCpbrCommand - size = "+size);
-                pbr.cursor.close();
-                pbr.cursor = null;
                 if (size == 0) {
                     /* Sending "+CPBR: (1-0)" can confused some carkits, send "1-1" * instead */
                     size = 1;
@@ -392,112 +332,6 @@ public class AtPhonebook {
         }
     }
 
-    /** Get the most recent result for the given phone book,
-     *  with the cursor ready to go.
-     *  If force then re-query that phonebook
-     *  Returns null if the cursor is not ready
-     */
-    private synchronized PhonebookResult getPhonebookResult(String pb, boolean force) {
-        if (pb == null) {
-            return null;
-        }
-        PhonebookResult pbr = mPhonebooks.get(pb);
-        if (pbr == null) {
-            pbr = new PhonebookResult();
-        }
-        if (force || pbr.cursor == null) {
-            if (!queryPhonebook(pb, pbr)) {
-                return null;
-            }
-        }
-
-        return pbr;
-    }
-
-    private synchronized boolean queryPhonebook(String pb, PhonebookResult pbr) {
-        String where;
-        boolean ancillaryPhonebook = true;
-        boolean simPhonebook = false;
-
-        if (pb.equals("ME")) {
-            ancillaryPhonebook = false;
-            where = null;
-        } else if (pb.equals("DC")) {
-            where = OUTGOING_CALL_WHERE;
-        } else if (pb.equals("RC")) {
-            where = INCOMING_CALL_WHERE;
-        } else if (pb.equals("MC")) {
-            where = MISSED_CALL_WHERE;
-        } else if (pb.equals("SM")) {
-            ancillaryPhonebook = false;
-            simPhonebook = true;
-            where = VISIBLE_SIM_PHONEBOOK_WHERE;
-        } else {
-            return false;
-        }
-
-        if (pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
-        }
-
-        if (ancillaryPhonebook) {
-            pbr.cursor = mContentResolver.query(
-                    Calls.CONTENT_URI, CALLS_PROJECTION, where, null,
-                    Calls.DEFAULT_SORT_ORDER + " LIMIT " + MAX_PHONEBOOK_SIZE);
-            if (pbr.cursor == null) return false;
-
-            pbr.numberColumn = pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER);
-            pbr.numberPresentationColumn =
-                    pbr.cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION);
-            pbr.typeColumn = -1;
-            pbr.nameColumn = -1;
-        } else {
-            Log.i(TAG, "simPhonebook " + simPhonebook);
-            if (simPhonebook) {
-                final Uri mysimUri = Uri.parse(SIM_URI);
-                pbr.cursor = mContentResolver.query(mysimUri, SIM_PROJECTION,
-                        where, null, null);
-                Log.i(TAG, "querySIMcontactbook where " + where + " uri :" + mysimUri);
-                if (pbr.cursor == null) {
-                    Log.i(TAG, "querying phone contacts on sim returned null.");
-                    return false;
-                }
-
-                pbr.numberColumn = NUMBER_COLUMN_INDEX;
-                pbr.numberPresentationColumn = -1;
-                pbr.typeColumn = NUMBERTYPE_COLUMN_INDEX;
-                pbr.nameColumn = NAME_COLUMN_INDEX;
-                Log.i(TAG, " pbr.numberColumn: " + pbr.numberColumn +
-                           " pbr.numberPresentationColumn: " + pbr.numberPresentationColumn +
-                           " pbr.typeColumn: " + pbr.typeColumn +
-                           " pbr.nameColumn: " + pbr.nameColumn);
-            } else {
-                final Uri phoneContentUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
-                pbr.cursor = mContentResolver.query(phoneContentUri, PHONES_PROJECTION,
-                        where, null, Phone.NUMBER + " LIMIT " + MAX_PHONEBOOK_SIZE);
-                Log.i(TAG, "queryPhonebook where " + where + " uri :" + phoneContentUri);
-                if (pbr.cursor == null) {
-                    Log.i(TAG, "querying phone contacts on memory returned null.");
-                    return false;
-                }
-
-                Log.i(TAG, "Phone.NUMBER: " + Phone.NUMBER + " Phone.TYPE :" + Phone.TYPE +
-                              "Phone.DISPLAY_NAME :" + Phone.DISPLAY_NAME);
-                pbr.numberColumn = pbr.cursor.getColumnIndex(Phone.NUMBER);
-                pbr.numberPresentationColumn = -1;
-                pbr.typeColumn = pbr.cursor.getColumnIndex(Phone.TYPE);
-                pbr.nameColumn = pbr.cursor.getColumnIndex(Phone.DISPLAY_NAME);
-                Log.i(TAG, " pbr.numberColumn: " + pbr.numberColumn +
-                           " pbr.numberPresentationColumn: " + pbr.numberPresentationColumn +
-                           " pbr.typeColumn: " + pbr.typeColumn +
-                           " pbr.nameColumn: " + pbr.nameColumn);
-            }
-        }
-        Log.i(TAG, "Refreshed phonebook " + pb + " with " + pbr.cursor.getCount() + " results");
-        return true;
-    }
-
     synchronized void resetAtState() {
         mCharacterSet = "UTF-8";
         mCpbrIndex1 = mCpbrIndex2 = -1;
@@ -532,12 +366,9 @@ public class AtPhonebook {
         log("processCpbrCommand");
         int atCommandResult = HeadsetHalConstants.AT_RESPONSE_ERROR;
         int atCommandErrorCode = -1;
-        String atCommandResponse = null;
-        StringBuilder response = new StringBuilder();
-        String record;
 
         // Check phonebook
-        PhonebookResult pbr = getPhonebookResult(mCurrentPhonebook, true); //false);
+        AtPhonebookCache.Snapshot pbr = mPhonebookCache.getSnapshot(mCurrentPhonebook);
         if (pbr == null) {
             atCommandErrorCode = BluetoothCmeError.OPERATION_NOT_ALLOWED;
             return atCommandResult;
@@ -547,92 +378,20 @@ public class AtPhonebook {
         // Send OK instead of ERROR if these checks fail.
         // When we send error, certain kits like BMW disconnect the
         // Handsfree connection.
-        if (pbr.cursor.getCount() == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1  ||
-            mCpbrIndex2 > pbr.cursor.getCount() || mCpbrIndex1 > pbr.cursor.getCount()) {
+        int size = pbr.size();
+        if (size == 0 || mCpbrIndex1 <= 0 || mCpbrIndex2 < mCpbrIndex1  ||
+            mCpbrIndex2 > size || mCpbrIndex1 > size) {
             atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
             return atCommandResult;
         }
 
         // Process
         atCommandResult = HeadsetHalConstants.AT_RESPONSE_OK;
-        int errorDetected = -1; // no error
-        pbr.cursor.moveToPosition(mCpbrIndex1 - 1);
         log("mCpbrIndex1 = "+mCpbrIndex1+ " and mCpbrIndex2 = "+mCpbrIndex2);
+        byte[] address = getByteAddress(device);
         for (int index = mCpbrIndex1; index <= mCpbrIndex2; index++) {
-            String number = pbr.cursor.getString(pbr.numberColumn);
-            String name = null;
-            int type = -1;
-            if (pbr.nameColumn == -1 && number != null && number.length() > 0) {
-                // try caller id lookup
-                // TODO: This code is horribly inefficient. I saw it
-                // take 7 seconds to process 100 missed calls.
-                Cursor c = mContentResolver.query(
-                        Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
-                        new String[] {
-                                PhoneLookup.DISPLAY_NAME, PhoneLookup.TYPE
-                        }, null, null, null);
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        name = c.getString(0);
-                        type = c.getInt(1);
-                    }
-                    c.close();
-                }
-                if (name == null) log("Caller ID lookup failed for " + number);
-
-            } else if (pbr.nameColumn != -1) {
-                name = pbr.cursor.getString(pbr.nameColumn);
-            } else {
-                log("processCpbrCommand: empty name and number");
-            }
-            if (name == null) name = "";
-            name = name.trim();
-            if (name.length() > 28) name = name.substring(0, 28);
-
-            if (pbr.typeColumn != -1) {
-                type = pbr.cursor.getInt(pbr.typeColumn);
-                name = name + "/" + getPhoneType(type);
-            }
-
-            if (number == null) number = "";
-            int regionType = PhoneNumberUtils.toaFromString(number);
-
-            number = number.trim();
-            number = PhoneNumberUtils.stripSeparators(number);
-            if (number.length() > 30) number = number.substring(0, 30);
-            int numberPresentation = Calls.PRESENTATION_ALLOWED;
-            if (pbr.numberPresentationColumn != -1) {
-                numberPresentation = pbr.cursor.getInt(pbr.numberPresentationColumn);
-            }
-            if (numberPresentation != Calls.PRESENTATION_ALLOWED) {
-                number = "";
-                // TODO: there are 3 types of numbers should have resource
-                // strings for: unknown, private, and payphone
-                name = mContext.getString(R.string.unknownNumber);
-            }
-
-            // TODO(): Handle IRA commands. It's basically
-            // a 7 bit ASCII character set.
-            if (!name.equals("") && mCharacterSet.equals("GSM")) {
-                byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
-                if (nameByte == null) {
-                    name = mContext.getString(R.string.unknownNumber);
-                } else {
-                    name = new String(nameByte);
-                }
-            }
-
-            record = "+CPBR: " + index + ",\"" + number + "\"," + regionType + ",\"" + name + "\"";
-            record = record + "\r\n\r\n";
-            atCommandResponse = record;
-            mStateMachine.atResponseStringNative(atCommandResponse, getByteAddress(device));
-            if (!pbr.cursor.moveToNext()) {
-                break;
-            }
-        }
-        if(pbr != null && pbr.cursor != null) {
-            pbr.cursor.close();
-            pbr.cursor = null;
+            mStateMachine.atResponseStringNative(
+                    pbr.getResponseLine(index, mCharacterSet), address);
         }
         return atCommandResult;
     }
@@ -664,24 +423,6 @@ public class AtPhonebook {
         return permission;
     }
 
-    private static String getPhoneType(int type) {
-        switch (type) {
-            case Phone.TYPE_HOME:
-                return "H";
-            case Phone.TYPE_MOBILE:
-                return "M";
-            case Phone.TYPE_WORK:
-                return "W";
-            case Phone.TYPE_FAX_HOME:
-            case Phone.TYPE_FAX_WORK:
-                return "F";
-            case Phone.TYPE_OTHER:
-            case Phone.TYPE_CUSTOM:
-            default:
-                return "O";
-        }
-    }
-
     private static void log(String msg) {
         Log.d(TAG, msg);
     }
@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds;
+import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.provider.ContactsContract.Contacts;
+import android.provider.ContactsContract.PhoneLookup;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.bluetooth.R;
+import com.android.bluetooth.util.DevicePolicyUtils;
+import com.android.internal.telephony.GsmAlphabet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Snapshots of the phonebooks presented over AT+CPBS / AT+CPBR.
+ *
+ * A snapshot of a phonebook (ME, SM, DC, RC or MC) is built once, in the background when
+ * possible, and kept until the contacts or call log change. Caller id resolution for the call
+ * history phonebooks is done with a few batched exact queries, and only the numbers these do not
+ * resolve are looked up one by one with PhoneLookup's loose matching. The +CPBR response lines
+ * are encoded once per character set and reused.
+ */
+class AtPhonebookCache {
+    private static final String TAG = "BluetoothAtPhonebookCache";
+    private static final boolean DBG = false;
+
+    /** The projection to use when querying the call log database in response
+     *  to AT+CPBR for the MC, RC, and DC phone books (missed, received, and
+     *   dialed calls respectively)
+     */
+    private static final String[] CALLS_PROJECTION = new String[] {
+        Calls._ID, Calls.NUMBER, Calls.NUMBER_PRESENTATION, Calls.CACHED_NAME,
+        Calls.CACHED_NORMALIZED_NUMBER
+    };
+
+    /** The projection to use when querying the contacts database in response
+     *   to AT+CPBR for the ME phonebook (saved phone numbers).
+     */
+    private static final String[] PHONES_PROJECTION = new String[] {
+        Phone._ID, Phone.DISPLAY_NAME, Phone.NUMBER, Phone.TYPE
+    };
+
+    /** The projection to use when resolving call history numbers to contact names */
+    private static final String[] CALLER_ID_PROJECTION = new String[] {
+        Phone.NUMBER, Phone.NORMALIZED_NUMBER, Phone.DISPLAY_NAME
+    };
+
+    /** Android supports as many phonebook entries as the flash can hold, but
+     *  BT periphals don't. Limit the number we'll report. */
+    private static final int MAX_PHONEBOOK_SIZE = 16384;
+
+    /* Numbers resolved per caller id query, keeps the selection under the SQLite arg limit */
+    private static final int CALLER_ID_BATCH_SIZE = 400;
+
+    private static final String SIM_URI = "content://icc/adn";
+
+    static final String[] SIM_PROJECTION = new String[] {
+            Contacts.DISPLAY_NAME,
+            CommonDataKinds.Phone.NUMBER,
+            CommonDataKinds.Phone.TYPE,
+            CommonDataKinds.Phone.LABEL
+    };
+
+    private static final int NAME_COLUMN_INDEX = 0;
+    private static final int NUMBER_COLUMN_INDEX = 1;
+    private static final int NUMBERTYPE_COLUMN_INDEX = 2;
+
+    private static final String OUTGOING_CALL_WHERE = Calls.TYPE + "=" + Calls.OUTGOING_TYPE;
+    private static final String INCOMING_CALL_WHERE = Calls.TYPE + "=" + Calls.INCOMING_TYPE;
+    private static final String MISSED_CALL_WHERE = Calls.TYPE + "=" + Calls.MISSED_TYPE;
+    private static final String VISIBLE_SIM_PHONEBOOK_WHERE = null;
+
+    static final String CHARSET_GSM = "GSM";
+
+    private static final String[] CALL_HISTORY_PHONEBOOKS = {"DC", "RC", "MC"};
+
+    /** One +CPBR entry with name and number already trimmed and truncated. */
+    private static class Entry {
+        final String mNumber;
+        final int mRegionType;
+        final String mName;
+
+        Entry(String number, int regionType, String name) {
+            mNumber = number;
+            mRegionType = regionType;
+            mName = name;
+        }
+    }
+
+    /** Immutable content of one phonebook, with lazily encoded response lines. */
+    static class Snapshot {
+        private final Entry[] mEntries;
+        private final String mUnknownName;
+        private String[] mLines;
+        private String[] mGsmLines;
+
+        private Snapshot(List<Entry> entries, String unknownName) {
+            mEntries = entries.toArray(new Entry[entries.size()]);
+            mUnknownName = unknownName;
+        }
+
+        int size() {
+            return mEntries.length;
+        }
+
+        /** Returns the +CPBR response line for 1-based |index| in |characterSet|. */
+        synchronized String getResponseLine(int index, String characterSet) {
+            boolean gsm = CHARSET_GSM.equals(characterSet);
+            String[] lines = gsm ? mGsmLines : mLines;
+            if (lines == null) {
+                lines = new String[mEntries.length];
+                if (gsm) {
+                    mGsmLines = lines;
+                } else {
+                    mLines = lines;
+                }
+            }
+            String line = lines[index - 1];
+            if (line == null) {
+                Entry entry = mEntries[index - 1];
+                String name = entry.mName;
+                // TODO(): Handle IRA commands. It's basically
+                // a 7 bit ASCII character set.
+                if (gsm && !name.equals("")) {
+                    byte[] nameByte = GsmAlphabet.stringToGsm8BitPacked(name);
+                    name = (nameByte == null) ? mUnknownName : new String(nameByte);
+                }
+                line = "+CPBR: " + index + ",\"" + entry.mNumber + "\"," + entry.mRegionType
+                        + ",\"" + name + "\"\r\n\r\n";
+                lines[index - 1] = line;
+            }
+            return line;
+        }
+    }
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final HandlerThread mHandlerThread;
+    private final Handler mHandler;
+    private final ContentObserver mContactsObserver;
+    private final ContentObserver mCallLogObserver;
+
+    /* Serializes snapshot builds so a foreground request waits for a running prefetch */
+    private final Object mBuildLock = new Object();
+
+    /* Guarded by this */
+    private final HashMap<String, Snapshot> mSnapshots = new HashMap<String, Snapshot>(5);
+    private final HashMap<String, Integer> mGenerations = new HashMap<String, Integer>(5);
+
+    /* Set when changes cannot be observed, snapshots would never be invalidated then */
+    private volatile boolean mCachingDisabled;
+
+    AtPhonebookCache(Context context) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mHandlerThread = new HandlerThread("BluetoothAtPhonebookCache");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+
+        mContactsObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (DBG) log("contacts changed");
+                // names shown for the call history come from the contacts as well
+                invalidate("ME");
+                for (String pb : CALL_HISTORY_PHONEBOOKS) invalidate(pb);
+            }
+        };
+        mCallLogObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (DBG) log("call log changed");
+                for (String pb : CALL_HISTORY_PHONEBOOKS) invalidate(pb);
+            }
+        };
+        try {
+            mContentResolver.registerContentObserver(
+                    ContactsContract.AUTHORITY_URI, true, mContactsObserver);
+            mContentResolver.registerContentObserver(Calls.CONTENT_URI, true, mCallLogObserver);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Unable to observe phonebook changes, caching disabled", e);
+            mCachingDisabled = true;
+        }
+    }
+
+    void cleanup() {
+        mContentResolver.unregisterContentObserver(mContactsObserver);
+        mContentResolver.unregisterContentObserver(mCallLogObserver);
+        mHandlerThread.quitSafely();
+        synchronized (this) {
+            mSnapshots.clear();
+        }
+    }
+
+    static boolean isKnownPhonebook(String pb) {
+        return "ME".equals(pb) || "SM".equals(pb) || "DC".equals(pb) || "RC".equals(pb)
+                || "MC".equals(pb);
+    }
+
+    /** Drops the snapshot of |pb|, the next request rebuilds it. */
+    synchronized void invalidate(String pb) {
+        mSnapshots.remove(pb);
+        Integer generation = mGenerations.get(pb);
+        mGenerations.put(pb, (generation == null) ? 1 : generation + 1);
+    }
+
+    /** Builds the snapshot of |pb| on the background thread if it is not cached. */
+    void prefetch(final String pb) {
+        if (!isKnownPhonebook(pb) || mCachingDisabled) return;
+        synchronized (this) {
+            if (mSnapshots.containsKey(pb)) return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                getSnapshot(pb);
+            }
+        });
+    }
+
+    /**
+     * Returns the snapshot of |pb|, building it on the calling thread if needed.
+     * Returns null if the phonebook is unknown or cannot be queried.
+     */
+    Snapshot getSnapshot(String pb) {
+        if (!isKnownPhonebook(pb)) return null;
+        if (mCachingDisabled) return buildSnapshot(pb);
+        synchronized (mBuildLock) {
+            int generation;
+            synchronized (this) {
+                Snapshot snapshot = mSnapshots.get(pb);
+                if (snapshot != null) return snapshot;
+                Integer gen = mGenerations.get(pb);
+                generation = (gen == null) ? 0 : gen;
+            }
+            Snapshot snapshot = buildSnapshot(pb);
+            if (snapshot == null) return null;
+            synchronized (this) {
+                Integer gen = mGenerations.get(pb);
+                // only keep it if nothing changed while it was being built
+                if (generation == ((gen == null) ? 0 : gen)) mSnapshots.put(pb, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    private Snapshot buildSnapshot(String pb) {
+        long start = System.currentTimeMillis();
+        String unknownName = mContext.getString(R.string.unknownNumber);
+        List<Entry> entries;
+        if ("ME".equals(pb)) {
+            entries = queryContacts(DevicePolicyUtils.getEnterprisePhoneUri(mContext),
+                    PHONES_PROJECTION, null, Phone.NUMBER + " LIMIT " + MAX_PHONEBOOK_SIZE,
+                    -1);
+        } else if ("SM".equals(pb)) {
+            entries = queryContacts(Uri.parse(SIM_URI), SIM_PROJECTION,
+                    VISIBLE_SIM_PHONEBOOK_WHERE, null, NAME_COLUMN_INDEX);
+        } else if ("DC".equals(pb)) {
+            entries = queryCallHistory(OUTGOING_CALL_WHERE, unknownName);
+        } else if ("RC".equals(pb)) {
+            entries = queryCallHistory(INCOMING_CALL_WHERE, unknownName);
+        } else {
+            entries = queryCallHistory(MISSED_CALL_WHERE, unknownName);
+        }
+        if (entries == null) return null;
+        Log.i(TAG, "Built phonebook " + pb + " with " + entries.size() + " entries in "
+                + (System.currentTimeMillis() - start) + "ms");
+        return new Snapshot(entries, unknownName);
+    }
+
+    /*
+     * Reads a phonebook with name, number and type columns. |simColumns| is the name column
+     * index for the SIM phonebook whose columns are positional, or -1 to look them up.
+     */
+    private List<Entry> queryContacts(Uri uri, String[] projection, String where,
+            String sortOrder, int simColumns) {
+        Cursor cursor = mContentResolver.query(uri, projection, where, null, sortOrder);
+        if (cursor == null) {
+            Log.i(TAG, "querying phone contacts " + uri + " returned null.");
+            return null;
+        }
+        try {
+            int nameColumn;
+            int numberColumn;
+            int typeColumn;
+            if (simColumns != -1) {
+                nameColumn = NAME_COLUMN_INDEX;
+                numberColumn = NUMBER_COLUMN_INDEX;
+                typeColumn = NUMBERTYPE_COLUMN_INDEX;
+            } else {
+                nameColumn = cursor.getColumnIndex(Phone.DISPLAY_NAME);
+                numberColumn = cursor.getColumnIndex(Phone.NUMBER);
+                typeColumn = cursor.getColumnIndex(Phone.TYPE);
+            }
+            List<Entry> entries = new ArrayList<Entry>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(nameColumn);
+                if (name == null) name = "";
+                name = truncateName(name);
+                if (typeColumn != -1) {
+                    name = name + "/" + getPhoneType(cursor.getInt(typeColumn));
+                }
+                entries.add(newEntry(cursor.getString(numberColumn), name, false));
+            }
+            return entries;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private List<Entry> queryCallHistory(String where, String unknownName) {
+        Cursor cursor = mContentResolver.query(Calls.CONTENT_URI, CALLS_PROJECTION, where, null,
+                Calls.DEFAULT_SORT_ORDER + " LIMIT " + MAX_PHONEBOOK_SIZE);
+        if (cursor == null) return null;
+
+        int count = cursor.getCount();
+        String[] numbers = new String[count];
+        String[] normalizedNumbers = new String[count];
+        String[] names = new String[count];
+        int[] presentations = new int[count];
+        try {
+            int numberColumn = cursor.getColumnIndexOrThrow(Calls.NUMBER);
+            int presentationColumn = cursor.getColumnIndexOrThrow(Calls.NUMBER_PRESENTATION);
+            int cachedNameColumn = cursor.getColumnIndex(Calls.CACHED_NAME);
+            int normalizedColumn = cursor.getColumnIndex(Calls.CACHED_NORMALIZED_NUMBER);
+            for (int i = 0; i < count && cursor.moveToNext(); i++) {
+                numbers[i] = cursor.getString(numberColumn);
+                presentations[i] = cursor.getInt(presentationColumn);
+                if (cachedNameColumn != -1) names[i] = cursor.getString(cachedNameColumn);
+                if (normalizedColumn != -1) normalizedNumbers[i] = cursor.getString(normalizedColumn);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        resolveCallerIds(numbers, normalizedNumbers, names);
+
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int i = 0; i < count; i++) {
+            if (presentations[i] != Calls.PRESENTATION_ALLOWED) {
+                // TODO: there are 3 types of numbers should have resource
+                // strings for: unknown, private, and payphone
+                entries.add(newEntry(numbers[i], unknownName, true));
+            } else {
+                String name = (names[i] == null) ? "" : truncateName(names[i]);
+                entries.add(newEntry(numbers[i], name, false));
+            }
+        }
+        return entries;
+    }
+
+    /*
+     * Fills in |names| for call history rows the call log has no cached name for, resolving
+     * all remaining numbers against the contacts in a few batched queries. Numbers stored in
+     * another format, e.g. national rather than E.164, are then looked up with PhoneLookup.
+     */
+    private void resolveCallerIds(String[] numbers, String[] normalizedNumbers, String[] names) {
+        HashSet<String> lookups = new HashSet<String>();
+        for (int i = 0; i < numbers.length; i++) {
+            if (!TextUtils.isEmpty(names[i]) || TextUtils.isEmpty(numbers[i])) continue;
+            lookups.add(numbers[i]);
+            lookups.add(PhoneNumberUtils.normalizeNumber(numbers[i]));
+            if (!TextUtils.isEmpty(normalizedNumbers[i])) lookups.add(normalizedNumbers[i]);
+        }
+        if (lookups.isEmpty()) return;
+
+        HashMap<String, String> resolved = new HashMap<String, String>();
+        Uri phoneUri = DevicePolicyUtils.getEnterprisePhoneUri(mContext);
+        List<String> pending = new ArrayList<String>(lookups);
+        for (int start = 0; start < pending.size(); start += CALLER_ID_BATCH_SIZE) {
+            List<String> batch =
+                    pending.subList(start, Math.min(pending.size(), start + CALLER_ID_BATCH_SIZE));
+            StringBuilder in = new StringBuilder();
+            for (int i = 0; i < batch.size(); i++) in.append(i == 0 ? "?" : ",?");
+            String where = Phone.NUMBER + " IN (" + in + ") OR " + Phone.NORMALIZED_NUMBER
+                    + " IN (" + in + ")";
+            String[] args = new String[batch.size() * 2];
+            for (int i = 0; i < batch.size(); i++) {
+                args[i] = batch.get(i);
+                args[i + batch.size()] = batch.get(i);
+            }
+            Cursor c = mContentResolver.query(phoneUri, CALLER_ID_PROJECTION, where, args, null);
+            if (c == null) continue;
+            try {
+                while (c.moveToNext()) {
+                    String name = c.getString(2);
+                    if (name == null) continue;
+                    String number = c.getString(0);
+                    if (number != null) {
+                        resolved.put(number, name);
+                        resolved.put(PhoneNumberUtils.normalizeNumber(number), name);
+                    }
+                    String normalized = c.getString(1);
+                    if (normalized != null) resolved.put(normalized, name);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        // numbers already looked up with PhoneLookup, null values for failed lookups
+        HashMap<String, String> looked = new HashMap<String, String>();
+        for (int i = 0; i < numbers.length; i++) {
+            if (!TextUtils.isEmpty(names[i]) || TextUtils.isEmpty(numbers[i])) continue;
+            String name = resolved.get(numbers[i]);
+            if (name == null && normalizedNumbers[i] != null) {
+                name = resolved.get(normalizedNumbers[i]);
+            }
+            if (name == null) name = resolved.get(PhoneNumberUtils.normalizeNumber(numbers[i]));
+            if (name == null) {
+                if (looked.containsKey(numbers[i])) {
+                    name = looked.get(numbers[i]);
+                } else {
+                    name = lookupCallerId(numbers[i]);
+                    looked.put(numbers[i], name);
+                }
+            }
+            if (name == null && DBG) log("Caller ID lookup failed for " + numbers[i]);
+            names[i] = name;
+        }
+    }
+
+    /* Loose match of |number| against the contacts, or null if no contact has it */
+    private String lookupCallerId(String number) {
+        Cursor c = mContentResolver.query(
+                Uri.withAppendedPath(PhoneLookup.ENTERPRISE_CONTENT_FILTER_URI, number),
+                new String[] {PhoneLookup.DISPLAY_NAME}, null, null, null);
+        if (c == null) return null;
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static Entry newEntry(String number, String name, boolean hideNumber) {
+        if (number == null) number = "";
+        int regionType = PhoneNumberUtils.toaFromString(number);
+        if (hideNumber) return new Entry("", regionType, name);
+        number = number.trim();
+        number = PhoneNumberUtils.stripSeparators(number);
+        if (number.length() > 30) number = number.substring(0, 30);
+        return new Entry(number, regionType, name);
+    }
+
+    private static String truncateName(String name) {
+        name = name.trim();
+        if (name.length() > 28) name = name.substring(0, 28);
+        return name;
+    }
+
+    private static String getPhoneType(int type) {
+        switch (type) {
+            case Phone.TYPE_HOME:
+                return "H";
+            case Phone.TYPE_MOBILE:
+                return "M";
+            case Phone.TYPE_WORK:
+                return "W";
+            case Phone.TYPE_FAX_HOME:
+            case Phone.TYPE_FAX_WORK:
+                return "F";
+            case Phone.TYPE_OTHER:
+            case Phone.TYPE_CUSTOM:
+            default:
+                return "O";
+        }
+    }
+
+    private static void log(String msg) {
+        Log.d(TAG, msg);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Per-device records of the hands-free devices known to the HFP state machine.
+ *
+ * Keeps the connected devices in connection order, which the state machine relies on when it
+ * has to pick a device to drop or a new current device, together with an index so that
+ * membership and per-device lookups do not scan the list. Each device has one record holding
+ * its audio parameters, replacing the side maps that used to be kept in parallel with the
+ * connected list.
+ *
+ * Not thread safe, callers synchronize on the state machine like they did for the list.
+ */
+class HeadsetDeviceTable implements Iterable<BluetoothDevice> {
+    static final int NBS_CODEC = 1;
+    static final int WBS_CODEC = 2;
+
+    /** State kept for one hands-free device. */
+    static class Record {
+        final BluetoothDevice mDevice;
+        boolean mConnected;
+        /* Audio parameters, reset on every connection */
+        boolean mAudioParamsValid;
+        int mNrec;
+        int mCodec;
+
+        Record(BluetoothDevice device) {
+            mDevice = device;
+        }
+    }
+
+    private final ArrayList<BluetoothDevice> mConnected = new ArrayList<BluetoothDevice>();
+    private final List<BluetoothDevice> mConnectedView = Collections.unmodifiableList(mConnected);
+    private final HashMap<BluetoothDevice, Record> mRecords =
+            new HashMap<BluetoothDevice, Record>();
+
+    /* Returns true if |device| is in the connected list */
+    boolean contains(BluetoothDevice device) {
+        Record record = mRecords.get(device);
+        return record != null && record.mConnected;
+    }
+
+    /* Appends |device| to the connected list, no-op if it is already there */
+    boolean add(BluetoothDevice device) {
+        Record record = getOrCreateRecord(device);
+        if (record.mConnected) return false;
+        record.mConnected = true;
+        mConnected.add(device);
+        return true;
+    }
+
+    /* Removes |device| from the connected list and drops its record */
+    boolean remove(BluetoothDevice device) {
+        Record record = mRecords.remove(device);
+        if (record == null || !record.mConnected) return false;
+        mConnected.remove(device);
+        return true;
+    }
+
+    void clear() {
+        mConnected.clear();
+        mRecords.clear();
+    }
+
+    int size() {
+        return mConnected.size();
+    }
+
+    /* Returns the |index|th connected device, in connection order */
+    BluetoothDevice get(int index) {
+        return mConnected.get(index);
+    }
+
+    /* Returns the connected device equal to |device|, or null */
+    BluetoothDevice getConnected(BluetoothDevice device) {
+        Record record = mRecords.get(device);
+        return (record != null && record.mConnected) ? record.mDevice : null;
+    }
+
+    /* Read-only view of the connected devices, in connection order */
+    List<BluetoothDevice> getConnectedDevices() {
+        return mConnectedView;
+    }
+
+    @Override
+    public Iterator<BluetoothDevice> iterator() {
+        return mConnectedView.iterator();
+    }
+
+    /* Returns the record of |device|, or null if nothing is known about it */
+    Record getRecord(BluetoothDevice device) {
+        return mRecords.get(device);
+    }
+
+    /* Resets the audio parameters of |device| to the defaults of a new connection */
+    Record resetAudioParams(BluetoothDevice device) {
+        Record record = getOrCreateRecord(device);
+        record.mAudioParamsValid = true;
+        record.mNrec = 1;
+        record.mCodec = NBS_CODEC;
+        return record;
+    }
+
+    private Record getOrCreateRecord(BluetoothDevice device) {
+        Record record = mRecords.get(device);
+        if (record == null) {
+            record = new Record(device);
+            mRecords.put(device, record);
+        }
+        return record;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Devices: " + mConnected.size() + " connected, "
+                + mRecords.size() + " known");
+        for (Record record : mRecords.values()) {
+            ProfileService.println(sb, "  " + record.mDevice + ": connected " + record.mConnected
+                    + ", nrec " + record.mNrec + ", codec " + record.mCodec);
+        }
+    }
+}
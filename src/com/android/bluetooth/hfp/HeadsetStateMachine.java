@@ -154,18 +154,14 @@ final class HeadsetStateMachine extends StateMachine {
     // Max number of HF connections at any time
     private int max_hf_connections = 1;
 
-    private static final int NBS_CODEC = 1;
-    private static final int WBS_CODEC = 2;
+    // Upper bound of max_hf_connections, BTA_AG_MAX_NUM_CLIENTS in the stack
+    private static final int MAX_HF_CONNECTIONS_LIMIT = 6;
+
+    private static final int NBS_CODEC = HeadsetDeviceTable.NBS_CODEC;
+    private static final int WBS_CODEC = HeadsetDeviceTable.WBS_CODEC;
 
     // Keys are AT commands, and values are the company IDs.
     private static final Map<String, Integer> VENDOR_SPECIFIC_AT_COMMAND_COMPANY_ID;
-    // Hash for storing the Audio Parameters like NREC for connected headsets
-    private HashMap<BluetoothDevice, HashMap> mHeadsetAudioParam =
-            new HashMap<BluetoothDevice, HashMap>();
-    // Hash for storing the Remotedevice BRSF
-    private HashMap<BluetoothDevice, Integer> mHeadsetBrsf =
-            new HashMap<BluetoothDevice, Integer>();
-
     // Hash for storing the connection retry attempts from application
     private HashMap<BluetoothDevice, Integer> mRetryConnect =
                                             new HashMap<BluetoothDevice, Integer>();
@@ -198,6 +194,7 @@ final class HeadsetStateMachine extends StateMachine {
     private boolean mDialingOut = false;
     private AudioManager mAudioManager;
     private AtPhonebook mPhonebook;
+    private AtCommandRouter mAtCommandRouter;
 
     private static Intent sVoiceCommandIntent;
 
@@ -257,8 +254,9 @@ final class HeadsetStateMachine extends StateMachine {
     private BluetoothDevice mMultiDisconnectDevice = null;
     private BluetoothDevice mPendingScoForVRDevice = null;
 
-    // Multi HFP: Connected devices list holds all currently connected headsets
-    private ArrayList<BluetoothDevice> mConnectedDevicesList = new ArrayList<BluetoothDevice>();
+    // Multi HFP: holds all currently connected headsets, in connection order, and the
+    // per-device audio parameters
+    private HeadsetDeviceTable mConnectedDevicesList = new HeadsetDeviceTable();
 
     static {
         classInitNative();
@@ -285,6 +283,7 @@ final class HeadsetStateMachine extends StateMachine {
         mDialingOut = false;
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
         mPhonebook = new AtPhonebook(mService, this);
+        mAtCommandRouter = createAtCommandRouter();
         mPhoneState = new HeadsetPhoneState(context, this);
         mAudioState = BluetoothHeadset.STATE_AUDIO_DISCONNECTED;
         mAdapter = BluetoothAdapter.getDefaultAdapter();
@@ -296,7 +295,7 @@ final class HeadsetStateMachine extends StateMachine {
 
         int max_hfp_clients = SystemProperties.getInt("persist.bt.max.hs.connections", 1);
         if (max_hfp_clients >= 2)
-            max_hf_connections = 2;
+            max_hf_connections = Math.min(max_hfp_clients, MAX_HF_CONNECTIONS_LIMIT);
         Log.d(TAG, "max_hf_connections = " + max_hf_connections);
         Log.d(TAG,
                 "in-band_ringing_support = " + BluetoothHeadset.isInbandRingingSupported(mService));
@@ -396,12 +395,6 @@ final class HeadsetStateMachine extends StateMachine {
         if (mPhonebook != null) {
             mPhonebook.cleanup();
         }
-        if (mHeadsetAudioParam != null) {
-            mHeadsetAudioParam.clear();
-        }
-        if (mHeadsetBrsf != null) {
-            mHeadsetBrsf.clear();
-        }
         if (mConnectedDevicesList != null) {
             mConnectedDevicesList.clear();
         }
@@ -427,6 +420,9 @@ final class HeadsetStateMachine extends StateMachine {
         ProfileService.println(sb, "StateMachine: " + this.toString());
         ProfileService.println(sb, "mPhoneState: " + mPhoneState);
         ProfileService.println(sb, "mAudioState: " + mAudioState);
+        ProfileService.println(sb, "max_hf_connections: " + max_hf_connections);
+        mConnectedDevicesList.dump(sb);
+        mAtCommandRouter.dump(sb);
     }
 
     private class Disconnected extends State {
@@ -709,8 +705,6 @@ final class HeadsetStateMachine extends StateMachine {
                         synchronized (HeadsetStateMachine.this) {
                             processWBSEvent(0, device); /* disable WBS audio parameters */
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
                             Log.d(TAG, "device " + device.getAddress()
                                             + " is removed in Pending state");
                         }
@@ -1194,35 +1188,10 @@ final class HeadsetStateMachine extends StateMachine {
                             Log.d(TAG, "EVENT_TYPE_WBS codec is " + event.valueInt);
                             processWBSEvent(event.valueInt, event.device);
                             break;
-                        case EVENT_TYPE_AT_CHLD:
-                            processAtChld(event.valueInt, event.device);
-                            break;
-                        case EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST:
-                            processSubscriberNumberRequest(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CIND:
-                            processAtCind(event.device);
-                            break;
-                        case EVENT_TYPE_AT_COPS:
-                            processAtCops(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CLCC:
-                            processAtClcc(event.device);
-                            break;
-                        case EVENT_TYPE_UNKNOWN_AT:
-                            processUnknownAt(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_KEY_PRESSED:
-                            processKeyPressed(event.device);
-                            break;
-                        case EVENT_TYPE_BIND:
-                            processAtBind(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_BIEV:
-                            processAtBiev(event.valueInt, event.valueInt2, event.device);
-                            break;
                         default:
-                            Log.e(TAG, "Unknown stack event: " + event.type);
+                            if (!mAtCommandRouter.dispatchEvent(event)) {
+                                Log.e(TAG, "Unknown stack event: " + event.type);
+                            }
                             break;
                     }
                     break;
@@ -1242,8 +1211,6 @@ final class HeadsetStateMachine extends StateMachine {
                         processWBSEvent(0, device); /* disable WBS audio parameters */
                         synchronized (HeadsetStateMachine.this) {
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
                             Log.d(TAG, "device " + device.getAddress()
                                             + " is removed in Connected state");
 
@@ -1722,35 +1689,10 @@ final class HeadsetStateMachine extends StateMachine {
                             Log.d(TAG, "EVENT_TYPE_WBS codec is " + event.valueInt);
                             processWBSEvent(event.valueInt, event.device);
                             break;
-                        case EVENT_TYPE_AT_CHLD:
-                            processAtChld(event.valueInt, event.device);
-                            break;
-                        case EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST:
-                            processSubscriberNumberRequest(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CIND:
-                            processAtCind(event.device);
-                            break;
-                        case EVENT_TYPE_AT_COPS:
-                            processAtCops(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CLCC:
-                            processAtClcc(event.device);
-                            break;
-                        case EVENT_TYPE_UNKNOWN_AT:
-                            processUnknownAt(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_KEY_PRESSED:
-                            processKeyPressed(event.device);
-                            break;
-                        case EVENT_TYPE_BIND:
-                            processAtBind(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_BIEV:
-                            processAtBiev(event.valueInt, event.valueInt2, event.device);
-                            break;
                         default:
-                            Log.e(TAG, "Unknown stack event: " + event.type);
+                            if (!mAtCommandRouter.dispatchEvent(event)) {
+                                Log.e(TAG, "Unknown stack event: " + event.type);
+                            }
                             break;
                     }
                     break;
@@ -1775,8 +1717,6 @@ final class HeadsetStateMachine extends StateMachine {
                         synchronized (HeadsetStateMachine.this) {
                             processWBSEvent(0, device); /* disable WBS audio parameters */
                             mConnectedDevicesList.remove(device);
-                            mHeadsetAudioParam.remove(device);
-                            mHeadsetBrsf.remove(device);
                             Log.d(TAG, "device " + device.getAddress()
                                             + " is removed in AudioOn state");
                             broadcastConnectionState(device, BluetoothProfile.STATE_DISCONNECTED,
@@ -2160,35 +2100,10 @@ final class HeadsetStateMachine extends StateMachine {
                         case EVENT_TYPE_NOICE_REDUCTION:
                             processNoiceReductionEvent(event.valueInt, event.device);
                             break;
-                        case EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST:
-                            processSubscriberNumberRequest(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CIND:
-                            processAtCind(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CHLD:
-                            processAtChld(event.valueInt, event.device);
-                            break;
-                        case EVENT_TYPE_AT_COPS:
-                            processAtCops(event.device);
-                            break;
-                        case EVENT_TYPE_AT_CLCC:
-                            processAtClcc(event.device);
-                            break;
-                        case EVENT_TYPE_UNKNOWN_AT:
-                            processUnknownAt(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_KEY_PRESSED:
-                            processKeyPressed(event.device);
-                            break;
-                        case EVENT_TYPE_BIND:
-                            processAtBind(event.valueString, event.device);
-                            break;
-                        case EVENT_TYPE_BIEV:
-                            processAtBiev(event.valueInt, event.valueInt2, event.device);
-                            break;
                         default:
-                            Log.e(TAG, "Unexpected event: " + event.type);
+                            if (!mAtCommandRouter.dispatchEvent(event)) {
+                                Log.e(TAG, "Unexpected event: " + event.type);
+                            }
                             break;
                     }
                     break;
@@ -2212,8 +2127,6 @@ final class HeadsetStateMachine extends StateMachine {
 
                             synchronized (HeadsetStateMachine.this) {
                                 mConnectedDevicesList.remove(device);
-                                mHeadsetAudioParam.remove(device);
-                                mHeadsetBrsf.remove(device);
                                 Log.d(TAG, "device " + device.getAddress()
                                                 + " is removed in MultiHFPending state");
                                 broadcastConnectionState(device,
@@ -2253,8 +2166,6 @@ final class HeadsetStateMachine extends StateMachine {
                             /* Another HF disconnected when one HF is connecting */
                             synchronized (HeadsetStateMachine.this) {
                                 mConnectedDevicesList.remove(device);
-                                mHeadsetAudioParam.remove(device);
-                                mHeadsetBrsf.remove(device);
                                 Log.d(TAG, "device " + device.getAddress()
                                                 + " is removed in MultiHFPending state");
                             }
@@ -2878,13 +2789,7 @@ final class HeadsetStateMachine extends StateMachine {
 
     private BluetoothDevice getMatchingDevice(BluetoothDevice device) {
         Log.d(TAG, "Enter getMatchingDevice()");
-        for (BluetoothDevice matchingDevice : mConnectedDevicesList) {
-            if (matchingDevice.equals(device)) {
-                return matchingDevice;
-            }
-        }
-        Log.d(TAG, "Exit getMatchingDevice()");
-        return null;
+        return mConnectedDevicesList.getConnected(device);
     }
 
     // This method does not check for error conditon (newState == prevState)
@@ -2945,14 +2850,11 @@ final class HeadsetStateMachine extends StateMachine {
     private void configAudioParameters(BluetoothDevice device) {
         Log.d(TAG, "Enter configAudioParameters()");
         // Reset NREC on connect event. Headset will override later
-        HashMap<String, Integer> AudioParamConfig = new HashMap<String, Integer>();
-        AudioParamConfig.put("NREC", 1);
-        AudioParamConfig.put("codec", NBS_CODEC);
-        mHeadsetAudioParam.put(device, AudioParamConfig);
+        HeadsetDeviceTable.Record record = mConnectedDevicesList.resetAudioParams(device);
         mAudioManager.setParameters(
                 HEADSET_NAME + "=" + getCurrentDeviceName(device) + ";" + HEADSET_NREC + "=on");
         Log.d(TAG, "configAudioParameters for device:" + device + " are: nrec = "
-                        + AudioParamConfig.get("NREC"));
+                        + record.mNrec);
         Log.d(TAG, "Exit configAudioParameters()");
     }
 
@@ -2962,12 +2864,10 @@ final class HeadsetStateMachine extends StateMachine {
         // 2. update headset name
         int mNrec = 0;
         int mCodec = 0;
-        HashMap<String, Integer> AudioParam = mHeadsetAudioParam.get(device);
-        if (AudioParam != null && !AudioParam.isEmpty()) {
-            if (AudioParam.containsKey("codec"))
-                mCodec =  AudioParam.get("codec");
-            if (AudioParam.containsKey("NREC"))
-                mNrec = AudioParam.get("NREC");
+        HeadsetDeviceTable.Record record = mConnectedDevicesList.getRecord(device);
+        if (record != null && record.mAudioParamsValid) {
+            mCodec = record.mCodec;
+            mNrec = record.mNrec;
         } else {
             Log.e(TAG, "setAudioParameters: AudioParam not found");
         }
@@ -2990,51 +2890,6 @@ final class HeadsetStateMachine extends StateMachine {
         Log.d(TAG, "Exit setAudioParameters()");
     }
 
-    private String parseUnknownAt(String atString) {
-        Log.d(TAG, "Enter parseUnknownAt()");
-        StringBuilder atCommand = new StringBuilder(atString.length());
-        String result = null;
-
-        for (int i = 0; i < atString.length(); i++) {
-            char c = atString.charAt(i);
-            if (c == '"') {
-                int j = atString.indexOf('"', i + 1); // search for closing "
-                if (j == -1) { // unmatched ", insert one.
-                    atCommand.append(atString.substring(i, atString.length()));
-                    atCommand.append('"');
-                    break;
-                }
-                atCommand.append(atString.substring(i, j + 1));
-                i = j;
-            } else if (c != ' ') {
-                atCommand.append(Character.toUpperCase(c));
-            }
-        }
-        result = atCommand.toString();
-        Log.d(TAG, "Exit parseUnknownAt()");
-        return result;
-    }
-
-    private int getAtCommandType(String atCommand) {
-        Log.d(TAG, "Enter getAtCommandType()");
-        int commandType = mPhonebook.TYPE_UNKNOWN;
-        String atString = null;
-        atCommand = atCommand.trim();
-        if (atCommand.length() > 5) {
-            atString = atCommand.substring(5);
-            if (atString.startsWith("?")) // Read
-                commandType = mPhonebook.TYPE_READ;
-            else if (atString.startsWith("=?")) // Test
-                commandType = mPhonebook.TYPE_TEST;
-            else if (atString.startsWith("=")) // Set
-                commandType = mPhonebook.TYPE_SET;
-            else
-                commandType = mPhonebook.TYPE_UNKNOWN;
-        }
-        Log.d(TAG, "Exit getAtCommandType()");
-        return commandType;
-    }
-
     /* Method to check if Virtual Call in Progress */
     private boolean isVirtualCallInProgress() {
         Log.d(TAG, "isVirtualCallInProgress()");
@@ -3542,13 +3397,10 @@ final class HeadsetStateMachine extends StateMachine {
     // 0 disable noice reduction
     private void processNoiceReductionEvent(int enable, BluetoothDevice device) {
         Log.d(TAG, "Enter processNoiceReductionEvent()");
-        HashMap<String, Integer> AudioParamNrec = mHeadsetAudioParam.get(device);
-        if (AudioParamNrec != null && !AudioParamNrec.isEmpty()) {
-            if (enable == 1)
-                AudioParamNrec.put("NREC", 1);
-            else
-                AudioParamNrec.put("NREC", 0);
-            log("NREC value for device :" + device + " is: " + AudioParamNrec.get("NREC"));
+        HeadsetDeviceTable.Record record = mConnectedDevicesList.getRecord(device);
+        if (record != null && record.mAudioParamsValid) {
+            record.mNrec = (enable == 1) ? 1 : 0;
+            log("NREC value for device :" + device + " is: " + record.mNrec);
         } else {
             Log.e(TAG, "processNoiceReductionEvent: AudioParamNrec is null ");
         }
@@ -3564,9 +3416,9 @@ final class HeadsetStateMachine extends StateMachine {
     // 1 - NBS on
     private void processWBSEvent(int enable, BluetoothDevice device) {
         Log.d(TAG, "Enter processWBSEvent()");
-        HashMap<String, Integer> AudioParamCodec = mHeadsetAudioParam.get(device);
-        if (AudioParamCodec != null && !AudioParamCodec.isEmpty()) {
-            AudioParamCodec.put("codec", enable);
+        HeadsetDeviceTable.Record record = mConnectedDevicesList.getRecord(device);
+        if (record != null && record.mAudioParamsValid) {
+            record.mCodec = enable;
         } else {
             Log.e(TAG,"processWBSEvent: AudioParamNrec is null ");
         }
@@ -3644,7 +3496,7 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private void processAtCind(BluetoothDevice device) {
-        Log.d(TAG, "Enter processAtCind()");
+        if (DBG) Log.d(TAG, "Enter processAtCind()");
         int call, call_setup;
 
         if (device == null) {
@@ -3667,7 +3519,7 @@ final class HeadsetStateMachine extends StateMachine {
         cindResponseNative(mPhoneState.getService(), call, call_setup, mPhoneState.getCallState(),
                 mPhoneState.getSignal(), mPhoneState.getRoam(), mPhoneState.getBatteryCharge(),
                 getByteAddress(device));
-        Log.d(TAG, "Exit processAtCind()");
+        if (DBG) Log.d(TAG, "Exit processAtCind()");
     }
 
     private void processAtCops(BluetoothDevice device) {
@@ -3696,7 +3548,7 @@ final class HeadsetStateMachine extends StateMachine {
     }
 
     private void processAtClcc(BluetoothDevice device) {
-        Log.d(TAG, "Enter processAtClcc()");
+        if (DBG) Log.d(TAG, "Enter processAtClcc()");
         if (device == null) {
             Log.w(TAG, "processAtClcc device is null");
             return;
@@ -3721,7 +3573,7 @@ final class HeadsetStateMachine extends StateMachine {
                 } else if (!mPhoneProxy.listCurrentCalls()) {
                     clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
                 } else {
-                    Log.d(TAG, "Starting CLCC response timeout for device: " + device);
+                    if (DBG) Log.d(TAG, "Starting CLCC response timeout for device: " + device);
                     Message m = obtainMessage(CLCC_RSP_TIMEOUT);
                     m.obj = getMatchingDevice(device);
                     sendMessageDelayed(m, CLCC_RSP_TIMEOUT_VALUE);
@@ -3734,7 +3586,7 @@ final class HeadsetStateMachine extends StateMachine {
             Log.e(TAG, "Handsfree phone proxy null for At+CLCC");
             clccResponseNative(0, 0, 0, 0, false, "", 0, getByteAddress(device));
         }
-        Log.d(TAG, "Exit processAtClcc()");
+        if (DBG) Log.d(TAG, "Exit processAtClcc()");
     }
 
     private void processAtCscs(String atString, int type, BluetoothDevice device) {
@@ -3852,28 +3704,116 @@ final class HeadsetStateMachine extends StateMachine {
         return true;
     }
 
+    /*
+     * Builds the routes of the stack events that are handled the same way in every connected
+     * state, and the prefix table of the unknown AT commands.
+     */
+    private AtCommandRouter createAtCommandRouter() {
+        AtCommandRouter router = new AtCommandRouter();
+        router.addEventRoute(EVENT_TYPE_AT_CHLD, "AT+CHLD", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtChld(event.valueInt, event.device);
+            }
+        });
+        router.addEventRoute(EVENT_TYPE_SUBSCRIBER_NUMBER_REQUEST, "AT+CNUM",
+                new AtCommandRouter.EventHandler() {
+                    @Override
+                    public void handle(StackEvent event) {
+                        processSubscriberNumberRequest(event.device);
+                    }
+                });
+        router.addEventRoute(EVENT_TYPE_AT_CIND, "AT+CIND", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtCind(event.device);
+            }
+        });
+        router.addEventRoute(EVENT_TYPE_AT_COPS, "AT+COPS", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtCops(event.device);
+            }
+        });
+        router.addEventRoute(EVENT_TYPE_AT_CLCC, "AT+CLCC", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtClcc(event.device);
+            }
+        });
+        // dispatchUnknownAt records the latency per command prefix
+        router.addUntimedEventRoute(EVENT_TYPE_UNKNOWN_AT, new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processUnknownAt(event.valueString, event.device);
+            }
+        });
+        router.addEventRoute(EVENT_TYPE_KEY_PRESSED, "key pressed",
+                new AtCommandRouter.EventHandler() {
+                    @Override
+                    public void handle(StackEvent event) {
+                        processKeyPressed(event.device);
+                    }
+                });
+        router.addEventRoute(EVENT_TYPE_BIND, "AT+BIND", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtBind(event.valueString, event.device);
+            }
+        });
+        router.addEventRoute(EVENT_TYPE_BIEV, "AT+BIEV", new AtCommandRouter.EventHandler() {
+            @Override
+            public void handle(StackEvent event) {
+                processAtBiev(event.valueInt, event.valueInt2, event.device);
+            }
+        });
+
+        router.addCommandRoute("+CSCS", new AtCommandRouter.CommandHandler() {
+            @Override
+            public void handle(String args, int commandType, BluetoothDevice device) {
+                processAtCscs(args, commandType, device);
+            }
+        });
+        router.addCommandRoute("+CPBS", new AtCommandRouter.CommandHandler() {
+            @Override
+            public void handle(String args, int commandType, BluetoothDevice device) {
+                processAtCpbs(args, commandType, device);
+            }
+        });
+        router.addCommandRoute("+CPBR", new AtCommandRouter.CommandHandler() {
+            @Override
+            public void handle(String args, int commandType, BluetoothDevice device) {
+                processAtCpbr(args, commandType, device);
+            }
+        });
+        router.addCommandRoute("+CSQ", new AtCommandRouter.CommandHandler() {
+            @Override
+            public void handle(String args, int commandType, BluetoothDevice device) {
+                atResponseCodeNative(
+                        HeadsetHalConstants.AT_RESPONSE_ERROR, 4, getByteAddress(device));
+            }
+        });
+        router.setFallback(new AtCommandRouter.FallbackHandler() {
+            @Override
+            public boolean handle(String atCommand, BluetoothDevice device) {
+                return processVendorSpecificAt(atCommand);
+            }
+        });
+        return router;
+    }
+
     private void processUnknownAt(String atString, BluetoothDevice device) {
-        Log.d(TAG, "Enter processUnknownAt()");
+        if (DBG) Log.d(TAG, "Enter processUnknownAt()");
         if (device == null) {
             Log.w(TAG, "processUnknownAt device is null");
             return;
         }
 
         // TODO (BT)
-        log("processUnknownAt - atString = " + atString);
-        String atCommand = parseUnknownAt(atString);
-        int commandType = getAtCommandType(atCommand);
-        if (atCommand.startsWith("+CSCS"))
-            processAtCscs(atCommand.substring(5), commandType, device);
-        else if (atCommand.startsWith("+CPBS"))
-            processAtCpbs(atCommand.substring(5), commandType, device);
-        else if (atCommand.startsWith("+CPBR"))
-            processAtCpbr(atCommand.substring(5), commandType, device);
-        else if (atCommand.startsWith("+CSQ"))
-            atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 4, getByteAddress(device));
-        else if (!processVendorSpecificAt(atCommand))
+        if (DBG) log("processUnknownAt - atString = " + atString);
+        if (!mAtCommandRouter.dispatchUnknownAt(atString, device))
             atResponseCodeNative(HeadsetHalConstants.AT_RESPONSE_ERROR, 0, getByteAddress(device));
-        Log.d(TAG, "Exit processUnknownAt()");
+        if (DBG) Log.d(TAG, "Exit processUnknownAt()");
     }
 
     private void processKeyPressed(BluetoothDevice device) {
@@ -4509,7 +4449,7 @@ final class HeadsetStateMachine extends StateMachine {
     final private static int EVENT_TYPE_BIND = 18;
     final private static int EVENT_TYPE_BIEV = 19;
 
-    private class StackEvent {
+    class StackEvent {
         int type = EVENT_TYPE_NONE;
         int valueInt = 0;
         int valueInt2 = 0;
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfpclient;
+
+import android.bluetooth.BluetoothHeadsetClientCall;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Calls on the AG as seen by the HF, kept up to date from the call indicators.
+ *
+ * The AG reports call, callsetup and callheld changes with +CIEV, and the number of an incoming
+ * or waiting call with +CLIP and +CCWA. When an indicator change can only mean one thing for
+ * the calls we track, e.g. the only incoming call became active, the change is applied here
+ * without asking the AG. Calls that are new to us, and changes that involve several calls, need
+ * the call list of the AG (AT+CLCC) as the indicators carry no call index.
+ *
+ * While calls exist the call list is also polled to catch what the indicators do not tell,
+ * e.g. a call joining a conference. The poll interval starts at the base interval and doubles
+ * up to the max interval while the call list agrees with the indicators. It is reset when it
+ * does not, or when the poll found a change.
+ *
+ * Not thread safe, only used from the state machine thread. Other threads read the calls with
+ * {@link #getSnapshot()}.
+ */
+class HeadsetClientCallTracker {
+    private static final String TAG = "HeadsetClientCallTracker";
+    private static final boolean DBG = false;
+
+    /** Informs the owner of calls changed from indicators. */
+    interface Callback {
+        void onCallChanged(BluetoothHeadsetClientCall call);
+    }
+
+    private final Callback mCallback;
+    private final long mBasePollMillis;
+    private final long mMaxPollMillis;
+
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls =
+            new HashMap<Integer, BluetoothHeadsetClientCall>();
+    private volatile List<BluetoothHeadsetClientCall> mSnapshot =
+            Collections.<BluetoothHeadsetClientCall>emptyList();
+
+    // Last values of the call indicators.
+    private int mCall = HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS;
+    private int mCallSetup = HeadsetClientHalConstants.CALLSETUP_NONE;
+    private int mCallHeld = HeadsetClientHalConstants.CALLHELD_NONE;
+
+    private long mPollMillis;
+
+    /* totals, for dump */
+    private volatile int mIndicators;
+    private volatile int mDerived;
+    private volatile int mAmbiguous;
+    private volatile int mQueries;
+
+    HeadsetClientCallTracker(Callback callback, long basePollMillis, long maxPollMillis) {
+        mCallback = callback;
+        mBasePollMillis = basePollMillis;
+        mMaxPollMillis = maxPollMillis;
+        mPollMillis = basePollMillis;
+    }
+
+    /* The calls keyed by AG call index, to be modified on the state machine thread only */
+    HashMap<Integer, BluetoothHeadsetClientCall> getCalls() {
+        return mCalls;
+    }
+
+    /* Must be called once the calls have been modified, before the change is broadcast */
+    void publish() {
+        mSnapshot = Collections.unmodifiableList(
+                new ArrayList<BluetoothHeadsetClientCall>(mCalls.values()));
+    }
+
+    /* The calls as of the last publish, may be called from any thread */
+    List<BluetoothHeadsetClientCall> getSnapshot() {
+        return mSnapshot;
+    }
+
+    /* Forget all calls and indicators, e.g. on disconnect */
+    void reset() {
+        mCalls.clear();
+        mCall = HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS;
+        mCallSetup = HeadsetClientHalConstants.CALLSETUP_NONE;
+        mCallHeld = HeadsetClientHalConstants.CALLHELD_NONE;
+        mPollMillis = mBasePollMillis;
+        publish();
+    }
+
+    /* A call list query is sent to the AG */
+    void onQuery() {
+        mQueries++;
+    }
+
+    /**
+     * Apply a call indicator, +CLIP or +CCWA event.
+     *
+     * @param type one of the StackEvent call event types
+     * @param value the indicator value
+     * @param number the number of +CLIP and +CCWA
+     * @return true if the call list has to be queried from the AG
+     */
+    boolean onIndicator(int type, int value, String number) {
+        mIndicators++;
+        boolean derived;
+        switch (type) {
+            case StackEvent.EVENT_TYPE_CALL:
+                mCall = value;
+                derived = onCall(value);
+                break;
+            case StackEvent.EVENT_TYPE_CALLSETUP:
+                mCallSetup = value;
+                derived = onCallSetup(value);
+                break;
+            case StackEvent.EVENT_TYPE_CALLHELD:
+                mCallHeld = value;
+                derived = onCallHeld(value);
+                break;
+            case StackEvent.EVENT_TYPE_CLIP:
+                derived = onClip(number);
+                break;
+            default:
+                // A waiting call or response and hold, both need the call index.
+                derived = false;
+                break;
+        }
+        boolean query = !derived || !isConsistent();
+        if (query) mAmbiguous++;
+        if (DBG) {
+            Log.d(TAG, "onIndicator " + type + " " + value + " derived " + derived
+                    + " query " + query);
+        }
+        return query;
+    }
+
+    // Returns true if the calls could be updated from the indicator alone.
+    private boolean onCall(int value) {
+        if (value == HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS) {
+            // All active and held calls ended.
+            terminate(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE,
+                    BluetoothHeadsetClientCall.CALL_STATE_HELD);
+            return true;
+        }
+        if (count(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE,
+                BluetoothHeadsetClientCall.CALL_STATE_HELD) > 0) {
+            return true;
+        }
+        // The call that was set up, if there is only one, is connected now.
+        BluetoothHeadsetClientCall c = getOnly(BluetoothHeadsetClientCall.CALL_STATE_INCOMING,
+                BluetoothHeadsetClientCall.CALL_STATE_DIALING,
+                BluetoothHeadsetClientCall.CALL_STATE_ALERTING);
+        if (c == null || isUnassigned(c)) return false;
+        // The AG follows up with callsetup=0.
+        mCallSetup = HeadsetClientHalConstants.CALLSETUP_NONE;
+        update(c, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+        return true;
+    }
+
+    private boolean onCallSetup(int value) {
+        switch (value) {
+            case HeadsetClientHalConstants.CALLSETUP_NONE:
+                if (count(BluetoothHeadsetClientCall.CALL_STATE_INCOMING,
+                        BluetoothHeadsetClientCall.CALL_STATE_WAITING,
+                        BluetoothHeadsetClientCall.CALL_STATE_DIALING,
+                        BluetoothHeadsetClientCall.CALL_STATE_ALERTING) == 0) {
+                    return true;
+                }
+                // The call that was set up was either rejected or connected, and not all AGs
+                // send call=1 before callsetup=0 when it was connected.
+                return false;
+            case HeadsetClientHalConstants.CALLSETUP_ALERTING: {
+                BluetoothHeadsetClientCall c =
+                        getOnly(BluetoothHeadsetClientCall.CALL_STATE_DIALING);
+                if (c == null || isUnassigned(c)) {
+                    return count(BluetoothHeadsetClientCall.CALL_STATE_ALERTING) > 0;
+                }
+                update(c, BluetoothHeadsetClientCall.CALL_STATE_ALERTING);
+                return true;
+            }
+            default:
+                // A new incoming or outgoing call, we need its index.
+                return false;
+        }
+    }
+
+    private boolean onCallHeld(int value) {
+        switch (value) {
+            case HeadsetClientHalConstants.CALLHELD_NONE: {
+                if (count(BluetoothHeadsetClientCall.CALL_STATE_HELD) == 0) return true;
+                BluetoothHeadsetClientCall c = getOnly(BluetoothHeadsetClientCall.CALL_STATE_HELD);
+                if (c == null || count(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE) > 0
+                        || mCall == HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS) {
+                    return false;
+                }
+                // The only call was retrieved from hold.
+                update(c, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+                return true;
+            }
+            case HeadsetClientHalConstants.CALLHELD_HOLD: {
+                if (count(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE) == 0) {
+                    return count(BluetoothHeadsetClientCall.CALL_STATE_HELD) > 0;
+                }
+                BluetoothHeadsetClientCall c =
+                        getOnly(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+                if (c == null || count(BluetoothHeadsetClientCall.CALL_STATE_HELD) > 0) {
+                    return false;
+                }
+                // The only call was put on hold.
+                update(c, BluetoothHeadsetClientCall.CALL_STATE_HELD);
+                return true;
+            }
+            default:
+                // Calls were swapped or a waiting call was accepted.
+                return false;
+        }
+    }
+
+    private boolean onClip(String number) {
+        BluetoothHeadsetClientCall c = getOnly(BluetoothHeadsetClientCall.CALL_STATE_INCOMING);
+        if (c == null) return false;
+        if (number != null && !number.equals(c.getNumber())) {
+            c.setNumber(number);
+            mDerived++;
+            publish();
+            mCallback.onCallChanged(c);
+        }
+        return true;
+    }
+
+    /**
+     * True if the calls agree with the last indicators. Calls dialed by the HF that the AG did
+     * not give an index yet are never consistent, nor are calls held by response and hold.
+     */
+    boolean isConsistent() {
+        int active = 0;
+        int held = 0;
+        int incoming = 0;
+        int dialing = 0;
+        int alerting = 0;
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            if (isUnassigned(c)) return false;
+            switch (c.getState()) {
+                case BluetoothHeadsetClientCall.CALL_STATE_ACTIVE:
+                    active++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_HELD:
+                    held++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_INCOMING:
+                case BluetoothHeadsetClientCall.CALL_STATE_WAITING:
+                    incoming++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_DIALING:
+                    dialing++;
+                    break;
+                case BluetoothHeadsetClientCall.CALL_STATE_ALERTING:
+                    alerting++;
+                    break;
+                default:
+                    return false;
+            }
+        }
+
+        boolean inProgress = (mCall == HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS);
+        if (inProgress != (active + held > 0)) return false;
+
+        switch (mCallSetup) {
+            case HeadsetClientHalConstants.CALLSETUP_NONE:
+                if (incoming + dialing + alerting > 0) return false;
+                break;
+            case HeadsetClientHalConstants.CALLSETUP_INCOMING:
+                if (incoming == 0) return false;
+                break;
+            case HeadsetClientHalConstants.CALLSETUP_OUTGOING:
+                if (dialing == 0) return false;
+                break;
+            case HeadsetClientHalConstants.CALLSETUP_ALERTING:
+                if (alerting == 0) return false;
+                break;
+        }
+
+        switch (mCallHeld) {
+            case HeadsetClientHalConstants.CALLHELD_NONE:
+                return held == 0;
+            case HeadsetClientHalConstants.CALLHELD_HOLD_AND_ACTIVE:
+                return held > 0 && active > 0;
+            case HeadsetClientHalConstants.CALLHELD_HOLD:
+                return held > 0 && active == 0;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the delay of the next call list poll, or -1 if there is nothing to poll for.
+     *
+     * @param changed true if the last poll found a change the indicators did not tell
+     */
+    long nextPollDelay(boolean changed) {
+        boolean consistent = isConsistent();
+        if (consistent && mCalls.isEmpty()) {
+            mPollMillis = mBasePollMillis;
+            return -1;
+        }
+        if (changed || !consistent) {
+            mPollMillis = mBasePollMillis;
+        }
+        long delay = mPollMillis;
+        mPollMillis = Math.min(mPollMillis * 2, mMaxPollMillis);
+        return delay;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Call tracker: call " + mCall + " callsetup " + mCallSetup
+                + " callheld " + mCallHeld + ", poll interval " + mPollMillis + "ms");
+        ProfileService.println(sb, "  " + mIndicators + " indicators, " + mDerived
+                + " calls updated from indicators, " + mAmbiguous + " ambiguous, " + mQueries
+                + " call list queries");
+    }
+
+    private static boolean isUnassigned(BluetoothHeadsetClientCall c) {
+        return c.getId() == HeadsetClientStateMachine.HF_ORIGINATED_CALL_ID;
+    }
+
+    private int count(int... states) {
+        int n = 0;
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            for (int s : states) {
+                if (c.getState() == s) {
+                    n++;
+                    break;
+                }
+            }
+        }
+        return n;
+    }
+
+    // Returns the call in one of |states| if it is the only one, otherwise null.
+    private BluetoothHeadsetClientCall getOnly(int... states) {
+        BluetoothHeadsetClientCall found = null;
+        for (BluetoothHeadsetClientCall c : mCalls.values()) {
+            for (int s : states) {
+                if (c.getState() == s) {
+                    if (found != null) return null;
+                    found = c;
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    private void update(BluetoothHeadsetClientCall c, int state) {
+        c.setState(state);
+        mDerived++;
+        publish();
+        mCallback.onCallChanged(c);
+    }
+
+    private void terminate(int... states) {
+        ArrayList<BluetoothHeadsetClientCall> ended = new ArrayList<BluetoothHeadsetClientCall>();
+        Iterator<BluetoothHeadsetClientCall> it = mCalls.values().iterator();
+        while (it.hasNext()) {
+            BluetoothHeadsetClientCall c = it.next();
+            for (int s : states) {
+                if (c.getState() == s) {
+                    it.remove();
+                    ended.add(c);
+                    break;
+                }
+            }
+        }
+        publish();
+        for (BluetoothHeadsetClientCall c : ended) {
+            c.setState(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
+            mDerived++;
+            mCallback.onCallChanged(c);
+        }
+    }
+}
@@ -50,6 +50,7 @@ import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.telecom.TelecomManager;
+import android.text.TextUtils;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AdapterService;
@@ -60,9 +61,8 @@ import com.android.internal.util.StateMachine;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
@@ -111,6 +111,7 @@ public class HeadsetClientStateMachine extends StateMachine {
     public static final Integer HF_ORIGINATED_CALL_ID = new Integer(-1);
     private long OUTGOING_TIMEOUT_MILLI = 10 * 1000; // 10 seconds
     private long QUERY_CURRENT_CALLS_WAIT_MILLIS = 2 * 1000; // 2 seconds
+    private long QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS = 32 * 1000; // 32 seconds
 
     private final Disconnected mDisconnected;
     private final Connecting mConnecting;
@@ -120,12 +121,15 @@ public class HeadsetClientStateMachine extends StateMachine {
 
     private final HeadsetClientService mService;
 
+    // Keeps the calls up to date from the call indicators and decides when to query them.
+    private final HeadsetClientCallTracker mCallTracker;
     // Set of calls that represent the accurate state of calls that exists on AG and the calls that
-    // are currently in process of being notified to the AG from HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCalls = new Hashtable<>();
+    // are currently in process of being notified to the AG from HF. Owned by mCallTracker and only
+    // accessed from the state machine thread, other threads use the tracker snapshot.
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCalls;
     // Set of calls received from AG via the AT+CLCC command. We use this map to update the mCalls
     // which is eventually used to inform the telephony stack of any changes to call on HF.
-    private final Hashtable<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new Hashtable<>();
+    private final HashMap<Integer, BluetoothHeadsetClientCall> mCallsUpdate = new HashMap<>();
 
     private int mIndicatorNetworkState;
     private int mIndicatorNetworkType;
@@ -176,18 +180,10 @@ public class HeadsetClientStateMachine extends StateMachine {
         ProfileService.println(sb, "mSubscriberInfo: " + mSubscriberInfo);
 
         ProfileService.println(sb, "mCalls:");
-        if (mCalls != null) {
-            for (BluetoothHeadsetClientCall call : mCalls.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
-        }
-
-        ProfileService.println(sb, "mCallsUpdate:");
-        if (mCallsUpdate != null) {
-            for (BluetoothHeadsetClientCall call : mCallsUpdate.values()) {
-                ProfileService.println(sb, "  " + call);
-            }
+        for (BluetoothHeadsetClientCall call : mCallTracker.getSnapshot()) {
+            ProfileService.println(sb, "  " + call);
         }
+        mCallTracker.dump(sb);
 
         ProfileService.println(sb, "State machine stats:");
         ProfileService.println(sb, this.toString());
@@ -245,6 +241,7 @@ public class HeadsetClientStateMachine extends StateMachine {
         if (DBG) {
             Log.d(TAG, "sendCallChangedIntent " + c);
         }
+        mCallTracker.publish();
         Intent intent = new Intent(BluetoothHeadsetClient.ACTION_CALL_CHANGED);
         intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         intent.putExtra(BluetoothHeadsetClient.EXTRA_CALL, c);
@@ -259,6 +256,7 @@ public class HeadsetClientStateMachine extends StateMachine {
         clearPendingAction();
         NativeInterface.queryCurrentCallsNative(getByteAddress(mCurrentDevice));
         addQueuedAction(QUERY_CURRENT_CALLS, 0);
+        mCallTracker.onQuery();
         return true;
     }
 
@@ -266,8 +264,6 @@ public class HeadsetClientStateMachine extends StateMachine {
         if (DBG) {
             Log.d(TAG, "queryCallsDone");
         }
-        Iterator<Hashtable.Entry<Integer, BluetoothHeadsetClientCall>> it;
-
         // mCalls has two types of calls:
         // (a) Calls that are received from AG of a previous iteration of queryCallsStart()
         // (b) Calls that are outgoing initiated from HF
@@ -349,6 +345,7 @@ public class HeadsetClientStateMachine extends StateMachine {
                     sendCallChangedIntent(c1);
                 }
                 mCalls.clear();
+                mCallTracker.publish();
 
                 // We return here, if there's any update to the phone we should get a
                 // follow up by getting some call indicators and hence update the calls.
@@ -362,6 +359,9 @@ public class HeadsetClientStateMachine extends StateMachine {
                 callRemovedIds + " callRetainedIds " + callRetainedIds);
         }
 
+        // Whether the AG changed calls without the indicators telling us.
+        boolean changed = !callRemovedIds.isEmpty() || !callAddedIds.isEmpty();
+
         // Terminate & remove the calls that are done.
         for (Integer idx : callRemovedIds) {
             BluetoothHeadsetClientCall c = mCalls.remove(idx);
@@ -380,6 +380,14 @@ public class HeadsetClientStateMachine extends StateMachine {
         for (Integer idx : callRetainedIds) {
             BluetoothHeadsetClientCall cOrig = mCalls.get(idx);
             BluetoothHeadsetClientCall cUpdate = mCallsUpdate.get(idx);
+            if (idx.equals(hfOriginatedAssoc) || cOrig.getState() != cUpdate.getState()
+                    || cOrig.isMultiParty() != cUpdate.isMultiParty()
+                    || !TextUtils.equals(cOrig.getNumber(), cUpdate.getNumber())) {
+                changed = true;
+            } else {
+                // Most polls during a call find nothing new, skip the broadcast.
+                continue;
+            }
 
             // Update the necessary fields.
             cOrig.setNumber(cUpdate.getNumber());
@@ -389,15 +397,27 @@ public class HeadsetClientStateMachine extends StateMachine {
             // Send update with original object (UUID, idx).
             sendCallChangedIntent(cOrig);
         }
+        mCallTracker.publish();
 
-        if (mCalls.size() > 0) {
-            sendMessageDelayed(QUERY_CURRENT_CALLS, QUERY_CURRENT_CALLS_WAIT_MILLIS);
-        }
+        scheduleQueryCalls(changed);
 
         mCallsUpdate.clear();
         Log.d(TAG, "Exit queryCallsDone()");
     }
 
+    // Poll the calls again while there are any, or while they disagree with the indicators. The
+    // interval grows while the polls find nothing new.
+    private void scheduleQueryCalls(boolean changed) {
+        removeMessages(QUERY_CURRENT_CALLS);
+        long delay = mCallTracker.nextPollDelay(changed);
+        if (DBG) {
+            Log.d(TAG, "scheduleQueryCalls changed " + changed + " delay " + delay);
+        }
+        if (delay >= 0) {
+            sendMessageDelayed(QUERY_CURRENT_CALLS, delay);
+        }
+    }
+
     private void queryCallsUpdate(int id, int state, String number, boolean multiParty,
             boolean outgoing) {
         if (DBG) {
@@ -712,7 +732,13 @@ public class HeadsetClientStateMachine extends StateMachine {
         mQueuedActions = new LinkedList<Pair<Integer, Object>>();
         clearPendingAction();
 
-        mCalls.clear();
+        mCallTracker = new HeadsetClientCallTracker(new HeadsetClientCallTracker.Callback() {
+            @Override
+            public void onCallChanged(BluetoothHeadsetClientCall call) {
+                sendCallChangedIntent(call);
+            }
+        }, QUERY_CURRENT_CALLS_WAIT_MILLIS, QUERY_CURRENT_CALLS_MAX_WAIT_MILLIS);
+        mCalls = mCallTracker.getCalls();
         mCallsUpdate.clear();
 
         mDisconnected = new Disconnected();
@@ -796,7 +822,7 @@ public class HeadsetClientStateMachine extends StateMachine {
 
             mCurrentDevice = null;
 
-            mCalls.clear();
+            mCallTracker.reset();
             mCallsUpdate.clear();
 
             mPeerFeatures = 0;
@@ -1161,8 +1187,8 @@ public class HeadsetClientStateMachine extends StateMachine {
                         Log.e(TAG, "ERROR: Cannot dial with a given number:" + (String) message.obj);
                         // Set the call to terminated remove.
                         c.setState(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED);
-                        sendCallChangedIntent(c);
                         mCalls.remove(HF_ORIGINATED_CALL_ID);
+                        sendCallChangedIntent(c);
                     }
                     break;
                 case ACCEPT_CALL:
@@ -1313,7 +1339,14 @@ public class HeadsetClientStateMachine extends StateMachine {
                         case StackEvent.EVENT_TYPE_RESP_AND_HOLD:
                         case StackEvent.EVENT_TYPE_CLIP:
                         case StackEvent.EVENT_TYPE_CALL_WAITING:
-                            sendMessage(QUERY_CURRENT_CALLS);
+                            // Only ask the AG for its calls if the indicator does not tell us
+                            // what happened to them.
+                            if (mCallTracker.onIndicator(
+                                    event.type, event.valueInt, event.valueString)) {
+                                sendMessage(QUERY_CURRENT_CALLS);
+                            } else {
+                                scheduleQueryCalls(false);
+                            }
                             break;
                         case StackEvent.EVENT_TYPE_CURRENT_CALLS:
                             queryCallsUpdate(
@@ -1811,7 +1844,7 @@ public class HeadsetClientStateMachine extends StateMachine {
     }
 
     public List<BluetoothHeadsetClientCall> getCurrentCalls() {
-        return new ArrayList<BluetoothHeadsetClientCall>(mCalls.values());
+        return new ArrayList<BluetoothHeadsetClientCall>(mCallTracker.getSnapshot());
     }
 
     public Bundle getCurrentAgEvents() {
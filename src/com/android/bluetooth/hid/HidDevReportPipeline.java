@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Sends the interrupt channel reports of the HID device role on a thread of their own.
+ *
+ * Reports used to be sent from the binder thread while holding the HidDevService monitor, which
+ * is also taken by every native callback, so a mouse or gamepad sending reports at a high rate
+ * waited behind unrelated work. Here the caller only queues the report; the queue has its own
+ * lock, which is never held while a report is being sent.
+ *
+ * When reports pile up because the link does not keep up, a report is merged into the one
+ * queued before it if the report descriptor says they only differ in relative fields, so that
+ * the host gets the accumulated motion in one report rather than a growing backlog.
+ *
+ * The time from queueing a report until the stack accepted it is recorded for the dump.
+ */
+class HidDevReportPipeline {
+    private static final String TAG = "HidDevReportPipeline";
+
+    /* Reports beyond this are refused, the caller sees a failed sendReport() */
+    static final int MAX_QUEUED = 64;
+
+    /* Latencies kept for the percentiles */
+    private static final int LATENCY_SAMPLES = 1024;
+
+    /* Sends one report to the stack, sendReportNative() outside of tests */
+    interface ReportSender {
+        boolean sendReport(int id, byte[] data);
+    }
+
+    private static class Report {
+        final int mId;
+        byte[] mData;
+        /* time the oldest report merged into this one was queued */
+        final long mQueuedNanos;
+
+        Report(int id, byte[] data, long queuedNanos) {
+            mId = id;
+            mData = data;
+            mQueuedNanos = queuedNanos;
+        }
+    }
+
+    private final ReportSender mSender;
+    private final Object mLock = new Object();
+    private final ArrayDeque<Report> mQueue = new ArrayDeque<Report>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile HidReportDescriptor mDescriptor;
+    /* set while mDrain is posted or running, guarded by mLock */
+    private boolean mDraining;
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /* statistics, guarded by mLock */
+    private long mQueued;
+    private long mSent;
+    private long mFailed;
+    private long mCoalesced;
+    private long mRefused;
+    private int mMaxDepth;
+    private final long[] mLatencies = new long[LATENCY_SAMPLES];
+    /* Next slot of mLatencies, and how many slots hold a sample */
+    private int mLatencyIndex;
+    private int mLatencyCount;
+
+    HidDevReportPipeline(ReportSender sender) {
+        mSender = sender;
+    }
+
+    void start() {
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mThread.start();
+        synchronized (mLock) {
+            mHandler = new Handler(mThread.getLooper());
+        }
+    }
+
+    /* Returns once a report being sent went out, the native interface may go away then */
+    void stop() {
+        synchronized (mLock) {
+            mQueue.clear();
+            mHandler = null;
+            mDraining = false;
+        }
+        if (mThread != null) {
+            mThread.quitSafely();
+            try {
+                mThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mThread = null;
+        }
+    }
+
+    /* Sets the report descriptor of the registered app, null disables coalescing */
+    void setDescriptor(byte[] descriptor) {
+        mDescriptor = HidReportDescriptor.parse(descriptor);
+    }
+
+    /* Drops the reports not sent yet, e.g. when the host went away */
+    void clear() {
+        synchronized (mLock) {
+            mQueue.clear();
+        }
+    }
+
+    /*
+     * Queues the report |data| with |id|.
+     * @return false if the queue is full
+     */
+    boolean submit(int id, byte[] data) {
+        long now = SystemClock.elapsedRealtimeNanos();
+        synchronized (mLock) {
+            if (mHandler == null) return false;
+            // Anything still queued is waiting for the link, the report being sent is not queued
+            Report last = mQueue.peekLast();
+            HidReportDescriptor descriptor = mDescriptor;
+            if (last != null && last.mId == id && descriptor != null) {
+                byte[] merged = descriptor.merge(id, last.mData, data);
+                if (merged != null) {
+                    last.mData = merged;
+                    mCoalesced++;
+                    return true;
+                }
+            }
+            if (mQueue.size() >= MAX_QUEUED) {
+                mRefused++;
+                return false;
+            }
+            mQueue.addLast(new Report(id, data, now));
+            mQueued++;
+            mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+            if (!mDraining) {
+                mDraining = true;
+                mHandler.post(mDrain);
+            }
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            Report report;
+            synchronized (mLock) {
+                report = mQueue.pollFirst();
+                if (report == null) {
+                    mDraining = false;
+                    return;
+                }
+            }
+            boolean success = mSender.sendReport(report.mId, report.mData);
+            long latency = SystemClock.elapsedRealtimeNanos() - report.mQueuedNanos;
+            synchronized (mLock) {
+                if (success) {
+                    mSent++;
+                    mLatencies[mLatencyIndex] = latency;
+                    mLatencyIndex = (mLatencyIndex + 1) % LATENCY_SAMPLES;
+                    if (mLatencyCount < LATENCY_SAMPLES) mLatencyCount++;
+                } else {
+                    mFailed++;
+                }
+            }
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        long[] latencies;
+        synchronized (mLock) {
+            ProfileService.println(sb, "Reports: queued " + mQueued + ", sent " + mSent
+                    + ", failed " + mFailed + ", coalesced " + mCoalesced + ", refused "
+                    + mRefused + ", depth " + mQueue.size() + " (max " + mMaxDepth + ")");
+            latencies = Arrays.copyOf(mLatencies, mLatencyCount);
+        }
+        if (latencies.length == 0) return;
+        Arrays.sort(latencies);
+        ProfileService.println(sb, "Report latency (last " + latencies.length + "): p50 "
+                + toMicros(latencies, 50) + "us, p90 " + toMicros(latencies, 90) + "us, p99 "
+                + toMicros(latencies, 99) + "us, max "
+                + latencies[latencies.length - 1] / 1000 + "us");
+    }
+
+    private static long toMicros(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
@@ -56,7 +56,8 @@ public class HidDevService extends ProfileService {
 
     private boolean mNativeAvailable = false;
 
-    private BluetoothDevice mHidDevice = null;
+    /* read without the service lock by sendReport() */
+    private volatile BluetoothDevice mHidDevice = null;
 
     private int mHidDeviceState = BluetoothInputHost.STATE_DISCONNECTED;
 
@@ -66,6 +67,14 @@ public class HidDevService extends ProfileService {
 
     private BluetoothHidDeviceDeathRecipient mDeathRcpt;
 
+    private final HidDevReportPipeline mReportPipeline =
+            new HidDevReportPipeline(new HidDevReportPipeline.ReportSender() {
+                @Override
+                public boolean sendReport(int id, byte[] data) {
+                    return sendReportNative(id, data);
+                }
+            });
+
     static {
         classInitNative();
     }
@@ -126,6 +135,8 @@ public class HidDevService extends ProfileService {
                     if (!success) {
                         mAppConfig = null;
                         mCallback = null;
+                        mReportPipeline.clear();
+                        mReportPipeline.setDescriptor(null);
                     }
 
                     break;
@@ -138,6 +149,8 @@ public class HidDevService extends ProfileService {
 
                     if (state != BluetoothInputHost.STATE_DISCONNECTED) {
                         mHidDevice = device;
+                    } else {
+                        mReportPipeline.clear();
                     }
 
                     broadcastConnectionState(device, state);
@@ -205,6 +218,7 @@ public class HidDevService extends ProfileService {
                         e.printStackTrace();
                     }
                     mHidDevice = null;
+                    mReportPipeline.clear();
                     break;
             }
         }
@@ -426,10 +440,12 @@ public class HidDevService extends ProfileService {
     mAppConfig = config;
     mCallback = callback;
 
-    return registerAppNative(sdp.name, sdp.description, sdp.provider,
-                             sdp.subclass, sdp.descriptors,
-                             inQos == null ? null : inQos.toArray(),
-                             outQos == null ? null : outQos.toArray());
+    boolean result = registerAppNative(sdp.name, sdp.description, sdp.provider,
+                                       sdp.subclass, sdp.descriptors,
+                                       inQos == null ? null : inQos.toArray(),
+                                       outQos == null ? null : outQos.toArray());
+    if (result) mReportPipeline.setDescriptor(sdp.descriptors);
+    return result;
   }
 
   synchronized boolean
@@ -441,17 +457,20 @@ public class HidDevService extends ProfileService {
       return false;
     }
 
-    return unregisterAppNative();
+    boolean result = unregisterAppNative();
+    if (result) mReportPipeline.setDescriptor(null);
+    return result;
   }
 
-  synchronized boolean sendReport(BluetoothDevice device, int id, byte[] data) {
+  /* Not synchronized, reports go through mReportPipeline and do not wait for callbacks */
+  boolean sendReport(BluetoothDevice device, int id, byte[] data) {
       if (DBG) Log.v(TAG, "sendReport(): device=" + device + " id=" + id);
 
       if (!checkDevice(device)) {
           return false;
       }
 
-      return sendReportNative(id, data);
+      return mReportPipeline.submit(id, data);
   }
 
   synchronized boolean replyReport(BluetoothDevice device, byte type, byte id, byte[] data) {
@@ -507,6 +526,7 @@ public class HidDevService extends ProfileService {
 
     initNative();
     mNativeAvailable = true;
+    mReportPipeline.start();
 
     return true;
   }
@@ -516,6 +536,7 @@ public class HidDevService extends ProfileService {
     if (DBG)
       Log.d(TAG, "stop()");
 
+    mReportPipeline.stop();
     return true;
   }
 
@@ -532,6 +553,13 @@ public class HidDevService extends ProfileService {
     return true;
   }
 
+  @Override
+  public void dump(StringBuilder sb) {
+      super.dump(sb);
+      println(sb, "mHidDevice: " + mHidDevice + ", state: " + mHidDeviceState);
+      mReportPipeline.dump(sb);
+  }
+
   int getConnectionState(BluetoothDevice device) {
       if (mHidDevice != null && mHidDevice.equals(device)) {
           return mHidDeviceState;
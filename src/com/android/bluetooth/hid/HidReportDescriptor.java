@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Input report layout of a HID report descriptor, as far as needed to merge relative reports.
+ *
+ * For every report ID the descriptor declares, keeps the position of the input fields and
+ * whether they are relative (mouse motion, wheel) or absolute (buttons, axes). Two reports with
+ * the same absolute content can then be merged into one carrying the sum of their relative
+ * fields, which is what the host would have computed from the two reports.
+ */
+class HidReportDescriptor {
+    private static final String TAG = "HidReportDescriptor";
+
+    /* Item types and tags, HID 1.11 section 6.2.2 */
+    private static final int TYPE_MAIN = 0;
+    private static final int TYPE_GLOBAL = 1;
+    private static final int TAG_INPUT = 0x8;
+    private static final int TAG_LOGICAL_MINIMUM = 0x1;
+    private static final int TAG_REPORT_SIZE = 0x7;
+    private static final int TAG_REPORT_ID = 0x8;
+    private static final int TAG_REPORT_COUNT = 0x9;
+    private static final int TAG_PUSH = 0xA;
+    private static final int TAG_POP = 0xB;
+    private static final int LONG_ITEM = 0xFE;
+
+    /* Input item flags */
+    private static final int FLAG_CONSTANT = 0x01;
+    private static final int FLAG_VARIABLE = 0x02;
+    private static final int FLAG_RELATIVE = 0x04;
+
+    private static final int MAX_FIELD_SIZE = 32;
+
+    /* Larger reports are taken for a malformed descriptor */
+    static final int MAX_REPORT_BITS = 8 * 8192;
+
+    /* Run of |count| fields of |size| bits starting at bit |offset| of the report */
+    static class Field {
+        final int mOffset;
+        final int mSize;
+        final int mCount;
+        final boolean mSigned;
+
+        Field(int offset, int size, int count, boolean signed) {
+            mOffset = offset;
+            mSize = size;
+            mCount = count;
+            mSigned = signed;
+        }
+    }
+
+    /* Input fields of one report ID */
+    static class Layout {
+        final ArrayList<Field> mRelative = new ArrayList<Field>();
+        int mBits;
+        /* bits of the report taken by relative fields, sized on first use */
+        byte[] mRelativeMask;
+
+        boolean hasRelative() {
+            return !mRelative.isEmpty();
+        }
+
+        byte[] getRelativeMask() {
+            if (mRelativeMask == null) {
+                mRelativeMask = new byte[(mBits + 7) / 8];
+                for (Field field : mRelative) {
+                    for (int bit = field.mOffset; bit < field.mOffset + field.mSize * field.mCount;
+                            bit++) {
+                        mRelativeMask[bit / 8] |= (byte) (1 << (bit % 8));
+                    }
+                }
+            }
+            return mRelativeMask;
+        }
+    }
+
+    /* Global item state, saved and restored by Push/Pop */
+    private static class Globals implements Cloneable {
+        int mReportSize;
+        int mReportCount;
+        int mReportId;
+        long mLogicalMinimum;
+
+        @Override
+        protected Globals clone() {
+            try {
+                return (Globals) super.clone();
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    private final HashMap<Integer, Layout> mLayouts = new HashMap<Integer, Layout>();
+
+    private HidReportDescriptor() {
+    }
+
+    /* Returns the layout of |descriptor|, or null if it cannot be parsed */
+    static HidReportDescriptor parse(byte[] descriptor) {
+        if (descriptor == null) return null;
+        HidReportDescriptor result = new HidReportDescriptor();
+        ArrayList<Globals> stack = new ArrayList<Globals>();
+        Globals globals = new Globals();
+        int pos = 0;
+        while (pos < descriptor.length) {
+            int prefix = descriptor[pos] & 0xff;
+            if (prefix == LONG_ITEM) {
+                if (pos + 3 > descriptor.length
+                        || pos + 3 + (descriptor[pos + 1] & 0xff) > descriptor.length) {
+                    return invalid("truncated long item");
+                }
+                pos += 3 + (descriptor[pos + 1] & 0xff);
+                continue;
+            }
+            int size = prefix & 0x3;
+            if (size == 3) size = 4;
+            int type = (prefix >> 2) & 0x3;
+            int tag = (prefix >> 4) & 0xf;
+            if (pos + 1 + size > descriptor.length) return invalid("truncated item");
+            long unsigned = 0;
+            for (int i = 0; i < size; i++) {
+                unsigned |= (long) (descriptor[pos + 1 + i] & 0xff) << (8 * i);
+            }
+            long signed = (size == 0) ? 0 : (unsigned << (64 - 8 * size)) >> (64 - 8 * size);
+            pos += 1 + size;
+
+            if (type == TYPE_GLOBAL) {
+                switch (tag) {
+                    case TAG_LOGICAL_MINIMUM:
+                        globals.mLogicalMinimum = signed;
+                        break;
+                    case TAG_REPORT_SIZE:
+                        globals.mReportSize = (int) unsigned;
+                        break;
+                    case TAG_REPORT_ID:
+                        globals.mReportId = (int) unsigned;
+                        break;
+                    case TAG_REPORT_COUNT:
+                        globals.mReportCount = (int) unsigned;
+                        break;
+                    case TAG_PUSH:
+                        stack.add(globals.clone());
+                        break;
+                    case TAG_POP:
+                        if (stack.isEmpty()) return invalid("pop without push");
+                        globals = stack.remove(stack.size() - 1);
+                        break;
+                }
+            } else if (type == TYPE_MAIN && tag == TAG_INPUT) {
+                if (!result.addInput(globals, (int) unsigned)) return invalid("report too large");
+            }
+        }
+        return result;
+    }
+
+    /* Returns false if the report would exceed MAX_REPORT_BITS */
+    private boolean addInput(Globals globals, int flags) {
+        Layout layout = mLayouts.get(globals.mReportId);
+        if (layout == null) {
+            layout = new Layout();
+            mLayouts.put(globals.mReportId, layout);
+        }
+        // Size and count are unsigned 32 bit values
+        long bits = (globals.mReportSize & 0xffffffffL) * (globals.mReportCount & 0xffffffffL);
+        if (layout.mBits + bits > MAX_REPORT_BITS) return false;
+        if ((flags & (FLAG_CONSTANT | FLAG_VARIABLE | FLAG_RELATIVE))
+                == (FLAG_VARIABLE | FLAG_RELATIVE)
+                && globals.mReportSize > 0 && globals.mReportSize <= MAX_FIELD_SIZE) {
+            layout.mRelative.add(new Field(layout.mBits, globals.mReportSize,
+                    globals.mReportCount, globals.mLogicalMinimum < 0));
+        }
+        layout.mBits += (int) bits;
+        return true;
+    }
+
+    private static HidReportDescriptor invalid(String reason) {
+        Log.w(TAG, "Cannot parse report descriptor: " + reason);
+        return null;
+    }
+
+    /* Returns the input layout of |reportId|, or null if the descriptor does not declare it */
+    Layout getLayout(int reportId) {
+        return mLayouts.get(reportId);
+    }
+
+    /*
+     * Merges the report |newer| into |older|, both for |reportId|.
+     * @return the merged report, or null if they differ in anything but relative fields or a
+     * sum does not fit its field
+     */
+    byte[] merge(int reportId, byte[] older, byte[] newer) {
+        Layout layout = mLayouts.get(reportId);
+        if (layout == null || !layout.hasRelative() || older.length != newer.length) {
+            return null;
+        }
+        byte[] mask = layout.getRelativeMask();
+        for (int i = 0; i < older.length; i++) {
+            int relative = (i < mask.length) ? mask[i] : 0;
+            if (((older[i] ^ newer[i]) & ~relative) != 0) return null;
+        }
+        byte[] merged = newer.clone();
+        for (Field field : layout.mRelative) {
+            long min = field.mSigned ? -(1L << (field.mSize - 1)) : 0;
+            long max = field.mSigned ? (1L << (field.mSize - 1)) - 1 : (1L << field.mSize) - 1;
+            for (int i = 0; i < field.mCount; i++) {
+                int offset = field.mOffset + i * field.mSize;
+                if (offset + field.mSize > older.length * 8) return null;
+                long sum = read(older, offset, field.mSize, field.mSigned)
+                        + read(newer, offset, field.mSize, field.mSigned);
+                if (sum < min || sum > max) return null;
+                write(merged, offset, field.mSize, sum);
+            }
+        }
+        return merged;
+    }
+
+    /* Fields are little endian, starting from the least significant bit of the first byte */
+    private static long read(byte[] report, int offset, int size, boolean signed) {
+        long value = 0;
+        for (int i = 0; i < size; i++) {
+            int bit = offset + i;
+            if ((report[bit / 8] & (1 << (bit % 8))) != 0) value |= 1L << i;
+        }
+        if (signed && (value & (1L << (size - 1))) != 0) {
+            value -= 1L << size;
+        }
+        return value;
+    }
+
+    private static void write(byte[] report, int offset, int size, long value) {
+        for (int i = 0; i < size; i++) {
+            int bit = offset + i;
+            if ((value & (1L << i)) != 0) {
+                report[bit / 8] |= (byte) (1 << (bit % 8));
+            } else {
+                report[bit / 8] &= (byte) ~(1 << (bit % 8));
+            }
+        }
+    }
+}
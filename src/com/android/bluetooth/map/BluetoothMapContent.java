@@ -2081,6 +2081,12 @@ public class BluetoothMapContent {
         if(ap.getMaxListCount()>0){
             limit=" LIMIT "+ (ap.getMaxListCount()+ap.getStartOffset());
         }
+        /* Filters only narrow the listing, hence there is no need to query for a message type
+         * the folder summary shows to be absent from the folder. */
+        BluetoothMapFolderSummary summary = null;
+        if (mMasInstance != null && !folderElement.shouldIgnore()) {
+            summary = mMasInstance.getFolderSummary();
+        }
         try{
             if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
                 if(ap.getFilterMessageType() == (BluetoothMapAppParams.FILTER_NO_EMAIL|
@@ -2098,7 +2104,8 @@ public class BluetoothMapContent {
                     offsetNum = 0;
                 }
                 fi.mMsgType = FilterInfo.TYPE_SMS;
-                if(ap.getFilterPriority() != 1){ /*SMS cannot have high priority*/
+                if(ap.getFilterPriority() != 1 /*SMS cannot have high priority*/
+                        && !isFolderSummaryEmpty(summary, folderElement, fi.mMsgType)) {
                     String where = setWhereFilter(folderElement, fi, ap);
                     if (D) Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     smsCursor = mResolver.query(Sms.CONTENT_URI,
@@ -2133,7 +2140,7 @@ public class BluetoothMapContent {
                 fi.mMsgType = FilterInfo.TYPE_MMS;
                 String where = setWhereFilter(folderElement, fi, ap);
                 where += " AND " + INTERESTED_MESSAGE_TYPE_CLAUSE;
-                if(!where.isEmpty()) {
+                if(!where.isEmpty() && !isFolderSummaryEmpty(summary, folderElement, fi.mMsgType)) {
                     if (D) Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     mmsCursor = mResolver.query(Mms.CONTENT_URI,
                             MMS_PROJECTION, where, null, Mms.DATE + " DESC" + limit);
@@ -2167,7 +2174,7 @@ public class BluetoothMapContent {
                 fi.mMsgType = FilterInfo.TYPE_EMAIL;
                 String where = setWhereFilter(folderElement, fi, ap);
 
-                if(!where.isEmpty()) {
+                if(!where.isEmpty() && !isFolderSummaryEmpty(summary, folderElement, fi.mMsgType)) {
                     if (D) Log.d(TAG, "msgType: " + fi.mMsgType + " where: " + where);
                     Uri contentUri = Uri.parse(mBaseUri + BluetoothMapContract.TABLE_MESSAGE);
                     emailCursor = mResolver.query(contentUri,
@@ -2189,7 +2196,8 @@ public class BluetoothMapContent {
                 }
             }
 
-            if (imSelected(ap) && folderElement.hasImContent()) {
+            if (imSelected(ap) && folderElement.hasImContent()
+                    && !isFolderSummaryEmpty(summary, folderElement, FilterInfo.TYPE_IM)) {
                 if(ap.getFilterMessageType() == (BluetoothMapAppParams.FILTER_NO_MMS|
                                                  BluetoothMapAppParams.FILTER_NO_SMS_CDMA|
                                                  BluetoothMapAppParams.FILTER_NO_SMS_GSM|
@@ -2282,6 +2290,112 @@ public class BluetoothMapContent {
         return bmList;
     }
 
+    /**
+     * Get the folder summary kept by the content observer, if any.
+     * The summary holds no per message details, hence it can only be used when the listing is
+     * not filtered on anything but the message type.
+     * @return the summary, or null if the providers must be queried
+     */
+    private BluetoothMapFolderSummary getFolderSummary(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap) {
+        if (mMasInstance == null || folderElement.shouldIgnore()) return null;
+        if (ap.getFilterMsgHandle() != BluetoothMapAppParams.INVALID_VALUE_PARAMETER
+                || ap.getFilterConvoId() != null
+                || ap.getFilterReadStatus() > 0
+                || ap.getFilterPriority() > 0
+                || ap.getFilterPeriodBegin() != BluetoothMapAppParams.INVALID_VALUE_PARAMETER
+                || ap.getFilterPeriodEnd() != BluetoothMapAppParams.INVALID_VALUE_PARAMETER
+                || !TextUtils.isEmpty(ap.getFilterOriginator())
+                || !TextUtils.isEmpty(ap.getFilterRecipient())) {
+            return null;
+        }
+        return mMasInstance.getFolderSummary();
+    }
+
+    /* The folder names setWhereFilterFolderTypeSms/Mms() filter on */
+    private static boolean isSmsMmsFolder(String folder) {
+        return BluetoothMapContract.FOLDER_NAME_INBOX.equalsIgnoreCase(folder)
+                || BluetoothMapContract.FOLDER_NAME_OUTBOX.equalsIgnoreCase(folder)
+                || BluetoothMapContract.FOLDER_NAME_SENT.equalsIgnoreCase(folder)
+                || BluetoothMapContract.FOLDER_NAME_DRAFT.equalsIgnoreCase(folder)
+                || BluetoothMapContract.FOLDER_NAME_DELETED.equalsIgnoreCase(folder);
+    }
+
+    /**
+     * Get the folder summary entry of one message type.
+     * @param msgType one of the FilterInfo.TYPE_* values
+     * @return the entry, or null if the type is not tracked or the folder can't be mapped
+     */
+    private BluetoothMapFolderSummary.Entry getFolderSummaryEntry(
+            BluetoothMapFolderSummary summary, BluetoothMapFolderElement folderElement,
+            int msgType) {
+        if (summary == null) return null;
+        if (msgType == FilterInfo.TYPE_SMS || msgType == FilterInfo.TYPE_MMS) {
+            if (!isSmsMmsFolder(folderElement.getName())) return null;
+            return (msgType == FilterInfo.TYPE_SMS)
+                    ? summary.getSms(folderElement.getName())
+                    : summary.getMms(folderElement.getName());
+        }
+        long folderId = folderElement.getFolderId();
+        if (msgType == FilterInfo.TYPE_EMAIL && folderId < 0) return null;
+        if (msgType == FilterInfo.TYPE_IM && folderId <= BluetoothMapContract.FOLDER_ID_OTHER) {
+            return null;
+        }
+        return summary.getMsg(folderId);
+    }
+
+    /* Returns true if the folder summary shows no messages of |msgType| in the folder */
+    private boolean isFolderSummaryEmpty(BluetoothMapFolderSummary summary,
+            BluetoothMapFolderElement folderElement, int msgType) {
+        BluetoothMapFolderSummary.Entry entry =
+                getFolderSummaryEntry(summary, folderElement, msgType);
+        return entry != null && entry.mCount == 0;
+    }
+
+    /**
+     * Count the messages - or the unread messages - of the listing from the folder summary.
+     * Mirrors the message type and folder selection of msgListingSize() and
+     * msgListingHasUnread().
+     * @return the count, or -1 if the providers must be queried
+     */
+    private int folderSummaryCount(BluetoothMapFolderElement folderElement,
+            BluetoothMapAppParams ap, FilterInfo fi, boolean unread) {
+        BluetoothMapFolderSummary summary = getFolderSummary(folderElement, ap);
+        if (summary == null) return -1;
+        int cnt = 0;
+        BluetoothMapFolderSummary.Entry entry;
+
+        if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
+            fi.mMsgType = FilterInfo.TYPE_SMS;
+            entry = getFolderSummaryEntry(summary, folderElement, fi.mMsgType);
+            if (entry == null) return -1;
+            cnt += unread ? entry.mUnread : entry.mCount;
+        }
+
+        if (mmsSelected(ap) && folderElement.hasSmsMmsContent()) {
+            fi.mMsgType = FilterInfo.TYPE_MMS;
+            entry = getFolderSummaryEntry(summary, folderElement, fi.mMsgType);
+            if (entry == null) return -1;
+            cnt += unread ? entry.mUnread : entry.mCount;
+        }
+
+        if (emailSelected(ap) && (unread ? folderElement.getFolderId() != -1
+                : folderElement.hasEmailContent())) {
+            fi.mMsgType = FilterInfo.TYPE_EMAIL;
+            entry = getFolderSummaryEntry(summary, folderElement, fi.mMsgType);
+            if (entry == null) return -1;
+            cnt += unread ? entry.mUnread : entry.mCount;
+        }
+
+        if (imSelected(ap) && folderElement.hasImContent()) {
+            fi.mMsgType = FilterInfo.TYPE_IM;
+            entry = getFolderSummaryEntry(summary, folderElement, fi.mMsgType);
+            if (entry == null) return -1;
+            cnt += unread ? entry.mUnread : entry.mCount;
+        }
+        return cnt;
+    }
+
     /**
      * Get the size of the message listing
      * @param folder Must contain a valid folder string != null
@@ -2297,6 +2411,13 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        cnt = folderSummaryCount(folderElement, ap, fi, false);
+        if (cnt >= 0) {
+            if (D) Log.d(TAG, "msgListingSize: size = " + cnt + " (folder summary)");
+            return cnt;
+        }
+        cnt = 0;
+
         if (smsSelected(fi, ap) && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilter(folderElement, fi, ap);
@@ -2379,6 +2500,13 @@ public class BluetoothMapContent {
         FilterInfo fi = new FilterInfo();
         setFilterInfo(fi);
 
+        cnt = folderSummaryCount(folderElement, ap, fi, true);
+        if (cnt >= 0) {
+            if (D) Log.d(TAG, "msgListingHasUnread: numUnread = " + cnt + " (folder summary)");
+            return cnt > 0;
+        }
+        cnt = 0;
+
        if (smsSelected(fi, ap)  && folderElement.hasSmsMmsContent()) {
             fi.mMsgType = FilterInfo.TYPE_SMS;
             String where = setWhereFilterFolderType(folderElement, fi);
@@ -3303,6 +3431,18 @@ public class BluetoothMapContent {
     public byte[] getMessage(String handle, BluetoothMapAppParams appParams,
             BluetoothMapFolderElement folderElement, String version)
             throws UnsupportedEncodingException{
+        return getBMessage(handle, appParams, folderElement, version).encode();
+    }
+
+    /**
+     * Load the message of |handle| without encoding it, so that the caller can encode it
+     * straight into the response stream.
+     * @return the bMessage, never null
+     * @throws IllegalArgumentException if the handle or the request is invalid
+     */
+    public BluetoothMapbMessage getBMessage(String handle, BluetoothMapAppParams appParams,
+            BluetoothMapFolderElement folderElement, String version)
+            throws UnsupportedEncodingException{
         TYPE type = BluetoothMapUtils.getMsgTypeFromHandle(handle);
         mMessageVersion = version;
         long id = BluetoothMapUtils.getCpHandle(handle);
@@ -3396,7 +3536,8 @@ public class BluetoothMapContent {
     public static final int MAP_MESSAGE_CHARSET_NATIVE = 0;
     public static final int MAP_MESSAGE_CHARSET_UTF8 = 1;
 
-    public byte[] getSmsMessage(long id, int charset) throws UnsupportedEncodingException{
+    public BluetoothMapbMessageSms getSmsMessage(long id, int charset)
+            throws UnsupportedEncodingException{
         int type, threadId;
         long time = -1;
         String msgBody;
@@ -3454,13 +3595,13 @@ public class BluetoothMapContent {
                 } else /*if (charset == MAP_MESSAGE_CHARSET_UTF8)*/ {
                     message.setSmsBody(msgBody);
                 }
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) c.close();
         }
 
-        return message.encode();
+        return message;
     }
 
     private void extractMmsAddresses(long id, BluetoothMapbMessageMime message) {
@@ -3691,11 +3832,11 @@ public class BluetoothMapContent {
      *
      * @param id the content provider id for the message to fetch.
      * @param appParams The application parameter object received from the client.
-     * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+     * @return the bMessage to send to the client.
      * @throws UnsupportedEncodingException if UTF-8 is not supported,
      * which is guaranteed to be supported on an android device
      */
-    public byte[] getMmsMessage(long id,BluetoothMapAppParams appParams)
+    public BluetoothMapbMessageMime getMmsMessage(long id,BluetoothMapAppParams appParams)
                                                         throws UnsupportedEncodingException {
         int msgBox, threadId;
         if (appParams.getCharset() == MAP_MESSAGE_CHARSET_NATIVE)
@@ -3736,24 +3877,24 @@ public class BluetoothMapContent {
                 extractMmsAddresses(id, message);
 
 
-                return message.encode();
+                return message;
             }
         } finally {
             if (c != null) c.close();
         }
 
-        return message.encode();
+        return message;
     }
 
     /**
     *
     * @param id the content provider id for the message to fetch.
     * @param appParams The application parameter object received from the client.
-    * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+    * @return the bMessage to send to the client.
     * @throws UnsupportedEncodingException if UTF-8 is not supported,
     * which is guaranteed to be supported on an android device
     */
-   public byte[] getEmailMessage(long id, BluetoothMapAppParams appParams,
+   public BluetoothMapbMessageMime getEmailMessage(long id, BluetoothMapAppParams appParams,
            BluetoothMapFolderElement currentFolder) throws UnsupportedEncodingException {
        // Log print out of application parameters set
        if(D && appParams != null) {
@@ -3882,7 +4023,7 @@ public class BluetoothMapContent {
                        if(fd != null) fd.close();
                    } catch (IOException e) {}
                }
-               return message.encode();
+               return message;
            }
        } finally {
            if (c != null) c.close();
@@ -3902,11 +4043,11 @@ public class BluetoothMapContent {
    *
    * @param id the content provider id for the message to fetch.
    * @param appParams The application parameter object received from the client.
-   * @return a byte[] containing the utf-8 encoded bMessage to send to the client.
+   * @return the bMessage to send to the client.
    * @throws UnsupportedEncodingException if UTF-8 is not supported,
    * which is guaranteed to be supported on an android device
    */
-   public byte[] getIMMessage(long id,
+   public BluetoothMapbMessageMime getIMMessage(long id,
            BluetoothMapAppParams appParams,
            BluetoothMapFolderElement folderElement)
                    throws UnsupportedEncodingException {
@@ -3998,7 +4139,7 @@ public class BluetoothMapContent {
 
                    }
                }
-               return message.encode();
+               return message;
            }
        } finally {
            if(c != null) c.close();
@@ -142,6 +142,9 @@ public class BluetoothMapContentObserver {
 
     private boolean mTransmitEvents = true;
 
+    /* Per folder counts, rebuilt with the message lists */
+    private final BluetoothMapFolderSummary mFolderSummary = new BluetoothMapFolderSummary();
+
     /* To make the filter update atomic, we declare it volatile.
      * To avoid a penalty when using it, copy the value to a local
      * non-volatile variable when used more than once.
@@ -197,7 +200,8 @@ public class BluetoothMapContentObserver {
         Sms._ID,
         Sms.THREAD_ID,
         Sms.TYPE,
-        Sms.READ
+        Sms.READ,
+        Sms.DATE
     };
 
     static final String[] SMS_PROJECTION_SHORT_EXT = new String[] {
@@ -215,7 +219,8 @@ public class BluetoothMapContentObserver {
         Mms.THREAD_ID,
         Mms.MESSAGE_TYPE,
         Mms.MESSAGE_BOX,
-        Mms.READ
+        Mms.READ,
+        Mms.DATE
     };
 
     static final String[] MMS_PROJECTION_SHORT_EXT = new String[] {
@@ -232,7 +237,8 @@ public class BluetoothMapContentObserver {
     static final String[] MSG_PROJECTION_SHORT = new String[] {
         BluetoothMapContract.MessageColumns._ID,
         BluetoothMapContract.MessageColumns.FOLDER_ID,
-        BluetoothMapContract.MessageColumns.FLAG_READ
+        BluetoothMapContract.MessageColumns.FLAG_READ,
+        BluetoothMapContract.MessageColumns.DATE
     };
 
     static final String[] MSG_PROJECTION_SHORT_EXT = new String[] {
@@ -539,6 +545,30 @@ public class BluetoothMapContentObserver {
         return "Unknown";
     }
 
+    /* Folder summary key of an SMS, null for types no folder lists */
+    private static String getSmsSummaryFolder(int type, int threadId) {
+        if (threadId == DELETED_THREAD_ID) {
+            return BluetoothMapFolderSummary.folderKey(BluetoothMapContract.FOLDER_NAME_DELETED);
+        }
+        return BluetoothMapFolderSummary.folderKey(FOLDER_SMS_MAP.get(type));
+    }
+
+    /* Folder summary key of an MMS, null for boxes no folder lists */
+    private static String getMmsSummaryFolder(int mailbox, int threadId) {
+        if (threadId == DELETED_THREAD_ID) {
+            return BluetoothMapFolderSummary.folderKey(BluetoothMapContract.FOLDER_NAME_DELETED);
+        }
+        return BluetoothMapFolderSummary.folderKey(FOLDER_MMS_MAP.get(mailbox));
+    }
+
+    /**
+     * Returns the per folder message counts. They are only answered while the observer is
+     * registered, see {@link BluetoothMapFolderSummary}.
+     */
+    /* package */ BluetoothMapFolderSummary getFolderSummary() {
+        return mFolderSummary;
+    }
+
     /**
      * Set the folder structure to be used for this instance.
      * @param folderStructure
@@ -1033,12 +1063,14 @@ public class BluetoothMapContentObserver {
 
             mObserverRegistered = true;
         }
+        mFolderSummary.setTracking(mObserverRegistered);
     }
 
     public void unregisterObserver() {
         if (V) Log.d(TAG, "unregisterObserver");
         mResolver.unregisterContentObserver(mObserver);
         mObserverRegistered = false;
+        mFolderSummary.setTracking(false);
         if(mProviderClient != null){
             mProviderClient.release();
             mProviderClient = null;
@@ -1199,6 +1231,9 @@ public class BluetoothMapContentObserver {
 
         if (mEnableSmsMms) {
             HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+            BluetoothMapFolderSummary.Builder<String> smsSummary =
+                    BluetoothMapFolderSummary.newFolderNameBuilder();
+            mFolderSummary.invalidateSms();
 
             Cursor c;
             try {
@@ -1216,6 +1251,8 @@ public class BluetoothMapContentObserver {
                         int type = c.getInt(c.getColumnIndex(Sms.TYPE));
                         int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
                         int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        smsSummary.add(getSmsSummaryFolder(type, threadId), read == 0,
+                                c.getLong(c.getColumnIndex(Sms.DATE)));
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListSms.put(id, msg);
@@ -1228,9 +1265,13 @@ public class BluetoothMapContentObserver {
             synchronized(getMsgListSms()) {
                 getMsgListSms().clear();
                 setMsgListSms(msgListSms, true); // Set initial folder version counter
+                mFolderSummary.setSms(smsSummary);
             }
 
             HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+            BluetoothMapFolderSummary.Builder<String> mmsSummary =
+                    BluetoothMapFolderSummary.newFolderNameBuilder();
+            mFolderSummary.invalidateMms();
 
             c = mResolver.query(Mms.CONTENT_URI, MMS_PROJECTION_SHORT, null, null, null);
             try {
@@ -1240,6 +1281,9 @@ public class BluetoothMapContentObserver {
                         int type = c.getInt(c.getColumnIndex(Mms.MESSAGE_BOX));
                         int threadId = c.getInt(c.getColumnIndex(Mms.THREAD_ID));
                         int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        // MMS dates are in seconds
+                        mmsSummary.add(getMmsSummaryFolder(type, threadId), read == 0,
+                                c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L);
 
                         Msg msg = new Msg(id, type, threadId, read);
                         msgListMms.put(id, msg);
@@ -1252,11 +1296,15 @@ public class BluetoothMapContentObserver {
             synchronized(getMsgListMms()) {
                 getMsgListMms().clear();
                 setMsgListMms(msgListMms, true); // Set initial folder version counter
+                mFolderSummary.setMms(mmsSummary);
             }
         }
 
         if(mAccount != null) {
             HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
+            BluetoothMapFolderSummary.Builder<Long> msgSummary =
+                    BluetoothMapFolderSummary.newFolderIdBuilder();
+            mFolderSummary.invalidateMsg();
             Uri uri = mMessageUri;
             Cursor c = mProviderClient.query(uri, MSG_PROJECTION_SHORT, null, null, null);
 
@@ -1268,6 +1316,8 @@ public class BluetoothMapContentObserver {
                                 BluetoothMapContract.MessageColumns.FOLDER_ID));
                         int readFlag = c.getInt(c.getColumnIndex(
                                 BluetoothMapContract.MessageColumns.FLAG_READ));
+                        msgSummary.add(folderId, readFlag == 0, c.getLong(c.getColumnIndex(
+                                BluetoothMapContract.MessageColumns.DATE)));
                         Msg msg = new Msg(id, folderId, readFlag);
                         msgList.put(id, msg);
                     } while (c.moveToNext());
@@ -1279,6 +1329,7 @@ public class BluetoothMapContentObserver {
             synchronized(getMsgListMsg()) {
                 getMsgListMsg().clear();
                 setMsgListMsg(msgList, true);
+                mFolderSummary.setMsg(msgSummary);
             }
         }
     }
@@ -1333,10 +1384,13 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "handleMsgListChangesSms");
 
         HashMap<Long, Msg> msgListSms = new HashMap<Long, Msg>();
+        BluetoothMapFolderSummary.Builder<String> smsSummary =
+                BluetoothMapFolderSummary.newFolderNameBuilder();
         boolean listChanged = false;
 
         Cursor c;
         synchronized(getMsgListSms()) {
+            mFolderSummary.invalidateSms();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = mResolver.query(Sms.CONTENT_URI,
                         SMS_PROJECTION_SHORT, null, null, null);
@@ -1351,6 +1405,8 @@ public class BluetoothMapContentObserver {
                         int type = c.getInt(c.getColumnIndex(Sms.TYPE));
                         int threadId = c.getInt(c.getColumnIndex(Sms.THREAD_ID));
                         int read = c.getInt(c.getColumnIndex(Sms.READ));
+                        smsSummary.add(getSmsSummaryFolder(type, threadId), read == 0,
+                                c.getLong(c.getColumnIndex(Sms.DATE)));
 
                         Msg msg = getMsgListSms().remove(id);
 
@@ -1478,6 +1534,7 @@ public class BluetoothMapContentObserver {
             }
 
             setMsgListSms(msgListSms, listChanged);
+            mFolderSummary.setSms(smsSummary);
         }
     }
 
@@ -1485,9 +1542,12 @@ public class BluetoothMapContentObserver {
         if (V) Log.d(TAG, "handleMsgListChangesMms");
 
         HashMap<Long, Msg> msgListMms = new HashMap<Long, Msg>();
+        BluetoothMapFolderSummary.Builder<String> mmsSummary =
+                BluetoothMapFolderSummary.newFolderNameBuilder();
         boolean listChanged = false;
         Cursor c;
         synchronized(getMsgListMms()) {
+            mFolderSummary.invalidateMms();
             if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
                 c = mResolver.query(Mms.CONTENT_URI,
                         MMS_PROJECTION_SHORT, null, null, null);
@@ -1506,6 +1566,9 @@ public class BluetoothMapContentObserver {
                         // TODO: Go through code to see if we have an issue with mismatch in types
                         //       for threadId. Seems to be a long in DB??
                         int read = c.getInt(c.getColumnIndex(Mms.READ));
+                        // MMS dates are in seconds
+                        mmsSummary.add(getMmsSummaryFolder(type, threadId), read == 0,
+                                c.getLong(c.getColumnIndex(Mms.DATE)) * 1000L);
 
                         Msg msg = getMsgListMms().remove(id);
 
@@ -1636,6 +1699,7 @@ public class BluetoothMapContentObserver {
                 listChanged = true;
             }
             setMsgListMms(msgListMms, listChanged);
+            mFolderSummary.setMms(mmsSummary);
         }
     }
 
@@ -1645,6 +1709,8 @@ public class BluetoothMapContentObserver {
         // TODO: Change observer to handle accountId and message ID if present
 
         HashMap<Long, Msg> msgList = new HashMap<Long, Msg>();
+        BluetoothMapFolderSummary.Builder<Long> msgSummary =
+                BluetoothMapFolderSummary.newFolderIdBuilder();
         Cursor c;
         boolean listChanged = false;
         if (mMapEventReportVersion == BluetoothMapUtils.MAP_EVENT_REPORT_V10) {
@@ -1655,6 +1721,7 @@ public class BluetoothMapContentObserver {
             c = mProviderClient.query(mMessageUri, MSG_PROJECTION_SHORT_EXT2, null, null, null);
         }
         synchronized(getMsgListMsg()) {
+            mFolderSummary.invalidateMsg();
             try {
                 if (c != null && c.moveToFirst()) {
                     do {
@@ -1664,6 +1731,8 @@ public class BluetoothMapContentObserver {
                                 BluetoothMapContract.MessageColumns.FOLDER_ID));
                         int readFlag = c.getInt(c.getColumnIndex(
                                 BluetoothMapContract.MessageColumns.FLAG_READ));
+                        msgSummary.add((long) folderId, readFlag == 0, c.getLong(c.getColumnIndex(
+                                BluetoothMapContract.MessageColumns.DATE)));
                         Msg msg = getMsgListMsg().remove(id);
                         BluetoothMapFolderElement folderElement = mFolders.getFolderById(folderId);
                         String newFolder;
@@ -1820,6 +1889,7 @@ public class BluetoothMapContentObserver {
                 }
             }
             setMsgListMsg(msgList, listChanged);
+            mFolderSummary.setMsg(msgSummary);
         }
     }
 
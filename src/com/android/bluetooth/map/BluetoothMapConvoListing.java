@@ -14,9 +14,10 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.ArrayList;
@@ -92,10 +93,28 @@ public class BluetoothMapConvoListing {
      *             if UTF-8 encoding is unsupported on the platform.
      */
     public byte[] encode() throws UnsupportedEncodingException {
-        StringWriter sw = new StringWriter();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encode(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        }
+        return stream.toByteArray();
+    }
+
+    /**
+     * Encode the list of BluetoothMapConvoListingElement(s) as UTF-8 formatted XML directly
+     * into a stream, without building the listing in memory first.
+     *
+     * @param out the stream to write the listing to
+     * @throws IOException if writing to the stream fails
+     */
+    public void encode(OutputStream out) throws IOException {
         XmlSerializer xmlConvoElement = new FastXmlSerializer();
         try {
-            xmlConvoElement.setOutput(sw);
+            xmlConvoElement.setOutput(out, "UTF-8");
             xmlConvoElement.startDocument("UTF-8", true);
             xmlConvoElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
                     true);
@@ -111,10 +130,7 @@ public class BluetoothMapConvoListing {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
             Log.w(TAG, e);
-        } catch (IOException e) {
-            Log.w(TAG, e);
         }
-        return sw.toString().getBytes("UTF-8");
     }
 
     public void sort() {
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Message count, unread count and newest message date per folder, for the messages tracked by
+ * a BluetoothMapContentObserver.
+ *
+ * The observer rebuilds the counts of a message type each time it walks the provider after a
+ * change notification, from the same rows it compares against its message list. A
+ * GetMessagesListing that only asks for the listing size and the new message flag can then be
+ * answered without querying the providers again. SMS and MMS are counted per folder name,
+ * email and IM per folder id. Dates are in ms.
+ *
+ * A message type is only answered while the observer is registered and no rebuild of that type
+ * is under way; otherwise the getters return null and the caller has to query the provider.
+ */
+class BluetoothMapFolderSummary {
+
+    /** Counts of one folder. */
+    static class Entry {
+        int mCount;
+        int mUnread;
+        long mNewest;
+
+        @Override
+        public String toString() {
+            return mCount + " messages, " + mUnread + " unread, newest " + mNewest;
+        }
+    }
+
+    /* Returned for folders without messages, never modified */
+    private static final Entry EMPTY = new Entry();
+
+    /** Collects the entries of one message type while the provider is walked. */
+    static class Builder<K> {
+        private final HashMap<K, Entry> mEntries = new HashMap<K, Entry>();
+
+        void add(K folder, boolean unread, long date) {
+            if (folder == null) return;
+            Entry entry = mEntries.get(folder);
+            if (entry == null) {
+                entry = new Entry();
+                mEntries.put(folder, entry);
+            }
+            entry.mCount++;
+            if (unread) entry.mUnread++;
+            if (date > entry.mNewest) entry.mNewest = date;
+        }
+    }
+
+    /* null while the type is not valid */
+    private volatile Map<String, Entry> mSms;
+    private volatile Map<String, Entry> mMms;
+    private volatile Map<Long, Entry> mMsg;
+    private volatile boolean mTracking;
+
+    /* Builder for SMS or MMS, keyed by folder name */
+    static Builder<String> newFolderNameBuilder() {
+        return new Builder<String>();
+    }
+
+    /* Builder for email or IM, keyed by folder id */
+    static Builder<Long> newFolderIdBuilder() {
+        return new Builder<Long>();
+    }
+
+    /* Folder name key of SMS and MMS folders, matched like the where filters do */
+    static String folderKey(String folderName) {
+        return (folderName != null) ? folderName.toLowerCase(Locale.ROOT) : null;
+    }
+
+    /* Set while the observer gets change notifications, so that the counts stay current */
+    void setTracking(boolean tracking) {
+        mTracking = tracking;
+    }
+
+    void invalidateSms() {
+        mSms = null;
+    }
+
+    void invalidateMms() {
+        mMms = null;
+    }
+
+    void invalidateMsg() {
+        mMsg = null;
+    }
+
+    void setSms(Builder<String> builder) {
+        mSms = builder.mEntries;
+    }
+
+    void setMms(Builder<String> builder) {
+        mMms = builder.mEntries;
+    }
+
+    void setMsg(Builder<Long> builder) {
+        mMsg = builder.mEntries;
+    }
+
+    /* Returns the SMS counts of |folderName|, or null if they are not known */
+    Entry getSms(String folderName) {
+        return get(mSms, folderKey(folderName));
+    }
+
+    /* Returns the MMS counts of |folderName|, or null if they are not known */
+    Entry getMms(String folderName) {
+        return get(mMms, folderKey(folderName));
+    }
+
+    /* Returns the email or IM counts of |folderId|, or null if they are not known */
+    Entry getMsg(long folderId) {
+        return get(mMsg, folderId);
+    }
+
+    private <K> Entry get(Map<K, Entry> entries, K folder) {
+        if (!mTracking || entries == null) return null;
+        Entry entry = entries.get(folder);
+        return (entry != null) ? entry : EMPTY;
+    }
+}
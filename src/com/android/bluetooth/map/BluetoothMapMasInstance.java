@@ -214,6 +214,11 @@ public class BluetoothMapMasInstance implements IObexConnectionHandler {
         mMsgListMsg = msgListMsg;
     }
 
+    /* package */ BluetoothMapFolderSummary getFolderSummary() {
+        BluetoothMapContentObserver observer = mObserver;
+        return (observer != null) ? observer.getFolderSummary() : null;
+    }
+
     /* package */ Map<String, BluetoothMapConvoContactElement> getContactList() {
         return mContactList;
     }
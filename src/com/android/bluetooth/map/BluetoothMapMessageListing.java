@@ -15,8 +15,11 @@
 package com.android.bluetooth.map;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -88,6 +91,53 @@ public class BluetoothMapMessageListing {
      */
     // TODO: Remove includeThreadId when MAP-IM is adopted
     public byte[] encode(boolean includeThreadId, String version) throws UnsupportedEncodingException {
+        return encodeToString(includeThreadId, version).getBytes("UTF-8");
+    }
+
+    /**
+     * Encode the list of BluetoothMapMessageListingElement(s) as UTF-8 formatted XML into a
+     * stream. The listing is written element by element, each one with the delimiter
+     * workarounds of the remote device applied, so it is never held in memory as a whole.
+     *
+     * @param out the stream to write the listing to
+     * @param version the version as a string, see {@link #encode(boolean, String)}
+     * @throws IOException if writing to the stream fails
+     */
+    // TODO: Remove includeThreadId when MAP-IM is adopted
+    public void encode(OutputStream out, boolean includeThreadId, String version)
+            throws IOException {
+        String remoteAddress = BluetoothMapService.getRemoteDevice().getAddress().toLowerCase();
+        boolean isBenzCarkit = remoteAddress.equals(RemoteDeviceWorkArounds.BENZ_CARKIT);
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        StringWriter sw = new StringWriter();
+        XmlSerializer xmlMsgElement = RemoteDeviceWorkArounds.setXmlSerializer(isBenzCarkit);
+        try {
+            xmlMsgElement.setOutput(sw);
+            startListing(xmlMsgElement, isBenzCarkit, version);
+            for (BluetoothMapMessageListingElement element : mList) {
+                element.encode(xmlMsgElement, includeThreadId); // Append the list element
+                xmlMsgElement.flush();
+                writeChunk(sw, writer, remoteAddress);
+            }
+            endListing(xmlMsgElement);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, e);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, e);
+        }
+        writeChunk(sw, writer, remoteAddress);
+        writer.flush();
+    }
+
+    /* Moves what was serialized into |sw| to |writer|, with the delimiters adjusted */
+    private static void writeChunk(StringWriter sw, Writer writer, String remoteAddress)
+            throws IOException {
+        String chunk = RemoteDeviceWorkArounds.handleXmlDelimeters(sw, remoteAddress);
+        writer.write(chunk == null ? sw.toString() : chunk);
+        sw.getBuffer().setLength(0);
+    }
+
+    private String encodeToString(boolean includeThreadId, String version) {
         StringWriter sw = new StringWriter();
         String remoteAddress = BluetoothMapService.getRemoteDevice().getAddress().toLowerCase();
         boolean isBenzCarkit = remoteAddress.equals(RemoteDeviceWorkArounds.BENZ_CARKIT);
@@ -96,21 +146,11 @@ public class BluetoothMapMessageListing {
         XmlSerializer xmlMsgElement = RemoteDeviceWorkArounds.setXmlSerializer(isBenzCarkit);
         try {
             xmlMsgElement.setOutput(sw);
-            if(isBenzCarkit) {
-                xmlMsgElement.text("\n");
-            } else {
-                xmlMsgElement.startDocument("UTF-8", true);
-                xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-            }
-            xmlMsgElement.startTag(null, "MAP-msg-listing");
-            xmlMsgElement.attribute(null, "version", version);
-            // Do the XML encoding of list
+            startListing(xmlMsgElement, isBenzCarkit, version);
             for (BluetoothMapMessageListingElement element : mList) {
                 element.encode(xmlMsgElement, includeThreadId); // Append the list element
             }
-            xmlMsgElement.endTag(null, "MAP-msg-listing");
-            xmlMsgElement.endDocument();
+            endListing(xmlMsgElement);
         } catch (IllegalArgumentException e) {
             Log.w(TAG, e);
         } catch (IllegalStateException e) {
@@ -119,8 +159,25 @@ public class BluetoothMapMessageListing {
             Log.w(TAG, e);
         }
         String msgListing = RemoteDeviceWorkArounds.handleXmlDelimeters(sw, remoteAddress);
-        return (msgListing == null ?
-                sw.toString().getBytes("UTF-8") : msgListing.getBytes("UTF-8"));
+        return (msgListing == null ? sw.toString() : msgListing);
+    }
+
+    private static void startListing(XmlSerializer xmlMsgElement, boolean isBenzCarkit,
+            String version) throws IOException {
+        if(isBenzCarkit) {
+            xmlMsgElement.text("\n");
+        } else {
+            xmlMsgElement.startDocument("UTF-8", true);
+            xmlMsgElement.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                    true);
+        }
+        xmlMsgElement.startTag(null, "MAP-msg-listing");
+        xmlMsgElement.attribute(null, "version", version);
+    }
+
+    private static void endListing(XmlSerializer xmlMsgElement) throws IOException {
+        xmlMsgElement.endTag(null, "MAP-msg-listing");
+        xmlMsgElement.endDocument();
     }
 
     public void sort() {
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.map;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OBEX body stream of a MAS response, which the listing and bMessage encoders write into
+ * directly instead of producing the whole response as a byte array first.
+ *
+ * Writes are collected into packets of the size negotiated for the operation, and each packet
+ * is handed to the OBEX stream as a whole. Before a packet is sent {@link #isAborted()} is
+ * checked, so that an encoder stops at the next packet once the client aborted the operation.
+ */
+class BluetoothMapObexBodyStream extends OutputStream {
+    private final OutputStream mOut;
+    private final byte[] mPacket;
+    private int mFill;
+    private long mBytesWritten;
+    private boolean mFinished;
+
+    /**
+     * @param out the OBEX body stream of the operation
+     * @param packetSize the maximum packet size, which is only known once the response headers
+     *        have been set
+     */
+    BluetoothMapObexBodyStream(OutputStream out, int packetSize) {
+        mOut = out;
+        mPacket = new byte[Math.max(packetSize, 1)];
+    }
+
+    /* Overridden by the server to stop the encoding when the client aborts */
+    boolean isAborted() {
+        return false;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (mFill == mPacket.length) {
+            sendPacket();
+        }
+        mPacket[mFill++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (mFill == mPacket.length) {
+                sendPacket();
+            }
+            int count = Math.min(len, mPacket.length - mFill);
+            System.arraycopy(b, off, mPacket, mFill, count);
+            mFill += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /* Encoders flush when they are done, the last packet is sent by finish() */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Send the remaining bytes. Must be called once the whole body has been written, a body
+     * that was not finished is reported as incomplete.
+     */
+    void finish() throws IOException {
+        if (mFill > 0) {
+            sendPacket();
+        }
+        mFinished = true;
+    }
+
+    /* True if the whole body was written and sent */
+    boolean isFinished() {
+        return mFinished;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    private void sendPacket() throws IOException {
+        if (isAborted()) {
+            throw new IOException("Abort Received");
+        }
+        mOut.write(mPacket, 0, mFill);
+        mBytesWritten += mFill;
+        mFill = 0;
+    }
+}
@@ -1016,12 +1016,13 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                       BluetoothMapAppParams appParams,
                                       String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0, listSize;
+        BluetoothMapObexBodyStream body = null;
+        int listSize;
         boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        BluetoothMapMessageListing outList;
+        BluetoothMapMessageListing outList = null;
+        String version = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1071,16 +1072,15 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                 outList = mOutContent.msgListing(folderToList, appParams);
                 // Generate the byte stream
                 outAppParams.setMessageListingSize(outList.getCount());
-                String version;
                 if(0 < (mRemoteFeatureMask &
                         BluetoothMapUtils.MAP_FEATURE_MESSAGE_LISTING_FORMAT_V11_BIT)) {
                     version = BluetoothMapUtils.MAP_V11_STR;
                 } else {
                     version = BluetoothMapUtils.MAP_V10_STR;
                 }
-                /* This will only set the version, the bit must also be checked before adding any
+                /* The version is used when the listing is encoded into the body below. It will
+                 * only set the version, the bit must also be checked before adding any
                  * 1.1 bits to the listing. */
-                outBytes = outList.encode(mThreadIdSupport, version);
                 hasUnread = outList.hasUnread();
             } else {
                 listSize = mOutContent.msgListingSize(folderToList, appParams);
@@ -1126,22 +1126,23 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(outList != null) {
+            // The listing is encoded straight into the OBEX body, packet by packet
+            body = openBodyStream(op, outStream);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                outList.encode(body, mThreadIdSupport, version);
+                body.finish();
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
+            } catch (IllegalArgumentException e) {
+                // The body is left unfinished, which is answered with OBEX_HTTP_BAD_REQUEST
+                Log.w(TAG, "sendMessageListingRsp: IllegalArgumentException while encoding", e);
             } finally {
-                if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
+                try { body.close(); } catch (IOException e) {}
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendMessageListingRsp: bytesWritten != outBytes.length" +
+            if(!body.isFinished() && !mIsAborted) {
+                Log.w(TAG,"sendMessageListingRsp: listing not sent completely" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1207,12 +1208,12 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
                                     BluetoothMapAppParams appParams,
                                     String folderName){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        BluetoothMapObexBodyStream body = null;
         //boolean hasUnread = false;
         HeaderSet replyHeaders = new HeaderSet();
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
         BluetoothMapConvoListing outList;
+        BluetoothMapConvoListing bodyList = null;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1236,9 +1237,8 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             if(appParams.getMaxListCount() != 0) {
                 outList = mOutContent.convoListing(appParams, false);
                 outAppParams.setConvoListingSize(outList.getCount());
-                // Generate the byte stream
-                outBytes = outList.encode(); // Include thread ID for clients that supports it.
-                if(D) Log.d(TAG, "outBytes size:"+ outBytes.length);
+                // Encoded into the OBEX body once the headers are sent
+                bodyList = outList;
             } else {
                 outList = mOutContent.convoListing(appParams, true);
                 outAppParams.setConvoListingSize(outList.getCount());
@@ -1284,22 +1284,23 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-        if(outBytes != null) {
+        if(bodyList != null) {
+            body = openBodyStream(op, outStream);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                bodyList.encode(body);
+                body.finish();
             } catch (IOException e) {
                 if(D) Log.w(TAG,e);
                 // We were probably aborted or disconnected
+            } catch (IllegalArgumentException e) {
+                // The body is left unfinished, which is answered with OBEX_HTTP_BAD_REQUEST
+                Log.w(TAG, "sendConvoListingRsp: IllegalArgumentException while encoding", e);
             } finally {
-                if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
+                try { body.close(); } catch (IOException e) {}
             }
-            if(bytesWritten != outBytes.length && !mIsAborted) {
-                Log.w(TAG,"sendConvoListingRsp: bytesWritten != outBytes.length" +
+            if(D) Log.d(TAG, "body size:"+ body.getBytesWritten());
+            if(!body.isFinished() && !mIsAborted) {
+                Log.w(TAG,"sendConvoListingRsp: listing not sent completely" +
                         " - sending OBEX_HTTP_BAD_REQUEST");
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             }
@@ -1326,9 +1327,9 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         OutputStream outStream = null;
         byte[] outBytes = null;
         BluetoothMapAppParams outAppParams = new BluetoothMapAppParams();
-        int maxChunkSize, bytesWritten = 0;
+        BluetoothMapObexBodyStream body = null;
         HeaderSet replyHeaders = new HeaderSet();
-        int bytesToWrite, maxListCount, listStartOffset;
+        int maxListCount, listStartOffset;
         if(appParams == null){
             appParams = new BluetoothMapAppParams();
             appParams.setMaxListCount(1024);
@@ -1389,23 +1390,20 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_PRECON_FAILED;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
+        // The folder listing is small, it is encoded up front and sent through the body stream
         if(outBytes != null) {
+            body = openBodyStream(op, outStream);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                body.write(outBytes);
+                body.finish();
             } catch (IOException e) {
                 // We were probably aborted or disconnected
             } finally {
-                if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
+                try { body.close(); } catch (IOException e) {}
             }
-            if(V)
-                Log.v(TAG,"sendFolderList sent " + bytesWritten+" bytes out of "+ outBytes.length);
-            if(bytesWritten == outBytes.length || mIsAborted)
+            if(V) Log.v(TAG,"sendFolderList sent " + body.getBytesWritten() + " bytes out of "
+                    + outBytes.length);
+            if(body.isFinished() || mIsAborted)
                 return ResponseCodes.OBEX_HTTP_OK;
             else
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -1429,7 +1427,7 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         OutputStream outStream = null;
         byte[] outBytes = null;
         String outString = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        BluetoothMapObexBodyStream body = null;
 
         try {
             if(mMasId == appParams.getMasInstanceId()) {
@@ -1483,24 +1481,20 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             }
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
         if(outBytes != null) {
+            body = openBodyStream(op, outStream);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                body.write(outBytes);
+                body.finish();
             } catch (IOException e) {
                 // We were probably aborted or disconnected
             } finally {
-                if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
+                try { body.close(); } catch (IOException e) {}
             }
             if(V)
-                Log.v(TAG,"sendMASInstanceInformationRsp sent " + bytesWritten +
+                Log.v(TAG,"sendMASInstanceInformationRsp sent " + body.getBytesWritten() +
                         " bytes out of "+ outBytes.length);
-            if(bytesWritten == outBytes.length || mIsAborted)
+            if(body.isFinished() || mIsAborted)
                 return ResponseCodes.OBEX_HTTP_OK;
             else
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -1526,11 +1520,11 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
     private int sendGetMessageRsp(Operation op, String handle,
             BluetoothMapAppParams appParams, String version){
         OutputStream outStream = null;
-        byte[] outBytes = null;
-        int maxChunkSize, bytesToWrite, bytesWritten = 0;
+        BluetoothMapbMessage message = null;
+        BluetoothMapObexBodyStream body = null;
 
         try {
-            outBytes = mOutContent.getMessage(handle, appParams, mCurrentFolder, version);
+            message = mOutContent.getBMessage(handle, appParams, mCurrentFolder, version);
             outStream = op.openOutputStream();
 
             // If it is a fraction request of Email message, set header before responding
@@ -1565,24 +1559,26 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
             return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
         }
 
-        maxChunkSize = op.getMaxPacketSize(); // This must be called after setting the headers.
-
-        if(outBytes != null) {
+        if(message != null) {
+            // The bMessage is encoded straight into the OBEX body, packet by packet
+            body = openBodyStream(op, outStream);
             try {
-                while (bytesWritten < outBytes.length && mIsAborted == false) {
-                    bytesToWrite = Math.min(maxChunkSize, outBytes.length - bytesWritten);
-                    outStream.write(outBytes, bytesWritten, bytesToWrite);
-                    bytesWritten += bytesToWrite;
-                }
+                message.encode(body);
+                body.finish();
             } catch (IOException e) {
                 // We were probably aborted or disconnected
-                if(D && e.getMessage().equals("Abort Received")) {
+                if(D && "Abort Received".equals(e.getMessage())) {
                     Log.w(TAG, "getMessage() Aborted...", e);
                 }
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "sendGetMessageRsp: IllegalArgumentException while encoding - "
+                        + "sending OBEX_HTTP_BAD_REQUEST", e);
+                return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
             } finally {
-                if(outStream != null) { try { outStream.close(); } catch (IOException e) {} }
+                try { body.close(); } catch (IOException e) {}
             }
-            if(bytesWritten == outBytes.length || mIsAborted)
+            if(V) Log.v(TAG,"sendGetMessageRsp sent " + body.getBytesWritten() + " bytes");
+            if(body.isFinished() || mIsAborted)
                 return ResponseCodes.OBEX_HTTP_OK;
             else
                 return ResponseCodes.OBEX_HTTP_BAD_REQUEST;
@@ -1591,6 +1587,21 @@ public class BluetoothMapObexServer extends ServerRequestHandler {
         return ResponseCodes.OBEX_HTTP_OK;
     }
 
+    /**
+     * Wrap the OBEX body stream of |op| so that a response body can be encoded into it directly.
+     * The writes are sent in chunks of the OBEX packet size, and the encoding stops with an
+     * IOException once the client aborts the operation.
+     * Must be called after setting the headers, as the packet size depends on them.
+     */
+    private BluetoothMapObexBodyStream openBodyStream(Operation op, OutputStream outStream) {
+        return new BluetoothMapObexBodyStream(outStream, op.getMaxPacketSize()) {
+            @Override
+            boolean isAborted() {
+                return mIsAborted;
+            }
+        };
+    }
+
     @Override
     public int onDelete(HeaderSet request, HeaderSet reply) {
         if(D) Log.v(TAG, "onDelete() " + request.toString());
@@ -21,6 +21,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 
@@ -796,6 +797,28 @@ public abstract class BluetoothMapbMessage {
 
     public abstract byte[] encode() throws UnsupportedEncodingException;
 
+    /**
+     * Encode the bMessage into a stream. The default writes the result of {@link #encode()},
+     * message types that can have large bodies override this to encode directly into the
+     * stream.
+     * @param out the stream to write the UTF-8 encoded bMessage to
+     * @throws IOException if writing to the stream fails
+     */
+    public void encode(OutputStream out) throws IOException {
+        byte[] bytes = encode();
+        if (bytes != null) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Writer of a single <bmessage-body-content> fragment, used to encode a body without
+     * holding all of it in memory.
+     */
+    interface BodyFragmentWriter {
+        void writeFragment(OutputStream out) throws IOException;
+    }
+
     public void setStatus(boolean read) {
         if(read)
             this.mStatus = "READ";
@@ -962,10 +985,10 @@ public abstract class BluetoothMapbMessage {
         return out;
     }
 
-    public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
+    /* The bMessage up to and including the LENGTH of the <bmessage-body-content> */
+    private byte[] encodeGenericStart(int length) throws UnsupportedEncodingException
     {
         StringBuilder sb = new StringBuilder(256);
-        byte[] msgStart, msgEnd;
         sb.append("BEGIN:BMSG").append("\r\n");
 
         sb.append(mVersionString).append("\r\n");
@@ -1000,23 +1023,32 @@ public abstract class BluetoothMapbMessage {
         if(mCharset != null && mCharset != "")
             sb.append("CHARSET:").append(mCharset).append("\r\n");
 
-
-        int length = 0;
-        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
-        for (byte[] fragment : bodyFragments) {
-            length += fragment.length + 22;
-        }
         sb.append("LENGTH:").append(length).append("\r\n");
 
         // Extract the initial part of the bMessage string
-        msgStart = sb.toString().getBytes("UTF-8");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        sb = new StringBuilder(31);
+    /* The end of the bMessage, following the <bmessage-body-content> */
+    private static byte[] encodeGenericEnd() throws UnsupportedEncodingException
+    {
+        StringBuilder sb = new StringBuilder(31);
         sb.append("END:BBODY").append("\r\n");
         sb.append("END:BENV").append("\r\n");
         sb.append("END:BMSG").append("\r\n");
+        return sb.toString().getBytes("UTF-8");
+    }
 
-        msgEnd = sb.toString().getBytes("UTF-8");
+    public byte[] encodeGeneric(ArrayList<byte[]> bodyFragments) throws UnsupportedEncodingException
+    {
+        byte[] msgStart, msgEnd;
+        int length = 0;
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        for (byte[] fragment : bodyFragments) {
+            length += fragment.length + 22;
+        }
+        msgStart = encodeGenericStart(length);
+        msgEnd = encodeGenericEnd();
 
         try {
 
@@ -1038,4 +1070,39 @@ public abstract class BluetoothMapbMessage {
             return null;
         }
     }
+
+    /**
+     * Encode the bMessage into a stream, with a single body fragment written by a
+     * {@link BodyFragmentWriter}. As the LENGTH property precedes the body content, the
+     * fragment is written twice: once to count its bytes, and once into the stream.
+     * @param out the stream to write the bMessage to
+     * @param body the writer of the body fragment, must produce the same bytes on both calls
+     * @throws IOException if writing to the stream fails
+     */
+    protected void encodeGeneric(OutputStream out, BodyFragmentWriter body) throws IOException
+    {
+        CountingOutputStream counter = new CountingOutputStream();
+        body.writeFragment(counter);
+        /* 22 is the length of the 'BEGIN:MSG' and 'END:MSG' + 3*CRLF */
+        out.write(encodeGenericStart((int)counter.mCount + 22));
+        out.write("BEGIN:MSG\r\n".getBytes("UTF-8"));
+        body.writeFragment(out);
+        out.write("\r\nEND:MSG\r\n".getBytes("UTF-8"));
+        out.write(encodeGenericEnd());
+    }
+
+    /* Counts the bytes written to it, without keeping them */
+    private static class CountingOutputStream extends OutputStream {
+        long mCount = 0;
+
+        @Override
+        public void write(int b) {
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            mCount += len;
+        }
+    }
 }
@@ -14,6 +14,9 @@
 */
 package com.android.bluetooth.map;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
@@ -27,6 +30,7 @@ import java.util.UUID;
 import android.text.util.Rfc822Token;
 import android.text.util.Rfc822Tokenizer;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import android.util.Log;
 
 public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
@@ -75,8 +79,9 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
             return result;
         }
 
-        public void encode(StringBuilder sb, String boundaryTag, boolean last)
-                                                       throws UnsupportedEncodingException {
+        public void encode(OutputStream out, String boundaryTag, boolean last)
+                                                       throws IOException {
+            StringBuilder sb = new StringBuilder();
             sb.append("--").append(boundaryTag).append("\r\n");
             if(mContentType != null)
                 sb.append("Content-Type: ").append(mContentType);
@@ -110,12 +115,20 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
                 else {
                     /* Add the header split empty line */
                     sb.append("Content-Transfer-Encoding: Base64\r\n\r\n");
-                    sb.append(Base64.encodeToString(mData, Base64.DEFAULT)).append("\r\n");
+                    writeEscaped(out, sb);
+                    sb.setLength(0);
+                    /* Encode the attachment directly into the stream, base64 holds no END:MSG */
+                    Base64OutputStream base64 =
+                            new Base64OutputStream(out, Base64.DEFAULT | Base64.NO_CLOSE);
+                    base64.write(mData);
+                    base64.close();
+                    sb.append("\r\n");
                 }
             }
             if(last) {
                 sb.append("--").append(boundaryTag).append("--").append("\r\n");
             }
+            writeEscaped(out, sb);
         }
 
         public void encodePlainText(StringBuilder sb) throws UnsupportedEncodingException {
@@ -444,13 +457,42 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
      */
     public byte[] encodeMime() throws UnsupportedEncodingException
     {
-        ArrayList<byte[]> bodyFragments = new ArrayList<byte[]>();
-        StringBuilder sb = new StringBuilder();
-        int count = 0;
-        String mimeBody;
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        try {
+            encodeMime(stream);
+        } catch (UnsupportedEncodingException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.w(TAG,e);
+            return null;
+        }
+        return stream.toByteArray();
+    }
 
+    /**
+     * Encode the bMessage as a Mime message(MMS/IM) into a stream. Attachments are base64
+     * encoded straight into the stream, hence they are never held in memory in encoded form.
+     * @param out the stream to write the bMessage to
+     * @throws IOException if writing to the stream fails
+     */
+    public void encodeMime(OutputStream out) throws IOException
+    {
         encoding = "8BIT"; // The encoding used
 
+        encodeGeneric(out, new BodyFragmentWriter() {
+            @Override
+            public void writeFragment(OutputStream fragmentOut) throws IOException {
+                writeMimeBody(fragmentOut);
+            }
+        });
+    }
+
+    /* Writes the <bmessage-body-content> of the Mime message */
+    private void writeMimeBody(OutputStream out) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+
         encodeHeaders(sb);
         if(parts != null) {
             if(getIncludeAttachments() == false) {
@@ -460,24 +502,24 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
                     part.encodePlainText(sb);
                 }
             } else {
+                writeEscaped(out, sb);
+                sb.setLength(0);
                 for(MimePart part : parts) {
                     count++;
-                    part.encode(sb, getBoundary(), (count == parts.size()));
+                    part.encode(out, getBoundary(), (count == parts.size()));
                 }
             }
         }
+        writeEscaped(out, sb);
+    }
 
-        mimeBody = sb.toString();
-
-        if(mimeBody != null) {
-           // Replace any occurrences of END:MSG with \END:MSG
-            String tmpBody = mimeBody.replaceAll("END:MSG", "/END\\:MSG");
-            bodyFragments.add(tmpBody.getBytes("UTF-8"));
-        } else {
-            bodyFragments.add(new byte[0]);
-        }
-
-        return encodeGeneric(bodyFragments);
+    /* Writes a part of the body, every piece written ends a line so END:MSG can't span two */
+    private static void writeEscaped(OutputStream out, CharSequence text) throws IOException
+    {
+        if(text.length() == 0) return;
+        // Replace any occurrences of END:MSG with \END:MSG
+        String tmpBody = text.toString().replaceAll("END:MSG", "/END\\:MSG");
+        out.write(tmpBody.getBytes("UTF-8"));
     }
 
 
@@ -742,4 +784,9 @@ public class BluetoothMapbMessageMime extends BluetoothMapbMessage {
         return encodeMime();
     }
 
+    @Override
+    public void encode(OutputStream out) throws IOException {
+        encodeMime(out);
+    }
+
 }
@@ -197,6 +197,7 @@ public class MapClientService extends ProfileService {
     public synchronized void dump(StringBuilder sb) {
         super.dump(sb);
         println(sb, "StateMachine: " + mMceStateMachine.toString());
+        mMceStateMachine.dump(sb);
     }
 
     //Binder object: Must be static class or memory leak may occur
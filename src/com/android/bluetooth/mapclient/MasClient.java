@@ -26,8 +26,10 @@ import android.os.Message;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothObexTransport;
+import com.android.bluetooth.btservice.ProfileService;
 import com.android.internal.util.StateMachine;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 
@@ -60,16 +62,19 @@ public class MasClient {
     private ClientSession mSession;
     private HandlerThread thread;
     private boolean mConnected = false;
+    private final MasRequestQueue mRequestQueue = new MasRequestQueue();
+    private final File mSpillDir;
     SdpMasRecord mSdpMasRecord;
 
     public MasClient(BluetoothDevice remoteDevice,
-            StateMachine callback, SdpMasRecord sdpMasRecord) {
+            StateMachine callback, SdpMasRecord sdpMasRecord, File spillDir) {
         if (remoteDevice == null) {
             throw new NullPointerException("Obex transport is null");
         }
         mRemoteDevice = remoteDevice;
         mCallback = callback;
         mSdpMasRecord = sdpMasRecord;
+        mSpillDir = spillDir;
         thread = new HandlerThread("Client");
         thread.start();
         /* This will block until the looper have started, hence it will be safe to use it,
@@ -135,25 +140,66 @@ public class MasClient {
         }
 
         mConnected = false;
+        mRequestQueue.clear();
+        deleteSpilledBodies();
         mCallback.obtainMessage(MceStateMachine.MSG_MAS_DISCONNECTED).sendToTarget();
     }
 
-    private void executeRequest(Request request) {
+    private void executeNextRequest() {
+        Request request = mRequestQueue.next();
+        if (request == null) return;
+        if (request instanceof RequestGetMessage) {
+            ((RequestGetMessage) request).setSpillDirectory(mSpillDir);
+        }
         try {
             request.execute(mSession);
+            mRequestQueue.complete(request, request.isSuccess());
             mCallback.obtainMessage(MceStateMachine.MSG_MAS_REQUEST_COMPLETED,
                     request).sendToTarget();
         } catch (IOException e) {
             if (DBG) Log.d(TAG, "Request failed: " + request);
+            mRequestQueue.complete(request, false);
             // Disconnect to cleanup.
             disconnect();
         }
     }
 
+    /*
+     * Bodies are only needed until their request completed, drop what is left of the session.
+     * The spill directory belongs to this device, other sessions keep theirs.
+     */
+    private void deleteSpilledBodies() {
+        File[] files = (mSpillDir != null) ? mSpillDir.listFiles() : null;
+        if (files == null) return;
+        for (File file : files) {
+            file.delete();
+        }
+        mSpillDir.delete();
+    }
+
     public boolean makeRequest(Request request) {
-        if (DBG) Log.d(TAG, "makeRequest called with: " + request);
+        return makeRequest(request, MasRequestQueue.getPriority(request));
+    }
+
+    /* Queues |request| with one of the MasRequestQueue priorities */
+    boolean makeRequest(Request request, int priority) {
+        if (DBG) Log.d(TAG, "makeRequest called with: " + request + " priority " + priority);
 
-        boolean status = mHandler.sendMessage(mHandler.obtainMessage(REQUEST, request));
+        if (request instanceof RequestGetMessage) {
+            RequestGetMessage cached = mRequestQueue.getCached((RequestGetMessage) request);
+            if (cached != null) {
+                if (DBG) Log.d(TAG, "Message served from cache: " + cached.getHandle());
+                mCallback.obtainMessage(MceStateMachine.MSG_MAS_REQUEST_COMPLETED,
+                        cached).sendToTarget();
+                return true;
+            }
+        }
+        if (!mRequestQueue.add(request, priority)) {
+            if (DBG) Log.d(TAG, "Same request already queued: " + request);
+            return true;
+        }
+        // One REQUEST message per queued request, the handler picks which one runs.
+        boolean status = mHandler.sendMessage(mHandler.obtainMessage(REQUEST));
         if (!status) {
             Log.e(TAG, "Adding messages failed, state: " + mConnected);
             return false;
@@ -161,6 +207,22 @@ public class MasClient {
         return true;
     }
 
+    /* Fetches the message |handle| ahead of bulk downloads so that it is cached when asked for */
+    boolean prefetchMessage(String handle) {
+        return makeRequest(new RequestGetMessage(handle, CharsetType.UTF_8, false),
+                MasRequestQueue.PRIORITY_NORMAL);
+    }
+
+    /* Forgets the cached copy of the message |handle| */
+    void invalidateMessage(String handle) {
+        mRequestQueue.invalidate(handle);
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "MasClient: " + mRemoteDevice + ", connected " + mConnected);
+        mRequestQueue.dump(sb);
+    }
+
     public void shutdown() {
         mHandler.obtainMessage(DISCONNECT).sendToTarget();
         thread.quitSafely();
@@ -196,7 +258,7 @@ public class MasClient {
                     break;
 
                 case REQUEST:
-                    inst.executeRequest((Request) msg.obj);
+                    inst.executeNextRequest();
                     break;
             }
         }
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.mapclient;
+
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/* Orders the requests waiting for the MAS OBEX session.
+ *
+ * A MAS session runs one OBEX operation at a time, so requests cannot be pipelined on the wire;
+ * what can be chosen is which waiting request goes next. Pushes and notification registration
+ * go first, bulk downloads of the messages of a listing go last. Requests never overtake a
+ * SetPath queued before them, nor does a SetPath overtake earlier requests, since the meaning
+ * of a folder name depends on the current folder.
+ *
+ * GetMessage requests are keyed by handle: a request for a message that is already waiting or
+ * being fetched is dropped, and a message fetched recently (e.g. prefetched for a NewMessage
+ * event) is answered from the cache without a round trip, unless its body was spilled to a file.
+ *
+ * Called from the state machine thread to add requests and from the MAS client thread to take
+ * them, hence synchronized.
+ */
+class MasRequestQueue {
+    static final int PRIORITY_CONTROL = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BULK = 2;
+    private static final int PRIORITY_COUNT = 3;
+
+    static final int CACHE_SIZE = 16;
+
+    static class Entry {
+        final Request mRequest;
+        final String mKey;
+        int mPriority;
+        final long mQueuedTime;
+        long mStartTime;
+
+        Entry(Request request, String key, int priority) {
+            mRequest = request;
+            mKey = key;
+            mPriority = priority;
+            mQueuedTime = SystemClock.elapsedRealtime();
+        }
+
+        boolean isBarrier() {
+            return mRequest instanceof RequestSetPath;
+        }
+    }
+
+    /* Latency statistics of one request type */
+    private static class Stats {
+        int mCount;
+        int mFailed;
+        long mTotalWaitMs;
+        long mMaxWaitMs;
+        long mTotalExecMs;
+        long mMaxExecMs;
+    }
+
+    private final LinkedList<Entry> mQueue = new LinkedList<Entry>();
+    /* GetMessage requests waiting or running, by key */
+    private final HashMap<String, Entry> mPending = new HashMap<String, Entry>();
+    private final LinkedHashMap<String, RequestGetMessage> mCache =
+            new LinkedHashMap<String, RequestGetMessage>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, RequestGetMessage> e) {
+                    return size() > CACHE_SIZE;
+                }
+            };
+    private Entry mRunning;
+
+    private final HashMap<String, Stats> mStats = new HashMap<String, Stats>();
+    private final int[] mQueuedByPriority = new int[PRIORITY_COUNT];
+    private int mMaxDepth;
+    private int mDuplicates;
+    private int mCacheHits;
+
+    /* Default priority of |request| */
+    static int getPriority(Request request) {
+        if (request instanceof RequestPushMessage
+                || request instanceof RequestSetNotificationRegistration) {
+            return PRIORITY_CONTROL;
+        }
+        return PRIORITY_NORMAL;
+    }
+
+    /*
+     * Adds |request| to the queue.
+     * @return false if the request was not queued because an equivalent one is waiting or
+     * running; its priority is raised to |priority| if that is higher.
+     */
+    synchronized boolean add(Request request, int priority) {
+        String key = null;
+        if (request instanceof RequestGetMessage) {
+            key = ((RequestGetMessage) request).getKey();
+            Entry pending = mPending.get(key);
+            if (pending != null) {
+                mDuplicates++;
+                if (priority < pending.mPriority && pending != mRunning) {
+                    mQueuedByPriority[pending.mPriority]--;
+                    pending.mPriority = priority;
+                    mQueuedByPriority[priority]++;
+                }
+                return false;
+            }
+        }
+        Entry entry = new Entry(request, key, priority);
+        if (key != null) mPending.put(key, entry);
+        mQueue.add(entry);
+        mQueuedByPriority[priority]++;
+        mMaxDepth = Math.max(mMaxDepth, mQueue.size());
+        return true;
+    }
+
+    /* Returns the message fetched for the same key as |request| if it is cached, or null */
+    synchronized RequestGetMessage getCached(RequestGetMessage request) {
+        RequestGetMessage cached = mCache.get(request.getKey());
+        if (cached != null) mCacheHits++;
+        return cached;
+    }
+
+    /* Drops the cached copies of the message |handle|, e.g. after it was deleted or moved */
+    synchronized void invalidate(String handle) {
+        Iterator<RequestGetMessage> it = mCache.values().iterator();
+        while (it.hasNext()) {
+            if (handle.equals(it.next().getHandle())) it.remove();
+        }
+    }
+
+    /* Takes the next request to run, or null if the queue is empty */
+    synchronized Request next() {
+        Entry best = null;
+        for (Entry entry : mQueue) {
+            if (entry.isBarrier()) {
+                if (best == null) best = entry;
+                break;
+            }
+            if (best == null || entry.mPriority < best.mPriority) {
+                best = entry;
+            }
+        }
+        if (best == null) return null;
+        mQueue.remove(best);
+        mQueuedByPriority[best.mPriority]--;
+        best.mStartTime = SystemClock.elapsedRealtime();
+        mRunning = best;
+        return best.mRequest;
+    }
+
+    /* Records the completion of the request returned by the last next() */
+    synchronized void complete(Request request, boolean success) {
+        Entry entry = mRunning;
+        if (entry == null || entry.mRequest != request) return;
+        mRunning = null;
+        if (entry.mKey != null) {
+            mPending.remove(entry.mKey);
+            // A body spilled to a file is deleted once delivered, so only in-memory bodies can
+            // be delivered again.
+            Bmessage message = ((RequestGetMessage) request).getMessage();
+            if (success && message != null && message.getBodyFile() == null) {
+                mCache.put(entry.mKey, (RequestGetMessage) request);
+            }
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        long waitMs = entry.mStartTime - entry.mQueuedTime;
+        long execMs = now - entry.mStartTime;
+        String type = request.getClass().getSimpleName();
+        Stats stats = mStats.get(type);
+        if (stats == null) {
+            stats = new Stats();
+            mStats.put(type, stats);
+        }
+        stats.mCount++;
+        if (!success) stats.mFailed++;
+        stats.mTotalWaitMs += waitMs;
+        stats.mMaxWaitMs = Math.max(stats.mMaxWaitMs, waitMs);
+        stats.mTotalExecMs += execMs;
+        stats.mMaxExecMs = Math.max(stats.mMaxExecMs, execMs);
+    }
+
+    /* Drops everything that is waiting, used when the session goes away */
+    synchronized void clear() {
+        mQueue.clear();
+        mPending.clear();
+        mCache.clear();
+        mRunning = null;
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mQueuedByPriority[i] = 0;
+        }
+    }
+
+    synchronized int size() {
+        return mQueue.size();
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "  Request queue: depth " + mQueue.size() + " (control "
+                + mQueuedByPriority[PRIORITY_CONTROL] + ", normal "
+                + mQueuedByPriority[PRIORITY_NORMAL] + ", bulk "
+                + mQueuedByPriority[PRIORITY_BULK] + "), max depth " + mMaxDepth
+                + ", running " + (mRunning != null ? mRunning.mRequest : "none"));
+        ProfileService.println(sb, "  Duplicates dropped: " + mDuplicates + ", cache hits: "
+                + mCacheHits + ", cached: " + mCache.size());
+        ArrayList<String> types = new ArrayList<String>(mStats.keySet());
+        Collections.sort(types);
+        for (String type : types) {
+            Stats stats = mStats.get(type);
+            ProfileService.println(sb, "  " + type + ": count " + stats.mCount + ", failed "
+                    + stats.mFailed + ", wait avg " + (stats.mTotalWaitMs / stats.mCount)
+                    + "ms max " + stats.mMaxWaitMs + "ms, exec avg "
+                    + (stats.mTotalExecMs / stats.mCount) + "ms max " + stats.mMaxExecMs + "ms");
+        }
+    }
+}
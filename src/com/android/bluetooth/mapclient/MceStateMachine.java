@@ -66,6 +66,11 @@ import com.android.vcard.VCardConstants;
 import com.android.vcard.VCardEntry;
 import com.android.vcard.VCardProperty;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -103,6 +108,8 @@ final class MceStateMachine extends StateMachine {
     private static final String FOLDER_OUTBOX = "outbox";
     private static final String FOLDER_INBOX = "inbox";
     private static final String INBOX_PATH = "telecom/msg/inbox";
+    /* Cache subdirectory holding message bodies too large to keep in memory, one per device */
+    private static final String SPILL_DIRECTORY = "mapclient";
 
 
     // Connectivity States
@@ -259,6 +266,12 @@ final class MceStateMachine extends StateMachine {
         return PhoneAccount.SCHEME_TEL + ":" + number;
     }
 
+    /* Spilled bodies of this device, the MAS client removes them when its session ends */
+    private File getSpillDirectory() {
+        return new File(new File(mService.getCacheDir(), SPILL_DIRECTORY),
+                mDevice.getAddress().replace(":", ""));
+    }
+
     Bmessage.Type getDefaultMessageType() {
         synchronized (mDefaultMessageType) {
             return mDefaultMessageType;
@@ -338,7 +351,8 @@ final class MceStateMachine extends StateMachine {
                     if (mMasClient == null) {
                         mMasClient = new MasClient(mDevice,
                                 MceStateMachine.this,
-                                (SdpMasRecord) message.obj);
+                                (SdpMasRecord) message.obj,
+                                getSpillDirectory());
                         setDefaultMessageType((SdpMasRecord) message.obj);
                     }
                     break;
@@ -468,8 +482,12 @@ final class MceStateMachine extends StateMachine {
 
                         case NEW_MESSAGE:
                             //mService.get().sendNewMessageNotification(ev);
-                            mMasClient.makeRequest(new RequestGetMessage(ev.getHandle(),
-                                    MasClient.CharsetType.UTF_8, false));
+                            mMasClient.prefetchMessage(ev.getHandle());
+                            break;
+
+                        case MESSAGE_DELETED:
+                        case MESSAGE_SHIFT:
+                            mMasClient.invalidateMessage(ev.getHandle());
                             break;
 
                         case DELIVERY_SUCCESS:
@@ -486,7 +504,9 @@ final class MceStateMachine extends StateMachine {
             if (messageHandles != null) {
                 for (com.android.bluetooth.mapclient.Message handle : messageHandles) {
                     if (DBG) Log.d(TAG, "getting message ");
-                    getMessage(handle.getHandle());
+                    // Bulk download, runs after anything the user is waiting for
+                    mMasClient.makeRequest(new RequestGetMessage(handle.getHandle(),
+                            MasClient.CharsetType.UTF_8, false), MasRequestQueue.PRIORITY_BULK);
                 }
             }
         }
@@ -496,6 +516,15 @@ final class MceStateMachine extends StateMachine {
             if (DBG) Log.d(TAG, "Notify inbound Message" + message);
 
             if (message == null) return;
+            try {
+                deliverInboundMessage(request, message);
+            } finally {
+                // A body kept in a file is not needed once the message was handed on
+                message.deleteBodyFile();
+            }
+        }
+
+        private void deliverInboundMessage(RequestGetMessage request, Bmessage message) {
             if (!INBOX_PATH.equalsIgnoreCase(message.getFolder())) {
                 if (DBG) Log.d(TAG, "Ignoring message received in " + message.getFolder() + ".");
                 return;
@@ -503,7 +532,8 @@ final class MceStateMachine extends StateMachine {
             switch (message.getType()) {
                 case SMS_CDMA:
                 case SMS_GSM:
-                    if (DBG) Log.d(TAG, "Body: " + message.getBodyContent());
+                    String body = readBody(message);
+                    if (DBG) Log.d(TAG, "Body: " + body);
                     if (DBG) Log.d(TAG, message.toString());
                     if (DBG) Log.d(TAG, "Recipients" + message.getRecipients().toString());
 
@@ -511,8 +541,7 @@ final class MceStateMachine extends StateMachine {
                     intent.setAction(BluetoothMapClient.ACTION_MESSAGE_RECEIVED);
                     intent.putExtra(BluetoothDevice.EXTRA_DEVICE, mDevice);
                     intent.putExtra(BluetoothMapClient.EXTRA_MESSAGE_HANDLE, request.getHandle());
-                    intent.putExtra(android.content.Intent.EXTRA_TEXT,
-                            message.getBodyContent());
+                    intent.putExtra(android.content.Intent.EXTRA_TEXT, body);
                     VCardEntry originator = message.getOriginator();
                     if (originator != null) {
                         if (DBG) Log.d(TAG, originator.toString());
@@ -539,6 +568,34 @@ final class MceStateMachine extends StateMachine {
             }
         }
 
+        /* The body of |message|, decoded from its file if it was kept in one */
+        private String readBody(Bmessage message) {
+            String body = message.getBodyContent();
+            if (body != null || message.getBodyFile() == null) return body;
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            Reader reader = null;
+            try {
+                reader = new InputStreamReader(message.openBodyStream(), StandardCharsets.UTF_8);
+                int n;
+                while ((n = reader.read(buffer)) != -1) {
+                    sb.append(buffer, 0, n);
+                }
+                return sb.toString();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to read message body", e);
+                return null;
+            } finally {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // ignore
+                    }
+                }
+            }
+        }
+
         private void notifySentMessageStatus(String handle, EventReport.Type status) {
             if (DBG) Log.d(TAG, "got a status for " + handle + " Status = " + status);
             PendingIntent intentToSend = null;
@@ -606,6 +663,11 @@ final class MceStateMachine extends StateMachine {
         }
     }
 
+    void dump(StringBuilder sb) {
+        MasClient masClient = mMasClient;
+        if (masClient != null) masClient.dump(sb);
+    }
+
     void receiveEvent(EventReport ev) {
         if (DBG) Log.d(TAG, "Message Type = " + ev.getType());
         if (DBG) Log.d(TAG, "Message handle = " + ev.getHandle());
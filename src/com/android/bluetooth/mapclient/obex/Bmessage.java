@@ -21,6 +21,12 @@ import com.android.vcard.VCardEntry;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /**
@@ -42,6 +48,8 @@ public class Bmessage {
     int mBbodyLength;
 
     String mMessage;
+    /* Set instead of mMessage when a large body was kept out of the heap */
+    File mBodyFile;
 
     ArrayList<VCardEntry> mOriginators;
     ArrayList<VCardEntry> mRecipients;
@@ -134,10 +142,42 @@ public class Bmessage {
         return this;
     }
 
+    /**
+     * Returns the body if it is kept in memory, or null if it was too large and went to a file,
+     * see {@link #openBodyStream()}
+     */
     public String getBodyContent() {
         return mMessage;
     }
 
+    /**
+     * Opens the UTF-8 body, from its file if it was too large to be kept in memory
+     */
+    public InputStream openBodyStream() throws IOException {
+        if (mMessage == null && mBodyFile != null) {
+            return new FileInputStream(mBodyFile);
+        }
+        return new ByteArrayInputStream(
+                (mMessage != null ? mMessage : "").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the file holding the UTF-8 body if it was too large to be kept in memory, or null
+     */
+    public File getBodyFile() {
+        return mBodyFile;
+    }
+
+    /**
+     * Deletes the file holding the body, if any
+     */
+    public void deleteBodyFile() {
+        if (mBodyFile != null) {
+            mBodyFile.delete();
+            mBodyFile = null;
+        }
+    }
+
     public Bmessage setBodyContent(String body) {
         mMessage = body;
         return this;
@@ -152,7 +192,11 @@ public class Bmessage {
             json.put("type", mBmsgType);
             json.put("folder", mBmsgFolder);
             json.put("charset", mBbodyCharset);
-            json.put("message", mMessage);
+            if (mMessage == null && mBodyFile != null) {
+                json.put("messageLength", mBodyFile.length());
+            } else {
+                json.put("message", mMessage);
+            }
         } catch (JSONException e) {
             // do nothing
         }
@@ -0,0 +1,463 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.mapclient;
+
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryConstructor;
+import com.android.vcard.VCardEntryHandler;
+import com.android.vcard.VCardParser;
+import com.android.vcard.VCardParser_V21;
+import com.android.vcard.VCardParser_V30;
+import com.android.vcard.exception.VCardException;
+import com.android.vcard.exception.VCardVersionException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+/* Parses a bMessage (MAP_SPEC_V101 Section 3.1.3) straight from the OBEX response stream.
+ *
+ * Unlike BmessageParser, the response is not turned into a String first: lines are read into a
+ * reused byte buffer, vCards are handed to the vCard parser from the bytes they were read into,
+ * and the message body is copied once, into the String returned by Bmessage.getBodyContent(),
+ * or into a temporary file, read back through Bmessage.openBodyStream(), when it is larger than
+ * the spill threshold.
+ */
+class BmessageStreamParser {
+    private static final String TAG = "BmessageStreamParser";
+    private static final boolean DBG = false;
+
+    /* Bodies larger than this go to a file when a spill directory is given */
+    static final int SPILL_THRESHOLD = 64 * 1024;
+
+    /* Guards against streams that never send a line break */
+    static final int MAX_LINE_LENGTH = 16 * 1024;
+
+    /* length of BEGIN:MSG<CRLF> + <CRLF> + END:MSG<CRLF>, see BmessageParser */
+    private static final int MSG_CONTAINER_LEN = 22;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /* ByteArrayOutputStream whose content can be read without copying it */
+    private static class LineBuffer extends ByteArrayOutputStream {
+        LineBuffer(int size) {
+            super(size);
+        }
+
+        ByteArrayInputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
+
+        boolean contentEquals(byte[] value) {
+            if (count != value.length) return false;
+            for (int i = 0; i < count; i++) {
+                if (buf[i] != value[i]) return false;
+            }
+            return true;
+        }
+
+        int indexOf(byte value) {
+            for (int i = 0; i < count; i++) {
+                if (buf[i] == value) return i;
+            }
+            return -1;
+        }
+
+        /* Drops a trailing CR */
+        void trimCr() {
+            if (count > 0 && buf[count - 1] == '\r') count--;
+        }
+
+        String toUtf8String() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final byte[] BEGIN_BMSG = bytes("BEGIN:BMSG");
+    private static final byte[] END_BMSG = bytes("END:BMSG");
+    private static final byte[] BEGIN_VCARD = bytes("BEGIN:VCARD");
+    private static final byte[] END_VCARD = bytes("END:VCARD");
+    private static final byte[] BEGIN_BENV = bytes("BEGIN:BENV");
+    private static final byte[] END_BENV = bytes("END:BENV");
+    private static final byte[] BEGIN_BBODY = bytes("BEGIN:BBODY");
+    private static final byte[] END_BBODY = bytes("END:BBODY");
+    private static final byte[] BEGIN_MSG = bytes("BEGIN:MSG");
+    private static final byte[] END_MSG = bytes("END:MSG");
+    private static final byte[] CRLF = bytes("\r\n");
+
+    private final InputStream mIn;
+    private final File mSpillDir;
+    private final int mSpillThreshold;
+    private final Bmessage mBmsg = new Bmessage();
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    private int mPos;
+    private int mLimit;
+    private long mOffset;
+
+    /* current line, without its line break */
+    private final LineBuffer mLine = new LineBuffer(256);
+    private final LineBuffer mVcard = new LineBuffer(1024);
+
+    BmessageStreamParser(InputStream in, File spillDir, int spillThreshold) {
+        mIn = in;
+        mSpillDir = spillDir;
+        mSpillThreshold = spillThreshold;
+    }
+
+    /*
+     * Parses the bMessage read from |in|, bodies above SPILL_THRESHOLD are written to a file in
+     * |spillDir| if it is not null.
+     * @return the message or null if it could not be parsed
+     */
+    static Bmessage createBmessage(InputStream in, File spillDir) {
+        try {
+            return new BmessageStreamParser(in, spillDir, SPILL_THRESHOLD).parse();
+        } catch (IOException e) {
+            Log.e(TAG, "I/O exception when parsing bMessage", e);
+        } catch (ParseException e) {
+            Log.e(TAG, "Cannot parse bMessage", e);
+        }
+        return null;
+    }
+
+    Bmessage parse() throws IOException, ParseException {
+        boolean done = false;
+        try {
+            parseBmessage();
+            done = true;
+        } finally {
+            if (!done) mBmsg.deleteBodyFile();
+        }
+        return mBmsg;
+    }
+
+    private void parseBmessage() throws IOException, ParseException {
+        /*
+         * <bmessage-object>::= { "BEGIN:BMSG" <CRLF> <bmessage-property>
+         * [<bmessage-originator>]* <bmessage-envelope> "END:BMSG" <CRLF> }
+         */
+        nextProperty();
+        if (!mLine.contentEquals(BEGIN_BMSG)) throw expected("BEGIN:BMSG");
+
+        parseProperties();
+
+        while (mLine.contentEquals(BEGIN_VCARD)) {
+            mBmsg.mOriginators.add(parseVcard());
+            nextProperty();
+        }
+
+        if (!mLine.contentEquals(BEGIN_BENV)) throw expected("BEGIN:BENV");
+
+        parseEnvelope(1);
+
+        if (!mLine.contentEquals(END_BMSG)) throw expected("END:BMSG");
+
+        /* whatever follows END:BMSG is ignored, like BmessageParser does */
+    }
+
+    private void parseProperties() throws IOException, ParseException {
+        while (true) {
+            nextProperty();
+            if (mLine.contentEquals(BEGIN_VCARD) || mLine.contentEquals(BEGIN_BENV)) return;
+
+            String line = mLine.toUtf8String();
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1);
+            if (name.equals("VERSION")) {
+                mBmsg.mBmsgVersion = value;
+            } else if (name.equals("STATUS")) {
+                for (Bmessage.Status s : Bmessage.Status.values()) {
+                    if (value.equals(s.toString())) {
+                        mBmsg.mBmsgStatus = s;
+                        break;
+                    }
+                }
+            } else if (name.equals("TYPE")) {
+                for (Bmessage.Type t : Bmessage.Type.values()) {
+                    if (value.equals(t.toString())) {
+                        mBmsg.mBmsgType = t;
+                        break;
+                    }
+                }
+            } else if (name.equals("FOLDER")) {
+                mBmsg.mBmsgFolder = value;
+            }
+        }
+    }
+
+    /* Parses the envelope after BEGIN:BENV, leaves the line following END:BENV in mLine */
+    private void parseEnvelope(int level) throws IOException, ParseException {
+        /* the MAP spec allows no more than 3 levels */
+        if (level > 3) {
+            throw new ParseException("bEnvelope is nested more than 3 times", (int) mOffset);
+        }
+
+        nextProperty();
+        while (mLine.contentEquals(BEGIN_VCARD)) {
+            if (level == 1) {
+                mBmsg.mRecipients.add(parseVcard());
+            } else {
+                skipVcard();
+            }
+            nextProperty();
+        }
+
+        if (mLine.contentEquals(BEGIN_BENV)) {
+            parseEnvelope(level + 1);
+        } else if (mLine.contentEquals(BEGIN_BBODY)) {
+            parseBody();
+        } else {
+            throw expected("BEGIN:BENV or BEGIN:BBODY");
+        }
+
+        if (!mLine.contentEquals(END_BENV)) throw expected("END:BENV");
+        nextProperty();
+    }
+
+    /* Parses the body after BEGIN:BBODY, leaves the line following END:BBODY in mLine */
+    private void parseBody() throws IOException, ParseException {
+        while (true) {
+            nextProperty();
+            if (mLine.contentEquals(BEGIN_MSG)) break;
+
+            String line = mLine.toUtf8String();
+            int colon = line.indexOf(':');
+            String name = line.substring(0, colon);
+            String value = line.substring(colon + 1);
+            if (name.equals("ENCODING")) {
+                mBmsg.mBbodyEncoding = value;
+            } else if (name.equals("CHARSET")) {
+                mBmsg.mBbodyCharset = value;
+            } else if (name.equals("LANGUAGE")) {
+                mBmsg.mBbodyLanguage = value;
+            } else if (name.equals("LENGTH")) {
+                try {
+                    mBmsg.mBbodyLength = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    throw new ParseException("Invalid LENGTH value", (int) mOffset);
+                }
+            }
+        }
+
+        /* only UTF-8 bodies are kept, see BmessageParser */
+        boolean utf8 = "UTF-8".equals(mBmsg.mBbodyCharset);
+        if (!utf8) {
+            Log.e(TAG, "The charset was not set to charset UTF-8: " + mBmsg.mBbodyCharset);
+        }
+
+        int messageLen = mBmsg.mBbodyLength - MSG_CONTAINER_LEN;
+        if (messageLen < 0) {
+            throw new ParseException("Invalid LENGTH value", (int) mOffset);
+        }
+
+        OutputStream body = null;
+        File bodyFile = null;
+        if (utf8 && mSpillDir != null && messageLen > mSpillThreshold) {
+            mSpillDir.mkdirs();
+            bodyFile = File.createTempFile("bmsg", ".txt", mSpillDir);
+            mBmsg.mBodyFile = bodyFile;
+            body = new FileOutputStream(bodyFile);
+        } else if (utf8) {
+            // LENGTH comes from the remote, do not trust it for the allocation
+            body = new ByteArrayOutputStream(Math.min(messageLen, SPILL_THRESHOLD));
+        }
+
+        try {
+            copy(body, messageLen);
+            readMessageTail(body);
+        } finally {
+            if (bodyFile != null) body.close();
+        }
+
+        if (utf8 && bodyFile == null) {
+            mBmsg.mMessage = ((ByteArrayOutputStream) body).toString(
+                    StandardCharsets.UTF_8.name());
+        }
+        if (DBG) {
+            Log.d(TAG, "Body of " + messageLen + " bytes" + (bodyFile != null
+                    ? " written to " + bodyFile : ""));
+        }
+
+        nextProperty();
+        if (!mLine.contentEquals(END_BBODY)) throw expected("END:BBODY");
+        nextProperty();
+    }
+
+    /*
+     * Reads up to END:MSG once LENGTH bytes of body were copied. Some MSEs count characters
+     * instead of bytes in LENGTH, in that case the lines before END:MSG belong to the body.
+     */
+    private void readMessageTail(OutputStream body) throws IOException, ParseException {
+        boolean hasContent = false;
+        int pendingBreaks = 0;
+        while (true) {
+            if (!readLine()) throw expected("END:MSG");
+            if (mLine.contentEquals(END_MSG)) break;
+            if (mLine.size() > 0) {
+                if (!hasContent) {
+                    Log.w(TAG, "byte LENGTH seems to be invalid, reading up to END:MSG");
+                    hasContent = true;
+                }
+                if (body != null) {
+                    for (int i = 0; i < pendingBreaks; i++) {
+                        body.write(CRLF);
+                    }
+                    mLine.writeTo(body);
+                }
+                pendingBreaks = 0;
+            }
+            /* written only if more body follows, the one before END:MSG is not part of it */
+            pendingBreaks++;
+        }
+    }
+
+    /* Parses the vCard after BEGIN:VCARD, leaves END:VCARD in mLine */
+    private VCardEntry parseVcard() throws IOException, ParseException {
+        mVcard.reset();
+        do {
+            mLine.writeTo(mVcard);
+            mVcard.write(CRLF);
+            nextProperty();
+        } while (!mLine.contentEquals(END_VCARD));
+        mLine.writeTo(mVcard);
+        mVcard.write(CRLF);
+
+        VCardEntry vcard = parseVcard(new VCardParser_V21());
+        if (vcard == null) {
+            vcard = parseVcard(new VCardParser_V30());
+        }
+        if (vcard == null) {
+            throw new ParseException("Cannot parse vCard object (neither 2.1 nor 3.0?)",
+                    (int) mOffset);
+        }
+        return vcard;
+    }
+
+    private VCardEntry parseVcard(VCardParser parser) throws IOException {
+        VCardEntryConstructor constructor = new VCardEntryConstructor();
+        final VCardEntry[] result = new VCardEntry[1];
+        constructor.addEntryHandler(new VCardEntryHandler() {
+            @Override
+            public void onStart() {
+            }
+
+            @Override
+            public void onEntryCreated(VCardEntry entry) {
+                result[0] = entry;
+            }
+
+            @Override
+            public void onEnd() {
+            }
+        });
+        parser.addInterpreter(constructor);
+        try {
+            parser.parse(mVcard.toInputStream());
+        } catch (VCardVersionException e) {
+            return null;
+        } catch (VCardException e) {
+            return null;
+        }
+        return result[0];
+    }
+
+    private void skipVcard() throws IOException, ParseException {
+        do {
+            nextProperty();
+        } while (!mLine.contentEquals(END_VCARD));
+    }
+
+    /* Reads the next non empty line into mLine, it has to be a property */
+    private void nextProperty() throws IOException, ParseException {
+        do {
+            if (!readLine()) {
+                throw new ParseException("Unexpected end of bMessage", (int) mOffset);
+            }
+        } while (mLine.size() == 0);
+        if (mLine.indexOf((byte) ':') < 0) {
+            throw new ParseException("Property or empty line expected", (int) mOffset);
+        }
+    }
+
+    /* Reads a line into mLine, without its CRLF. Returns false at the end of the stream */
+    private boolean readLine() throws IOException, ParseException {
+        mLine.reset();
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                return mLine.size() > 0;
+            }
+            int start = mPos;
+            while (mPos < mLimit && mBuffer[mPos] != '\n') {
+                mPos++;
+            }
+            int end = mPos;
+            boolean found = mPos < mLimit;
+            if (found) mPos++;
+            mLine.write(mBuffer, start, end - start);
+            if (mLine.size() > MAX_LINE_LENGTH) {
+                throw new ParseException("Line too long", (int) mOffset);
+            }
+            if (found) {
+                mOffset += mLine.size() + 1;
+                mLine.trimCr();
+                return true;
+            }
+        }
+    }
+
+    /* Copies |length| bytes of the stream to |out|, which may be null to skip them */
+    private void copy(OutputStream out, int length) throws IOException, ParseException {
+        int remaining = length;
+        while (remaining > 0) {
+            if (mPos == mLimit && !fill()) {
+                throw new ParseException("Unexpected end of message body", (int) mOffset);
+            }
+            int n = Math.min(remaining, mLimit - mPos);
+            if (out != null) out.write(mBuffer, mPos, n);
+            mPos += n;
+            mOffset += n;
+            remaining -= n;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int n = mIn.read(mBuffer, 0, mBuffer.length);
+        if (n <= 0) return false;
+        mPos = 0;
+        mLimit = n;
+        return true;
+    }
+
+    private ParseException expected(String what) {
+        return new ParseException("Expected: " + what + ", got: " + mLine.toUtf8String(),
+                (int) mOffset);
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -24,11 +24,9 @@ import android.bluetooth.client.map.utils.ObexAppParameters;
 
 import android.util.Log;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
 
 import javax.obex.ClientSession;
 import javax.obex.HeaderSet;
@@ -41,9 +39,14 @@ final class RequestGetMessage extends Request {
     private static final String TYPE = "x-bt/message";
 
     private Bmessage mBmessage;
+    private final MasClient.CharsetType mCharset;
+    private final boolean mAttachment;
+    private File mSpillDir;
 
     public RequestGetMessage(String handle, MasClient.CharsetType charset,
             boolean attachment) {
+        mCharset = charset;
+        mAttachment = attachment;
 
         mHeaderSet.setHeader(HeaderSet.NAME, handle);
 
@@ -60,34 +63,16 @@ final class RequestGetMessage extends Request {
         oap.addToHeaderSet(mHeaderSet);
     }
 
+    /* Large bodies are written to a file in |spillDir| rather than kept in memory */
+    void setSpillDirectory(File spillDir) {
+        mSpillDir = spillDir;
+    }
+
     @Override
     protected void readResponse(InputStream stream) {
-
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        byte[] buf = new byte[1024];
-
-        try {
-            int len;
-            while ((len = stream.read(buf)) != -1) {
-                baos.write(buf, 0, len);
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "I/O exception while reading response", e);
-        }
-
-        // Convert the input stream using UTF-8 since the attributes in the payload are all encoded
-        // according to it. The actual message body may need to be transcoded depending on
-        // charset/encoding defined for body-content.
-        String bmsg;
-        try {
-            bmsg = baos.toString(StandardCharsets.UTF_8.name());
-        } catch (UnsupportedEncodingException ex) {
-            Log.e(TAG,
-                    "Coudn't decode the bmessage with UTF-8. Something must be really messed up.");
-            return;
-        }
-
-        mBmessage = BmessageParser.createBmessage(bmsg);
+        // Parsed as it arrives, the attributes in the payload are all UTF-8 encoded. The body
+        // is only kept if it is UTF-8 as well, see BmessageStreamParser.
+        mBmessage = BmessageStreamParser.createBmessage(stream, mSpillDir);
 
         if (mBmessage == null) {
             mResponseCode = ResponseCodes.OBEX_HTTP_INTERNAL_ERROR;
@@ -107,6 +92,11 @@ final class RequestGetMessage extends Request {
         }
     }
 
+    /* Identifies the response, two requests with the same key return the same bMessage */
+    String getKey() {
+        return getHandle() + ":" + mCharset + ":" + mAttachment;
+    }
+
     @Override
     public void execute(ClientSession session) throws IOException {
         executeGet(session);
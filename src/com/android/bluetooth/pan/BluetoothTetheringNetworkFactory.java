@@ -197,9 +197,21 @@ public class BluetoothTetheringNetworkFactory extends NetworkFactory {
         mNetworkCapabilities.addTransportType(NetworkCapabilities.TRANSPORT_BLUETOOTH);
         mNetworkCapabilities.addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET);
         mNetworkCapabilities.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED);
-        // Bluetooth v3 and v4 go up to 24 Mbps.
-        // TODO: Adjust this to actual connection bandwidth.
-        mNetworkCapabilities.setLinkUpstreamBandwidthKbps(24 * 1000);
-        mNetworkCapabilities.setLinkDownstreamBandwidthKbps(24 * 1000);
+        // Bluetooth v3 and v4 go up to 24 Mbps, but BNEP over an EDR link carries far less.
+        // PanService raises this as higher rates are measured, see setLinkBandwidthKbps().
+        mNetworkCapabilities.setLinkUpstreamBandwidthKbps(PanThroughputMonitor.DEFAULT_LINK_KBPS);
+        mNetworkCapabilities.setLinkDownstreamBandwidthKbps(
+                PanThroughputMonitor.DEFAULT_LINK_KBPS);
+    }
+
+    // Called by PanService with the link capacity measured on the PAN interface. The network
+    // agent, if any, is told straight away.
+    public synchronized void setLinkBandwidthKbps(int kbps) {
+        if (kbps <= 0 || kbps == mNetworkCapabilities.getLinkDownstreamBandwidthKbps()) return;
+        mNetworkCapabilities.setLinkUpstreamBandwidthKbps(kbps);
+        mNetworkCapabilities.setLinkDownstreamBandwidthKbps(kbps);
+        if (mNetworkAgent != null) {
+            mNetworkAgent.sendNetworkCapabilities(mNetworkCapabilities);
+        }
     }
 }
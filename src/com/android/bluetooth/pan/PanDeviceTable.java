@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pan;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * PAN devices known to the PanService, with an index of the devices in each connection state.
+ *
+ * The per-state lists are maintained as devices change state, so connected device queries,
+ * which the framework and the tethering code make often, return a read-only view instead of
+ * walking every record. The lists are copy on write: callers may disconnect the devices they
+ * iterate over.
+ *
+ * Updated from the PanService handler; queries come from binder threads.
+ */
+class PanDeviceTable {
+    /* BluetoothProfile.STATE_* values are 0..3 */
+    private static final int STATE_COUNT = 4;
+
+    /** State kept for one PAN device. */
+    static class Record {
+        final BluetoothDevice mDevice;
+        int mState;
+        String mIface;
+        int mLocalRole; // Which local role is this PAN device bound to
+
+        Record(BluetoothDevice device) {
+            mDevice = device;
+            mState = BluetoothProfile.STATE_DISCONNECTED;
+        }
+
+        @Override
+        public String toString() {
+            return "state " + mState + ", iface " + mIface + ", local role " + mLocalRole;
+        }
+    }
+
+    private final ConcurrentHashMap<BluetoothDevice, Record> mRecords =
+            new ConcurrentHashMap<BluetoothDevice, Record>();
+    private final ArrayList<CopyOnWriteArrayList<BluetoothDevice>> mByState =
+            new ArrayList<CopyOnWriteArrayList<BluetoothDevice>>(STATE_COUNT);
+    private final ArrayList<List<BluetoothDevice>> mByStateViews =
+            new ArrayList<List<BluetoothDevice>>(STATE_COUNT);
+
+    PanDeviceTable() {
+        for (int i = 0; i < STATE_COUNT; i++) {
+            CopyOnWriteArrayList<BluetoothDevice> devices =
+                    new CopyOnWriteArrayList<BluetoothDevice>();
+            mByState.add(devices);
+            mByStateViews.add(Collections.unmodifiableList(devices));
+        }
+    }
+
+    /* Returns the record of |device|, or null */
+    Record get(BluetoothDevice device) {
+        return (device != null) ? mRecords.get(device) : null;
+    }
+
+    int getState(BluetoothDevice device) {
+        Record record = get(device);
+        return (record != null) ? record.mState : BluetoothProfile.STATE_DISCONNECTED;
+    }
+
+    /* Creates or updates the record of |device|, returns true if it was created */
+    synchronized boolean update(BluetoothDevice device, int state, String iface, int localRole) {
+        Record record = mRecords.get(device);
+        boolean created = (record == null);
+        if (created) {
+            record = new Record(device);
+            mRecords.put(device, record);
+        } else {
+            mByState.get(stateIndex(record.mState)).remove(device);
+        }
+        record.mState = state;
+        record.mIface = iface;
+        record.mLocalRole = localRole;
+        mByState.get(stateIndex(state)).add(device);
+        return created;
+    }
+
+    synchronized boolean remove(BluetoothDevice device) {
+        Record record = mRecords.remove(device);
+        if (record == null) return false;
+        mByState.get(stateIndex(record.mState)).remove(device);
+        return true;
+    }
+
+    synchronized void clear() {
+        mRecords.clear();
+        for (CopyOnWriteArrayList<BluetoothDevice> devices : mByState) {
+            devices.clear();
+        }
+    }
+
+    /* Number of known devices, whatever their state */
+    int size() {
+        return mRecords.size();
+    }
+
+    /* Read-only view of the devices in |state| */
+    List<BluetoothDevice> getDevices(int state) {
+        if (state < 0 || state >= STATE_COUNT) return Collections.emptyList();
+        return mByStateViews.get(state);
+    }
+
+    /* Returns the devices in one of |states| */
+    List<BluetoothDevice> getDevicesMatchingStates(int[] states) {
+        if (states.length == 1) {
+            return getDevices(states[0]);
+        }
+        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+        for (int state : states) {
+            devices.addAll(getDevices(state));
+        }
+        return devices;
+    }
+
+    private static int stateIndex(int state) {
+        if (state < 0 || state >= STATE_COUNT) return BluetoothProfile.STATE_DISCONNECTED;
+        return state;
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "mPanDevices: " + mRecords.size() + " known, "
+                + getDevices(BluetoothProfile.STATE_CONNECTED).size() + " connected");
+        for (Record record : mRecords.values()) {
+            ProfileService.println(sb, "  " + record.mDevice + " : " + record);
+        }
+    }
+}
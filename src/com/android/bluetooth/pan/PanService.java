@@ -46,7 +46,6 @@ import com.android.bluetooth.Utils;
 
 import java.net.InetAddress;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -63,7 +62,8 @@ public class PanService extends ProfileService {
     private static final int BLUETOOTH_MAX_PAN_CONNECTIONS = 5;
     private static final int BLUETOOTH_PREFIX_LENGTH        = 24;
 
-    private HashMap<BluetoothDevice, BluetoothPanDevice> mPanDevices;
+    private PanDeviceTable mPanDevices;
+    private PanThroughputMonitor mThroughput;
     private ArrayList<String> mBluetoothIfaceAddresses;
     private int mMaxPanDevices;
     private String mPanIfName;
@@ -125,7 +125,7 @@ public class PanService extends ProfileService {
     }
 
     protected boolean start() {
-        mPanDevices = new HashMap<BluetoothDevice, BluetoothPanDevice>();
+        mPanDevices = new PanDeviceTable();
         mBluetoothIfaceAddresses = new ArrayList<String>();
         try {
             mMaxPanDevices = getResources().getInteger(
@@ -138,6 +138,14 @@ public class PanService extends ProfileService {
 
         mNetworkFactory = new BluetoothTetheringNetworkFactory(getBaseContext(), getMainLooper(),
                 this);
+        mThroughput = new PanThroughputMonitor(getMainLooper(),
+                new PanThroughputMonitor.Callback() {
+                    @Override
+                    public void onCapacityChanged(int capacityKbps) {
+                        BluetoothTetheringNetworkFactory factory = mNetworkFactory;
+                        if (factory != null) factory.setLinkBandwidthKbps(capacityKbps);
+                    }
+                });
         setPanService(this);
 
         return true;
@@ -161,6 +169,9 @@ public class PanService extends ProfileService {
             }
             mPanDevices.clear();
         }
+        if (mThroughput != null) {
+            mThroughput.cleanup();
+        }
         return true;
     }
 
@@ -320,11 +331,7 @@ public class PanService extends ProfileService {
     }
 
     public int getConnectionState(BluetoothDevice device) {
-        BluetoothPanDevice panDevice = mPanDevices.get(device);
-        if (panDevice == null) {
-            return BluetoothPan.STATE_DISCONNECTED;
-        }
-        return panDevice.mState;
+        return mPanDevices.getState(device);
     }
 
     boolean isPanNapOn() {
@@ -388,18 +395,7 @@ public class PanService extends ProfileService {
 
     List<BluetoothDevice> getDevicesMatchingConnectionStates(int[] states) {
          enforceCallingOrSelfPermission(BLUETOOTH_PERM, "Need BLUETOOTH permission");
-        List<BluetoothDevice> panDevices = new ArrayList<BluetoothDevice>();
-
-        for (BluetoothDevice device: mPanDevices.keySet()) {
-            int panDeviceState = getConnectionState(device);
-            for (int state : states) {
-                if (state == panDeviceState) {
-                    panDevices.add(device);
-                    break;
-                }
-            }
-        }
-        return panDevices;
+        return mPanDevices.getDevicesMatchingStates(states);
     }
 
     static protected class ConnectState {
@@ -458,17 +454,9 @@ public class PanService extends ProfileService {
         }
         int prevState;
 
-        BluetoothPanDevice panDevice = mPanDevices.get(device);
-        if (panDevice == null) {
+        prevState = mPanDevices.getState(device);
+        if (mPanDevices.update(device, state, iface, local_role)) {
             Log.i(TAG, "state " + state + " Num of connected pan devices: " + mPanDevices.size());
-            prevState = BluetoothProfile.STATE_DISCONNECTED;
-            panDevice = new BluetoothPanDevice(state, iface, local_role);
-            mPanDevices.put(device, panDevice);
-        } else {
-            prevState = panDevice.mState;
-            panDevice.mState = state;
-            panDevice.mLocalRole = local_role;
-            panDevice.mIface = iface;
         }
 
         // Avoid race condition that gets this class stuck in STATE_DISCONNECTING. While we
@@ -483,13 +471,29 @@ public class PanService extends ProfileService {
 
         Log.d(TAG, "handlePanDeviceStateChange preState: " + prevState + " state: " + state);
         if (prevState == state) return;
+        if (state == BluetoothProfile.STATE_CONNECTING) {
+            mThroughput.onConnecting(device);
+        }
         if (remote_role == BluetoothPan.LOCAL_PANU_ROLE) {
             if (state == BluetoothProfile.STATE_CONNECTED) {
                 if ((!mTetherOn) || (local_role == BluetoothPan.LOCAL_PANU_ROLE)) {
                     Log.d(TAG, "handlePanDeviceStateChange BT tethering is off/Local role"
                             + " is PANU drop the connection");
                     mPanDevices.remove(device);
+                    mThroughput.onDisconnected(device);
+                    disconnectPanNative(Utils.getByteAddress(device));
+                    return;
+                }
+                int others = mPanDevices.getDevices(BluetoothProfile.STATE_CONNECTED).size() - 1;
+                if (!mThroughput.admit(device, others, mMaxPanDevices)) {
+                    mPanDevices.remove(device);
+                    mThroughput.onDisconnected(device);
                     disconnectPanNative(Utils.getByteAddress(device));
+                    // The HAL reports nothing more for a device dropped here
+                    if (prevState != BluetoothProfile.STATE_DISCONNECTED) {
+                        broadcastConnectionState(device, prevState,
+                                BluetoothProfile.STATE_DISCONNECTED, local_role);
+                    }
                     return;
                 }
                 Log.d(TAG, "handlePanDeviceStateChange LOCAL_NAP_ROLE:REMOTE_PANU_ROLE");
@@ -498,6 +502,7 @@ public class PanService extends ProfileService {
                     if (mNapIfaceAddr == null) {
                         Log.e(TAG, "Error seting up tether interface");
                         mPanDevices.remove(device);
+                        mThroughput.onDisconnected(device);
                         disconnectPanNative(Utils.getByteAddress(device));
                         return;
                     }
@@ -525,9 +530,20 @@ public class PanService extends ProfileService {
             }
         }
 
+        if (state == BluetoothProfile.STATE_CONNECTED) {
+            mThroughput.onConnected(device, iface);
+        } else if (state == BluetoothProfile.STATE_DISCONNECTED) {
+            mThroughput.onDisconnected(device);
+        }
+
         /* Notifying the connection state change of the profile before sending the intent for
            connection state change, as it was causing a race condition, with the UI not being
            updated with the correct connection state. */
+        broadcastConnectionState(device, prevState, state, local_role);
+    }
+
+    private void broadcastConnectionState(BluetoothDevice device, int prevState, int state,
+            int local_role) {
         Log.d(TAG, "Pan Device state : device: " + device + " State:" +
                        prevState + "->" + state);
         Intent intent = new Intent(BluetoothPan.ACTION_CONNECTION_STATE_CHANGED);
@@ -617,47 +633,14 @@ public class PanService extends ProfileService {
         return address;
     }
 
-    private List<BluetoothDevice> getConnectedPanDevices() {
-        List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
-
-        for (BluetoothDevice device: mPanDevices.keySet()) {
-            if (getPanDeviceConnectionState(device) == BluetoothProfile.STATE_CONNECTED) {
-                devices.add(device);
-            }
-        }
-        return devices;
-    }
-
-    private int getPanDeviceConnectionState(BluetoothDevice device) {
-        BluetoothPanDevice panDevice = mPanDevices.get(device);
-        if (panDevice == null) {
-            return BluetoothProfile.STATE_DISCONNECTED;
-        }
-        return panDevice.mState;
-    }
-
     @Override
     public void dump(StringBuilder sb) {
         super.dump(sb);
         println(sb, "mMaxPanDevices: " + mMaxPanDevices);
         println(sb, "mPanIfName: " + mPanIfName);
         println(sb, "mTetherOn: " + mTetherOn);
-        println(sb, "mPanDevices:");
-        for (BluetoothDevice device : mPanDevices.keySet()) {
-            println(sb, "  " + device + " : " + mPanDevices.get(device));
-        }
-    }
-
-    private class BluetoothPanDevice {
-        private int mState;
-        private String mIface;
-        private int mLocalRole; // Which local role is this PAN device bound to
-
-        BluetoothPanDevice(int state, String iface, int localRole) {
-            mState = state;
-            mIface = iface;
-            mLocalRole = localRole;
-        }
+        mPanDevices.dump(sb);
+        mThroughput.dump(sb);
     }
 
     // Constants matching Hal header file bt_hh.h
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pan;
+
+import android.bluetooth.BluetoothDevice;
+import android.net.TrafficStats;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.HashMap;
+
+/**
+ * Throughput and latency counters of the PAN clients, and the admission policy built on them.
+ *
+ * While a client is connected the PAN interface byte counters are sampled every
+ * SAMPLE_INTERVAL_MS to get the aggregate rate. The BNEP links of all the clients are bridged
+ * into the one interface, so the bytes of a sample are split evenly between the clients that
+ * were connected during it; the per-client numbers are an estimate, the aggregate is measured.
+ * Each client also records how long its connection took to come up.
+ *
+ * A new NAP client is admitted while fewer than the configured maximum are connected and the
+ * link is not already loaded above persist.bt.pan.admit_load percent (0, the default, disables
+ * the check) of its capacity, taken as the highest rate seen and at least DEFAULT_LINK_KBPS.
+ *
+ * Sampling runs on the looper given to the constructor; the other calls may come from any
+ * thread.
+ */
+class PanThroughputMonitor {
+    private static final String TAG = "PanThroughputMonitor";
+    private static final boolean DBG = false;
+
+    static final int SAMPLE_INTERVAL_MS = 1000;
+    /* Typical BNEP goodput over an EDR link, used until a higher rate is measured */
+    static final int DEFAULT_LINK_KBPS = 2000;
+    /* Off by default, the capacity is only an estimate */
+    private static final int DEFAULT_ADMIT_LOAD_PERCENT = 0;
+    /* Weight of the newest sample in the smoothed rate, in 1/SMOOTHING_DIVISOR */
+    private static final int SMOOTHING_DIVISOR = 4;
+
+    /** Receives the link capacity estimate when a higher rate is measured. */
+    interface Callback {
+        void onCapacityChanged(int capacityKbps);
+    }
+
+    /** Counters of one client. */
+    private static class Client {
+        final BluetoothDevice mDevice;
+        long mConnectingSince;
+        long mConnectedSince;
+        long mConnectLatencyMs = -1;
+        long mRxBytes;
+        long mTxBytes;
+        int mPeakKbps;
+
+        Client(BluetoothDevice device) {
+            mDevice = device;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final int mAdmitLoadPercent;
+    private final HashMap<BluetoothDevice, Client> mClients =
+            new HashMap<BluetoothDevice, Client>();
+    private int mConnectedClients;
+
+    private String mIface;
+    private boolean mSampling;
+    private long mLastSampleTime;
+    private long mLastRxBytes;
+    private long mLastTxBytes;
+    private int mSmoothedKbps;
+    private int mPeakKbps;
+
+    /* totals, for dump */
+    private int mAdmitted;
+    private int mRejectedLimit;
+    private int mRejectedLoad;
+    private long mTotalRxBytes;
+    private long mTotalTxBytes;
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            long capacity;
+            boolean changed;
+            synchronized (PanThroughputMonitor.this) {
+                if (!mSampling) return;
+                long previous = getCapacityKbps();
+                sample();
+                capacity = getCapacityKbps();
+                changed = capacity > previous;
+                mHandler.postDelayed(this, SAMPLE_INTERVAL_MS);
+            }
+            if (changed && mCallback != null) {
+                mCallback.onCapacityChanged((int) capacity);
+            }
+        }
+    };
+
+    PanThroughputMonitor(Looper looper, Callback callback) {
+        mHandler = new Handler(looper);
+        mCallback = callback;
+        mAdmitLoadPercent = SystemProperties.getInt("persist.bt.pan.admit_load",
+                DEFAULT_ADMIT_LOAD_PERCENT);
+    }
+
+    /* Decides whether a new NAP client may stay connected next to |connected| others */
+    synchronized boolean admit(BluetoothDevice device, int connected, int maxClients) {
+        if (connected >= maxClients) {
+            mRejectedLimit++;
+            Log.w(TAG, "Rejecting " + device + ": " + connected + " clients connected");
+            return false;
+        }
+        if (connected > 0 && mAdmitLoadPercent > 0) {
+            long capacity = getCapacityKbps();
+            if ((long) mSmoothedKbps * 100 >= capacity * mAdmitLoadPercent) {
+                mRejectedLoad++;
+                Log.w(TAG, "Rejecting " + device + ": link at " + mSmoothedKbps + " of "
+                        + capacity + " kbps");
+                return false;
+            }
+        }
+        mAdmitted++;
+        return true;
+    }
+
+    synchronized void onConnecting(BluetoothDevice device) {
+        Client client = getOrCreateClient(device);
+        if (client.mConnectingSince == 0) {
+            client.mConnectingSince = SystemClock.elapsedRealtime();
+        }
+    }
+
+    synchronized void onConnected(BluetoothDevice device, String iface) {
+        Client client = getOrCreateClient(device);
+        if (client.mConnectedSince != 0) return;
+        long now = SystemClock.elapsedRealtime();
+        client.mConnectedSince = now;
+        if (client.mConnectingSince != 0) {
+            client.mConnectLatencyMs = now - client.mConnectingSince;
+        }
+        mConnectedClients++;
+        if (iface != null && !iface.equals(mIface)) {
+            stopSampling();
+            mIface = iface;
+        }
+        startSampling();
+    }
+
+    synchronized void onDisconnected(BluetoothDevice device) {
+        Client client = mClients.remove(device);
+        if (client == null) return;
+        if (client.mConnectedSince != 0) {
+            mConnectedClients--;
+            if (DBG) {
+                Log.d(TAG, device + " disconnected after "
+                        + (SystemClock.elapsedRealtime() - client.mConnectedSince) + "ms, rx "
+                        + client.mRxBytes + " tx " + client.mTxBytes);
+            }
+        }
+        if (mConnectedClients == 0) {
+            stopSampling();
+        }
+    }
+
+    synchronized long getCapacityKbps() {
+        return Math.max(mPeakKbps, DEFAULT_LINK_KBPS);
+    }
+
+    synchronized void cleanup() {
+        stopSampling();
+        mClients.clear();
+        mConnectedClients = 0;
+    }
+
+    private Client getOrCreateClient(BluetoothDevice device) {
+        Client client = mClients.get(device);
+        if (client == null) {
+            client = new Client(device);
+            mClients.put(device, client);
+        }
+        return client;
+    }
+
+    private void startSampling() {
+        if (mSampling || mIface == null) return;
+        mSampling = true;
+        mLastSampleTime = SystemClock.elapsedRealtime();
+        mLastRxBytes = TrafficStats.getRxBytes(mIface);
+        mLastTxBytes = TrafficStats.getTxBytes(mIface);
+        mHandler.postDelayed(mSampleRunnable, SAMPLE_INTERVAL_MS);
+    }
+
+    private void stopSampling() {
+        if (!mSampling) return;
+        sample();
+        mSampling = false;
+        mSmoothedKbps = 0;
+        mHandler.removeCallbacks(mSampleRunnable);
+    }
+
+    private void sample() {
+        long now = SystemClock.elapsedRealtime();
+        long rx = TrafficStats.getRxBytes(mIface);
+        long tx = TrafficStats.getTxBytes(mIface);
+        long elapsed = now - mLastSampleTime;
+        if (rx < 0 || tx < 0 || elapsed <= 0) return;
+        // Counters restart when the interface is recreated
+        long rxDelta = Math.max(0, rx - mLastRxBytes);
+        long txDelta = Math.max(0, tx - mLastTxBytes);
+        mLastSampleTime = now;
+        mLastRxBytes = rx;
+        mLastTxBytes = tx;
+        mTotalRxBytes += rxDelta;
+        mTotalTxBytes += txDelta;
+
+        int kbps = (int) ((rxDelta + txDelta) * 8 / elapsed);
+        mSmoothedKbps += (kbps - mSmoothedKbps) / SMOOTHING_DIVISOR;
+        mPeakKbps = Math.max(mPeakKbps, kbps);
+
+        if (mConnectedClients == 0) return;
+        int clientKbps = kbps / mConnectedClients;
+        for (Client client : mClients.values()) {
+            if (client.mConnectedSince == 0) continue;
+            client.mRxBytes += rxDelta / mConnectedClients;
+            client.mTxBytes += txDelta / mConnectedClients;
+            client.mPeakKbps = Math.max(client.mPeakKbps, clientKbps);
+        }
+    }
+
+    synchronized void dump(StringBuilder sb) {
+        ProfileService.println(sb, "Throughput: iface " + mIface + ", " + mSmoothedKbps
+                + " kbps now, peak " + mPeakKbps + " kbps, rx " + mTotalRxBytes + " tx "
+                + mTotalTxBytes + " bytes");
+        ProfileService.println(sb, "  admission: load limit " + mAdmitLoadPercent + "% of "
+                + getCapacityKbps() + " kbps, admitted " + mAdmitted + ", rejected "
+                + mRejectedLimit + " at limit, " + mRejectedLoad + " on load");
+        long now = SystemClock.elapsedRealtime();
+        for (Client client : mClients.values()) {
+            ProfileService.println(sb, "  " + client.mDevice + ": connect latency "
+                    + client.mConnectLatencyMs + "ms, connected "
+                    + (client.mConnectedSince != 0 ? (now - client.mConnectedSince) : 0)
+                    + "ms, rx ~" + client.mRxBytes + " tx ~" + client.mTxBytes + " bytes, peak ~"
+                    + client.mPeakKbps + " kbps");
+        }
+    }
+}
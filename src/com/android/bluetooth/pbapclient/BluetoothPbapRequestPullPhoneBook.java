@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.util.Log;
 
 import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryHandler;
 import com.android.bluetooth.pbapclient.ObexAppParameters;
 
 import java.io.IOException;
@@ -44,6 +45,8 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
 
     private final byte mFormat;
 
+    private VCardEntryHandler mEntryHandler;
+
     public BluetoothPbapRequestPullPhoneBook(
             String pbName, Account account, long filter, byte format,
             int maxListCount, int listStartOffset) {
@@ -93,11 +96,16 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
         mFormat = format;
     }
 
+    /* Streams the entries to |handler| while they are received instead of collecting them */
+    public void setEntryHandler(VCardEntryHandler handler) {
+        mEntryHandler = handler;
+    }
+
     @Override
     protected void readResponse(InputStream stream) throws IOException {
         Log.v(TAG, "readResponse");
 
-        mResponse = new BluetoothPbapVcardList(mAccount, stream, mFormat);
+        mResponse = new BluetoothPbapVcardList(mAccount, stream, mFormat, mEntryHandler);
         if (VDBG) {
             Log.d(TAG, "Read " + mResponse.getCount() + " entries.");
         }
@@ -118,6 +126,11 @@ final class BluetoothPbapRequestPullPhoneBook extends BluetoothPbapRequest {
         return mResponse.getList();
     }
 
+    /* Number of entries received, whether they were collected or streamed */
+    public int getCount() {
+        return mResponse != null ? mResponse.getCount() : 0;
+    }
+
     public int getNewMissedCalls() {
         return mNewMissedCalls;
     }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbapclient;
+
+import android.util.Log;
+
+import javax.obex.HeaderSet;
+
+/* Pulls the size and, from PBAP 1.2 PSEs, the version counters of a phonebook folder without
+ * transferring any vCard (MaxListCount = 0, PBAP 1.2 sec 5.1.4.5). */
+final class BluetoothPbapRequestPullPhoneBookSize extends BluetoothPbapRequest {
+
+    private static final String TAG = "BluetoothPbapRequestPullPhoneBookSize";
+
+    private static final String TYPE = "x-bt/phonebook";
+
+    private int mSize = -1;
+
+    private PhonebookVersion mVersion;
+
+    public BluetoothPbapRequestPullPhoneBookSize(String pbName) {
+        mHeaderSet.setHeader(HeaderSet.NAME, pbName);
+
+        mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
+
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(OAP_TAGID_MAX_LIST_COUNT, (short) 0);
+        oap.addToHeaderSet(mHeaderSet);
+    }
+
+    @Override
+    protected void readResponseHeaders(HeaderSet headerset) {
+        Log.v(TAG, "readResponseHeaders");
+
+        ObexAppParameters oap = ObexAppParameters.fromHeaderSet(headerset);
+
+        if (oap.exists(OAP_TAGID_PHONEBOOK_SIZE)) {
+            mSize = oap.getShort(OAP_TAGID_PHONEBOOK_SIZE) & 0xffff;
+        }
+
+        mVersion = new PhonebookVersion(oap.getByteArray(OAP_TAGID_DATABASE_IDENTIFIER),
+                oap.getByteArray(OAP_TAGID_PRIMARY_VERSION_COUNTER),
+                oap.getByteArray(OAP_TAGID_SECONDARY_VERSION_COUNTER));
+    }
+
+    /* Number of entries in the folder, or -1 if the PSE did not report it */
+    public int getSize() {
+        return mSize;
+    }
+
+    /* Version of the folder; not complete if the PSE does not support PBAP 1.2 counters */
+    public PhonebookVersion getVersion() {
+        return mVersion;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbapclient;
+
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+
+import javax.obex.HeaderSet;
+
+/* Pulls the vCard listing of the current folder (PBAP 1.2 sec 5.3), mapping each handle to the
+ * name the PSE lists for it. */
+final class BluetoothPbapRequestPullVcardListing extends BluetoothPbapRequest {
+
+    private static final String TAG = "BluetoothPbapRequestPullVcardListing";
+
+    private static final String TYPE = "x-bt/vcard-listing";
+
+    private final LinkedHashMap<String, String> mHandles = new LinkedHashMap<String, String>();
+
+    /* |folder| is relative to the current folder, empty for the current folder itself */
+    public BluetoothPbapRequestPullVcardListing(String folder) {
+        mHeaderSet.setHeader(HeaderSet.NAME, folder);
+
+        mHeaderSet.setHeader(HeaderSet.TYPE, TYPE);
+
+        ObexAppParameters oap = new ObexAppParameters();
+        oap.add(OAP_TAGID_MAX_LIST_COUNT, (short) 65535);
+        oap.addToHeaderSet(mHeaderSet);
+    }
+
+    @Override
+    protected void readResponse(InputStream stream) throws IOException {
+        Log.v(TAG, "readResponse");
+
+        try {
+            XmlPullParser xpp = XmlPullParserFactory.newInstance().newPullParser();
+            xpp.setInput(stream, "utf-8");
+
+            int event = xpp.getEventType();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG && xpp.getName().equals("card")) {
+                    String handle = xpp.getAttributeValue(null, "handle");
+                    String name = xpp.getAttributeValue(null, "name");
+                    if (handle != null) {
+                        mHandles.put(handle, name != null ? name : "");
+                    }
+                }
+                event = xpp.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new IOException("Malformed vCard listing", e);
+        }
+    }
+
+    /* Handles in listing order, mapped to their listed names */
+    public LinkedHashMap<String, String> getHandles() {
+        return mHandles;
+    }
+}
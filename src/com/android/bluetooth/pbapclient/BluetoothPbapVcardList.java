@@ -36,6 +36,9 @@ class BluetoothPbapVcardList {
 
     private final ArrayList<VCardEntry> mCards = new ArrayList<VCardEntry>();
     private final Account mAccount;
+    // When set, entries are handed over as soon as they are parsed instead of being kept
+    private final VCardEntryHandler mSink;
+    private int mCount;
 
     class CardEntryHandler implements VCardEntryHandler {
         @Override
@@ -44,7 +47,12 @@ class BluetoothPbapVcardList {
 
         @Override
         public void onEntryCreated(VCardEntry entry) {
-            mCards.add(entry);
+            mCount++;
+            if (mSink != null) {
+                mSink.onEntryCreated(entry);
+            } else {
+                mCards.add(entry);
+            }
         }
 
         @Override
@@ -53,7 +61,15 @@ class BluetoothPbapVcardList {
     }
 
     public BluetoothPbapVcardList(Account account, InputStream in, byte format) throws IOException {
+        this(account, in, format, null);
+    }
+
+    /* Parses |in| handing every entry to |sink| as soon as it is complete; getList() stays empty
+     * when |sink| is set. */
+    public BluetoothPbapVcardList(Account account, InputStream in, byte format,
+            VCardEntryHandler sink) throws IOException {
         mAccount = account;
+        mSink = sink;
         parse(in, format);
     }
 
@@ -84,7 +100,7 @@ class BluetoothPbapVcardList {
     }
 
     public int getCount() {
-        return mCards.size();
+        return mCount;
     }
 
     public ArrayList<VCardEntry> getList() {
@@ -23,16 +23,21 @@ import android.bluetooth.BluetoothSocket;
 import android.bluetooth.BluetoothUuid;
 import android.bluetooth.SdpPseRecord;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.RemoteException;
 import android.provider.CallLog;
 import android.util.Log;
 
 import com.android.bluetooth.BluetoothObexTransport;
 import com.android.bluetooth.R;
+import com.android.vcard.VCardEntry;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 
 import javax.obex.ClientSession;
 import javax.obex.HeaderSet;
@@ -58,6 +63,8 @@ class PbapClientConnectionHandler extends Handler {
     };
 
     private static final int PBAP_FEATURE_DEFAULT_IMAGE_FORMAT = 0x00000200;
+    private static final int PBAP_FEATURE_FOLDER_VERSION_COUNTERS = 0x00000008;
+    private static final int PBAP_FEATURE_DATABASE_IDENTIFIER = 0x00000004;
     private static final int PBAP_FEATURE_BROWSING = 0x00000002;
     private static final int PBAP_FEATURE_DOWNLOADING = 0x00000001;
 
@@ -72,6 +79,9 @@ class PbapClientConnectionHandler extends Handler {
 
     private static final int PBAP_SUPPORTED_FEATURE =
             PBAP_FEATURE_DEFAULT_IMAGE_FORMAT | PBAP_FEATURE_BROWSING | PBAP_FEATURE_DOWNLOADING;
+    /* Only advertised when incremental sync is enabled */
+    private static final int PBAP_VERSION_FEATURES =
+            PBAP_FEATURE_DATABASE_IDENTIFIER | PBAP_FEATURE_FOLDER_VERSION_COUNTERS;
     private static final long PBAP_REQUESTED_FIELDS = PBAP_FILTER_VERSION | PBAP_FILTER_FN
             | PBAP_FILTER_N | PBAP_FILTER_PHOTO | PBAP_FILTER_ADR | PBAP_FILTER_TEL
             | PBAP_FILTER_NICKNAME;
@@ -82,6 +92,11 @@ class PbapClientConnectionHandler extends Handler {
     public static final String MCH_PATH = "telecom/mch.vcf";
     public static final String ICH_PATH = "telecom/ich.vcf";
     public static final String OCH_PATH = "telecom/och.vcf";
+    // Size of the MaxListCount/ListStartOffset windows the phonebook is pulled in
+    private static final int PAGE_SIZE = 250;
+    private static final int MAX_LIST_START_OFFSET = 65535;
+    private static final String TELECOM_FOLDER = "telecom";
+    private static final String PB_FOLDER = "pb";
     public static final byte VCARD_TYPE_21 = 0;
     public static final byte VCARD_TYPE_30 = 1;
 
@@ -97,6 +112,8 @@ class PbapClientConnectionHandler extends Handler {
     private BluetoothPbapObexAuthenticator mAuth = null;
     private final PbapClientStateMachine mPbapClientStateMachine;
     private boolean mAccountCreated;
+    // Keep contacts across connections and only apply what changed, see config.xml
+    private final boolean mIncrementalSync;
 
     PbapClientConnectionHandler(Looper looper, Context context, PbapClientStateMachine stateMachine,
             BluetoothDevice device) {
@@ -109,6 +126,8 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount = new Account(mDevice.getAddress(), mContext.getString(
                 R.string.pbap_account_type));
+        mIncrementalSync =
+                mContext.getResources().getBoolean(R.bool.pbap_client_incremental_sync);
     }
 
     /**
@@ -126,6 +145,8 @@ class PbapClientConnectionHandler extends Handler {
         mAccountManager = AccountManager.get(mPbapClientStateMachine.getContext());
         mAccount = new Account(mDevice.getAddress(), mContext.getString(
                 R.string.pbap_account_type));
+        mIncrementalSync =
+                mContext.getResources().getBoolean(R.bool.pbap_client_incremental_sync);
     }
 
     public static class Builder {
@@ -202,7 +223,9 @@ class PbapClientConnectionHandler extends Handler {
                     Log.w(TAG, "DISCONNECT Failure ", e);
                 }
                 if (DBG) Log.d(TAG, "Completing Disconnect");
-                removeAccount(mAccount);
+                if (!mIncrementalSync) {
+                    removeAccount(mAccount);
+                }
                 mContext.getContentResolver()
                         .delete(CallLog.Calls.CONTENT_URI, null, null);
                 mPbapClientStateMachine.obtainMessage(
@@ -212,20 +235,12 @@ class PbapClientConnectionHandler extends Handler {
             case MSG_DOWNLOAD:
                 try {
                     mAccountCreated = addAccount(mAccount);
-                    if (mAccountCreated == false) {
+                    if (mAccountCreated == false
+                            && !(mIncrementalSync && isAccountPresent(mAccount))) {
                         Log.e(TAG, "Account creation failed.");
                         return;
                     }
-                    // Start at contact 1 to exclued Owner Card PBAP 1.1 sec 3.1.5.2
-                    BluetoothPbapRequestPullPhoneBook request =
-                            new BluetoothPbapRequestPullPhoneBook(
-                                    PB_PATH, mAccount, PBAP_REQUESTED_FIELDS, VCARD_TYPE_30, 0, 1);
-                    request.execute(mObexSession);
-                    PhonebookPullRequest processor =
-                            new PhonebookPullRequest(mPbapClientStateMachine.getContext(),
-                                    mAccount);
-                    processor.setResults(request.getList());
-                    processor.onPullComplete();
+                    downloadContacts();
 
                     downloadCallLog(MCH_PATH);
                     downloadCallLog(ICH_PATH);
@@ -294,8 +309,9 @@ class PbapClientConnectionHandler extends Handler {
                 ObexAppParameters oap = new ObexAppParameters();
 
                 if (mPseRec.getProfileVersion() >= PBAP_V1_2) {
-                    oap.add(BluetoothPbapRequest.OAP_TAGID_PBAP_SUPPORTED_FEATURES,
-                            PBAP_SUPPORTED_FEATURE);
+                    int features = PBAP_SUPPORTED_FEATURE;
+                    if (mIncrementalSync) features |= PBAP_VERSION_FEATURES;
+                    oap.add(BluetoothPbapRequest.OAP_TAGID_PBAP_SUPPORTED_FEATURES, features);
                 }
 
                 oap.addToHeaderSet(connectionRequest);
@@ -332,6 +348,176 @@ class PbapClientConnectionHandler extends Handler {
         }
     }
 
+    /* Brings the contacts of mAccount up to date with the PSE phonebook.
+     *
+     * In incremental mode, when the PSE supports PBAP 1.2 database identifiers and folder
+     * version counters, nothing is transferred if the counters did not move since the last
+     * sync, and only added, removed or renamed entries are applied if they did. Everything else
+     * falls back to replacing the whole phonebook. */
+    private void downloadContacts() throws IOException {
+        Context context = mPbapClientStateMachine.getContext();
+        PhonebookVersion current = null;
+        if (mIncrementalSync && isVersionCountersSupported()) {
+            BluetoothPbapRequestPullPhoneBookSize sizeRequest =
+                    new BluetoothPbapRequestPullPhoneBookSize(PB_PATH);
+            sizeRequest.execute(mObexSession);
+            current = sizeRequest.getVersion();
+            if (current == null || !current.isComplete()) {
+                current = null;
+            }
+        }
+        PhonebookVersion stored = PhonebookVersion.load(context, mDevice);
+        // Only valid again once the contacts match the PSE
+        PhonebookVersion.clear(context, mDevice);
+
+        if (current != null && !mAccountCreated && current.isUnchangedSince(stored)) {
+            if (DBG) Log.d(TAG, "Phonebook unchanged " + current);
+            current.save(context, mDevice);
+            return;
+        }
+
+        LinkedHashMap<String, String> listing = null;
+        if (current != null) {
+            listing = pullVcardListing();
+            if (!mAccountCreated && current.isSameDatabase(stored)
+                    && applyContactsDelta(listing)) {
+                current.save(context, mDevice);
+                return;
+            }
+        }
+
+        if (!mAccountCreated) {
+            // Drop the copy kept from the last connection before downloading everything again
+            PhonebookSyncDelta.deleteAll(context, mAccount);
+        }
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(context);
+        if (listing != null) {
+            pipeline.setListing(listing);
+        }
+        boolean complete = false;
+        pipeline.start();
+        try {
+            complete = pullPhonebookPages(pipeline);
+        } finally {
+            complete &= pipeline.finish();
+        }
+        if (current != null && complete && pipeline.hasHandles()) {
+            current.save(context, mDevice);
+        }
+    }
+
+    /* Pulls the phonebook in windows of PAGE_SIZE entries, streaming every window into
+     * |pipeline| as it is parsed. Returns false if the download was cut short. */
+    private boolean pullPhonebookPages(PhonebookInsertPipeline pipeline) throws IOException {
+        // Start at contact 1 to exclued Owner Card PBAP 1.1 sec 3.1.5.2
+        int offset = 1;
+        while (true) {
+            if (Thread.currentThread().isInterrupted()) {
+                pipeline.abort();
+                return false;
+            }
+            BluetoothPbapRequestPullPhoneBook request =
+                    new BluetoothPbapRequestPullPhoneBook(PB_PATH, mAccount,
+                            PBAP_REQUESTED_FIELDS, VCARD_TYPE_30, PAGE_SIZE, offset);
+            request.setEntryHandler(pipeline);
+            request.execute(mObexSession);
+            int received = request.getCount();
+            if (DBG) Log.d(TAG, "Pulled " + received + " contacts from offset " + offset);
+            offset += received;
+            if (received < PAGE_SIZE) {
+                return true;
+            }
+            if (offset > MAX_LIST_START_OFFSET) {
+                Log.w(TAG, "Phonebook larger than " + MAX_LIST_START_OFFSET + " entries");
+                return false;
+            }
+        }
+    }
+
+    /* Applies the difference between the stored contacts and |listing|. Returns false if a full
+     * download is needed instead. */
+    private boolean applyContactsDelta(LinkedHashMap<String, String> listing) throws IOException {
+        PhonebookSyncDelta delta =
+                new PhonebookSyncDelta(mPbapClientStateMachine.getContext(), mAccount);
+        delta.compute(listing);
+        if (delta.isEmpty()) {
+            // The counters moved but no entry was added, removed or renamed, so a property the
+            // listing does not show changed and there is no telling which entry it was.
+            if (DBG) Log.d(TAG, "No listing change behind version change, full download");
+            return false;
+        }
+        if (delta.getChangeCount() > delta.getUnchangedCount()) {
+            if (DBG) Log.d(TAG, "Most entries changed, full download");
+            return false;
+        }
+
+        HashMap<String, VCardEntry> fetched = new HashMap<String, VCardEntry>();
+        setPath(TELECOM_FOLDER);
+        setPath(PB_FOLDER);
+        try {
+            for (String handle : delta.getHandlesToFetch().keySet()) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                BluetoothPbapRequestPullVcardEntry request = new BluetoothPbapRequestPullVcardEntry(
+                        handle, mAccount, PBAP_REQUESTED_FIELDS, VCARD_TYPE_30);
+                request.execute(mObexSession);
+                if (request.isSuccess() && request.getEntry() != null) {
+                    fetched.put(handle, request.getEntry());
+                } else {
+                    Log.w(TAG, "Could not pull " + handle + ", full download");
+                    return false;
+                }
+            }
+        } finally {
+            setPath(null);
+        }
+
+        try {
+            delta.apply(fetched);
+        } catch (OperationApplicationException | RemoteException e) {
+            Log.e(TAG, "Failed to apply phonebook changes", e);
+            return false;
+        }
+        if (DBG) {
+            Log.d(TAG, "Applied phonebook changes, pulled " + fetched.size() + " of "
+                    + (listing.size() - 1) + " entries");
+        }
+        return true;
+    }
+
+    private LinkedHashMap<String, String> pullVcardListing() throws IOException {
+        setPath(TELECOM_FOLDER);
+        try {
+            BluetoothPbapRequestPullVcardListing request =
+                    new BluetoothPbapRequestPullVcardListing(PB_FOLDER);
+            request.execute(mObexSession);
+            return request.getHandles();
+        } finally {
+            setPath(null);
+        }
+    }
+
+    /* Moves down into |folder|, or back to the root folder if |folder| is null */
+    private void setPath(String folder) throws IOException {
+        HeaderSet request = new HeaderSet();
+        if (folder == null) {
+            request.setEmptyNameHeader();
+        } else {
+            request.setHeader(HeaderSet.NAME, folder);
+        }
+        HeaderSet reply = mObexSession.setPath(request, false, false);
+        if (reply.getResponseCode() != ResponseCodes.OBEX_HTTP_OK) {
+            throw new IOException("SETPATH " + folder + " failed: " + reply.getResponseCode());
+        }
+    }
+
+    private boolean isVersionCountersSupported() {
+        return mPseRec != null && mPseRec.getProfileVersion() >= PBAP_V1_2
+                && (mPseRec.getSupportedFeatures() & PBAP_VERSION_FEATURES)
+                        == PBAP_VERSION_FEATURES;
+    }
+
     void downloadCallLog(String path) {
         try {
             BluetoothPbapRequestPullPhoneBook request =
@@ -356,6 +542,15 @@ class PbapClientConnectionHandler extends Handler {
         return false;
     }
 
+    private boolean isAccountPresent(Account account) {
+        for (Account acc : mAccountManager.getAccountsByType(account.type)) {
+            if (acc.equals(account)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void removeAccount(Account acc) {
         if (mAccountManager.removeAccountExplicitly(acc)) {
             if (DBG) {
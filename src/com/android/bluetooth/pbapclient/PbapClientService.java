@@ -25,6 +25,8 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.provider.CallLog;
 import android.provider.Settings;
 import android.util.Log;
@@ -53,6 +55,10 @@ public class PbapClientService extends ProfileService {
             new ConcurrentHashMap<>();
     private static PbapClientService sPbapClientService;
     private PbapBroadcastReceiver mPbapBroadcastReceiver = new PbapBroadcastReceiver();
+    private boolean mIncrementalSync;
+    // Contacts provider work that must not run on the main thread
+    private HandlerThread mWorkerThread;
+    private Handler mWorkerHandler;
 
     @Override
     protected String getName() {
@@ -67,8 +73,13 @@ public class PbapClientService extends ProfileService {
     @Override
     protected boolean start() {
         if (DBG) Log.d(TAG, "onStart");
+        mIncrementalSync = getResources().getBoolean(R.bool.pbap_client_incremental_sync);
+        mWorkerThread = new HandlerThread("PbapClientWorker");
+        mWorkerThread.start();
+        mWorkerHandler = new Handler(mWorkerThread.getLooper());
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+        filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         // delay initial download until after the user is unlocked to add an account.
         filter.addAction(Intent.ACTION_USER_UNLOCKED);
         try {
@@ -91,6 +102,11 @@ public class PbapClientService extends ProfileService {
         for (PbapClientStateMachine pbapClientStateMachine : mPbapClientStateMachineMap.values()) {
             pbapClientStateMachine.doQuit();
         }
+        if (mWorkerThread != null) {
+            mWorkerThread.quitSafely();
+            mWorkerThread = null;
+            mWorkerHandler = null;
+        }
         return true;
     }
 
@@ -112,6 +128,21 @@ public class PbapClientService extends ProfileService {
     }
 
     private void removeUncleanAccounts() {
+        if (mIncrementalSync) {
+            // Accounts are kept on purpose, each one is checked against the stored phonebook
+            // version and replaced when it is out of date on the next connection.
+            Log.d(TAG, "Keeping accounts for incremental sync");
+        } else {
+            removeAccounts();
+        }
+        try {
+            getContentResolver().delete(CallLog.Calls.CONTENT_URI, null, null);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Call Logs could not be deleted, they may not exist yet.");
+        }
+    }
+
+    private void removeAccounts() {
         // Find all accounts that match the type "pbap" and delete them.
         AccountManager accountManager = AccountManager.get(this);
         Account[] accounts =
@@ -122,11 +153,16 @@ public class PbapClientService extends ProfileService {
             // The device ID is the name of the account.
             accountManager.removeAccountExplicitly(acc);
         }
-        try {
-            getContentResolver().delete(CallLog.Calls.CONTENT_URI, null, null);
-        } catch (IllegalArgumentException e) {
-            Log.w(TAG, "Call Logs could not be deleted, they may not exist yet.");
-        }
+        PhonebookVersion.clearAll(this);
+    }
+
+    /* Drops what was kept of |device|'s phonebook for incremental sync, it was unpaired */
+    private void removeDeviceAccount(BluetoothDevice device) {
+        Account account = new Account(device.getAddress(), getString(R.string.pbap_account_type));
+        Log.d(TAG, "Deleting " + account + " of unpaired device");
+        PhonebookSyncDelta.deleteAll(this, account);
+        AccountManager.get(this).removeAccountExplicitly(account);
+        PhonebookVersion.clear(this, device);
     }
 
     private class PbapBroadcastReceiver extends BroadcastReceiver {
@@ -139,6 +175,21 @@ public class PbapClientService extends ProfileService {
                 if (getConnectionState(device) == BluetoothProfile.STATE_CONNECTED) {
                     disconnect(device);
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                        BluetoothDevice.ERROR);
+                // Without incremental sync nothing is kept past the connection.
+                if (bondState == BluetoothDevice.BOND_NONE && mIncrementalSync
+                        && mWorkerHandler != null) {
+                    final BluetoothDevice device =
+                            intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    mWorkerHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            removeDeviceAccount(device);
+                        }
+                    });
+                }
             } else if(action.equals(Intent.ACTION_USER_UNLOCKED)) {
                 for (PbapClientStateMachine stateMachine : mPbapClientStateMachineMap.values()) {
                     stateMachine.resumeDownload();
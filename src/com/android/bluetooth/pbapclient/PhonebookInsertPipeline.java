@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbapclient;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+import com.android.vcard.VCardEntryHandler;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/* Writes downloaded vCards into the contacts provider while they are still being received.
+ *
+ * The pipeline is handed to the vCard parser as its entry handler. Parsed entries go through a
+ * bounded queue to a writer thread which groups them into batches of at most MAX_OPS operations,
+ * so contacts show up while the download is running and at most QUEUE_CAPACITY parsed entries
+ * (plus one batch) are held in memory; a parser that runs ahead of the provider blocks.
+ *
+ * Entries can be tagged with their PSE handles for incremental sync, see PhonebookSyncDelta.
+ */
+class PhonebookInsertPipeline implements VCardEntryHandler {
+    private static final String TAG = "PbapPhonebookInsertPipeline";
+    private static final boolean DBG = true;
+
+    static final int MAX_OPS = 250;
+    static final int QUEUE_CAPACITY = 100;
+
+    /* Receives the batches of operations, the contacts provider outside of tests */
+    interface BatchSink {
+        void applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws RemoteException, OperationApplicationException;
+    }
+
+    /* Marks the end of the stream in the queue */
+    private static final VCardEntry END = new VCardEntry();
+
+    private final ContentResolver mResolver;
+    private final BatchSink mSink;
+    private final BlockingQueue<VCardEntry> mQueue;
+
+    /* Listed handles, by normalized listed name */
+    private HashMap<String, ArrayDeque<Listed>> mListing;
+    private int mTagged;
+
+    private Thread mWriter;
+    private volatile boolean mFailed;
+    private volatile boolean mAborted;
+
+    /* statistics, only read once the pipeline is finished */
+    private int mReceived;
+    private int mInserted;
+    private int mBatches;
+    private int mMaxQueued;
+    private long mStartTime;
+    private long mFirstBatchTime = -1;
+    private long mEndTime;
+
+    /* A handle of the vCard listing and the name it was listed under */
+    private static class Listed {
+        final String handle;
+        final String name;
+
+        Listed(String handle, String name) {
+            this.handle = handle;
+            this.name = name;
+        }
+    }
+
+    private static class ProviderSink implements BatchSink {
+        private final ContentResolver mContactsProvider;
+
+        ProviderSink(ContentResolver contactsProvider) {
+            mContactsProvider = contactsProvider;
+        }
+
+        @Override
+        public void applyBatch(ArrayList<ContentProviderOperation> ops)
+                throws RemoteException, OperationApplicationException {
+            mContactsProvider.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+    }
+
+    PhonebookInsertPipeline(Context context) {
+        this(context.getContentResolver(), new ProviderSink(context.getContentResolver()),
+                QUEUE_CAPACITY);
+    }
+
+    PhonebookInsertPipeline(ContentResolver resolver, BatchSink sink, int queueCapacity) {
+        mResolver = resolver;
+        mSink = sink;
+        mQueue = new ArrayBlockingQueue<VCardEntry>(queueCapacity);
+    }
+
+    /* Tags every entry with the handle that |listing| lists under the entry's name. The order of
+     * the pulled entries is not relied on; entries sharing a name take the handles listed under it
+     * one by one. PSEs list the N property, FN or a display name, so all of them are tried. */
+    void setListing(Map<String, String> listing) {
+        mListing = new HashMap<String, ArrayDeque<Listed>>(listing.size());
+        for (Map.Entry<String, String> e : listing.entrySet()) {
+            if (PhonebookSyncDelta.OWNER_HANDLE.equals(e.getKey())) continue;
+            String key = normalizeName(e.getValue());
+            ArrayDeque<Listed> handles = mListing.get(key);
+            if (handles == null) {
+                handles = new ArrayDeque<Listed>(1);
+                mListing.put(key, handles);
+            }
+            handles.add(new Listed(e.getKey(), e.getValue()));
+        }
+    }
+
+    /* The N property of |entry| as the PSE lists it, see PBAP 1.2 sec 5.3.4.3 */
+    static String getListedName(VCardEntry entry) {
+        VCardEntry.NameData n = entry.getNameData();
+        StringBuilder sb = new StringBuilder();
+        sb.append(n.getFamily() == null ? "" : n.getFamily()).append(';');
+        sb.append(n.getGiven() == null ? "" : n.getGiven()).append(';');
+        sb.append(n.getMiddle() == null ? "" : n.getMiddle()).append(';');
+        sb.append(n.getPrefix() == null ? "" : n.getPrefix()).append(';');
+        sb.append(n.getSuffix() == null ? "" : n.getSuffix());
+        return sb.toString();
+    }
+
+    /* PSEs differ in trailing empty name components and white space */
+    private static String normalizeName(String name) {
+        if (name == null) return "";
+        int end = name.length();
+        while (end > 0 && (name.charAt(end - 1) == ';'
+                || Character.isWhitespace(name.charAt(end - 1)))) {
+            end--;
+        }
+        return name.substring(0, end).trim();
+    }
+
+    /* Takes the listed handle for |entry|, or null if none is left under its names */
+    private Listed takeListed(VCardEntry entry) {
+        if (mListing == null) return null;
+        Listed listed = takeListed(getListedName(entry));
+        if (listed == null) listed = takeListed(entry.getNameData().getFormatted());
+        if (listed == null) listed = takeListed(entry.getDisplayName());
+        if (listed == null && DBG) {
+            Log.d(TAG, "No listed handle for entry " + (mInserted + 1));
+        }
+        return listed;
+    }
+
+    private Listed takeListed(String name) {
+        ArrayDeque<Listed> handles = mListing.get(normalizeName(name));
+        return handles != null ? handles.poll() : null;
+    }
+
+    /* Starts the writer thread, entries are accepted from now on */
+    void start() {
+        mStartTime = SystemClock.elapsedRealtime();
+        mWriter = new Thread("PbapPhonebookInsert") {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                writeLoop();
+            }
+        };
+        mWriter.start();
+    }
+
+    @Override
+    public void onStart() {
+    }
+
+    @Override
+    public void onEntryCreated(VCardEntry entry) {
+        if (mAborted || mFailed) return;
+        try {
+            mQueue.put(entry);
+            mReceived++;
+            mMaxQueued = Math.max(mMaxQueued, mQueue.size());
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while queueing entry");
+            abort();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void onEnd() {
+    }
+
+    /* Number of entries handed to the pipeline so far */
+    int getReceivedCount() {
+        return mReceived;
+    }
+
+    /* Drops everything not written yet, finish() still has to be called */
+    void abort() {
+        mAborted = true;
+        mQueue.clear();
+    }
+
+    /*
+     * Waits for the queued entries to be written and stops the writer thread.
+     * @return true if every received entry was written
+     */
+    boolean finish() {
+        if (mWriter == null) return false;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mQueue.put(END);
+                break;
+            } catch (InterruptedException e) {
+                // Make room for the end marker, the download is being torn down
+                interrupted = true;
+                abort();
+            }
+        }
+        while (mWriter.isAlive()) {
+            try {
+                mWriter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+                abort();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mEndTime = SystemClock.elapsedRealtime();
+        if (DBG) Log.d(TAG, toString());
+        return !mAborted && !mFailed && mInserted == mReceived;
+    }
+
+    /* Returns true if every inserted entry was tagged with its handle */
+    boolean hasHandles() {
+        return mListing != null && mTagged == mInserted;
+    }
+
+    /* Writes |entries| on the calling thread, for callers that already hold the whole list */
+    boolean insertAll(List<VCardEntry> entries) {
+        mStartTime = SystemClock.elapsedRealtime();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        for (VCardEntry entry : entries) {
+            if (Thread.currentThread().isInterrupted()) {
+                Log.e(TAG, "Interrupted durring insert.");
+                mAborted = true;
+                break;
+            }
+            mReceived++;
+            ops = insert(entry, ops);
+            if (ops == null) break;
+        }
+        if (ops != null) flush(ops);
+        mEndTime = SystemClock.elapsedRealtime();
+        return !mAborted && !mFailed && mInserted == mReceived;
+    }
+
+    private void writeLoop() {
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        while (true) {
+            VCardEntry entry;
+            try {
+                entry = mQueue.take();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Writer interrupted");
+                mAborted = true;
+                return;
+            }
+            if (entry == END) break;
+            if (mAborted || ops == null) continue;
+            ops = insert(entry, ops);
+        }
+        if (!mAborted && ops != null) flush(ops);
+    }
+
+    /* Appends |entry| to |ops|, submitting a batch when it is full. Returns null on failure */
+    private ArrayList<ContentProviderOperation> insert(VCardEntry entry,
+            ArrayList<ContentProviderOperation> ops) {
+        Listed listed = takeListed(entry);
+        String handle = (listed != null) ? listed.handle : null;
+        String listedName = (listed != null) ? listed.name : null;
+        int numberOfOperations = ops.size();
+        // Append current vcard to list of insert operations.
+        PhonebookSyncDelta.appendInsertOperations(mResolver, entry, handle, listedName, ops);
+        if (ops.size() >= MAX_OPS) {
+            // If we have exceded the limit to the insert operation remove the latest vcard
+            // and submit.
+            ops.subList(numberOfOperations, ops.size()).clear();
+            if (!flush(ops)) return null;
+            ops = new ArrayList<ContentProviderOperation>();
+            PhonebookSyncDelta.appendInsertOperations(mResolver, entry, handle, listedName, ops);
+            if (ops.size() >= MAX_OPS) {
+                // Current VCard has more than 500 attributes, drop the card.
+                Log.w(TAG, "Dropping vcard with " + ops.size() + " operations");
+                ops.clear();
+            }
+        }
+        mInserted++;
+        if (listed != null) mTagged++;
+        return ops;
+    }
+
+    private boolean flush(ArrayList<ContentProviderOperation> ops) {
+        if (ops.isEmpty()) return true;
+        try {
+            mSink.applyBatch(ops);
+            mBatches++;
+            if (mFirstBatchTime < 0) {
+                mFirstBatchTime = SystemClock.elapsedRealtime();
+            }
+            ops.clear();
+            return true;
+        } catch (RemoteException | OperationApplicationException | NumberFormatException e) {
+            Log.e(TAG, "Got exception: ", e);
+            mFailed = true;
+            return false;
+        }
+    }
+
+    int getInsertedCount() {
+        return mInserted;
+    }
+
+    int getBatchCount() {
+        return mBatches;
+    }
+
+    /* Largest number of parsed entries waiting for the writer at any time */
+    int getMaxQueued() {
+        return mMaxQueued;
+    }
+
+    /* Time from start until the first batch was written, -1 if none was */
+    long getFirstBatchLatencyMs() {
+        return mFirstBatchTime < 0 ? -1 : mFirstBatchTime - mStartTime;
+    }
+
+    long getElapsedMs() {
+        return mEndTime - mStartTime;
+    }
+
+    @Override
+    public String toString() {
+        return "PhonebookInsertPipeline: received=" + mReceived + " inserted=" + mInserted
+                + " batches=" + mBatches + " maxQueued=" + mMaxQueued + " firstBatch="
+                + getFirstBatchLatencyMs() + "ms total=" + getElapsedMs() + "ms"
+                + (mListing != null ? " tagged=" + mTagged : "")
+                + (mFailed ? " FAILED" : "") + (mAborted ? " ABORTED" : "");
+    }
+}
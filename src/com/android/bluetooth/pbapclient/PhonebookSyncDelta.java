@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbapclient;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.RawContacts;
+import android.util.Log;
+
+import com.android.vcard.VCardEntry;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/* Difference between the contacts stored for a PSE account and the PSE's vCard listing.
+ *
+ * Every raw contact downloaded for the account carries the PSE handle in SOURCE_ID and the name
+ * listed for it in SYNC1. Comparing that against a fresh listing gives the handles that were
+ * removed, added or renamed, so that only those vCards need to be pulled and written.
+ */
+class PhonebookSyncDelta {
+    private static final String TAG = "PbapPhonebookSyncDelta";
+    private static final boolean DBG = true;
+    private static final int MAX_OPS = 250;
+
+    /* Owner card, never stored (PBAP 1.1 sec 3.1.5.2) */
+    static final String OWNER_HANDLE = "0.vcf";
+
+    private static final String[] PROJECTION =
+            new String[] {RawContacts._ID, RawContacts.SOURCE_ID, RawContacts.SYNC1};
+
+    private final Context mContext;
+    private final Account mAccount;
+
+    /* Raw contact ids to delete */
+    private final ArrayList<Long> mRemoved = new ArrayList<Long>();
+    /* Handles to pull, mapped to their listed names */
+    private final HashMap<String, String> mToFetch = new HashMap<String, String>();
+    private int mUnchanged;
+
+    PhonebookSyncDelta(Context context, Account account) {
+        mContext = context;
+        mAccount = account;
+    }
+
+    /* Compares the stored contacts with |listing| (handle -> listed name) */
+    void compute(Map<String, String> listing) {
+        mRemoved.clear();
+        mToFetch.clear();
+        mUnchanged = 0;
+        HashMap<String, String> remaining = new HashMap<String, String>(listing);
+        remaining.remove(OWNER_HANDLE);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                syncAdapterUri(RawContacts.CONTENT_URI), PROJECTION,
+                RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+                new String[] {mAccount.name, mAccount.type}, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    String handle = cursor.getString(1);
+                    String storedName = cursor.getString(2);
+                    String listedName = (handle != null) ? remaining.remove(handle) : null;
+                    if (listedName == null) {
+                        // gone on the PSE, or stored without a handle
+                        mRemoved.add(id);
+                    } else if (!listedName.equals(storedName)) {
+                        mRemoved.add(id);
+                        mToFetch.put(handle, listedName);
+                    } else {
+                        mUnchanged++;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        mToFetch.putAll(remaining);
+        if (DBG) {
+            Log.d(TAG, "delta: removed=" + mRemoved.size() + " fetch=" + mToFetch.size()
+                    + " unchanged=" + mUnchanged);
+        }
+    }
+
+    boolean isEmpty() {
+        return mRemoved.isEmpty() && mToFetch.isEmpty();
+    }
+
+    /* Number of stored contacts the delta touches, a full download is cheaper above some size */
+    int getChangeCount() {
+        return Math.max(mRemoved.size(), mToFetch.size());
+    }
+
+    int getUnchangedCount() {
+        return mUnchanged;
+    }
+
+    /* Handles that have to be pulled, mapped to their listed names */
+    Map<String, String> getHandlesToFetch() {
+        return mToFetch;
+    }
+
+    /* Deletes the removed contacts and inserts |fetched| (handle -> vCard) */
+    void apply(Map<String, VCardEntry> fetched) throws RemoteException,
+            OperationApplicationException {
+        ContentResolver resolver = mContext.getContentResolver();
+        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
+        Uri deleteUri = syncAdapterUri(RawContacts.CONTENT_URI);
+        for (Long id : mRemoved) {
+            ops.add(ContentProviderOperation.newDelete(deleteUri)
+                    .withSelection(RawContacts._ID + "=?", new String[] {String.valueOf(id)})
+                    .withYieldAllowed(true).build());
+            if (ops.size() >= MAX_OPS) {
+                resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                ops.clear();
+            }
+        }
+        for (Map.Entry<String, VCardEntry> e : fetched.entrySet()) {
+            int numberOfOperations = ops.size();
+            appendInsertOperations(resolver, e.getValue(), e.getKey(),
+                    mToFetch.get(e.getKey()), ops);
+            if (ops.size() >= MAX_OPS && numberOfOperations > 0) {
+                // Submit what was there before this vcard and start over with it
+                ArrayList<ContentProviderOperation> current = new ArrayList<>();
+                appendInsertOperations(resolver, e.getValue(), e.getKey(),
+                        mToFetch.get(e.getKey()), current);
+                ops.subList(numberOfOperations, ops.size()).clear();
+                resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+                ops = current;
+            }
+        }
+        if (ops.size() > 0) {
+            resolver.applyBatch(ContactsContract.AUTHORITY, ops);
+        }
+    }
+
+    /* Deletes every contact stored for |account| */
+    static void deleteAll(Context context, Account account) {
+        int deleted = context.getContentResolver().delete(syncAdapterUri(RawContacts.CONTENT_URI),
+                RawContacts.ACCOUNT_NAME + "=? AND " + RawContacts.ACCOUNT_TYPE + "=?",
+                new String[] {account.name, account.type});
+        if (DBG) Log.d(TAG, "Deleted " + deleted + " contacts of " + account);
+    }
+
+    /* Appends the insert operations of |entry|, tagged with the PSE |handle| and |listedName| */
+    static void appendInsertOperations(ContentResolver resolver, VCardEntry entry, String handle,
+            String listedName, ArrayList<ContentProviderOperation> ops) {
+        int rawContactIndex = ops.size();
+        entry.constructInsertOperations(resolver, ops);
+        if (handle == null || ops.size() == rawContactIndex) {
+            return;
+        }
+        // constructInsertOperations() starts with the RawContacts insert
+        ops.add(ContentProviderOperation.newUpdate(syncAdapterUri(RawContacts.CONTENT_URI))
+                .withValue(RawContacts.SOURCE_ID, handle)
+                .withValue(RawContacts.SYNC1, listedName != null ? listedName : "")
+                .withSelection(RawContacts._ID + "=?", new String[1])
+                .withSelectionBackReference(0, rawContactIndex)
+                .build());
+    }
+
+    private static Uri syncAdapterUri(Uri uri) {
+        return uri.buildUpon().appendQueryParameter(ContactsContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+    }
+}
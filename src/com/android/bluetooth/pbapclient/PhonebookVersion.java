@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.pbapclient;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Arrays;
+
+/* Database identifier and folder version counters of a PSE phonebook (PBAP 1.2 sec 5.1.4.x).
+ *
+ * A PSE that supports them lets the PCE tell whether its local copy of the phonebook is still
+ * current: the database identifier changes when the PSE could not keep track of its handles,
+ * the primary counter changes on any change to the folder and the secondary counter on changes
+ * to the N, FN, TEL, EMAIL and ADR properties.
+ */
+class PhonebookVersion {
+    private static final String PREFS_NAME = "pbap_client_sync";
+    private static final String KEY_DATABASE_ID = "_database_id";
+    private static final String KEY_PRIMARY = "_primary";
+    private static final String KEY_SECONDARY = "_secondary";
+
+    final byte[] mDatabaseId;
+    final byte[] mPrimaryCounter;
+    final byte[] mSecondaryCounter;
+
+    PhonebookVersion(byte[] databaseId, byte[] primaryCounter, byte[] secondaryCounter) {
+        mDatabaseId = databaseId;
+        mPrimaryCounter = primaryCounter;
+        mSecondaryCounter = secondaryCounter;
+    }
+
+    /* Returns true if the PSE reported all three values */
+    boolean isComplete() {
+        return mDatabaseId != null && mPrimaryCounter != null && mSecondaryCounter != null;
+    }
+
+    /* Returns true if |other| describes the same database, so that handles are still valid */
+    boolean isSameDatabase(PhonebookVersion other) {
+        return other != null && isComplete() && other.isComplete()
+                && Arrays.equals(mDatabaseId, other.mDatabaseId);
+    }
+
+    /* Returns true if nothing changed in the folder since |other| */
+    boolean isUnchangedSince(PhonebookVersion other) {
+        return isSameDatabase(other) && Arrays.equals(mPrimaryCounter, other.mPrimaryCounter)
+                && Arrays.equals(mSecondaryCounter, other.mSecondaryCounter);
+    }
+
+    /* Returns the version stored for |device| by the last sync, or null */
+    static PhonebookVersion load(Context context, BluetoothDevice device) {
+        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String address = device.getAddress();
+        PhonebookVersion version = new PhonebookVersion(
+                fromHex(prefs.getString(address + KEY_DATABASE_ID, null)),
+                fromHex(prefs.getString(address + KEY_PRIMARY, null)),
+                fromHex(prefs.getString(address + KEY_SECONDARY, null)));
+        return version.isComplete() ? version : null;
+    }
+
+    void save(Context context, BluetoothDevice device) {
+        String address = device.getAddress();
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .putString(address + KEY_DATABASE_ID, toHex(mDatabaseId))
+                .putString(address + KEY_PRIMARY, toHex(mPrimaryCounter))
+                .putString(address + KEY_SECONDARY, toHex(mSecondaryCounter))
+                .apply();
+    }
+
+    /* Forgets the version of |device|, the next connection does a full download */
+    static void clear(Context context, BluetoothDevice device) {
+        String address = device.getAddress();
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit()
+                .remove(address + KEY_DATABASE_ID)
+                .remove(address + KEY_PRIMARY)
+                .remove(address + KEY_SECONDARY)
+                .apply();
+    }
+
+    /* Forgets the versions of all devices */
+    static void clearAll(Context context) {
+        context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE).edit().clear().apply();
+    }
+
+    private static String toHex(byte[] value) {
+        if (value == null) return null;
+        StringBuilder sb = new StringBuilder(value.length * 2);
+        for (byte b : value) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private static byte[] fromHex(String value) {
+        if (value == null || (value.length() % 2) != 0) return null;
+        byte[] bytes = new byte[value.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(value.charAt(2 * i), 16);
+            int lo = Character.digit(value.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            bytes[i] = (byte) ((hi << 4) | lo);
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "{db=" + toHex(mDatabaseId) + ", primary=" + toHex(mPrimaryCounter)
+                + ", secondary=" + toHex(mSecondaryCounter) + "}";
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.sap;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.Arrays;
+
+/**
+ * Round trip times of the APDUs relayed between the SAP client and the RIL.
+ *
+ * Every APDU is timed from the moment its frame has been read from RFCOMM: until it is handed to
+ * the RIL (dispatch), and until the response has been written back to the client (round trip).
+ * SAP allows a single outstanding request, so one pending slot is enough.
+ *
+ * Written from the reader and handler threads, hence synchronized.
+ */
+class SapApduStats {
+    /* Samples kept for the percentiles */
+    private static final int SAMPLES = 256;
+
+    private final long[] mDispatch = new long[SAMPLES];
+    private final long[] mRoundTrip = new long[SAMPLES];
+    private int mCount;
+    private int mAbandoned;
+
+    private long mPendingReadNanos = -1;
+    private long mPendingDispatch = -1;
+
+    /* An APDU request was read at |readNanos| and is about to be forwarded */
+    synchronized void onRequestRead(long readNanos) {
+        if (mPendingReadNanos >= 0) mAbandoned++;
+        mPendingReadNanos = readNanos;
+        mPendingDispatch = -1;
+    }
+
+    /* The pending APDU has been handed to the RIL */
+    synchronized void onRequestSent() {
+        if (mPendingReadNanos < 0) return;
+        mPendingDispatch = System.nanoTime() - mPendingReadNanos;
+    }
+
+    /* The response to the pending APDU has been written to the client */
+    synchronized void onResponseSent() {
+        if (mPendingReadNanos < 0) return;
+        int index = mCount++ % SAMPLES;
+        mRoundTrip[index] = System.nanoTime() - mPendingReadNanos;
+        mDispatch[index] = Math.max(mPendingDispatch, 0);
+        mPendingReadNanos = -1;
+    }
+
+    /* The pending APDU will not be answered, e.g. the RIL queue was cleared */
+    synchronized void onRequestAbandoned() {
+        if (mPendingReadNanos < 0) return;
+        mAbandoned++;
+        mPendingReadNanos = -1;
+    }
+
+    void dump(StringBuilder sb) {
+        long[] dispatch;
+        long[] roundTrip;
+        int count;
+        synchronized (this) {
+            count = mCount;
+            dispatch = Arrays.copyOf(mDispatch, Math.min(mCount, SAMPLES));
+            roundTrip = Arrays.copyOf(mRoundTrip, Math.min(mCount, SAMPLES));
+            ProfileService.println(sb, "APDUs: " + mCount + " answered, " + mAbandoned
+                    + " abandoned");
+        }
+        if (count == 0) return;
+        Arrays.sort(dispatch);
+        Arrays.sort(roundTrip);
+        ProfileService.println(sb, "APDU dispatch (last " + dispatch.length + "): p50 "
+                + toMicros(dispatch, 50) + "us, p99 " + toMicros(dispatch, 99) + "us");
+        ProfileService.println(sb, "APDU round trip (last " + roundTrip.length + "): p50 "
+                + toMicros(roundTrip, 50) + "us, p90 " + toMicros(roundTrip, 90) + "us, p99 "
+                + toMicros(roundTrip, 99) + "us, max "
+                + roundTrip[roundTrip.length - 1] / 1000 + "us");
+    }
+
+    private static long toMicros(long[] sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1000;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.bluetooth.sap;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads whole SAP messages from the RFCOMM stream.
+ *
+ * A SAP message has no length field, so the frame is read in as few steps as its layout allows:
+ * the message header, then every parameter header followed by its padded value in a single
+ * read. The frame is collected in a buffer that is kept for the lifetime of the connection and
+ * parsed from there by SapMessage, instead of pulling it from the stream a byte at a time.
+ *
+ * Only used from the SapServer reader thread.
+ */
+class SapFrameReader {
+    private static final String TAG = "SapFrameReader";
+
+    static final int HEADER_LENGTH = 4;
+    static final int PARAM_HEADER_LENGTH = 4;
+    /* The MaxMsgSize parameter is 16 bit, nothing a client may send is larger */
+    static final int MAX_FRAME_LENGTH = 0xffff;
+    /* Covers a short APDU with its headers, larger frames grow the buffer once */
+    private static final int INITIAL_FRAME_LENGTH = 320;
+
+    private final InputStream mIn;
+    private byte[] mFrame = new byte[INITIAL_FRAME_LENGTH];
+    private int mLength;
+    private boolean mOversized;
+    private long mReadNanos;
+
+    SapFrameReader(InputStream in) {
+        mIn = in;
+    }
+
+    /*
+     * Blocks until the next frame has been read.
+     * @return the frame, positioned at its first byte, or null at the end of the stream
+     * @throws IOException if the stream fails or ends within a frame
+     */
+    ByteBuffer readFrame() throws IOException {
+        int requestType = mIn.read();
+        if (requestType == -1) return null;
+        return readFrame(requestType);
+    }
+
+    /* Same as readFrame(), for a frame whose message type has already been read */
+    ByteBuffer readFrame(int requestType) throws IOException {
+        mOversized = false;
+        mFrame[0] = (byte) requestType;
+        readFully(1, HEADER_LENGTH - 1);
+        int paramCount = mFrame[1] & 0xff;
+        int pos = HEADER_LENGTH;
+        for (int i = 0; i < paramCount; i++) {
+            ensureCapacity(pos + PARAM_HEADER_LENGTH);
+            readFully(pos, PARAM_HEADER_LENGTH);
+            int length = ((mFrame[pos + 2] & 0xff) << 8) | (mFrame[pos + 3] & 0xff);
+            int padded = (length + 3) & ~3;
+            pos += PARAM_HEADER_LENGTH;
+            if (pos + padded > MAX_FRAME_LENGTH) {
+                // Keep the stream in sync, the message is rejected as a whole
+                Log.e(TAG, "Frame exceeds " + MAX_FRAME_LENGTH + " bytes, dropping it");
+                mOversized = true;
+                discard(padded);
+                pos -= PARAM_HEADER_LENGTH;
+                continue;
+            }
+            ensureCapacity(pos + padded);
+            readFully(pos, padded);
+            pos += padded;
+        }
+        mLength = pos;
+        mReadNanos = System.nanoTime();
+        return ByteBuffer.wrap(mFrame, 0, mLength);
+    }
+
+    /* Returns true if the last frame was cut short because it was too large */
+    boolean isOversized() {
+        return mOversized;
+    }
+
+    /* System.nanoTime() at which the last frame was complete */
+    long getReadNanos() {
+        return mReadNanos;
+    }
+
+    private void ensureCapacity(int length) {
+        if (length <= mFrame.length) return;
+        // |length| never exceeds MAX_FRAME_LENGTH plus one parameter header
+        byte[] frame = new byte[Math.max(length,
+                Math.min(mFrame.length * 2, MAX_FRAME_LENGTH + PARAM_HEADER_LENGTH))];
+        System.arraycopy(mFrame, 0, frame, 0, mFrame.length);
+        mFrame = frame;
+    }
+
+    private void readFully(int offset, int count) throws IOException {
+        while (count > 0) {
+            int read = mIn.read(mFrame, offset, count);
+            if (read == -1) throw new IOException("EOS reached within a SAP frame");
+            offset += read;
+            count -= read;
+        }
+    }
+
+    private void discard(int count) throws IOException {
+        byte[] scratch = new byte[Math.min(count, 1024)];
+        while (count > 0) {
+            int read = mIn.read(scratch, 0, Math.min(count, scratch.length));
+            if (read == -1) throw new IOException("EOS reached within a SAP frame");
+            count -= read;
+        }
+    }
+}
@@ -6,6 +6,8 @@ import android.hardware.radio.V1_0.SapTransferProtocol;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Map;
@@ -352,23 +354,39 @@ public class SapMessage {
      * @param is the input stream to read the data from
      * @return the resulting message, or null if an error occurs
      */
-    @SuppressWarnings("unused")
     public static SapMessage readMessage(int requestType, InputStream is) {
+        SapFrameReader reader = new SapFrameReader(is);
+        ByteBuffer frame;
+        try {
+            frame = reader.readFrame(requestType);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            return null;
+        }
+        return reader.isOversized() ? null : readMessage(frame);
+    }
+
+    /**
+     * Construct a SapMessage from a frame read by SapFrameReader.
+     * @param frame the complete message, header included
+     * @return the resulting message, or null if an error occurs
+     */
+    static SapMessage readMessage(ByteBuffer frame) {
+        int requestType = frame.get() & 0xff;
         SapMessage newMessage = new SapMessage(requestType);
 
         /* Read in all the parameters (if any) */
-        int paramCount;
-        try {
-            paramCount = is.read();
-            skip(is, 2); // Skip the 2 padding bytes
-            if(paramCount > 0) {
-                if(VERBOSE) Log.i(TAG, "Parsing message with paramCount: " + paramCount);
-                if(newMessage.parseParameters(paramCount, is) == false)
+        int paramCount = frame.get() & 0xff;
+        frame.position(frame.position() + 2); // Skip the 2 padding bytes
+        if(paramCount > 0) {
+            if(VERBOSE) Log.i(TAG, "Parsing message with paramCount: " + paramCount);
+            try {
+                if(newMessage.parseParameters(paramCount, frame) == false)
                     return null;
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                Log.w(TAG, "Truncated message", e);
+                return null;
             }
-        } catch (IOException e) {
-            Log.w(TAG, e);
-            return null;
         }
         if(DEBUG) Log.i(TAG, "readMessage() Read message: " + getMsgTypeName(requestType));
 
@@ -412,60 +430,35 @@ public class SapMessage {
     }
 
     /**
-     * Blocking read of an entire array of data.
-     * @param is the input stream to read from
-     * @param buffer the buffer to read into - the length of the buffer will
-     *        determine how many bytes will be read.
-     */
-    private static void read(InputStream is, byte[] buffer) throws IOException {
-        int bytesToRead = buffer.length;
-        int bytesRead = 0;
-        int tmpBytesRead;
-        while (bytesRead < bytesToRead) {
-            tmpBytesRead = is.read(buffer, bytesRead, bytesToRead-bytesRead);
-            if(tmpBytesRead == -1)
-                throw new IOException("EOS reached while reading a byte array.");
-            else
-                bytesRead += tmpBytesRead;
-        }
-    }
-
-    /**
-     * Skip a number of bytes in an InputStream.
-     * @param is the input stream
-     * @param count the number of bytes to skip
-     * @throws IOException In case of reaching EOF or a stream error
+     * Copies the |length| byte value at the current position of |frame|.
      */
-    private static void skip(InputStream is, int count) throws IOException {
-        for(int i = 0; i < count; i++) {
-            is.read(); // Do not use the InputStream.skip as it fails for some stream types
-        }
+    private static byte[] readValue(ByteBuffer frame, int length) {
+        byte[] value = new byte[length];
+        frame.get(value);
+        return value;
     }
 
     /**
-     * Read the parameters from the stream and update the relevant members.
-     * This function will ensure that all parameters are read from the stream, even
-     * if an error is detected.
+     * Read the parameters from the frame and update the relevant members.
+     * Every parameter is stepped over, even if an error is detected in one of them.
      * @param count the number of parameters to read
-     * @param is the input stream
+     * @param frame the frame, positioned at the first parameter header
      * @return True if all parameters were successfully parsed, False if an error were detected.
-     * @throws IOException
      */
-    private boolean parseParameters(int count, InputStream is) throws IOException {
+    private boolean parseParameters(int count, ByteBuffer frame) {
         int paramId;
         int paramLength;
+        int next;
         boolean success = true;
-        int skipLen = 0;
 
         for(int i = 0; i < count; i++) {
-            paramId = is.read();
-            is.read(); // Skip the reserved byte
-            paramLength = is.read();
-            paramLength = paramLength << 8 | is.read();
+            paramId = frame.get() & 0xff;
+            frame.get(); // Skip the reserved byte
+            paramLength = (frame.get() & 0xff) << 8;
+            paramLength |= frame.get() & 0xff;
 
             // As per SAP spec padding should be 0-3 bytes
-            if ((paramLength % 4) != 0)
-                skipLen = 4 - (paramLength % 4);
+            next = frame.position() + ((paramLength + 3) & ~3);
 
             if(VERBOSE) Log.i(TAG, "parsing paramId: " + paramId + " with length: " + paramLength);
             switch(paramId) {
@@ -473,33 +466,25 @@ public class SapMessage {
                 if(paramLength != PARAM_MAX_MSG_SIZE_LENGTH) {
                     Log.e(TAG, "Received PARAM_MAX_MSG_SIZE with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mMaxMsgSize = is.read();
-                    mMaxMsgSize = mMaxMsgSize << 8 | is.read();
-                    skip(is, 4 - PARAM_MAX_MSG_SIZE_LENGTH);
+                    mMaxMsgSize = (frame.get() & 0xff) << 8;
+                    mMaxMsgSize |= frame.get() & 0xff;
                 }
                 break;
             case PARAM_COMMAND_APDU_ID:
-                mApdu = new byte[paramLength];
-                read(is, mApdu);
-                skip(is, skipLen);
+                mApdu = readValue(frame, paramLength);
                 break;
             case PARAM_COMMAND_APDU7816_ID:
-                mApdu7816 = new byte[paramLength];
-                read(is, mApdu7816);
-                skip(is, skipLen);
+                mApdu7816 = readValue(frame, paramLength);
                 break;
             case PARAM_TRANSPORT_PROTOCOL_ID:
                 if(paramLength != PARAM_TRANSPORT_PROTOCOL_LENGTH) {
                     Log.e(TAG, "Received PARAM_TRANSPORT_PROTOCOL with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mTransportProtocol = is.read();
-                    skip(is, 4 - PARAM_TRANSPORT_PROTOCOL_LENGTH);
+                    mTransportProtocol = frame.get() & 0xff;
                 }
                 break;
             case PARAM_CONNECTION_STATUS_ID:
@@ -507,11 +492,9 @@ public class SapMessage {
                 if(paramLength != PARAM_CONNECTION_STATUS_LENGTH) {
                     Log.e(TAG, "Received PARAM_CONNECTION_STATUS with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mConnectionStatus = is.read();
-                    skip(is, 4 - PARAM_CONNECTION_STATUS_LENGTH);
+                    mConnectionStatus = frame.get() & 0xff;
                 }
                 break;
             case PARAM_CARD_READER_STATUS_ID:
@@ -519,11 +502,9 @@ public class SapMessage {
                 if(paramLength != PARAM_CARD_READER_STATUS_LENGTH) {
                     Log.e(TAG, "Received PARAM_CARD_READER_STATUS with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mCardReaderStatus = is.read();
-                    skip(is, 4 - PARAM_CARD_READER_STATUS_LENGTH);
+                    mCardReaderStatus = frame.get() & 0xff;
                 }
                 break;
             case PARAM_STATUS_CHANGE_ID:
@@ -531,11 +512,9 @@ public class SapMessage {
                 if(paramLength != PARAM_STATUS_CHANGE_LENGTH) {
                     Log.e(TAG, "Received PARAM_STATUS_CHANGE with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mStatusChange = is.read();
-                    skip(is, 4 - PARAM_STATUS_CHANGE_LENGTH);
+                    mStatusChange = frame.get() & 0xff;
                 }
                 break;
             case PARAM_RESULT_CODE_ID:
@@ -543,11 +522,9 @@ public class SapMessage {
                 if(paramLength != PARAM_RESULT_CODE_LENGTH) {
                     Log.e(TAG, "Received PARAM_RESULT_CODE with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mResultCode = is.read();
-                    skip(is, 4 - PARAM_RESULT_CODE_LENGTH);
+                    mResultCode = frame.get() & 0xff;
                 }
                 break;
             case PARAM_DISCONNECT_TYPE_ID:
@@ -555,30 +532,24 @@ public class SapMessage {
                 if(paramLength != PARAM_DISCONNECT_TYPE_LENGTH) {
                     Log.e(TAG, "Received PARAM_DISCONNECT_TYPE_ID with wrong length: " +
                             paramLength + " skipping this parameter.");
-                    skip(is, paramLength + skipLen);
                     success = false;
                 } else {
-                    mDisconnectionType = is.read();
-                    skip(is, 4 - PARAM_DISCONNECT_TYPE_LENGTH);
+                    mDisconnectionType = frame.get() & 0xff;
                 }
                 break;
             case PARAM_RESPONSE_APDU_ID:
                 // not needed for server role, but used for module test
-                mApduResp = new byte[paramLength];
-                read(is, mApduResp);
-                skip(is, skipLen);
+                mApduResp = readValue(frame, paramLength);
                 break;
             case PARAM_ATR_ID:
                 // not needed for server role, but used for module test
-                mAtr = new byte[paramLength];
-                read(is, mAtr);
-                skip(is, skipLen);
+                mAtr = readValue(frame, paramLength);
                 break;
             default:
                 Log.e(TAG, "Received unknown parameter ID: " + paramId + " length: " +
                         paramLength + " skipping this parameter.");
-                skip(is, paramLength + skipLen);
             }
+            frame.position(next); // Skip the rest of the value and the padding
         }
         return success;
     }
@@ -724,7 +695,9 @@ public class SapMessage {
     public void send(ISap sapProxy) throws RemoteException, RuntimeException {
         int rilSerial = sNextSerial.getAndIncrement();
 
-        Log.e(TAG, "callISapReq: called for mMsgType " + mMsgType + " rilSerial " + rilSerial);
+        if (DEBUG) {
+            Log.d(TAG, "callISapReq: called for mMsgType " + mMsgType + " rilSerial " + rilSerial);
+        }
 
         /* Update the ongoing requests queue */
         if (mClearRilQueue == true) {
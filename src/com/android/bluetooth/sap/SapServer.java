@@ -24,12 +24,14 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 
 import com.android.bluetooth.R;
+import com.android.bluetooth.btservice.ProfileService;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
 
 
@@ -61,6 +63,9 @@ public class SapServer extends Thread implements Callback {
     /* RFCOMM socket I/O streams */
     private BufferedOutputStream mRfcommOut = null;
     private BufferedInputStream mRfcommIn = null;
+    private SapFrameReader mFrameReader = null;
+    /* Round trip times of the relayed APDUs */
+    private final SapApduStats mApduStats = new SapApduStats();
     /* References to the SapRilReceiver object */
     private SapRilReceiver mRilBtReceiver = null;
     /* The message handler members */
@@ -110,6 +115,7 @@ public class SapServer extends Thread implements Callback {
 
         /* Open in- and output streams */
         mRfcommIn = new BufferedInputStream(inStream);
+        mFrameReader = new SapFrameReader(mRfcommIn);
         mRfcommOut = new BufferedOutputStream(outStream);
 
         /* Register for phone state change and the RIL cfm message */
@@ -304,13 +310,14 @@ public class SapServer extends Thread implements Callback {
     @Override
     public void run() {
         try {
-            /* SAP is not time critical, hence lowering priority to ensure critical tasks are
-             * executed in a timely manner. */
-            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            /* Every APDU of a SIM authentication makes a round trip through both threads, and
+             * the car-kit waits for each of them; keep them from queueing behind background work.
+             * Both threads are idle unless the client sends a request. */
+            android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_FOREGROUND);
 
             /* Start the SAP message handler thread */
             mHandlerThread = new HandlerThread("SapServerHandler",
-                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                    android.os.Process.THREAD_PRIORITY_FOREGROUND);
             mHandlerThread.start();
 
             // This will return when the looper is ready
@@ -321,14 +328,15 @@ public class SapServer extends Thread implements Callback {
             boolean done = false;
             while (!done) {
                 if(VERBOSE) Log.i(TAG, "Waiting for incomming RFCOMM message...");
-                int requestType = mRfcommIn.read();
+                ByteBuffer frame = mFrameReader.readFrame();
                 if (VERBOSE) Log.i(TAG, "RFCOMM message read...");
-                if(requestType == -1) {
-                    if (VERBOSE) Log.i(TAG, "requestType == -1");
+                if(frame == null) {
+                    if (VERBOSE) Log.i(TAG, "frame == null");
                     done = true; // EOF reached
                 } else {
-                    if (VERBOSE) Log.i(TAG, "requestType != -1");
-                    SapMessage msg = SapMessage.readMessage(requestType, mRfcommIn);
+                    int requestType = frame.get(0) & 0xff;
+                    SapMessage msg = mFrameReader.isOversized() ? null
+                            : SapMessage.readMessage(frame);
                     /* notify about an incoming message from the BT Client */
                     SapService.notifyUpdateWakeLock(mSapServiceHandler);
                     if(msg != null && mState != SAP_STATE.DISCONNECTING)
@@ -406,6 +414,9 @@ public class SapServer extends Thread implements Callback {
 
                         if(msg != null && msg.getSendToRil() == true) {
                             changeState(SAP_STATE.CONNECTED_BUSY);
+                            if (requestType == SapMessage.ID_TRANSFER_APDU_REQ) {
+                                mApduStats.onRequestRead(mFrameReader.getReadNanos());
+                            }
                             sendRilThreadMessage(msg);
                         }
 
@@ -550,6 +561,7 @@ public class SapServer extends Thread implements Callback {
     private void clearPendingRilResponses(SapMessage msg) {
         if(mState == SAP_STATE.CONNECTED_BUSY) {
             msg.setClearRilQueue(true);
+            mApduStats.onRequestAbandoned();
         }
     }
     /**
@@ -829,8 +841,17 @@ public class SapServer extends Thread implements Callback {
         }
 
         // This is the default case - just send the message to the SAP client.
-        if(sapMsg != null)
+        if(sapMsg != null) {
             sendReply(sapMsg);
+            if (sapMsg.getMsgType() == SapMessage.ID_TRANSFER_APDU_RESP) {
+                mApduStats.onResponseSent();
+            }
+        }
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "SapServer state: " + mState.name());
+        mApduStats.dump(sb);
     }
 
     private void handleRilInd(SapMessage sapMsg) {
@@ -858,6 +879,18 @@ public class SapServer extends Thread implements Callback {
         }
     }
 
+    /**
+     * Answer a request that could not be handed to the RIL with an error.
+     * Only the timed APDU is abandoned, not one that is in flight while |sapMsg| is rejected.
+     * @param sapMsg the request that did not reach the RIL
+     */
+    private void rejectRilMessage(SapMessage sapMsg) {
+        if (sapMsg.getMsgType() == SapMessage.ID_TRANSFER_APDU_REQ) {
+            mApduStats.onRequestAbandoned();
+        }
+        sendClientMessage(new SapMessage(SapMessage.ID_ERROR_RESP));
+    }
+
     /**
      * This is only to be called from the handlerThread, else use sendRilThreadMessage();
      * @param sapMsg
@@ -872,21 +905,24 @@ public class SapServer extends Thread implements Callback {
             if (sapProxy == null) {
                 Log.e(TAG_HANDLER,
                         "sendRilMessage: Unable to send message to RIL; sapProxy is null");
-                sendClientMessage(new SapMessage(SapMessage.ID_ERROR_RESP));
+                rejectRilMessage(sapMsg);
                 return;
             }
 
             try {
                 sapMsg.send(sapProxy);
+                if (sapMsg.getMsgType() == SapMessage.ID_TRANSFER_APDU_REQ) {
+                    mApduStats.onRequestSent();
+                }
                 if (VERBOSE) {
                     Log.d(TAG_HANDLER, "sendRilMessage: sapMsg.callISapReq called successfully");
                 }
             } catch (IllegalArgumentException e) {
                 Log.e(TAG_HANDLER, "sendRilMessage: IllegalArgumentException", e);
-                sendClientMessage(new SapMessage(SapMessage.ID_ERROR_RESP));
+                rejectRilMessage(sapMsg);
             } catch (RemoteException | RuntimeException e) {
                 Log.e(TAG_HANDLER, "sendRilMessage: Unable to send message to RIL: " + e);
-                sendClientMessage(new SapMessage(SapMessage.ID_ERROR_RESP));
+                rejectRilMessage(sapMsg);
                 mRilBtReceiver.notifyShutdown(); /* Only needed in case of a connection error */
                 mRilBtReceiver.resetSapProxy();
             }
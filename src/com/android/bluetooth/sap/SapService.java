@@ -612,6 +612,16 @@ public class SapService extends ProfileService {
         return true;
     }
 
+    @Override
+    public void dump(StringBuilder sb) {
+        super.dump(sb);
+        println(sb, "mState: " + mState + ", mRemoteDevice: " + mRemoteDevice);
+        SapServer sapServer = mSapServer;
+        if (sapServer != null) {
+            sapServer.dump(sb);
+        }
+    }
+
     private void setUserTimeoutAlarm(){
         if (DEBUG) Log.d(TAG, "setUserTimeOutAlarm()");
         cancelUserTimeoutAlarm();
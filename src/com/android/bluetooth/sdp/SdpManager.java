@@ -26,14 +26,20 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
 import android.os.Parcelable;
+import android.os.SystemProperties;
 import android.util.Log;
 
 import com.android.bluetooth.Utils;
 import com.android.bluetooth.btservice.AbstractionLayer;
 import com.android.bluetooth.btservice.AdapterService;
+import com.android.bluetooth.btservice.ProfileService;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class SdpManager {
 
@@ -51,11 +57,16 @@ public class SdpManager {
 
     /* Variables to keep track of ongoing and queued search requests.
      * mTrackerLock must be held, when using/changing sSdpSearchTracker
-     * and mSearchInProgress. */
+     * and sRecordCache. */
     static SdpSearchTracker sSdpSearchTracker;
-    static boolean mSearchInProgress = false;
+    static SdpRecordCache sRecordCache;
     static Object mTrackerLock = new Object();
 
+    /* The number of devices searched at the same time. The stack runs one SDP search at a
+     * time and rejects others as busy, so only raise this on stacks that run them in parallel.
+     */
+    private static final int DEFAULT_MAX_SEARCHES = 1;
+
     /* The timeout to wait for reply from native. Should never fire. */
     private static final int SDP_INTENT_DELAY = 11000;
     private static final int MESSAGE_SDP_INTENT = 2;
@@ -100,6 +111,9 @@ public class SdpManager {
         private final ParcelUuid mUuid;
         private int mStatus = 0;
         private boolean mSearching;
+        private boolean mStarted;
+        /* The records found so far, cached once the search completes */
+        private final ArrayList<Parcelable> mRecords = new ArrayList<Parcelable>();
         /* TODO: If we change the API to use another mechanism than intents for
          *       delivering the results, this would be the place to keep a list
          *       of the objects to deliver the results to. */
@@ -123,8 +137,22 @@ public class SdpManager {
             this.mStatus = status;
         }
 
+        public void addRecord(Parcelable record) {
+            mRecords.add(record);
+        }
+
+        public List<Parcelable> getRecords() {
+            return mRecords;
+        }
+
+        /* True once the native search was started, false while it is queued */
+        public boolean isStarted() {
+            return mStarted;
+        }
+
         public void startSearch() {
             mSearching = true;
+            mStarted = true;
             Message message = mHandler.obtainMessage(MESSAGE_SDP_INTENT, this);
             mHandler.sendMessageDelayed(message, SDP_INTENT_DELAY);
         }
@@ -141,59 +169,129 @@ public class SdpManager {
     }
 
 
-    /* We wrap the ArrayList class to decorate with functionality to
-     * find an instance based on UUID AND device address.
-     * As we use a mix of byte[] and object instances, this is more
-     * efficient than implementing comparable. */
+    /* Keeps track of the queued and running searches.
+     * Searches are queued per device. A device keeps its search slot until all the searches
+     * queued for it are done, so the UUIDs the profiles ask for right after pairing are looked
+     * up back to back, while the device is still paged. Searches of different devices run at
+     * the same time, up to mMaxSearches devices, and a device waits in the order it was first
+     * queued in.
+     * The instances are also indexed by address and UUID, so that the record callbacks do not
+     * have to walk the queues. */
     class SdpSearchTracker {
-        private final ArrayList<SdpSearchInstance> list = new ArrayList<SdpSearchInstance>();
+        private final int mMaxSearches;
+        private final HashMap<String, SdpSearchInstance> mInstances =
+                new HashMap<String, SdpSearchInstance>();
+        private final LinkedHashMap<String, ArrayDeque<SdpSearchInstance>> mQueues =
+                new LinkedHashMap<String, ArrayDeque<SdpSearchInstance>>();
+        private int mRunning;
+
+        /* totals, for dump */
+        private int mStartedCount;
+        private int mCompletedCount;
+        private int mFailedCount;
+
+        SdpSearchTracker(int maxSearches) {
+            mMaxSearches = Math.max(maxSearches, 1);
+        }
+
+        private String getKey(String address, ParcelUuid uuid) {
+            return address + "/" + uuid;
+        }
 
         void clear() {
-            list.clear();
+            for (SdpSearchInstance inst : mInstances.values()) {
+                inst.stopSearch();
+            }
+            mInstances.clear();
+            mQueues.clear();
+            mRunning = 0;
         }
 
         boolean add(SdpSearchInstance inst){
-            return list.add(inst);
+            String address = inst.getDevice().getAddress();
+            mInstances.put(getKey(address, inst.getUuid()), inst);
+            ArrayDeque<SdpSearchInstance> queue = mQueues.get(address);
+            if (queue == null) {
+                queue = new ArrayDeque<SdpSearchInstance>();
+                mQueues.put(address, queue);
+            }
+            return queue.add(inst);
         }
 
         boolean remove(SdpSearchInstance inst) {
-            return list.remove(inst);
+            String address = inst.getDevice().getAddress();
+            if (mInstances.get(getKey(address, inst.getUuid())) != inst) {
+                return false;
+            }
+            mInstances.remove(getKey(address, inst.getUuid()));
+            ArrayDeque<SdpSearchInstance> queue = mQueues.get(address);
+            if (queue != null) {
+                queue.remove(inst);
+                if (queue.isEmpty()) {
+                    mQueues.remove(address);
+                }
+            }
+            if (inst.isStarted()) {
+                mRunning--;
+                if (inst.getStatus() == AbstractionLayer.BT_STATUS_SUCCESS) {
+                    mCompletedCount++;
+                } else {
+                    mFailedCount++;
+                }
+            }
+            return true;
         }
 
+        /* Returns the next search to start, or null if all slots are taken or nothing waits */
         SdpSearchInstance getNext() {
-            if(list.size() > 0) {
-                return list.get(0);
+            if (mRunning >= mMaxSearches) {
+                return null;
+            }
+            for (ArrayDeque<SdpSearchInstance> queue : mQueues.values()) {
+                SdpSearchInstance inst = queue.peek();
+                if (inst != null && !inst.isStarted()) {
+                    return inst;
+                }
             }
             return null;
         }
 
+        /* Called when |inst| returned by getNext() is started */
+        void onStarted(SdpSearchInstance inst) {
+            mRunning++;
+            mStartedCount++;
+        }
+
         SdpSearchInstance getSearchInstance(byte[] address, byte[] uuidBytes) {
             String addressString = Utils.getAddressStringFromByte(address);
             ParcelUuid uuid = Utils.byteArrayToUuid(uuidBytes)[0];
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst;
-                }
-            }
-            return null;
+            return mInstances.get(getKey(addressString, uuid));
         }
 
+        /* True if a search for |uuid| on |device| is queued or running. A new request for it
+         * is merged into that search, its results are broadcast to all the requesters. */
         boolean isSearching(BluetoothDevice device, ParcelUuid uuid) {
-            String addressString = device.getAddress();
-            for (SdpSearchInstance inst : list) {
-                if (inst.getDevice().getAddress().equals(addressString)
-                        && inst.getUuid().equals(uuid)) {
-                    return inst.isSearching();
-                }
+            return mInstances.containsKey(getKey(device.getAddress(), uuid));
+        }
+
+        void dump(StringBuilder sb) {
+            ProfileService.println(sb, "  searches: " + mRunning + " of " + mMaxSearches
+                    + " running, " + mInstances.size() + " queued on " + mQueues.size()
+                    + " devices, " + mStartedCount + " started, " + mCompletedCount
+                    + " completed, " + mFailedCount + " failed");
+            for (SdpSearchInstance inst : mInstances.values()) {
+                ProfileService.println(sb, "    " + inst.getDevice() + " " + inst.getUuid()
+                        + (inst.isStarted() ? " running" : " queued"));
             }
-            return false;
         }
     }
 
 
     private SdpManager(AdapterService adapterService) {
-        sSdpSearchTracker = new SdpSearchTracker();
+        sSdpSearchTracker = new SdpSearchTracker(SystemProperties.getInt(
+                "persist.bt.sdp.max_searches", DEFAULT_MAX_SEARCHES));
+        sRecordCache = new SdpRecordCache(SystemProperties.getLong(
+                "persist.bt.sdp.cache_ttl_ms", SdpRecordCache.DEFAULT_TTL_MS));
 
         /* This is only needed until intents are no longer used */
         sAdapterService = adapterService;
@@ -215,6 +313,7 @@ public class SdpManager {
         if (sSdpSearchTracker !=null) {
             synchronized(mTrackerLock) {
                 sSdpSearchTracker.clear();
+                sRecordCache.clear();
             }
         }
 
@@ -408,6 +507,16 @@ public class SdpManager {
                 return;
             }
 
+            List<Parcelable> records = sRecordCache.get(device.getAddress(), uuid);
+            if (records != null) {
+                if(D) Log.d(TAG, "sdpSearch(): " + records.size()
+                        + " cached records for UUID: " + uuid);
+                for (Parcelable record : records) {
+                    broadcastSdpRecord(device, uuid, AbstractionLayer.BT_STATUS_SUCCESS, record);
+                }
+                return;
+            }
+
             SdpSearchInstance inst = new SdpSearchInstance(0, device, uuid);
             sSdpSearchTracker.add(inst); // Queue the request
 
@@ -416,25 +525,32 @@ public class SdpManager {
 
     }
 
+    /* Drop the cached records of |device|, e.g. when it is unpaired */
+    public void invalidateCache(BluetoothDevice device) {
+        synchronized (mTrackerLock) {
+            sRecordCache.invalidate(device.getAddress());
+        }
+    }
+
     /* Caller must hold the mTrackerLock */
     private void startSearch() {
-
-        SdpSearchInstance inst = sSdpSearchTracker.getNext();
-
-        if((inst != null) && (mSearchInProgress == false)) {
+        SdpSearchInstance inst;
+        while ((inst = sSdpSearchTracker.getNext()) != null) {
             if(D) Log.d(TAG, "Starting search for UUID: "+ inst.getUuid());
-            mSearchInProgress = true;
+            sSdpSearchTracker.onStarted(inst);
 
             inst.startSearch(); // Trigger timeout message
 
-            sdpSearchNative(Utils.getBytesFromAddress(inst.getDevice().getAddress()),
-                                            Utils.uuidToByteArray(inst.getUuid()));
-        } // Else queue is empty.
-        else {
-            if(D) Log.d(TAG, "startSearch(): nextInst = " + inst +
-                    " mSearchInProgress = " + mSearchInProgress
-                    + " - search busy or queue empty.");
+            if (!sdpSearchNative(Utils.getBytesFromAddress(inst.getDevice().getAddress()),
+                                            Utils.uuidToByteArray(inst.getUuid()))) {
+                /* Fail now rather than on the timeout, this starts the next search */
+                Log.w(TAG, "startSearch(): search not started for UUID: " + inst.getUuid());
+                inst.setStatus(AbstractionLayer.BT_STATUS_FAIL);
+                sendSdpIntent(inst, null, false);
+                return;
+            }
         }
+        if(V) Log.v(TAG, "startSearch(): search slots taken or queue empty.");
     }
 
     /* Caller must hold the mTrackerLock */
@@ -443,25 +559,35 @@ public class SdpManager {
 
         inst.stopSearch();
 
+        if (record != null) inst.addRecord(record);
+        broadcastSdpRecord(inst.getDevice(), inst.getUuid(), inst.getStatus(), record);
+
+        if(moreResults == false) {
+            //Remove the outstanding UUID request
+            /* A timed out search ends without a record, it may have missed some */
+            if (record != null && inst.getStatus() == AbstractionLayer.BT_STATUS_SUCCESS) {
+                sRecordCache.put(inst.getDevice().getAddress(), inst.getUuid(),
+                        inst.getRecords());
+            }
+            sSdpSearchTracker.remove(inst);
+            startSearch();
+        }
+    }
+
+    private void broadcastSdpRecord(BluetoothDevice device, ParcelUuid uuid, int status,
+            Parcelable record) {
         Intent intent = new Intent(BluetoothDevice.ACTION_SDP_RECORD);
 
-        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, inst.getDevice());
-        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, inst.getStatus());
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        intent.putExtra(BluetoothDevice.EXTRA_SDP_SEARCH_STATUS, status);
         if (record != null)  intent.putExtra(BluetoothDevice.EXTRA_SDP_RECORD, record);
-        intent.putExtra(BluetoothDevice.EXTRA_UUID, inst.getUuid());
+        intent.putExtra(BluetoothDevice.EXTRA_UUID, uuid);
         /* TODO:  BLUETOOTH_ADMIN_PERM was private... change to callback interface.
          * Keep in mind that the MAP client needs to use this as well,
          * hence to make it call-backs, the MAP client profile needs to be
          * part of the Bluetooth APK. */
         intent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
         sAdapterService.sendBroadcast(intent, AdapterService.BLUETOOTH_ADMIN_PERM);
-
-        if(moreResults == false) {
-            //Remove the outstanding UUID request
-            sSdpSearchTracker.remove(inst);
-            mSearchInProgress = false;
-            startSearch();
-        }
     }
 
     private final Handler mHandler = new Handler() {
@@ -623,6 +749,14 @@ public class SdpManager {
         return sdpCreateSapsRecordNative(serviceName, rfcommChannel, version);
     }
 
+    public void dump(StringBuilder sb) {
+        ProfileService.println(sb, TAG + ":");
+        synchronized (mTrackerLock) {
+            sSdpSearchTracker.dump(sb);
+            sRecordCache.dump(sb);
+        }
+    }
+
      /**
       * Remove a SDP record.
       * When Bluetooth is disabled all records will be deleted, hence there
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sdp;
+
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import com.android.bluetooth.btservice.ProfileService;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SDP records found by successful searches, per device address and UUID.
+ *
+ * A search that is repeated within the time to live is answered from the cache instead of
+ * paging the device again, e.g. when a profile retries its connection. Records of a device are
+ * dropped when its bond is removed, as the device may come back with other records.
+ * A time to live of 0 disables the cache.
+ *
+ * Caller must hold the SdpManager tracker lock.
+ */
+class SdpRecordCache {
+    static final long DEFAULT_TTL_MS = 30000;
+
+    private static class CacheEntry {
+        final ArrayList<Parcelable> mRecords;
+        final long mTime;
+
+        CacheEntry(List<Parcelable> records, long time) {
+            mRecords = new ArrayList<Parcelable>(records);
+            mTime = time;
+        }
+    }
+
+    private final long mTtlMs;
+    private final HashMap<String, HashMap<ParcelUuid, CacheEntry>> mEntries =
+            new HashMap<String, HashMap<ParcelUuid, CacheEntry>>();
+
+    /* totals, for dump */
+    private int mHits;
+    private int mMisses;
+    private int mInvalidations;
+
+    SdpRecordCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    boolean isEnabled() {
+        return mTtlMs > 0;
+    }
+
+    /* Returns the records of |uuid| on |address|, or null if they are not cached or expired */
+    List<Parcelable> get(String address, ParcelUuid uuid) {
+        if (!isEnabled()) return null;
+        HashMap<ParcelUuid, CacheEntry> device = mEntries.get(address);
+        CacheEntry entry = (device != null) ? device.get(uuid) : null;
+        if (entry != null && SystemClock.elapsedRealtime() - entry.mTime >= mTtlMs) {
+            device.remove(uuid);
+            if (device.isEmpty()) mEntries.remove(address);
+            entry = null;
+        }
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mRecords;
+    }
+
+    void put(String address, ParcelUuid uuid, List<Parcelable> records) {
+        if (!isEnabled() || records.isEmpty()) return;
+        HashMap<ParcelUuid, CacheEntry> device = mEntries.get(address);
+        if (device == null) {
+            device = new HashMap<ParcelUuid, CacheEntry>();
+            mEntries.put(address, device);
+        }
+        device.put(uuid, new CacheEntry(records, SystemClock.elapsedRealtime()));
+    }
+
+    /* Drops all the records of |address| */
+    void invalidate(String address) {
+        if (mEntries.remove(address) != null) {
+            mInvalidations++;
+        }
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+
+    void dump(StringBuilder sb) {
+        ProfileService.println(sb, "  record cache: ttl " + mTtlMs + "ms, " + mEntries.size()
+                + " devices, " + mHits + " hits, " + mMisses + " misses, " + mInvalidations
+                + " invalidations");
+        long now = SystemClock.elapsedRealtime();
+        for (String address : mEntries.keySet()) {
+            for (Map.Entry<ParcelUuid, CacheEntry> entry : mEntries.get(address).entrySet()) {
+                ProfileService.println(sb, "    " + address + " " + entry.getKey() + ": "
+                        + entry.getValue().mRecords.size() + " records, age "
+                        + (now - entry.getValue().mTime) + "ms");
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helpers shared by the Bluetooth tests.
+ */
+public class TestUtils {
+    private static final String TEST_PACKAGE_NAME = "com.android.bluetooth.tests";
+
+    private TestUtils() {}
+
+    /**
+     * Reads |in| to its end and closes it
+     */
+    public static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the content of raw resource |id| of the test package
+     */
+    public static byte[] readRawResource(Context context, int id)
+            throws IOException, PackageManager.NameNotFoundException {
+        Resources testResources =
+                context.getPackageManager().getResourcesForApplication(TEST_PACKAGE_NAME);
+        return readAll(testResources.openRawResource(id));
+    }
+}
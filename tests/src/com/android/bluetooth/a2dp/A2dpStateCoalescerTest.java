@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.a2dp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothProfile;
+import android.test.AndroidTestCase;
+
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class A2dpStateCoalescerTest extends AndroidTestCase {
+    private BluetoothDevice mDevice;
+    private BluetoothDevice mOtherDevice;
+    private A2dpStateCoalescer mCoalescer;
+
+    @Before
+    public void setUp() {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevice = adapter.getRemoteDevice("00:01:02:03:04:05");
+        mOtherDevice = adapter.getRemoteDevice("00:01:02:03:04:06");
+        mCoalescer = new A2dpStateCoalescer("test");
+    }
+
+    // CONNECTING then CONNECTED within the delay goes out as one transition.
+    @Test
+    public void testTransitionsAreMerged() {
+        assertTrue(mCoalescer.offer(mDevice, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING, 100));
+        assertFalse(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 200));
+
+        // The later due time is kept
+        A2dpStateCoalescer.Transition transition = mCoalescer.poll(mDevice, 100);
+        assertEquals(200, transition.mDueTime);
+        transition = mCoalescer.poll(mDevice, 200);
+        assertEquals(BluetoothProfile.STATE_DISCONNECTED, transition.mPrevState);
+        assertEquals(BluetoothProfile.STATE_CONNECTED, transition.mState);
+        assertNull(mCoalescer.poll(mDevice, 200));
+    }
+
+    // A transition back to where the waiting one started cancels it.
+    @Test
+    public void testRoundTripIsCancelled() {
+        assertTrue(mCoalescer.offer(mDevice, BluetoothProfile.STATE_DISCONNECTED,
+                BluetoothProfile.STATE_CONNECTING, 0));
+        assertFalse(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_DISCONNECTED, 0));
+        assertNull(mCoalescer.poll(mDevice, 0));
+    }
+
+    // The last announced state of a device is not announced again.
+    @Test
+    public void testRepeatedStateIsDropped() {
+        assertTrue(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 0));
+        assertNotNull(mCoalescer.poll(mDevice, 0));
+        assertFalse(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 0));
+        assertTrue(mCoalescer.offer(mOtherDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 0));
+    }
+
+    // clear() hands back what was waiting and forgets the announced states.
+    @Test
+    public void testClear() {
+        assertTrue(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 0));
+        assertNotNull(mCoalescer.poll(mDevice, 0));
+        assertTrue(mCoalescer.offer(mOtherDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_DISCONNECTED, 100));
+
+        Map<BluetoothDevice, A2dpStateCoalescer.Transition> waiting = mCoalescer.clear();
+        assertEquals(1, waiting.size());
+        assertEquals(BluetoothProfile.STATE_DISCONNECTED, waiting.get(mOtherDevice).mState);
+        assertNull(mCoalescer.poll(mOtherDevice, 100));
+
+        // CONNECTED is announced again after clear()
+        assertTrue(mCoalescer.offer(mDevice, BluetoothProfile.STATE_CONNECTING,
+                BluetoothProfile.STATE_CONNECTED, 0));
+        assertTrue(mCoalescer.clear().containsKey(mDevice));
+        assertTrue(mCoalescer.clear().isEmpty());
+    }
+}
@@ -0,0 +1,101 @@
+package com.android.bluetooth.avrcp;
+
+import android.test.AndroidTestCase;
+
+/** Unit tests for {@link PlayPositionScheduler}, driven by a fake clock. */
+public class PlayPositionSchedulerTest extends AndroidTestCase {
+    private static class FakeClock implements PlayPositionScheduler.Clock {
+        long mNow = 10000L;
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+    }
+
+    private FakeClock mClock;
+    private PlayPositionScheduler mScheduler;
+
+    @Override
+    protected void setUp() throws Exception {
+        mClock = new FakeClock();
+        mScheduler = new PlayPositionScheduler(2, mClock);
+    }
+
+    public void testIdleWhenNotPlaying() {
+        mScheduler.update(0, true, false, 0f, 5000L, mClock.mNow, 1000L);
+        mScheduler.update(1, true, false, 1.0f, 5000L, mClock.mNow, 1000L);
+
+        assertEquals(PlayPositionScheduler.NO_WAKEUP, mScheduler.getNextWakeupMs());
+    }
+
+    public void testIdleWhenNotRegistered() {
+        mScheduler.update(0, false, true, 1.0f, 5000L, mClock.mNow, 1000L);
+
+        assertEquals(PlayPositionScheduler.NO_WAKEUP, mScheduler.getNextWakeupMs());
+    }
+
+    public void testDeadlineFollowsInterval() {
+        mScheduler.update(0, true, true, 1.0f, 5000L, mClock.mNow, 2000L);
+        mScheduler.onPositionReported(0, 5000L);
+
+        assertEquals(mClock.mNow + 2000L, mScheduler.getNextWakeupMs());
+        assertFalse(mScheduler.isDue(0, mClock.mNow + 1999L));
+        assertTrue(mScheduler.isDue(0, mClock.mNow + 2000L));
+    }
+
+    public void testDeadlineScalesWithSpeed() {
+        mScheduler.update(0, true, true, 2.0f, 5000L, mClock.mNow, 2000L);
+        mScheduler.onPositionReported(0, 5000L);
+
+        assertEquals(mClock.mNow + 1000L, mScheduler.getNextWakeupMs());
+    }
+
+    public void testRewindUsesPreviousWindow() {
+        mScheduler.update(0, true, true, -4.0f, 5000L, mClock.mNow, 2000L);
+        mScheduler.onPositionReported(0, 5000L);
+
+        assertEquals(mClock.mNow + 500L, mScheduler.getNextWakeupMs());
+    }
+
+    public void testEarliestDeadlineAcrossSlots() {
+        mScheduler.update(0, true, true, 1.0f, 0L, mClock.mNow, 3000L);
+        mScheduler.onPositionReported(0, 0L);
+        mScheduler.update(1, true, true, 1.0f, 0L, mClock.mNow, 1000L);
+        mScheduler.onPositionReported(1, 0L);
+
+        assertEquals(mClock.mNow + 1000L, mScheduler.getNextWakeupMs());
+
+        mClock.mNow += 1000L;
+        assertFalse(mScheduler.isDue(0, mClock.mNow));
+        assertTrue(mScheduler.isDue(1, mClock.mNow));
+    }
+
+    public void testDeadlineFromStalePositionIsDueImmediately() {
+        // Position was reported 5s ago, the window of 1s has long been left
+        long past = mClock.mNow - 5000L;
+        mScheduler.update(0, true, true, 1.0f, 0L, past, 1000L);
+        mScheduler.onPositionReported(0, 0L);
+
+        assertTrue(mScheduler.isDue(0, mClock.mNow));
+    }
+
+    public void testWakeupCounters() {
+        mScheduler.update(0, true, true, 1.0f, 0L, mClock.mNow, 1000L);
+        mScheduler.onPositionReported(0, 0L);
+
+        mScheduler.onWakeup(mClock.mNow + 500L);
+        mScheduler.onWakeup(mClock.mNow + 1000L);
+
+        assertEquals(2L, mScheduler.getWakeupCount());
+        assertEquals(1L, mScheduler.getIdleWakeupCount());
+        assertEquals(1L, mScheduler.getReportedCount(0));
+    }
+
+    public void testClearDropsDeadline() {
+        mScheduler.update(0, true, true, 1.0f, 0L, mClock.mNow, 1000L);
+        mScheduler.clear(0);
+
+        assertEquals(PlayPositionScheduler.NO_WAKEUP, mScheduler.getNextWakeupMs());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.avrcpcontroller;
+
+import android.media.MediaDescription;
+import android.media.browse.MediaBrowser.MediaItem;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class BrowsePageCacheTest extends AndroidTestCase {
+    private static final int PAGE_SIZE = 5;
+    private static final int MAX_PAGES = 3;
+    private static final String FOLDER = "F001";
+    private static final String OTHER_FOLDER = "F002";
+
+    private BrowsePageCache mCache;
+
+    @Before
+    public void setUp() {
+        mCache = new BrowsePageCache(PAGE_SIZE, MAX_PAGES);
+    }
+
+    private static List<MediaItem> items(int start, int count) {
+        ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+        for (int i = start; i < start + count; i++) {
+            MediaDescription description =
+                    new MediaDescription.Builder().setMediaId("item" + i).build();
+            items.add(new MediaItem(description, MediaItem.FLAG_PLAYABLE));
+        }
+        return items;
+    }
+
+    @Test
+    public void testPages() {
+        assertNull(mCache.get(FOLDER, 0));
+        mCache.put(FOLDER, 0, items(0, PAGE_SIZE), false);
+        List<MediaItem> page = mCache.get(FOLDER, 0);
+        assertEquals(PAGE_SIZE, page.size());
+        assertEquals("item0", page.get(0).getMediaId());
+        assertNull(mCache.get(FOLDER, 1));
+        assertNull(mCache.get(OTHER_FOLDER, 0));
+
+        // A page never holds more than the page size
+        mCache.put(FOLDER, 5, items(5, PAGE_SIZE + 2), true);
+        assertEquals(PAGE_SIZE, mCache.peekSize(FOLDER, 5));
+    }
+
+    // The least recently used page goes first.
+    @Test
+    public void testLruEviction() {
+        mCache.put(FOLDER, 0, items(0, PAGE_SIZE), false);
+        mCache.put(FOLDER, 5, items(5, PAGE_SIZE), false);
+        mCache.put(FOLDER, 10, items(10, PAGE_SIZE), false);
+        assertNotNull(mCache.get(FOLDER, 0));
+
+        mCache.put(FOLDER, 15, items(15, PAGE_SIZE), false);
+        assertNotNull(mCache.get(FOLDER, 0));
+        assertNull(mCache.get(FOLDER, 5));
+        assertNotNull(mCache.get(FOLDER, 10));
+        assertNotNull(mCache.get(FOLDER, 15));
+    }
+
+    // No items, or out of range, mark the end of the folder.
+    @Test
+    public void testEndOfFolder() {
+        mCache.put(FOLDER, 0, items(0, 3), false);
+        assertFalse(mCache.isPastEnd(FOLDER, 3));
+        mCache.put(FOLDER, 3, items(0, 0), true);
+        assertFalse(mCache.isPastEnd(FOLDER, 2));
+        assertTrue(mCache.isPastEnd(FOLDER, 3));
+        assertTrue(mCache.isPastEnd(FOLDER, 10));
+        assertEquals(0, mCache.peekSize(FOLDER, 3));
+
+        mCache.setEnd(OTHER_FOLDER, 7);
+        assertFalse(mCache.isPastEnd(OTHER_FOLDER, 6));
+        assertTrue(mCache.isPastEnd(OTHER_FOLDER, 7));
+    }
+
+    @Test
+    public void testInvalidation() {
+        String nowPlaying = BrowseTree.NOW_PLAYING_PREFIX + ":1";
+        mCache.put(FOLDER, 0, items(0, PAGE_SIZE), false);
+        mCache.put(OTHER_FOLDER, 0, items(0, 2), false);
+        mCache.setEnd(OTHER_FOLDER, 2);
+        mCache.put(nowPlaying, 0, items(0, 1), false);
+
+        mCache.invalidate(OTHER_FOLDER);
+        assertNull(mCache.get(OTHER_FOLDER, 0));
+        assertFalse(mCache.isPastEnd(OTHER_FOLDER, 2));
+        assertNotNull(mCache.get(FOLDER, 0));
+
+        mCache.invalidatePrefix(BrowseTree.NOW_PLAYING_PREFIX);
+        assertNull(mCache.get(nowPlaying, 0));
+        assertNotNull(mCache.get(FOLDER, 0));
+
+        mCache.setEnd(FOLDER, 5);
+        mCache.invalidateAll();
+        assertNull(mCache.get(FOLDER, 0));
+        assertFalse(mCache.isPastEnd(FOLDER, 5));
+    }
+}
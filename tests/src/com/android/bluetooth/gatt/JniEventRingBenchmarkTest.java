@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Benchmarks the Java side of a scan result callback: building an address string and an
+ * advertising data array for every result, as the JNI does for the old callback, against
+ * decoding the result from the event ring.
+ */
+public class JniEventRingBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "JniEventRingBenchmarkTest";
+
+    private static final int DEVICES = 32;
+    private static final int WARMUP_RESULTS = 20000;
+    private static final int RESULTS = 100000;
+    private static final int ADV_DATA_LEN = 31;
+
+    private long[] mAddresses;
+    private byte[] mAdvData;
+    private JniEventRing mRing;
+
+    /* keeps the results alive, so nothing is optimized away */
+    private int mSink;
+
+    @Before
+    public void setUp() throws Exception {
+        mAddresses = new long[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            mAddresses[i] = 0x001122330000L + i;
+        }
+        mAdvData = new byte[ADV_DATA_LEN];
+        for (int i = 0; i < ADV_DATA_LEN; i++) {
+            mAdvData[i] = (byte) i;
+        }
+        mRing = new JniEventRing();
+    }
+
+    /* Receives a decoded scan result, like GattService.onScanResult */
+    private void onScanResult(int eventType, int addressType, String address, int primaryPhy,
+            int secondaryPhy, int advertisingSid, int txPower, int rssi, int periodicAdvInt,
+            byte[] advData) {
+        mSink += address.length() + advData.length + rssi;
+    }
+
+    /* What the old callback costs on the Java heap: a new string and a new array per result */
+    private long runPerResultObjects(int results) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < results; r++) {
+            String address = JniEventRing.addressToString(mAddresses[r % DEVICES]);
+            byte[] advData = Arrays.copyOf(mAdvData, mAdvData.length);
+            onScanResult(0x1b, 0, address, 1, 0, 0xff, 127, -60, 0, advData);
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    /* The ring: the JNI writes the record, Java decodes it at the offset it is called with */
+    private long runRing(int results) {
+        int offset = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < results; r++) {
+            offset = mRing.putScanResult(offset, 0x1b, 0, mAddresses[r % DEVICES], 1, 0, 0xff,
+                    127, -60, 0, mAdvData);
+            String address = mRing.getAddressString(mRing.getAddress(offset));
+            onScanResult(mRing.getScanEventType(offset), mRing.getScanAddressType(offset),
+                    address, mRing.getScanPrimaryPhy(offset), mRing.getScanSecondaryPhy(offset),
+                    mRing.getScanAdvertisingSid(offset), mRing.getScanTxPower(offset),
+                    mRing.getScanRssi(offset), mRing.getScanPeriodicAdvInt(offset),
+                    mRing.getScanData(offset));
+            offset += (JniEventRing.HEADER_LEN + ADV_DATA_LEN + 7) & ~7;
+        }
+        return SystemClock.elapsedRealtimeNanos() - start;
+    }
+
+    @Test
+    public void testPerEventCost() {
+        runPerResultObjects(WARMUP_RESULTS);
+        runRing(WARMUP_RESULTS);
+
+        long before = runPerResultObjects(RESULTS);
+        long after = runRing(RESULTS);
+
+        assertTrue(mSink != 0);
+        Log.i(TAG, RESULTS + " results from " + DEVICES + " devices: per result "
+                + (before / RESULTS) + "ns with new objects, " + (after / RESULTS)
+                + "ns through the ring");
+    }
+
+    @Test
+    public void testScanResultRecord() {
+        long address = JniEventRing.stringToAddress("C0:11:22:33:44:F5");
+        assertEquals(0xC011223344F5L, address);
+        assertEquals("C0:11:22:33:44:F5", JniEventRing.addressToString(address));
+
+        int offset = mRing.putScanResult(0, 0x13, 1, address, 1, 3, 0x0a, -7, -90, 0x120,
+                mAdvData);
+        assertEquals(address, mRing.getAddress(offset));
+        assertSame(mRing.getAddressString(address), mRing.getAddressString(address));
+        assertEquals(0x13, mRing.getScanEventType(offset));
+        assertEquals(1, mRing.getScanAddressType(offset));
+        assertEquals(1, mRing.getScanPrimaryPhy(offset));
+        assertEquals(3, mRing.getScanSecondaryPhy(offset));
+        assertEquals(0x0a, mRing.getScanAdvertisingSid(offset));
+        assertEquals(-7, mRing.getScanTxPower(offset));
+        assertEquals(-90, mRing.getScanRssi(offset));
+        assertEquals(0x120, mRing.getScanPeriodicAdvInt(offset));
+        assertTrue(Arrays.equals(mAdvData, mRing.getScanData(offset)));
+
+        // A record that does not fit at the end of the ring wraps to the start.
+        assertEquals(0, mRing.putScanResult(JniEventRing.SIZE - 8, 0x13, 1, address, 1, 3,
+                0x0a, -7, -90, 0x120, mAdvData));
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.IBluetoothGattCallback;
+import android.test.AndroidTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class NotifyRouterTest extends AndroidTestCase {
+    private static final int CONN_ID = 3;
+
+    private NotifyRouter mRouter;
+
+    @Mock IBluetoothGattCallback mockCallback;
+
+    @Before
+    public void setUp() {
+        mRouter = new NotifyRouter();
+    }
+
+    private NotifyRouter.Route put(int connId, int handle) {
+        return mRouter.put(connId, handle, mockCallback, true, mRouter.getGeneration());
+    }
+
+    @Test
+    public void testRouteIsKeptUntilInvalidated() throws Exception {
+        assertNull(mRouter.get(CONN_ID, 0x10));
+        NotifyRouter.Route route = put(CONN_ID, 0x10);
+        assertSame(route, mRouter.get(CONN_ID, 0x10));
+        assertNull(mRouter.get(CONN_ID, 0x11));
+        assertNull(mRouter.get(CONN_ID + 1, 0x10));
+
+        mRouter.invalidate(CONN_ID + 1);
+        assertSame(route, mRouter.get(CONN_ID, 0x10));
+        mRouter.invalidate(CONN_ID);
+        assertNull(mRouter.get(CONN_ID, 0x10));
+    }
+
+    @Test
+    public void testRouteResolvedBeforeInvalidationIsNotKept() throws Exception {
+        int generation = mRouter.getGeneration();
+        // The client goes away while the route is being resolved.
+        mRouter.invalidateAll();
+        NotifyRouter.Route route =
+                mRouter.put(CONN_ID, 0x10, mockCallback, false, generation);
+        assertSame(mockCallback, route.callback);
+        assertFalse(route.permitted);
+        assertNull(mRouter.get(CONN_ID, 0x10));
+
+        route = put(CONN_ID, 0x10);
+        assertSame(route, mRouter.get(CONN_ID, 0x10));
+    }
+}
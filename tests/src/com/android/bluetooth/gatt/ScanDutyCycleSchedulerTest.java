@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.le.ScanSettings;
+import android.test.AndroidTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ScanDutyCycleSchedulerTest extends AndroidTestCase {
+    private static final long HOLD_MS = 5000;
+
+    private ScanDutyCycleScheduler mScheduler;
+    private List<ScanClient> mClients;
+
+    @Before
+    public void setUp() throws Exception {
+        mScheduler = new ScanDutyCycleScheduler(HOLD_MS);
+        mClients = new ArrayList<ScanClient>();
+    }
+
+    private ScanClient newClient(int scannerId, int scanMode) {
+        ScanClient client = new ScanClient(scannerId,
+                new ScanSettings.Builder().setScanMode(scanMode).build(), null);
+        client.stats = new AppScanStats("app" + scannerId, null, null, null);
+        return client;
+    }
+
+    /* What ScanManager does on each change of the clients */
+    private int configure(long now) {
+        mScheduler.account(mClients, now);
+        int mode = mScheduler.schedule(mClients, now);
+        if (mode == ScanSettings.SCAN_MODE_LOW_LATENCY) {
+            mScheduler.onProgrammed(mode, 5000, 5000);
+        } else if (mode == ScanSettings.SCAN_MODE_BALANCED) {
+            mScheduler.onProgrammed(mode, 2000, 5000);
+        } else if (mode == ScanSettings.SCAN_MODE_LOW_POWER) {
+            mScheduler.onProgrammed(mode, 500, 5000);
+        }
+        return mode;
+    }
+
+    @Test
+    public void testUpgradeIsImmediateDowngradeIsHeld() {
+        mClients.add(newClient(1, ScanSettings.SCAN_MODE_LOW_POWER));
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, configure(1000));
+
+        ScanClient lowLatency = newClient(2, ScanSettings.SCAN_MODE_LOW_LATENCY);
+        mClients.add(lowLatency);
+        assertEquals(ScanSettings.SCAN_MODE_LOW_LATENCY, configure(2000));
+
+        // The low latency client goes and comes back within the hold time: no reprogramming.
+        mClients.remove(lowLatency);
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(3000));
+        assertEquals(HOLD_MS, mScheduler.getDowngradeDelayMs(3000));
+        mClients.add(lowLatency);
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(4000));
+        assertEquals(0, mScheduler.getDowngradeDelayMs(4000));
+
+        // Gone for good: the downgrade is programmed once the hold time passed.
+        mClients.remove(lowLatency);
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(5000));
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, configure(5000 + HOLD_MS));
+    }
+
+    @Test
+    public void testSameParametersAreNotProgrammedAgain() {
+        ScanClient client = newClient(1, ScanSettings.SCAN_MODE_BALANCED);
+        mClients.add(client);
+        assertEquals(ScanSettings.SCAN_MODE_BALANCED, configure(1000));
+        mClients.add(newClient(2, ScanSettings.SCAN_MODE_BALANCED));
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(2000));
+
+        // All stop, and one starts again with the same mode.
+        mClients.clear();
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(3000));
+        mClients.add(client);
+        assertEquals(ScanDutyCycleScheduler.NO_CHANGE, configure(4000));
+
+        // A lower mode after an idle period is not held back.
+        mClients.clear();
+        configure(5000);
+        mClients.add(newClient(3, ScanSettings.SCAN_MODE_LOW_POWER));
+        assertEquals(ScanSettings.SCAN_MODE_LOW_POWER, configure(6000));
+    }
+
+    @Test
+    public void testDutyAccounting() {
+        ScanClient balanced = newClient(1, ScanSettings.SCAN_MODE_BALANCED);
+        ScanClient lowPower = newClient(2, ScanSettings.SCAN_MODE_LOW_POWER);
+        ScanClient opportunistic = newClient(3, ScanSettings.SCAN_MODE_OPPORTUNISTIC);
+        mClients.add(balanced);
+        mClients.add(lowPower);
+        mClients.add(opportunistic);
+        configure(1000);
+
+        mClients.clear();
+        configure(11000);
+
+        // 10s at a 40% duty cycle, shared by the two clients that are not opportunistic.
+        assertEquals(10000, balanced.stats.dutyScanTime);
+        assertEquals(4000, balanced.stats.dutyRadioOnTime);
+        assertEquals(2000, balanced.stats.dutyPowerShareTime);
+        assertEquals(4000, lowPower.stats.dutyRadioOnTime);
+        assertEquals(2000, lowPower.stats.dutyPowerShareTime);
+        assertEquals(4000, opportunistic.stats.dutyRadioOnTime);
+        assertEquals(0, opportunistic.stats.dutyPowerShareTime);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.app.AppOpsManager;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.R;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmarks the scan result permission check of GattService: reading the strict location check
+ * and the location mode for every client on every result, as it was done before, against the
+ * outcome ScanPermissionState keeps in each client.
+ */
+public class ScanPermissionBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "ScanPermissionBenchmarkTest";
+
+    private static final int CLIENTS = 8;
+    private static final int RESULTS = 500;
+
+    private ScanPermissionState mState;
+    private ScanClient[] mClients;
+
+    @Before
+    public void setUp() throws Exception {
+        mState = new ScanPermissionState(mContext, mContext.getSystemService(AppOpsManager.class),
+                Looper.getMainLooper(), null);
+        mState.start();
+        mClients = new ScanClient[CLIENTS];
+        for (int i = 0; i < CLIENTS; i++) {
+            mClients[i] = new ScanClient(i);
+            mClients[i].hasLocationPermission = (i % 2 == 0);
+            mClients[i].hasPeersMacAddressPermission = (i % 4 == 1);
+            mClients[i].legacyForegroundApp = (i % 8 == 7);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mState.stop();
+        super.tearDown();
+    }
+
+    /* The check GattService made for every client on every result */
+    private boolean hasScanResultPermissionPerResult(ScanClient client) {
+        final boolean requiresLocationEnabled =
+                mContext.getResources().getBoolean(R.bool.strict_location_check);
+        final boolean locationEnabledSetting = Settings.Secure.getInt(
+                mContext.getContentResolver(), Settings.Secure.LOCATION_MODE,
+                Settings.Secure.LOCATION_MODE_OFF) != Settings.Secure.LOCATION_MODE_OFF;
+        final boolean locationEnabled = !requiresLocationEnabled || locationEnabledSetting
+                || client.legacyForegroundApp;
+        return (client.hasPeersMacAddressPermission
+                || (client.hasLocationPermission && locationEnabled));
+    }
+
+    @Test
+    public void testPerResultOverhead() {
+        int permittedBefore = 0;
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int r = 0; r < RESULTS; r++) {
+            for (ScanClient client : mClients) {
+                if (hasScanResultPermissionPerResult(client)) permittedBefore++;
+            }
+        }
+        long before = SystemClock.elapsedRealtimeNanos() - start;
+
+        int permittedAfter = 0;
+        start = SystemClock.elapsedRealtimeNanos();
+        for (ScanClient client : mClients) {
+            mState.update(client);
+        }
+        for (int r = 0; r < RESULTS; r++) {
+            for (ScanClient client : mClients) {
+                if (client.scanResultPermitted) permittedAfter++;
+            }
+        }
+        long after = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(permittedBefore, permittedAfter);
+        Log.i(TAG, RESULTS + " results to " + CLIENTS + " clients: per result "
+                + (before / RESULTS) + "ns before, " + (after / RESULTS) + "ns with the snapshot");
+    }
+
+    @Test
+    public void testUpdate() {
+        ScanClient client = new ScanClient(0);
+        mState.update(client);
+        assertFalse(client.scanResultPermitted);
+
+        client.hasPeersMacAddressPermission = true;
+        client.locationOpAllowed = false;
+        mState.update(client);
+        assertTrue(client.scanResultPermitted);
+
+        client.hasPeersMacAddressPermission = false;
+        client.hasLocationPermission = true;
+        client.legacyForegroundApp = true;
+        mState.update(client);
+        assertFalse(client.scanResultPermitted);
+
+        client.locationOpAllowed = true;
+        mState.update(client);
+        assertTrue(client.scanResultPermitted);
+
+        client.legacyForegroundApp = false;
+        mState.update(client);
+        assertEquals(mState.isLocationEnabled(), client.scanResultPermitted);
+    }
+}
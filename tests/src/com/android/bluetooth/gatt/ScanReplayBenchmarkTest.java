@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.gatt;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.IScannerCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.content.Context;
+import android.os.Debug;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Replays advertisement streams into GattService.onScanResult and onBatchScanReports, with fake
+ * scan clients, and reports results per second, allocation per result and the p99 latency from
+ * the callback from the stack to the delivery to a client, as the number of clients grows.
+ *
+ * The stream is synthetic: legacy and extended advertisements from a fixed set of devices, with
+ * 16 and 128 bit service UUIDs and manufacturer data. A captured stream can be replayed by
+ * filling the same Advertisement records.
+ */
+public class ScanReplayBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "ScanReplayBenchmarkTest";
+
+    private static final int[] CLIENT_COUNTS = {1, 4, 16, 32};
+    private static final int DEVICES = 64;
+    private static final int ADVERTISEMENTS = 2000;
+    private static final int WARMUP_PASSES = 2;
+    private static final int BATCH_RECORDS = 50;
+
+    private static final int ET_LEGACY_CONNECTABLE_SCANNABLE = 0x13;
+    private static final int ET_EXTENDED_CONNECTABLE = 0x01;
+    private static final int PHY_LE_1M = 1;
+    private static final int PHY_LE_2M = 2;
+
+    private static final int[] SERVICE_UUIDS_16 = {
+            0x180D, 0x180F, 0x1809, 0x181A, 0x1812, 0x1816, 0xFE9F, 0xFEAA};
+    private static final int[] MANUFACTURER_IDS = {0x004C, 0x0006, 0x0075, 0x00E0};
+
+    /* One advertisement as the stack reports it */
+    static class Advertisement {
+        int eventType;
+        String address;
+        int primaryPhy;
+        int secondaryPhy;
+        int advertisingSid;
+        int txPower;
+        int rssi;
+        byte[] data;
+    }
+
+    /* Counts what a client got, and when */
+    private class FakeScannerCallback extends IScannerCallback.Stub {
+        int results;
+
+        @Override
+        public void onScannerRegistered(int status, int scannerId) {}
+
+        @Override
+        public void onScanResult(ScanResult scanResult) {
+            results++;
+            if (mLatencyCount < mLatencies.length) {
+                mLatencies[mLatencyCount++] = SystemClock.elapsedRealtimeNanos() - mDispatchStart;
+            }
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> batchResults) {
+            results += batchResults.size();
+        }
+
+        @Override
+        public void onFoundOrLost(boolean onFound, ScanResult scanResult) {}
+
+        @Override
+        public void onScanManagerErrorCallback(int errorCode) {}
+    }
+
+    /* A GattService that runs on the test context, without the stack */
+    private static class ReplayGattService extends GattService {
+        ReplayGattService(Context context) {
+            attachBaseContext(context);
+            mAdapter = BluetoothAdapter.getDefaultAdapter();
+        }
+    }
+
+    private ReplayGattService mService;
+    private ScanManager mScanManager;
+    private Advertisement[] mStream;
+    private List<FakeScannerCallback> mCallbacks = new ArrayList<FakeScannerCallback>();
+
+    private long mDispatchStart;
+    private long[] mLatencies;
+    private int mLatencyCount;
+
+    @Before
+    public void setUp() throws Exception {
+        mService = new ReplayGattService(mContext);
+        mScanManager = new ScanManager(mService);
+        mService.setScanManager(mScanManager);
+        mStream = makeStream(new Random(42), ADVERTISEMENTS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        removeClients();
+        mScanManager.cleanup();
+        super.tearDown();
+    }
+
+    private static void addStructure(ByteArrayOutputStream out, int type, byte[] value) {
+        out.write(value.length + 1);
+        out.write(type);
+        out.write(value, 0, value.length);
+    }
+
+    private static UUID uuid16(int uuid) {
+        return new UUID(0x0000000000001000L | ((long) uuid << 32), 0x800000805F9B34FBL);
+    }
+
+    private static Advertisement[] makeStream(Random random, int count) {
+        Advertisement[] stream = new Advertisement[count];
+        for (int i = 0; i < count; i++) {
+            Advertisement adv = new Advertisement();
+            int device = random.nextInt(DEVICES);
+            boolean legacy = (device % 2 == 0);
+            adv.address = String.format("C0:00:00:00:%02X:%02X", device >> 8, device & 0xFF);
+            adv.eventType = legacy ? ET_LEGACY_CONNECTABLE_SCANNABLE : ET_EXTENDED_CONNECTABLE;
+            adv.primaryPhy = PHY_LE_1M;
+            adv.secondaryPhy = legacy ? 0 : PHY_LE_2M;
+            adv.advertisingSid = legacy ? 0xFF : device % 16;
+            adv.txPower = 127;
+            adv.rssi = -40 - random.nextInt(60);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            addStructure(out, 0x01, new byte[] {0x06});
+            int uuids = 1 + random.nextInt(legacy ? 2 : 4);
+            byte[] uuidBytes = new byte[uuids * 2];
+            for (int u = 0; u < uuids; u++) {
+                int uuid = SERVICE_UUIDS_16[(device + u) % SERVICE_UUIDS_16.length];
+                uuidBytes[u * 2] = (byte) uuid;
+                uuidBytes[u * 2 + 1] = (byte) (uuid >> 8);
+            }
+            addStructure(out, 0x03, uuidBytes);
+            if (!legacy) {
+                byte[] uuid128 = new byte[16];
+                random.nextBytes(uuid128);
+                addStructure(out, 0x07, uuid128);
+            }
+            int manufacturerId = MANUFACTURER_IDS[device % MANUFACTURER_IDS.length];
+            byte[] manufacturerData = new byte[2 + (legacy ? 8 : 20 + random.nextInt(150))];
+            random.nextBytes(manufacturerData);
+            manufacturerData[0] = (byte) manufacturerId;
+            manufacturerData[1] = (byte) (manufacturerId >> 8);
+            addStructure(out, 0xFF, manufacturerData);
+            adv.data = out.toByteArray();
+            stream[i] = adv;
+        }
+        return stream;
+    }
+
+    /*
+     * Client kinds, by index: no filter, legacy only without filter, service UUID filter,
+     * manufacturer data filter on legacy scans, and the UUID list of the old API.
+     */
+    private void addClients(int count, boolean batch) {
+        for (int i = 0; i < count; i++) {
+            int scannerId = i + 1;
+            ScanSettings.Builder settings = new ScanSettings.Builder();
+            List<ScanFilter> filters = new ArrayList<ScanFilter>();
+            UUID[] uuids = new UUID[0];
+            switch (i % 5) {
+                case 1:
+                    settings.setLegacy(true);
+                    break;
+                case 2:
+                    filters.add(new ScanFilter.Builder().setServiceUuid(new ParcelUuid(
+                            uuid16(SERVICE_UUIDS_16[i % SERVICE_UUIDS_16.length]))).build());
+                    settings.setLegacy(false);
+                    break;
+                case 3:
+                    filters.add(new ScanFilter.Builder().setManufacturerData(
+                            MANUFACTURER_IDS[i % MANUFACTURER_IDS.length], new byte[0]).build());
+                    settings.setLegacy(true);
+                    break;
+                case 4:
+                    uuids = new UUID[] {uuid16(SERVICE_UUIDS_16[i % SERVICE_UUIDS_16.length])};
+                    settings.setLegacy(false);
+                    break;
+                default:
+                    settings.setLegacy(false);
+                    break;
+            }
+            if (batch) {
+                settings.setReportDelay(1000);
+                settings.setScanResultType(ScanSettings.SCAN_RESULT_TYPE_FULL);
+            }
+
+            ScanClient client = new ScanClient(scannerId, settings.build(), filters);
+            client.uuids = uuids;
+            client.scanResultPermitted = true;
+
+            FakeScannerCallback callback = new FakeScannerCallback();
+            UUID uuid = UUID.randomUUID();
+            mService.mScannerMap.add(uuid, null, callback, null, mService);
+            mService.mScannerMap.getByUuid(uuid).id = scannerId;
+            mCallbacks.add(callback);
+
+            if (batch) {
+                mScanManager.getBatchScanQueue().add(client);
+            } else {
+                mScanManager.getRegularScanQueue().add(client);
+            }
+        }
+    }
+
+    private void removeClients() {
+        mScanManager.getRegularScanQueue().clear();
+        mScanManager.getBatchScanQueue().clear();
+        mService.mScannerMap.clear();
+        mCallbacks.clear();
+    }
+
+    private void replay() {
+        for (Advertisement adv : mStream) {
+            mDispatchStart = SystemClock.elapsedRealtimeNanos();
+            mService.onScanResult(adv.eventType, 0, adv.address, adv.primaryPhy,
+                    adv.secondaryPhy, adv.advertisingSid, adv.txPower, adv.rssi, 0, adv.data);
+        }
+    }
+
+    private long p99(long[] samples, int count) {
+        if (count == 0) return 0;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[Math.min(count - 1, (int) (count * 0.99))];
+    }
+
+    @Test
+    public void testScanResultThroughput() {
+        for (int clients : CLIENT_COUNTS) {
+            addClients(clients, false);
+            mLatencies = new long[ADVERTISEMENTS * clients];
+            for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+                replay();
+            }
+            for (FakeScannerCallback callback : mCallbacks) {
+                callback.results = 0;
+            }
+            mLatencyCount = 0;
+
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = SystemClock.elapsedRealtimeNanos();
+            replay();
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            long allocated = Debug.getThreadAllocSize();
+
+            int delivered = 0;
+            for (FakeScannerCallback callback : mCallbacks) {
+                delivered += callback.results;
+            }
+            // The first client has no filter and takes extended advertisements.
+            assertEquals(ADVERTISEMENTS, mCallbacks.get(0).results);
+
+            Log.i(TAG, clients + " clients: " + (ADVERTISEMENTS * 1000000000L / elapsed)
+                    + " results/s, " + delivered + " delivered, "
+                    + (allocated / ADVERTISEMENTS) + " bytes allocated per result, p99 dispatch "
+                    + (p99(mLatencies, mLatencyCount) / 1000) + "us");
+            removeClients();
+        }
+    }
+
+    /* Full batch scan records, as the controller reports them */
+    private byte[] makeBatchRecord(int first, int count) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            Advertisement adv = mStream[(first + i) % mStream.length];
+            byte[] data = Arrays.copyOf(adv.data, Math.min(adv.data.length, 31));
+            byte[] address = new byte[6];
+            for (int b = 0; b < 6; b++) {
+                address[5 - b] = (byte) Integer.parseInt(
+                        adv.address.substring(b * 3, b * 3 + 2), 16);
+            }
+            out.write(address, 0, address.length);
+            out.write(0); // address type
+            out.write(adv.txPower);
+            out.write(adv.rssi);
+            out.write(i & 0xFF); // timestamp
+            out.write(0);
+            out.write(data.length);
+            out.write(data, 0, data.length);
+            out.write(0); // scan response length
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testBatchScanReportThroughput() throws Exception {
+        int reports = ADVERTISEMENTS / BATCH_RECORDS;
+        byte[][] records = new byte[reports][];
+        for (int r = 0; r < reports; r++) {
+            records[r] = makeBatchRecord(r * BATCH_RECORDS, BATCH_RECORDS);
+        }
+
+        for (int clients : CLIENT_COUNTS) {
+            addClients(clients, true);
+            mLatencies = new long[reports];
+            mLatencyCount = 0;
+            for (int r = 0; r < reports; r++) {
+                mService.onBatchScanReports(0, 1, ScanManager.SCAN_RESULT_TYPE_FULL,
+                        BATCH_RECORDS, records[r]);
+            }
+
+            Debug.resetThreadAllocSize();
+            Debug.startAllocCounting();
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int r = 0; r < reports; r++) {
+                long reportStart = SystemClock.elapsedRealtimeNanos();
+                mService.onBatchScanReports(0, 1, ScanManager.SCAN_RESULT_TYPE_FULL,
+                        BATCH_RECORDS, records[r]);
+                mLatencies[mLatencyCount++] = SystemClock.elapsedRealtimeNanos() - reportStart;
+            }
+            long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            Debug.stopAllocCounting();
+            long allocated = Debug.getThreadAllocSize();
+
+            assertTrue(mCallbacks.get(0).results > 0);
+            Log.i(TAG, clients + " batch clients: "
+                    + (reports * BATCH_RECORDS * 1000000000L / elapsed) + " results/s, "
+                    + (allocated / (reports * BATCH_RECORDS)) + " bytes allocated per result, "
+                    + "p99 report " + (p99(mLatencies, mLatencyCount) / 1000) + "us");
+            removeClients();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hdp;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHealth;
+import android.bluetooth.BluetoothHealthAppConfiguration;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.hdp.HealthService.HealthChannel;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Stress test for HealthChannelRegistry: a gateway with hundreds of channels spread over many
+ * devices and app configs, driven through the channel life cycle the HealthService handler
+ * goes through, with lookups running concurrently like they do from binder threads.
+ */
+public class HealthChannelRegistryTest extends AndroidTestCase {
+    private static final String TAG = "HealthChannelRegistryTest";
+
+    private static final int DEVICES = 64;
+    private static final int CONFIGS = 4;
+    private static final int CHANNELS_PER_DEVICE_CONFIG = 2;
+    private static final int CHANNELS = DEVICES * CONFIGS * CHANNELS_PER_DEVICE_CONFIG;
+    private static final int ROUNDS = 20;
+    private static final int READERS = 4;
+
+    private static final int[] ACTIVE_STATES = new int[] {
+            BluetoothHealth.STATE_CHANNEL_CONNECTING, BluetoothHealth.STATE_CHANNEL_CONNECTED};
+    private static final int[] TRANSIENT_STATES = new int[] {
+            BluetoothHealth.STATE_CHANNEL_CONNECTING,
+            BluetoothHealth.STATE_CHANNEL_DISCONNECTING};
+
+    private BluetoothDevice[] mDevices;
+    private BluetoothHealthAppConfiguration[] mConfigs;
+    private HealthChannelRegistry mRegistry;
+
+    @Before
+    public void setUp() throws Exception {
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        mDevices = new BluetoothDevice[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            mDevices[i] = adapter.getRemoteDevice(String.format("00:01:02:03:04:%02X", i));
+        }
+        mConfigs = new BluetoothHealthAppConfiguration[CONFIGS];
+        for (int i = 0; i < CONFIGS; i++) {
+            mConfigs[i] = new BluetoothHealthAppConfiguration("HealthApp" + i, 0x1000 + i);
+        }
+        mRegistry = new HealthChannelRegistry();
+    }
+
+    private ArrayList<HealthChannel> addChannels(int firstId) {
+        ArrayList<HealthChannel> channels = new ArrayList<HealthChannel>(CHANNELS);
+        int id = firstId;
+        for (int d = 0; d < DEVICES; d++) {
+            for (int c = 0; c < CONFIGS; c++) {
+                for (int n = 0; n < CHANNELS_PER_DEVICE_CONFIG; n++) {
+                    HealthChannel chan = new HealthChannel(mDevices[d], mConfigs[c],
+                            BluetoothHealth.CHANNEL_TYPE_RELIABLE);
+                    chan.mChannelId = id++;
+                    mRegistry.add(chan);
+                    channels.add(chan);
+                }
+            }
+        }
+        return channels;
+    }
+
+    @Test
+    public void testIndexes() {
+        ArrayList<HealthChannel> channels = addChannels(1);
+        assertEquals(CHANNELS, mRegistry.size());
+        for (HealthChannel chan : channels) {
+            assertSame(chan, mRegistry.findById(chan.mChannelId));
+        }
+        for (BluetoothDevice device : mDevices) {
+            assertEquals(CONFIGS * CHANNELS_PER_DEVICE_CONFIG, mRegistry.getChannelCount(device));
+            assertFalse(mRegistry.hasChannelInStates(device, ACTIVE_STATES));
+        }
+
+        // The newest channel of a device and config is the main one, then the one before it
+        HealthChannel last = channels.get(CHANNELS_PER_DEVICE_CONFIG - 1);
+        assertSame(last, mRegistry.findMainChannel(last.mDevice, last.mConfig));
+        assertTrue(mRegistry.remove(last));
+        assertFalse(mRegistry.remove(last));
+        assertSame(channels.get(CHANNELS_PER_DEVICE_CONFIG - 2),
+                mRegistry.findMainChannel(last.mDevice, last.mConfig));
+        assertNull(mRegistry.findById(last.mChannelId));
+
+        mRegistry.setState(channels.get(0), BluetoothHealth.STATE_CHANNEL_CONNECTING);
+        assertTrue(mRegistry.hasChannelInStates(mDevices[0], ACTIVE_STATES));
+        assertTrue(mRegistry.hasChannelInStates(mDevices[0], TRANSIENT_STATES));
+        mRegistry.setState(channels.get(0), BluetoothHealth.STATE_CHANNEL_CONNECTED);
+        assertFalse(mRegistry.hasChannelInStates(mDevices[0], TRANSIENT_STATES));
+        assertFalse(mRegistry.hasChannelInStates(mDevices[1], ACTIVE_STATES));
+
+        mRegistry.putAppConfig(7, mConfigs[1]);
+        assertSame(mConfigs[1], mRegistry.findAppConfig(7));
+        mRegistry.removeAppConfig(7);
+        assertNull(mRegistry.findAppConfig(7));
+    }
+
+    // Every channel connects, disconnects and is destroyed, ROUNDS times over, while readers
+    // keep looking channels up.
+    @Test
+    public void testChannelChurn() throws InterruptedException {
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger lookups = new AtomicInteger();
+        final boolean[] done = new boolean[1];
+        Thread[] readers = new Thread[READERS];
+        for (int i = 0; i < READERS; i++) {
+            final int reader = i;
+            readers[i] = new Thread("HealthChannelReader" + i) {
+                @Override
+                public void run() {
+                    int n = reader;
+                    while (true) {
+                        synchronized (done) {
+                            if (done[0]) break;
+                        }
+                        BluetoothDevice device = mDevices[n % DEVICES];
+                        BluetoothHealthAppConfiguration config = mConfigs[n % CONFIGS];
+                        HealthChannel chan = mRegistry.findMainChannel(device, config);
+                        if (chan != null && (!chan.mDevice.equals(device)
+                                || !chan.mConfig.equals(config))) {
+                            failures.incrementAndGet();
+                        }
+                        mRegistry.hasChannelInStates(device, ACTIVE_STATES);
+                        chan = mRegistry.findById(n % (CHANNELS * ROUNDS));
+                        if (chan != null && chan.mChannelId != n % (CHANNELS * ROUNDS)) {
+                            failures.incrementAndGet();
+                        }
+                        lookups.incrementAndGet();
+                        n += READERS;
+                    }
+                }
+            };
+            readers[i].start();
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int round = 0; round < ROUNDS; round++) {
+            ArrayList<HealthChannel> channels = addChannels(round * CHANNELS);
+            assertEquals(CHANNELS, mRegistry.size());
+            for (HealthChannel chan : channels) {
+                mRegistry.setState(chan, BluetoothHealth.STATE_CHANNEL_CONNECTING);
+            }
+            for (HealthChannel chan : channels) {
+                mRegistry.setState(chan, BluetoothHealth.STATE_CHANNEL_CONNECTED);
+            }
+            for (BluetoothDevice device : mDevices) {
+                assertTrue(mRegistry.hasChannelInStates(device, ACTIVE_STATES));
+                assertFalse(mRegistry.hasChannelInStates(device, TRANSIENT_STATES));
+            }
+            for (HealthChannel chan : channels) {
+                mRegistry.setState(chan, BluetoothHealth.STATE_CHANNEL_DISCONNECTING);
+            }
+            for (HealthChannel chan : channels) {
+                mRegistry.setState(chan, BluetoothHealth.STATE_CHANNEL_DISCONNECTED);
+                assertTrue(mRegistry.remove(chan));
+            }
+            assertEquals(0, mRegistry.size());
+            for (BluetoothDevice device : mDevices) {
+                assertEquals(0, mRegistry.getChannelCount(device));
+                assertFalse(mRegistry.hasChannelInStates(device, ACTIVE_STATES));
+            }
+        }
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        synchronized (done) {
+            done[0] = true;
+        }
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+        Log.i(TAG, ROUNDS + " rounds of " + CHANNELS + " channels in " + elapsed + "ms, "
+                + lookups.get() + " concurrent lookups");
+    }
+}
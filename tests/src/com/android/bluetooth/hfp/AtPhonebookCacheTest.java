@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hfp;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.UserManager;
+import android.provider.CallLog.Calls;
+import android.provider.ContactsContract;
+import android.telephony.PhoneNumberUtils;
+import android.test.AndroidTestCase;
+import android.test.mock.MockContentProvider;
+import android.test.mock.MockContentResolver;
+
+import com.android.bluetooth.R;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class AtPhonebookCacheTest extends AndroidTestCase {
+    private static final String UNKNOWN = "Unknown";
+
+    /* The contacts, as number, normalized number and name */
+    private static final String[][] CONTACTS = {
+            {"+15551230001", "+15551230001", "Alice"},
+            {"+15551230002", "+15551230002", "Bob"},
+    };
+
+    private CallLogProvider mCallLog;
+    private ContactsProvider mContacts;
+    private AtPhonebookCache mCache;
+
+    private static class CallLogProvider extends MockContentProvider {
+        final List<Object[]> mRows = new ArrayList<Object[]>();
+        int mQueries;
+
+        CallLogProvider(Context context) {
+            super(context);
+        }
+
+        void addCall(String number, int presentation) {
+            mRows.add(new Object[] {mRows.size() + 1, number, presentation, null, null});
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            mQueries++;
+            MatrixCursor cursor = new MatrixCursor(new String[] {Calls._ID, Calls.NUMBER,
+                    Calls.NUMBER_PRESENTATION, Calls.CACHED_NAME,
+                    Calls.CACHED_NORMALIZED_NUMBER});
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+    }
+
+    /* Answers the batched exact queries and the loose PhoneLookup queries */
+    private static class ContactsProvider extends MockContentProvider {
+        int mLookups;
+
+        ContactsProvider(Context context) {
+            super(context);
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            MatrixCursor cursor = new MatrixCursor(projection);
+            if (uri.getPathSegments().get(0).startsWith("phone_lookup")) {
+                mLookups++;
+                for (String[] contact : CONTACTS) {
+                    if (PhoneNumberUtils.compare(contact[0], uri.getLastPathSegment())) {
+                        cursor.addRow(new Object[] {contact[2]});
+                    }
+                }
+                return cursor;
+            }
+            List<String> args = Arrays.asList(selectionArgs);
+            for (String[] contact : CONTACTS) {
+                if (args.contains(contact[0]) || args.contains(contact[1])) {
+                    cursor.addRow(contact);
+                }
+            }
+            return cursor;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = mock(Context.class);
+        MockContentResolver resolver = new MockContentResolver();
+        mCallLog = new CallLogProvider(context);
+        mContacts = new ContactsProvider(context);
+        resolver.addProvider(Calls.AUTHORITY, mCallLog);
+        resolver.addProvider(ContactsContract.AUTHORITY, mContacts);
+        when(context.getContentResolver()).thenReturn(resolver);
+        when(context.getString(R.string.unknownNumber)).thenReturn(UNKNOWN);
+        when(context.getSystemService(Context.USER_SERVICE))
+                .thenReturn(mock(UserManager.class));
+        mCache = new AtPhonebookCache(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.cleanup();
+        super.tearDown();
+    }
+
+    private static String line(int index, String number, String name) {
+        return "+CPBR: " + index + ",\"" + number + "\","
+                + PhoneNumberUtils.toaFromString(number) + ",\"" + name + "\"\r\n\r\n";
+    }
+
+    @Test
+    public void testCallerIds() throws Exception {
+        mCallLog.addCall("+15551230001", Calls.PRESENTATION_ALLOWED);
+        // Formatted differently from the contact, only a loose match finds it.
+        mCallLog.addCall("(555) 123-0002", Calls.PRESENTATION_ALLOWED);
+        mCallLog.addCall("(555) 123-0002", Calls.PRESENTATION_ALLOWED);
+        mCallLog.addCall("+15559990000", Calls.PRESENTATION_ALLOWED);
+        mCallLog.addCall("+15551230001", Calls.PRESENTATION_RESTRICTED);
+
+        AtPhonebookCache.Snapshot snapshot = mCache.getSnapshot("MC");
+        assertEquals(5, snapshot.size());
+        assertEquals(line(1, "+15551230001", "Alice"), snapshot.getResponseLine(1, "UTF-8"));
+        assertEquals(line(2, "5551230002", "Bob"), snapshot.getResponseLine(2, "UTF-8"));
+        assertEquals(line(3, "5551230002", "Bob"), snapshot.getResponseLine(3, "UTF-8"));
+        assertEquals(line(4, "+15559990000", ""), snapshot.getResponseLine(4, "UTF-8"));
+        assertEquals("+CPBR: 5,\"\"," + PhoneNumberUtils.toaFromString("+15551230001") + ",\""
+                + UNKNOWN + "\"\r\n\r\n", snapshot.getResponseLine(5, "UTF-8"));
+        // One loose lookup per distinct number the batched query did not resolve.
+        assertEquals(2, mContacts.mLookups);
+    }
+
+    @Test
+    public void testSnapshotKeptUntilInvalidated() throws Exception {
+        mCallLog.addCall("+15551230001", Calls.PRESENTATION_ALLOWED);
+        AtPhonebookCache.Snapshot snapshot = mCache.getSnapshot("DC");
+        assertSame(snapshot, mCache.getSnapshot("DC"));
+        assertEquals(1, mCallLog.mQueries);
+
+        mCallLog.addCall("+15551230002", Calls.PRESENTATION_ALLOWED);
+        mCache.invalidate("DC");
+        snapshot = mCache.getSnapshot("DC");
+        assertEquals(2, mCallLog.mQueries);
+        assertEquals(2, snapshot.size());
+        assertEquals(line(2, "+15551230002", "Bob"), snapshot.getResponseLine(2, "UTF-8"));
+    }
+
+    @Test
+    public void testUnknownPhonebook() throws Exception {
+        assertFalse(AtPhonebookCache.isKnownPhonebook("XX"));
+        assertNull(mCache.getSnapshot("XX"));
+    }
+}
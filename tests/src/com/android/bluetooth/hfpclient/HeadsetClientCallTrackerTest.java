@@ -0,0 +1,122 @@
+package com.android.bluetooth.hfpclient;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothHeadsetClientCall;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HeadsetClientCallTrackerTest extends AndroidTestCase {
+    private static final long BASE_POLL_MILLIS = 2000;
+    private static final long MAX_POLL_MILLIS = 32000;
+
+    private BluetoothDevice mDevice;
+    private HeadsetClientCallTracker mTracker;
+    private List<BluetoothHeadsetClientCall> mChanged;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDevice = BluetoothAdapter.getDefaultAdapter().getRemoteDevice("00:01:02:03:04:05");
+        mChanged = new ArrayList<BluetoothHeadsetClientCall>();
+        mTracker = new HeadsetClientCallTracker(new HeadsetClientCallTracker.Callback() {
+            @Override
+            public void onCallChanged(BluetoothHeadsetClientCall call) {
+                mChanged.add(call);
+            }
+        }, BASE_POLL_MILLIS, MAX_POLL_MILLIS);
+    }
+
+    private BluetoothHeadsetClientCall addCall(int id, int state) {
+        BluetoothHeadsetClientCall c =
+            new BluetoothHeadsetClientCall(mDevice, id, state, "", false, false);
+        mTracker.getCalls().put(id, c);
+        mTracker.publish();
+        return c;
+    }
+
+    // Test that a new incoming call needs the call list, as its index is not known
+    public void testIncomingCallQueries() {
+        assertTrue(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLSETUP,
+            HeadsetClientHalConstants.CALLSETUP_INCOMING, null));
+        assertTrue(mChanged.isEmpty());
+    }
+
+    // Test that answering and ending the only call is tracked from the indicators alone
+    public void testAnswerAndHangUpFromIndicators() {
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLSETUP,
+            HeadsetClientHalConstants.CALLSETUP_INCOMING, null);
+        BluetoothHeadsetClientCall c =
+            addCall(1, BluetoothHeadsetClientCall.CALL_STATE_INCOMING);
+
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CLIP, 0, "5551234"));
+        assertEquals("5551234", c.getNumber());
+
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS, null));
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, c.getState());
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLSETUP,
+            HeadsetClientHalConstants.CALLSETUP_NONE, null));
+        assertTrue(mTracker.isConsistent());
+
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS, null));
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_TERMINATED, c.getState());
+        assertTrue(mTracker.getCalls().isEmpty());
+        assertEquals(3, mChanged.size());
+    }
+
+    // Test that holding and retrieving the only call is tracked from the indicators alone
+    public void testHoldAndRetrieveFromIndicators() {
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS, null);
+        BluetoothHeadsetClientCall c = addCall(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLHELD,
+            HeadsetClientHalConstants.CALLHELD_HOLD, null));
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_HELD, c.getState());
+
+        assertFalse(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLHELD,
+            HeadsetClientHalConstants.CALLHELD_NONE, null));
+        assertEquals(BluetoothHeadsetClientCall.CALL_STATE_ACTIVE, c.getState());
+    }
+
+    // Test that a swap between two calls needs the call list
+    public void testSwapQueries() {
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS, null);
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLHELD,
+            HeadsetClientHalConstants.CALLHELD_HOLD_AND_ACTIVE, null);
+        addCall(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+        addCall(2, BluetoothHeadsetClientCall.CALL_STATE_HELD);
+        assertTrue(mTracker.isConsistent());
+
+        assertTrue(mTracker.onIndicator(StackEvent.EVENT_TYPE_CALLHELD,
+            HeadsetClientHalConstants.CALLHELD_HOLD_AND_ACTIVE, null));
+        assertTrue(mChanged.isEmpty());
+    }
+
+    // Test that the poll interval doubles up to the max and stops without calls
+    public void testPollBackoff() {
+        assertEquals(-1, mTracker.nextPollDelay(false));
+
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_CALLS_IN_PROGRESS, null);
+        addCall(1, BluetoothHeadsetClientCall.CALL_STATE_ACTIVE);
+        assertEquals(2000, mTracker.nextPollDelay(false));
+        assertEquals(4000, mTracker.nextPollDelay(false));
+        assertEquals(8000, mTracker.nextPollDelay(false));
+        assertEquals(16000, mTracker.nextPollDelay(false));
+        assertEquals(32000, mTracker.nextPollDelay(false));
+        assertEquals(32000, mTracker.nextPollDelay(false));
+
+        // A change found by a poll starts over.
+        assertEquals(2000, mTracker.nextPollDelay(true));
+
+        mTracker.onIndicator(StackEvent.EVENT_TYPE_CALL,
+            HeadsetClientHalConstants.CALL_NO_CALLS_IN_PROGRESS, null);
+        assertEquals(-1, mTracker.nextPollDelay(false));
+        assertTrue(mTracker.getSnapshot().isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.hid;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class HidReportDescriptorTest extends AndroidTestCase {
+    /* Report 1: 3 buttons and padding, then relative X, Y and wheel of 8 bits each */
+    private static final int[] MOUSE = {
+            0x05, 0x01, 0x09, 0x02, 0xA1, 0x01, 0x85, 0x01, 0x09, 0x01, 0xA1, 0x00,
+            0x05, 0x09, 0x19, 0x01, 0x29, 0x03, 0x15, 0x00, 0x25, 0x01,
+            0x95, 0x03, 0x75, 0x01, 0x81, 0x02,
+            0x95, 0x01, 0x75, 0x05, 0x81, 0x01,
+            0x05, 0x01, 0x09, 0x30, 0x09, 0x31, 0x09, 0x38, 0x15, 0x81, 0x25, 0x7F,
+            0x75, 0x08, 0x95, 0x03, 0x81, 0x06,
+            0xC0, 0xC0,
+    };
+
+    /* Report 2: modifier bits, a reserved byte and 6 key codes, all absolute */
+    private static final int[] KEYBOARD = {
+            0x05, 0x01, 0x09, 0x06, 0xA1, 0x01, 0x85, 0x02,
+            0x05, 0x07, 0x19, 0xE0, 0x29, 0xE7, 0x15, 0x00, 0x25, 0x01,
+            0x75, 0x01, 0x95, 0x08, 0x81, 0x02,
+            0x95, 0x01, 0x75, 0x08, 0x81, 0x01,
+            0x95, 0x06, 0x75, 0x08, 0x15, 0x00, 0x25, 0x65, 0x19, 0x00, 0x29, 0x65, 0x81, 0x00,
+            0xC0,
+    };
+
+    private static byte[] bytes(int[]... parts) {
+        int length = 0;
+        for (int[] part : parts) length += part.length;
+        byte[] result = new byte[length];
+        int pos = 0;
+        for (int[] part : parts) {
+            for (int b : part) result[pos++] = (byte) b;
+        }
+        return result;
+    }
+
+    @Test
+    public void testReportIds() throws Exception {
+        HidReportDescriptor descriptor = HidReportDescriptor.parse(bytes(MOUSE, KEYBOARD));
+        assertNotNull(descriptor);
+
+        HidReportDescriptor.Layout mouse = descriptor.getLayout(1);
+        assertEquals(32, mouse.mBits);
+        assertTrue(mouse.hasRelative());
+        assertEquals(8, mouse.mRelative.get(0).mOffset);
+        assertEquals(3, mouse.mRelative.get(0).mCount);
+        assertTrue(mouse.mRelative.get(0).mSigned);
+
+        HidReportDescriptor.Layout keyboard = descriptor.getLayout(2);
+        assertEquals(64, keyboard.mBits);
+        assertFalse(keyboard.hasRelative());
+        assertNull(descriptor.merge(2, new byte[8], new byte[8]));
+
+        assertNull(descriptor.getLayout(3));
+    }
+
+    @Test
+    public void testMerge() throws Exception {
+        HidReportDescriptor descriptor = HidReportDescriptor.parse(bytes(MOUSE));
+        byte[] merged = descriptor.merge(1, new byte[] {1, 5, -3, 0}, new byte[] {1, 10, 2, 1});
+        assertTrue(Arrays.equals(new byte[] {1, 15, -1, 1}, merged));
+
+        // Buttons differ.
+        assertNull(descriptor.merge(1, new byte[] {1, 5, 0, 0}, new byte[] {0, 5, 0, 0}));
+        // The sum does not fit the field.
+        assertNull(descriptor.merge(1, new byte[] {0, 100, 0, 0}, new byte[] {0, 100, 0, 0}));
+        assertNull(descriptor.merge(1, new byte[] {0, 1, 0, 0}, new byte[] {0, 1, 0}));
+    }
+
+    @Test
+    public void testPushPop() throws Exception {
+        // 16 bit relative field inside Push/Pop, then an 8 bit one with the restored size.
+        HidReportDescriptor descriptor = HidReportDescriptor.parse(bytes(new int[] {
+                0x85, 0x01, 0x75, 0x08, 0x95, 0x01, 0x15, 0x81,
+                0xA4, 0x75, 0x10, 0x81, 0x06, 0xB4,
+                0x81, 0x06,
+        }));
+        assertEquals(24, descriptor.getLayout(1).mBits);
+        byte[] merged = descriptor.merge(1, new byte[] {1, 0, 1}, new byte[] {2, 0, 1});
+        assertTrue(Arrays.equals(new byte[] {3, 0, 2}, merged));
+    }
+
+    @Test
+    public void testLongItemSkipped() throws Exception {
+        HidReportDescriptor descriptor = HidReportDescriptor.parse(bytes(
+                new int[] {0xFE, 0x02, 0x10, 0xAA, 0xBB}, MOUSE));
+        assertNotNull(descriptor);
+        assertEquals(32, descriptor.getLayout(1).mBits);
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        assertNull(HidReportDescriptor.parse(null));
+        // Item cut off in its data.
+        byte[] mouse = bytes(MOUSE);
+        assertNull(HidReportDescriptor.parse(Arrays.copyOf(mouse, 7)));
+        // Long item cut off in its header and in its data.
+        assertNull(HidReportDescriptor.parse(bytes(new int[] {0x85, 0x01, 0xFE, 0x05})));
+        assertNull(HidReportDescriptor.parse(bytes(new int[] {0x85, 0x01, 0xFE, 0x05, 0x10, 0})));
+        // Pop without Push.
+        assertNull(HidReportDescriptor.parse(bytes(new int[] {0xB4})));
+        // Report Count of 0xFFFFFFFF.
+        assertNull(HidReportDescriptor.parse(bytes(new int[] {
+                0x85, 0x01, 0x75, 0x08, 0x97, 0xFF, 0xFF, 0xFF, 0xFF, 0x81, 0x06})));
+    }
+}
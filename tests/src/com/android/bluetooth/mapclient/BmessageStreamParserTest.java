@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.mapclient;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.TestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks BmessageStreamParser against BmessageParser on recorded bMessages, feeds it mutated
+ * copies of them, and compares the time both parsers take.
+ */
+public class BmessageStreamParserTest extends AndroidTestCase {
+    private static final String TAG = "BmessageStreamParserTest";
+
+    private static final int[] SAMPLES = {
+            com.android.bluetooth.tests.R.raw.bmessage_sms_inbox,
+            com.android.bluetooth.tests.R.raw.bmessage_email_multiline,
+            com.android.bluetooth.tests.R.raw.bmessage_char_length,
+            com.android.bluetooth.tests.R.raw.bmessage_nested_envelope,
+    };
+    /* Counts characters in LENGTH, which BmessageParser does not recover from */
+    private static final int CHAR_LENGTH_SAMPLE = 2;
+
+    private static final long FUZZ_SEED = 0x4d4150L;
+    private static final int FUZZ_ITERATIONS = 2000;
+    private static final int REPEAT = 2000;
+
+    private ArrayList<byte[]> mSamples = new ArrayList<byte[]>();
+    private File mSpillDir;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int id : SAMPLES) {
+            mSamples.add(TestUtils.readRawResource(mContext, id));
+        }
+        mSpillDir = new File(mContext.getCacheDir(), "bmsg_test");
+        deleteSpillDir();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteSpillDir();
+        super.tearDown();
+    }
+
+    // Both parsers agree on every recorded message.
+    @Test
+    public void testRecordedMessages() throws Exception {
+        for (int i = 0; i < mSamples.size(); i++) {
+            if (i == CHAR_LENGTH_SAMPLE) continue;
+            byte[] sample = mSamples.get(i);
+            Bmessage expected = parseWithStringParser(sample);
+            Bmessage actual = parse(sample, null, BmessageStreamParser.SPILL_THRESHOLD);
+            assertNotNull(expected);
+            assertSameMessage(expected, actual);
+        }
+    }
+
+    // LENGTH counted in characters rather than bytes still yields the whole body.
+    @Test
+    public void testCharacterLength() throws Exception {
+        Bmessage message = parse(mSamples.get(CHAR_LENGTH_SAMPLE), null,
+                BmessageStreamParser.SPILL_THRESHOLD);
+        assertEquals("Hej! Vi ses på fredag, glöm inte nyckeln.",
+                message.getBodyContent());
+    }
+
+    // Recipients are taken from the outermost envelope only.
+    @Test
+    public void testNestedEnvelope() throws Exception {
+        Bmessage message = parse(mSamples.get(3), null, BmessageStreamParser.SPILL_THRESHOLD);
+        assertEquals("Frank", message.getOriginator().getDisplayName());
+        assertEquals(2, message.getRecipients().size());
+        assertEquals("Grace", message.getRecipients().get(0).getDisplayName());
+        assertEquals("Heidi", message.getRecipients().get(1).getDisplayName());
+    }
+
+    // Bodies above the threshold go to a file and are read back from it.
+    @Test
+    public void testLargeBodySpilled() throws Exception {
+        String body = largeBody(256 * 1024);
+        Bmessage message = parse(buildSms(body), mSpillDir, BmessageStreamParser.SPILL_THRESHOLD);
+        File file = message.getBodyFile();
+        assertNotNull(file);
+        assertTrue(file.exists());
+        assertEquals(body.getBytes(StandardCharsets.UTF_8).length, file.length());
+        assertNull(message.getBodyContent());
+        assertEquals(body, new String(TestUtils.readAll(message.openBodyStream()),
+                StandardCharsets.UTF_8));
+        assertFalse(message.toString().contains(body));
+        message.deleteBodyFile();
+        assertFalse(file.exists());
+
+        Bmessage small = parse(mSamples.get(0), mSpillDir, BmessageStreamParser.SPILL_THRESHOLD);
+        assertNull(small.getBodyFile());
+    }
+
+    // Mutated messages are either parsed or rejected, and rejected ones leave no file behind.
+    @Test
+    public void testFuzz() {
+        Random random = new Random(FUZZ_SEED);
+        int parsed = 0;
+        int rejected = 0;
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] input = mutate(mSamples.get(random.nextInt(mSamples.size())), random);
+            try {
+                // A tiny threshold so that the spill path is fuzzed too
+                Bmessage message = parse(input, mSpillDir, 16);
+                TestUtils.readAll(message.openBodyStream());
+                message.deleteBodyFile();
+                parsed++;
+            } catch (IOException | ParseException e) {
+                rejected++;
+            }
+        }
+        String[] left = mSpillDir.list();
+        assertTrue(left == null || left.length == 0);
+        Log.i(TAG, "fuzz: " + parsed + " parsed, " + rejected + " rejected");
+    }
+
+    @Test
+    public void testThroughput() throws Exception {
+        ArrayList<byte[]> inputs = new ArrayList<byte[]>(mSamples);
+        inputs.remove(CHAR_LENGTH_SAMPLE);
+        inputs.add(buildSms(largeBody(64 * 1024)));
+        long bytes = 0;
+        for (byte[] input : inputs) {
+            bytes += input.length;
+        }
+        bytes *= REPEAT;
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REPEAT; i++) {
+            for (byte[] input : inputs) {
+                assertNotNull(parseWithStringParser(input));
+            }
+        }
+        long stringMs = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < REPEAT; i++) {
+            for (byte[] input : inputs) {
+                parse(input, null, BmessageStreamParser.SPILL_THRESHOLD);
+            }
+        }
+        long streamMs = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "throughput over " + bytes + " bytes: BmessageParser " + stringMs
+                + "ms, BmessageStreamParser " + streamMs + "ms");
+    }
+
+    private static Bmessage parse(byte[] input, File spillDir, int threshold)
+            throws IOException, ParseException {
+        return new BmessageStreamParser(new ByteArrayInputStream(input), spillDir, threshold)
+                .parse();
+    }
+
+    /* The previous RequestGetMessage path */
+    private static Bmessage parseWithStringParser(byte[] input) {
+        return BmessageParser.createBmessage(new String(input, StandardCharsets.UTF_8));
+    }
+
+    private static void assertSameMessage(Bmessage expected, Bmessage actual) {
+        assertEquals(expected.getType(), actual.getType());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.getFolder(), actual.getFolder());
+        assertEquals(expected.getEncoding(), actual.getEncoding());
+        assertEquals(expected.getCharset(), actual.getCharset());
+        assertEquals(expected.getBodyContent(), actual.getBodyContent());
+        assertEquals(expected.getOriginators().size(), actual.getOriginators().size());
+        assertEquals(expected.getRecipients().size(), actual.getRecipients().size());
+        for (int i = 0; i < expected.getOriginators().size(); i++) {
+            assertEquals(expected.getOriginators().get(i).getDisplayName(),
+                    actual.getOriginators().get(i).getDisplayName());
+        }
+        for (int i = 0; i < expected.getRecipients().size(); i++) {
+            assertEquals(expected.getRecipients().get(i).getDisplayName(),
+                    actual.getRecipients().get(i).getDisplayName());
+        }
+    }
+
+    private static byte[] mutate(byte[] sample, Random random) {
+        String text = new String(sample, StandardCharsets.UTF_8);
+        switch (random.nextInt(6)) {
+            case 0:
+                // truncated transfer
+                return Arrays.copyOf(sample, random.nextInt(sample.length));
+            case 1: {
+                byte[] out = sample.clone();
+                out[random.nextInt(out.length)] = (byte) random.nextInt(256);
+                return out;
+            }
+            case 2: {
+                int at = random.nextInt(text.length());
+                String noise = new String[] {"\r\n", ":", "\n", "BEGIN:VCARD\r\n", "é"}[
+                        random.nextInt(5)];
+                return (text.substring(0, at) + noise + text.substring(at))
+                        .getBytes(StandardCharsets.UTF_8);
+            }
+            case 3:
+            case 4: {
+                String[] lines = text.split("\r\n", -1);
+                int line = random.nextInt(lines.length);
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < lines.length; i++) {
+                    if (i == line && random.nextBoolean()) continue;
+                    sb.append(lines[i]);
+                    if (i < lines.length - 1) sb.append("\r\n");
+                    if (i == line) sb.append(lines[i]).append("\r\n");
+                }
+                return sb.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            default:
+                return text.replaceFirst("LENGTH:\\d+",
+                        "LENGTH:" + (random.nextInt(2 * sample.length) - 10))
+                        .getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String largeBody(int size) {
+        StringBuilder sb = new StringBuilder(size);
+        while (sb.length() < size) {
+            sb.append("The quick brown fox jumps over the lazy dog æøå\r\n");
+        }
+        return sb.toString();
+    }
+
+    private static byte[] buildSms(String body) {
+        String content = "BEGIN:MSG\r\n" + body + "\r\nEND:MSG\r\n";
+        return ("BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:UNREAD\r\nTYPE:SMS_GSM\r\n"
+                + "FOLDER:telecom/msg/inbox\r\nBEGIN:BENV\r\nBEGIN:BBODY\r\nCHARSET:UTF-8\r\n"
+                + "LENGTH:" + content.getBytes(StandardCharsets.UTF_8).length + "\r\n" + content
+                + "END:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void deleteSpillDir() {
+        File[] files = mSpillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.mapclient;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MasRequestQueueTest extends AndroidTestCase {
+    private MasRequestQueue mQueue;
+    private File mSpillDir;
+
+    @Before
+    public void setUp() throws Exception {
+        mQueue = new MasRequestQueue();
+        mSpillDir = new File(mContext.getCacheDir(), "mas_queue_test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mSpillDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        super.tearDown();
+    }
+
+    private static RequestGetMessage getMessage(String handle) {
+        return new RequestGetMessage(handle, MasClient.CharsetType.UTF_8, false);
+    }
+
+    private static byte[] buildSms(String body) {
+        String content = "BEGIN:MSG\r\n" + body + "\r\nEND:MSG\r\n";
+        return ("BEGIN:BMSG\r\nVERSION:1.0\r\nSTATUS:UNREAD\r\nTYPE:SMS_GSM\r\n"
+                + "FOLDER:telecom/msg/inbox\r\nBEGIN:BENV\r\nBEGIN:BBODY\r\nCHARSET:UTF-8\r\n"
+                + "LENGTH:" + content.getBytes(StandardCharsets.UTF_8).length + "\r\n" + content
+                + "END:BBODY\r\nEND:BENV\r\nEND:BMSG\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* What MasClient does with a queued request, the response being a bMessage with |body| */
+    private void run(RequestGetMessage request, String body) {
+        assertTrue(mQueue.add(request, MasRequestQueue.PRIORITY_NORMAL));
+        assertSame(request, mQueue.next());
+        request.setSpillDirectory(mSpillDir);
+        request.readResponse(new ByteArrayInputStream(buildSms(body)));
+        mQueue.complete(request, true);
+    }
+
+    @Test
+    public void testDuplicateIsDroppedAndRaisesPriority() throws Exception {
+        RequestGetMessage first = getMessage("1");
+        RequestGetMessage second = getMessage("2");
+        assertTrue(mQueue.add(first, MasRequestQueue.PRIORITY_BULK));
+        assertTrue(mQueue.add(second, MasRequestQueue.PRIORITY_NORMAL));
+        assertFalse(mQueue.add(getMessage("1"), MasRequestQueue.PRIORITY_CONTROL));
+        assertEquals(2, mQueue.size());
+
+        assertSame(first, mQueue.next());
+        // Still being fetched.
+        assertFalse(mQueue.add(getMessage("1"), MasRequestQueue.PRIORITY_NORMAL));
+        mQueue.complete(first, false);
+        assertTrue(mQueue.add(getMessage("1"), MasRequestQueue.PRIORITY_NORMAL));
+    }
+
+    @Test
+    public void testPriorities() throws Exception {
+        Request bulk = getMessage("1");
+        Request normal = getMessage("2");
+        Request control = new RequestSetNotificationRegistration(true);
+        mQueue.add(bulk, MasRequestQueue.PRIORITY_BULK);
+        mQueue.add(normal, MasRequestQueue.PRIORITY_NORMAL);
+        mQueue.add(control, MasRequestQueue.getPriority(control));
+        assertSame(control, mQueue.next());
+        assertSame(normal, mQueue.next());
+        assertSame(bulk, mQueue.next());
+        assertNull(mQueue.next());
+    }
+
+    @Test
+    public void testNothingOvertakesSetPath() throws Exception {
+        Request bulk = getMessage("1");
+        Request setPath = new RequestSetPath("inbox");
+        Request control = new RequestSetNotificationRegistration(true);
+        mQueue.add(bulk, MasRequestQueue.PRIORITY_BULK);
+        mQueue.add(setPath, MasRequestQueue.getPriority(setPath));
+        mQueue.add(control, MasRequestQueue.getPriority(control));
+        assertSame(bulk, mQueue.next());
+        assertSame(setPath, mQueue.next());
+        assertSame(control, mQueue.next());
+    }
+
+    @Test
+    public void testCacheDropsLeastRecentlyUsed() throws Exception {
+        for (int i = 0; i < MasRequestQueue.CACHE_SIZE; i++) {
+            run(getMessage(Integer.toString(i)), "message " + i);
+        }
+        RequestGetMessage cached = mQueue.getCached(getMessage("0"));
+        assertNotNull(cached);
+        assertEquals("message 0", cached.getMessage().getBodyContent());
+
+        run(getMessage("new"), "new message");
+        assertNotNull(mQueue.getCached(getMessage("0")));
+        assertNull(mQueue.getCached(getMessage("1")));
+        assertNotNull(mQueue.getCached(getMessage("new")));
+
+        mQueue.invalidate("0");
+        assertNull(mQueue.getCached(getMessage("0")));
+    }
+
+    @Test
+    public void testSpilledBodyIsNotCached() throws Exception {
+        StringBuilder body = new StringBuilder();
+        while (body.length() <= BmessageStreamParser.SPILL_THRESHOLD) {
+            body.append("The quick brown fox jumps over the lazy dog\r\n");
+        }
+        RequestGetMessage request = getMessage("1");
+        run(request, body.toString());
+        assertNotNull(request.getMessage().getBodyFile());
+        assertNull(mQueue.getCached(getMessage("1")));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.pbapclient;
+
+import android.accounts.Account;
+import android.content.ContentProviderOperation;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.android.bluetooth.TestUtils;
+import com.android.vcard.VCardEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Benchmarks the phonebook download paths on canned vCard streams: collecting the whole
+ * phonebook before inserting it, and streaming pages through PhonebookInsertPipeline. Batches go
+ * to a counting sink so that only parsing and batching are measured.
+ */
+public class PbapDownloadBenchmarkTest extends AndroidTestCase {
+    private static final String TAG = "PbapDownloadBenchmarkTest";
+    private static final String mTestAccountName = "PBAPTESTACCOUNT";
+
+    // phonebook_sample.vcf holds 10 contacts
+    private static final int SAMPLE_CONTACTS = 10;
+    private static final int REPEAT = 1000;
+    private static final int PAGE_SIZE = 250;
+
+    private Account mAccount;
+    private byte[] mSample;
+
+    private static class CountingSink implements PhonebookInsertPipeline.BatchSink {
+        int mBatches;
+        int mOperations;
+        int mTaggedContacts;
+        int mMaxBatch;
+
+        @Override
+        public void applyBatch(ArrayList<ContentProviderOperation> ops) {
+            mBatches++;
+            mOperations += ops.size();
+            mMaxBatch = Math.max(mMaxBatch, ops.size());
+            for (ContentProviderOperation op : ops) {
+                // Only the handle tagging goes through the sync adapter uri
+                if ("true".equals(op.getUri().getQueryParameter(
+                        ContactsContract.CALLER_IS_SYNCADAPTER))) {
+                    mTaggedContacts++;
+                }
+            }
+        }
+    }
+
+    /* Replays |data| |count| times */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] mData;
+        private int mRemaining;
+        private int mPos;
+
+        RepeatingInputStream(byte[] data, int count) {
+            mData = data;
+            mRemaining = count;
+        }
+
+        @Override
+        public int read() {
+            if (mRemaining == 0) return -1;
+            int b = mData[mPos++] & 0xff;
+            if (mPos == mData.length) {
+                mPos = 0;
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (mRemaining == 0) return -1;
+            int n = Math.min(length, mData.length - mPos);
+            System.arraycopy(mData, mPos, buffer, offset, n);
+            mPos += n;
+            if (mPos == mData.length) {
+                mPos = 0;
+                mRemaining--;
+            }
+            return n;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mAccount = new Account(mTestAccountName,
+                mContext.getString(com.android.bluetooth.R.string.pbap_account_type));
+        mSample = TestUtils.readRawResource(mContext,
+                com.android.bluetooth.tests.R.raw.phonebook_sample);
+    }
+
+    // Whole phonebook parsed into a list, then inserted; the previous download path.
+    @Test
+    public void testCollectThenInsert() throws IOException {
+        CountingSink sink = new CountingSink();
+        long start = SystemClock.elapsedRealtime();
+        BluetoothPbapVcardList list = new BluetoothPbapVcardList(mAccount,
+                new RepeatingInputStream(mSample, REPEAT),
+                PbapClientConnectionHandler.VCARD_TYPE_30);
+        long parsed = SystemClock.elapsedRealtime();
+        PhonebookInsertPipeline inserter =
+                new PhonebookInsertPipeline(mContext.getContentResolver(), sink, 1);
+        assertTrue(inserter.insertAll(list.getList()));
+        long end = SystemClock.elapsedRealtime();
+
+        assertEquals(SAMPLE_CONTACTS * REPEAT, list.getCount());
+        assertEquals(SAMPLE_CONTACTS * REPEAT, inserter.getInsertedCount());
+        assertTrue(sink.mMaxBatch <= PhonebookInsertPipeline.MAX_OPS);
+        Log.i(TAG, "collect then insert: " + list.getCount() + " contacts held in memory, parse "
+                + (parsed - start) + "ms, first batch after " + (parsed - start
+                + Math.max(0, inserter.getFirstBatchLatencyMs())) + "ms, total "
+                + (end - start) + "ms, " + sink.mBatches + " batches");
+    }
+
+    // Pages streamed through the pipeline while they are parsed.
+    @Test
+    public void testStreamedPages() throws IOException {
+        CountingSink sink = new CountingSink();
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                mContext.getContentResolver(), sink, PhonebookInsertPipeline.QUEUE_CAPACITY);
+        int pages = SAMPLE_CONTACTS * REPEAT / PAGE_SIZE;
+        pipeline.start();
+        for (int i = 0; i < pages; i++) {
+            BluetoothPbapVcardList page = new BluetoothPbapVcardList(mAccount,
+                    new RepeatingInputStream(mSample, PAGE_SIZE / SAMPLE_CONTACTS),
+                    PbapClientConnectionHandler.VCARD_TYPE_30, pipeline);
+            assertEquals(PAGE_SIZE, page.getCount());
+            assertTrue(page.getList().isEmpty());
+        }
+        assertTrue(pipeline.finish());
+
+        assertEquals(SAMPLE_CONTACTS * REPEAT, pipeline.getInsertedCount());
+        assertTrue(pipeline.getMaxQueued() <= PhonebookInsertPipeline.QUEUE_CAPACITY);
+        assertTrue(sink.mMaxBatch <= PhonebookInsertPipeline.MAX_OPS);
+        assertTrue(pipeline.getFirstBatchLatencyMs() <= pipeline.getElapsedMs());
+        Log.i(TAG, "streamed pages: at most " + pipeline.getMaxQueued()
+                + " contacts queued, first batch after " + pipeline.getFirstBatchLatencyMs()
+                + "ms, total " + pipeline.getElapsedMs() + "ms, " + sink.mBatches + " batches");
+    }
+
+    /* Listing of the sample pulled |count| times, listed in reverse order, by N or by FN */
+    private LinkedHashMap<String, String> reversedListing(int count, boolean formatted)
+            throws IOException {
+        ArrayList<VCardEntry> entries = new BluetoothPbapVcardList(mAccount,
+                new RepeatingInputStream(mSample, count),
+                PbapClientConnectionHandler.VCARD_TYPE_30).getList();
+        LinkedHashMap<String, String> listing = new LinkedHashMap<String, String>();
+        listing.put(PhonebookSyncDelta.OWNER_HANDLE, "Owner");
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            VCardEntry entry = entries.get(i);
+            listing.put((i + 1) + ".vcf", formatted ? entry.getNameData().getFormatted()
+                    : PhonebookInsertPipeline.getListedName(entry));
+        }
+        return listing;
+    }
+
+    // Entries are tagged with the handle listed under their name, whatever the listing order.
+    @Test
+    public void testStreamedPagesTagHandles() throws IOException {
+        CountingSink sink = new CountingSink();
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                mContext.getContentResolver(), sink, PhonebookInsertPipeline.QUEUE_CAPACITY);
+        pipeline.setListing(reversedListing(2, false));
+        pipeline.start();
+        for (int i = 0; i < 2; i++) {
+            new BluetoothPbapVcardList(mAccount, new RepeatingInputStream(mSample, 1),
+                    PbapClientConnectionHandler.VCARD_TYPE_30, pipeline);
+        }
+        assertTrue(pipeline.finish());
+
+        assertTrue(pipeline.hasHandles());
+        assertEquals(2 * SAMPLE_CONTACTS, sink.mTaggedContacts);
+    }
+
+    // PSEs that list FN rather than N get their entries tagged too.
+    @Test
+    public void testListingByFormattedName() throws IOException {
+        CountingSink sink = new CountingSink();
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                mContext.getContentResolver(), sink, PhonebookInsertPipeline.QUEUE_CAPACITY);
+        pipeline.setListing(reversedListing(1, true));
+        pipeline.start();
+        new BluetoothPbapVcardList(mAccount, new RepeatingInputStream(mSample, 1),
+                PbapClientConnectionHandler.VCARD_TYPE_30, pipeline);
+        assertTrue(pipeline.finish());
+
+        assertTrue(pipeline.hasHandles());
+        assertEquals(SAMPLE_CONTACTS, sink.mTaggedContacts);
+    }
+
+    // An entry that is not in the listing leaves the download without handles.
+    @Test
+    public void testUnlistedEntryIsNotTagged() throws IOException {
+        CountingSink sink = new CountingSink();
+        PhonebookInsertPipeline pipeline = new PhonebookInsertPipeline(
+                mContext.getContentResolver(), sink, PhonebookInsertPipeline.QUEUE_CAPACITY);
+        LinkedHashMap<String, String> listing = reversedListing(1, false);
+        listing.remove("1.vcf");
+        pipeline.setListing(listing);
+        pipeline.start();
+        new BluetoothPbapVcardList(mAccount, new RepeatingInputStream(mSample, 1),
+                PbapClientConnectionHandler.VCARD_TYPE_30, pipeline);
+        assertTrue(pipeline.finish());
+
+        assertFalse(pipeline.hasHandles());
+        assertEquals(SAMPLE_CONTACTS - 1, sink.mTaggedContacts);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.bluetooth.sap;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SapFrameReaderTest extends AndroidTestCase {
+    /* Hands out at most one byte per read, like a slow RFCOMM link */
+    private static class TrickleInputStream extends InputStream {
+        private final InputStream mIn;
+
+        TrickleInputStream(byte[] data) {
+            mIn = new ByteArrayInputStream(data);
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mIn.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return mIn.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    /* A frame of |type| with one parameter |id| holding |value|, padded to 4 bytes */
+    private static byte[] frame(int type, int id, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(type);
+        out.write(1);
+        out.write(0);
+        out.write(0);
+        out.write(id);
+        out.write(0);
+        out.write(value.length >> 8);
+        out.write(value.length);
+        out.write(value, 0, value.length);
+        for (int i = value.length; i % 4 != 0; i++) out.write(0);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) out.write(part, 0, part.length);
+        return out.toByteArray();
+    }
+
+    private static byte[] apdu(int length) {
+        byte[] apdu = new byte[length];
+        for (int i = 0; i < length; i++) apdu[i] = (byte) i;
+        return apdu;
+    }
+
+    private static byte[] remaining(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testReadsFramesInPieces() throws Exception {
+        byte[] apduFrame = frame(SapMessage.ID_TRANSFER_APDU_REQ,
+                SapMessage.PARAM_COMMAND_APDU_ID, apdu(5));
+        byte[] disconnect = {SapMessage.ID_DISCONNECT_REQ, 0, 0, 0};
+        SapFrameReader reader =
+                new SapFrameReader(new TrickleInputStream(concat(apduFrame, disconnect)));
+
+        ByteBuffer frame = reader.readFrame();
+        assertFalse(reader.isOversized());
+        assertTrue(Arrays.equals(apduFrame, remaining(frame)));
+        frame.rewind();
+        SapMessage message = SapMessage.readMessage(frame);
+        assertEquals(SapMessage.ID_TRANSFER_APDU_REQ, message.getMsgType());
+        assertTrue(Arrays.equals(apdu(5), message.getApdu()));
+
+        assertTrue(Arrays.equals(disconnect, remaining(reader.readFrame())));
+        assertNull(reader.readFrame());
+    }
+
+    @Test
+    public void testLargeFrameGrowsBuffer() throws Exception {
+        byte[] apduFrame = frame(SapMessage.ID_TRANSFER_APDU_REQ,
+                SapMessage.PARAM_COMMAND_APDU_ID, apdu(1000));
+        SapFrameReader reader = new SapFrameReader(new ByteArrayInputStream(apduFrame));
+        assertTrue(Arrays.equals(apduFrame, remaining(reader.readFrame())));
+    }
+
+    @Test
+    public void testOversizedFrameKeepsStreamInSync() throws Exception {
+        byte[] oversized = frame(SapMessage.ID_TRANSFER_APDU_REQ,
+                SapMessage.PARAM_COMMAND_APDU_ID, apdu(SapFrameReader.MAX_FRAME_LENGTH));
+        byte[] disconnect = {SapMessage.ID_DISCONNECT_REQ, 0, 0, 0};
+        SapFrameReader reader =
+                new SapFrameReader(new ByteArrayInputStream(concat(oversized, disconnect)));
+
+        reader.readFrame();
+        assertTrue(reader.isOversized());
+        assertTrue(Arrays.equals(disconnect, remaining(reader.readFrame())));
+        assertFalse(reader.isOversized());
+    }
+
+    @Test
+    public void testStreamEndsWithinFrame() throws Exception {
+        byte[] apduFrame = frame(SapMessage.ID_TRANSFER_APDU_REQ,
+                SapMessage.PARAM_COMMAND_APDU_ID, apdu(5));
+        SapFrameReader reader = new SapFrameReader(
+                new ByteArrayInputStream(Arrays.copyOf(apduFrame, apduFrame.length - 2)));
+        try {
+            reader.readFrame();
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}